@@ -0,0 +1,72 @@
+package com.onthegomap.planetiler.benchmarks;
+
+import static io.prometheus.client.Collector.NANOSECONDS_PER_SECOND;
+
+import com.onthegomap.planetiler.archive.TileArchives;
+import com.onthegomap.planetiler.archive.TileCompression;
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import com.onthegomap.planetiler.stats.Timer;
+import com.onthegomap.planetiler.util.Format;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares encode/decode throughput and output size of each {@link TileCompression} codec on a sample of tiles read
+ * from an existing archive.
+ * <p>
+ * Usage: {@code --bench_input=output.pmtiles --bench_max_tiles=100000}
+ */
+public class BenchmarkTileCompression {
+
+  public static void main(String[] args) throws IOException {
+    Arguments arguments = Arguments.fromArgs(args);
+    var config = PlanetilerConfig.from(arguments);
+    String input = arguments.getString("bench_input", "archive to read sample tiles from", "data/output.mbtiles");
+    int maxTiles = arguments.getInteger("bench_max_tiles", "maximum number of tiles to sample", 100_000);
+    int repetitions = arguments.getInteger("bench_repetitions", "number of repetitions", 3);
+
+    List<byte[]> tiles = new ArrayList<>();
+    long rawBytes = 0;
+    try (var reader = TileArchives.newReader(input, config); var iter = reader.getAllTiles()) {
+      var metadata = reader.metadata();
+      var inputCompression = metadata == null ? TileCompression.GZIP : metadata.tileCompression();
+      while (iter.hasNext() && tiles.size() < maxTiles) {
+        byte[] raw = inputCompression.decompress(iter.next().bytes());
+        rawBytes += raw.length;
+        tiles.add(raw);
+      }
+    }
+    var format = Format.defaultInstance();
+    System.err.println("Read " + tiles.size() + " tiles " + format.storage(rawBytes) + " uncompressed");
+
+    for (int i = 0; i < repetitions; i++) {
+      for (var compression : TileCompression.availableValues().stream().sorted().toList()) {
+        List<byte[]> compressed = new ArrayList<>(tiles.size());
+        long compressedBytes = 0;
+        var encodeTimer = Timer.start();
+        for (byte[] tile : tiles) {
+          byte[] bytes = compression.compress(tile);
+          compressedBytes += bytes.length;
+          compressed.add(bytes);
+        }
+        double encodeSeconds = encodeTimer.stop().elapsed().wall().toNanos() / NANOSECONDS_PER_SECOND;
+
+        var decodeTimer = Timer.start();
+        for (byte[] bytes : compressed) {
+          compression.decompress(bytes);
+        }
+        double decodeSeconds = decodeTimer.stop().elapsed().wall().toNanos() / NANOSECONDS_PER_SECOND;
+
+        System.err.println(
+          compression.id() + ": " + format.storage(compressedBytes) +
+            " (" + format.percent(compressedBytes * 1d / rawBytes) + " of raw)" +
+            " encode " + format.storage(rawBytes / encodeSeconds) + "/s" +
+            " (" + format.numeric(tiles.size() / encodeSeconds) + " tiles/s)" +
+            " decode " + format.storage(rawBytes / decodeSeconds) + "/s"
+        );
+      }
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package com.onthegomap.planetiler.benchmarks;
+
+import com.onthegomap.planetiler.archive.TileArchiveConfig;
+import com.onthegomap.planetiler.archive.TileArchives;
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.stats.Timer;
+import com.onthegomap.planetiler.util.Format;
+import com.onthegomap.planetiler.util.Parse;
+import com.onthegomap.planetiler.util.TileServer;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for {@link TileServer}: requests random tiles from an archive with many concurrent clients and reports
+ * throughput and latency percentiles.
+ * <p>
+ * Starts an embedded server for {@code --input} unless {@code --url} points to one that is already running.
+ */
+public class BenchmarkTileServer {
+
+  public static void main(String[] args) throws Exception {
+    var arguments = Arguments.fromArgs(args);
+    String input = arguments.getString("input", "archive to request tiles from");
+    String url = arguments.getString("url", "base url of a running server, or empty to start one for input", "");
+    int requests = arguments.getInteger("bench_requests", "number of requests per repetition", 200_000);
+    int concurrency = arguments.getInteger("bench_concurrency", "max requests in flight", 256);
+    int repetitions = arguments.getInteger("bench_repetitions", "number of repetitions", 5);
+    int sampleSize = arguments.getInteger("bench_tiles", "number of distinct tiles to sample from the archive", 50_000);
+    boolean gzip = arguments.getBoolean("bench_gzip", "send Accept-Encoding: gzip", true);
+    long cacheBytes = Parse.jvmMemoryStringToBytes(arguments.getString("tile_cache_size",
+      "max memory to use for cached tiles", "256m"));
+    var config = PlanetilerConfig.from(arguments);
+    var archive = TileArchiveConfig.from(input);
+
+    List<TileCoord> tiles = sampleTiles(archive, config, sampleSize);
+    if (tiles.isEmpty()) {
+      throw new IllegalArgumentException("No tiles in " + input);
+    }
+
+    TileServer server = null;
+    if (url.isBlank()) {
+      server = TileServer.open(archive, config, concurrency, cacheBytes)
+        .start(new InetSocketAddress("127.0.0.1", 0));
+      url = "http://127.0.0.1:" + server.port();
+    }
+    try (
+      var executor = Executors.newVirtualThreadPerTaskExecutor();
+      var client = HttpClient.newBuilder().executor(executor).build()
+    ) {
+      var format = Format.defaultInstance();
+      for (int rep = 0; rep < repetitions; rep++) {
+        var random = new Random(rep);
+        long[] latencies = new long[requests];
+        var errors = new AtomicInteger();
+        var bytes = new AtomicLong();
+        var inFlight = new Semaphore(concurrency);
+        var timer = Timer.start();
+        for (int i = 0; i < requests; i++) {
+          TileCoord tile = tiles.get(random.nextInt(tiles.size()));
+          var builder = HttpRequest.newBuilder(URI.create(url + "/" + tile.z() + "/" + tile.x() + "/" + tile.y()));
+          if (gzip) {
+            builder.header("Accept-Encoding", "gzip");
+          }
+          int idx = i;
+          inFlight.acquire();
+          long start = System.nanoTime();
+          client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofByteArray())
+            .whenComplete((response, error) -> {
+              latencies[idx] = System.nanoTime() - start;
+              if (error != null || response.statusCode() >= 400) {
+                errors.incrementAndGet();
+              } else {
+                bytes.addAndGet(response.body().length);
+              }
+              inFlight.release();
+            });
+        }
+        inFlight.acquire(concurrency);
+        var elapsed = timer.stop().elapsed().wall();
+        Arrays.sort(latencies);
+        System.err.println(
+          "%s requests in %s (%s/s, %s) errors=%d p50=%s p90=%s p99=%s max=%s%s".formatted(
+            format.integer(requests),
+            format.duration(elapsed),
+            format.numeric(requests * 1e9 / elapsed.toNanos()),
+            format.storage(bytes.get() * 1e9 / elapsed.toNanos()) + "/s",
+            errors.get(),
+            millis(latencies, 0.5),
+            millis(latencies, 0.9),
+            millis(latencies, 0.99),
+            millis(latencies, 1),
+            server == null ? "" : " " + server.cacheStats()
+          ));
+      }
+    } finally {
+      if (server != null) {
+        server.close();
+      }
+    }
+  }
+
+  private static String millis(long[] sorted, double percentile) {
+    int idx = Math.min(sorted.length - 1, (int) (percentile * sorted.length));
+    return "%.2fms".formatted(sorted[idx] / 1e6);
+  }
+
+  /** Returns up to {@code limit} tiles chosen uniformly at random from the archive with reservoir sampling. */
+  private static List<TileCoord> sampleTiles(TileArchiveConfig archive, PlanetilerConfig config, int limit)
+    throws Exception {
+    List<TileCoord> result = new ArrayList<>(limit);
+    var random = new Random(0);
+    try (
+      var reader = TileArchives.newReader(archive, config);
+      var coords = reader.getAllTileCoords()
+    ) {
+      long seen = 0;
+      while (coords.hasNext()) {
+        TileCoord coord = coords.next();
+        seen++;
+        if (result.size() < limit) {
+          result.add(coord);
+        } else {
+          long idx = random.nextLong(seen);
+          if (idx < limit) {
+            result.set((int) idx, coord);
+          }
+        }
+      }
+    }
+    return result;
+  }
+}
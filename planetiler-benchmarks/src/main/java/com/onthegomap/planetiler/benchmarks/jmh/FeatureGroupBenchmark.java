@@ -0,0 +1,83 @@
+package com.onthegomap.planetiler.benchmarks.jmh;
+
+import com.onthegomap.planetiler.Profile;
+import com.onthegomap.planetiler.VectorTile;
+import com.onthegomap.planetiler.collection.FeatureGroup;
+import com.onthegomap.planetiler.collection.SortableFeature;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import com.onthegomap.planetiler.geo.GeoUtils;
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.geo.TileOrder;
+import com.onthegomap.planetiler.render.RenderedFeature;
+import com.onthegomap.planetiler.stats.Stats;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.locationtech.jts.geom.Coordinate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Encoding rendered features into sortable keys and msgpack values before they get written to temp storage. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeatureGroupBenchmark {
+
+  private FeatureGroup.RenderedFeatureEncoder encoder;
+  private RenderedFeature point;
+  private RenderedFeature line;
+  private RenderedFeature grouped;
+
+  @Setup
+  public void setup() {
+    var featureGroup = FeatureGroup.newInMemoryFeatureGroup(TileOrder.TMS, new Profile.NullProfile(),
+      PlanetilerConfig.defaults(), Stats.inMemory());
+    encoder = featureGroup.newRenderedFeatureEncoder();
+    Map<String, Object> tags = Map.of("class", "primary", "name", "Main Street", "rank", 3, "oneway", true);
+    TileCoord tile = TileCoord.ofXYZ(4_000, 6_000, 14);
+    point = new RenderedFeature(tile,
+      new VectorTile.Feature("poi", 1, VectorTile.encodeGeometry(GeoUtils.point(10, 20)), tags), 0, Optional.empty());
+    Coordinate[] coords = new Coordinate[50];
+    for (int i = 0; i < coords.length; i++) {
+      coords[i] = new Coordinate(i * 5, (i * 7) % 256);
+    }
+    line = new RenderedFeature(tile, new VectorTile.Feature("transportation", 2,
+      VectorTile.encodeGeometry(GeoUtils.JTS_FACTORY.createLineString(coords)), tags), 10, Optional.empty());
+    grouped = new RenderedFeature(tile,
+      new VectorTile.Feature("poi", 3, VectorTile.encodeGeometry(GeoUtils.point(30, 40)), tags), -5,
+      Optional.of(new RenderedFeature.Group(123, 10)));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    encoder.close();
+  }
+
+  @Benchmark
+  public SortableFeature encodePoint() {
+    return encoder.apply(point);
+  }
+
+  @Benchmark
+  public SortableFeature encodeLine() {
+    return encoder.apply(line);
+  }
+
+  @Benchmark
+  public SortableFeature encodeGroupedPoint() {
+    return encoder.apply(grouped);
+  }
+}
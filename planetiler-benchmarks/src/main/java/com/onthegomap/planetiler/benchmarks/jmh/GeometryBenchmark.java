@@ -0,0 +1,90 @@
+package com.onthegomap.planetiler.benchmarks.jmh;
+
+import com.onthegomap.planetiler.geo.DouglasPeuckerSimplifier;
+import com.onthegomap.planetiler.geo.GeoUtils;
+import com.onthegomap.planetiler.geo.GeometryException;
+import com.onthegomap.planetiler.geo.TileExtents;
+import com.onthegomap.planetiler.render.TiledGeometry;
+import java.util.concurrent.TimeUnit;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.util.AffineTransformation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Simplifying and slicing a wiggly line and polygon with {@code points} vertices that span a few tiles at z14, the
+ * two most expensive steps of rendering a feature.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeometryBenchmark {
+
+  private static final int Z = 14;
+  private static final double TOLERANCE = 0.1 / 256;
+  private static final double BUFFER = 4d / 256;
+
+  @Param({"100", "10000"})
+  int points;
+
+  private Geometry scaledLine;
+  private Geometry scaledPolygon;
+  private TileExtents.ForZoom extents;
+
+  @Setup
+  public void setup() {
+    // world coordinates around a single z14 tile
+    double start = 0.5;
+    double size = 3d / (1 << Z);
+    Coordinate[] lineCoords = new Coordinate[points];
+    Coordinate[] ringCoords = new Coordinate[points + 1];
+    for (int i = 0; i < points; i++) {
+      double angle = Math.PI * 2 * i / points;
+      double wiggle = 1 + 0.05 * Math.sin(angle * 50);
+      lineCoords[i] = new Coordinate(start + size * i / points, start + size * 0.5 * wiggle);
+      ringCoords[i] = new Coordinate(start + size / 2 * (1 + wiggle * Math.cos(angle)),
+        start + size / 2 * (1 + wiggle * Math.sin(angle)));
+    }
+    ringCoords[points] = ringCoords[0];
+    Geometry line = GeoUtils.JTS_FACTORY.createLineString(lineCoords);
+    Geometry polygon = GeoUtils.JTS_FACTORY.createPolygon(ringCoords);
+    // scale to z14 tile coordinates like FeatureRenderer does before simplifying and slicing
+    var scale = AffineTransformation.scaleInstance(1 << Z, 1 << Z);
+    scaledLine = scale.transform(line);
+    scaledPolygon = scale.transform(polygon);
+    extents = TileExtents.computeFromWorldBounds(Z, GeoUtils.WORLD_BOUNDS).getForZoom(Z);
+  }
+
+  @Benchmark
+  public Geometry simplifyLine() {
+    return DouglasPeuckerSimplifier.simplify(scaledLine, TOLERANCE);
+  }
+
+  @Benchmark
+  public Geometry simplifyPolygon() {
+    return DouglasPeuckerSimplifier.simplify(scaledPolygon, TOLERANCE);
+  }
+
+  @Benchmark
+  public TiledGeometry sliceLine() throws GeometryException {
+    return TiledGeometry.sliceIntoTiles(scaledLine, 0, BUFFER, Z, extents);
+  }
+
+  @Benchmark
+  public TiledGeometry slicePolygon() throws GeometryException {
+    return TiledGeometry.sliceIntoTiles(scaledPolygon, 0, BUFFER, Z, extents);
+  }
+}
@@ -0,0 +1,29 @@
+package com.onthegomap.planetiler.benchmarks.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmark suite and writes machine-readable results to {@code jmh-result.json} so they can be compared
+ * between releases.
+ * <p>
+ * Any JMH command-line option can be passed through, for example a regex to select benchmarks to run, {@code -f 1} to
+ * use a single fork, or {@code -rf csv -rff results.csv} to change the result format:
+ *
+ * <pre>{@code
+ * java -cp planetiler-benchmarks-with-deps.jar com.onthegomap.planetiler.benchmarks.jmh.JmhBenchmarks VectorTile
+ * }</pre>
+ */
+public class JmhBenchmarks {
+
+  public static void main(String[] args) throws Exception {
+    List<String> argList = new ArrayList<>(List.of(args));
+    if (!argList.contains("-rf")) {
+      argList.addAll(List.of("-rf", "json"));
+    }
+    if (!argList.contains("-rff")) {
+      argList.addAll(List.of("-rff", "jmh-result.json"));
+    }
+    org.openjdk.jmh.Main.main(argList.toArray(String[]::new));
+  }
+}
@@ -0,0 +1,92 @@
+package com.onthegomap.planetiler.benchmarks.jmh;
+
+import com.onthegomap.planetiler.collection.LongLongMap;
+import com.onthegomap.planetiler.util.FileUtils;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Random reads from each {@link LongLongMap} type and storage combination after loading 10 million node locations with
+ * gaps between IDs like an OSM extract, which is what pass 2 of reading OSM data does for every way node.
+ * <p>
+ * Replaces the {@code LongLongMapBench} main. Use {@code -prof gc} or check disk usage of the temp directory to compare
+ * memory usage between implementations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LongLongMapBenchmark {
+
+  private static final int ENTRIES = 10_000_000;
+  private static final int LOOKUPS = 1 << 20;
+
+  @Param({"sortedtable", "sparsearray", "compact", "array"})
+  String type;
+
+  @Param({"ram", "mmap", "direct"})
+  String storage;
+
+  @Param({"true"})
+  boolean madvise;
+
+  private Path dir;
+  private LongLongMap map;
+  private long[] keys;
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int i = 0;
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("planetiler-longlongmap");
+    map = LongLongMap.from(type, storage, dir.resolve("map"), madvise);
+    Random random = new Random(0);
+    long[] written = new long[ENTRIES];
+    try (var writer = map.newWriter()) {
+      long key = 0;
+      for (int i = 0; i < ENTRIES; i++) {
+        key += 1 + random.nextInt(4);
+        written[i] = key;
+        writer.put(key, key + 1);
+      }
+    }
+    keys = new long[LOOKUPS];
+    for (int i = 0; i < LOOKUPS; i++) {
+      keys[i] = written[random.nextInt(ENTRIES)];
+    }
+    // first read switches the map from writing to reading mode
+    map.get(keys[0]);
+  }
+
+  @TearDown
+  public void teardown() throws IOException {
+    map.close();
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  public long get(Cursor cursor) {
+    long key = keys[cursor.i++ & (LOOKUPS - 1)];
+    return map.get(key);
+  }
+}
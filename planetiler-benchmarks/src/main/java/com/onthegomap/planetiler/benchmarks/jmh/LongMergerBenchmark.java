@@ -0,0 +1,64 @@
+package com.onthegomap.planetiler.benchmarks.jmh;
+
+import com.onthegomap.planetiler.collection.LongMerger;
+import com.onthegomap.planetiler.collection.SortableFeature;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** K-way merge of {@code ways} sorted lists with 1 million features in total, like reading sorted temp chunks. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LongMergerBenchmark {
+
+  private static final int TOTAL = 1_000_000;
+
+  @Param({"2", "10", "100", "1000"})
+  int ways;
+
+  private SortableFeature[][] lists;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(0);
+    byte[] value = new byte[0];
+    lists = new SortableFeature[ways][];
+    for (int i = 0; i < ways; i++) {
+      lists[i] = random.longs(TOTAL / ways, 0, Long.MAX_VALUE)
+        .sorted()
+        .mapToObj(key -> new SortableFeature(key, value))
+        .toArray(SortableFeature[]::new);
+    }
+  }
+
+  @Benchmark
+  public long merge() {
+    List<Iterator<SortableFeature>> iterators = new ArrayList<>(ways);
+    for (var list : lists) {
+      iterators.add(List.of(list).iterator());
+    }
+    var merged = LongMerger.mergeIterators(iterators, SortableFeature.COMPARE_BYTES);
+    long sum = 0;
+    while (merged.hasNext()) {
+      sum += merged.next().key();
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,84 @@
+package com.onthegomap.planetiler.benchmarks.jmh;
+
+import static com.onthegomap.planetiler.expression.Expression.and;
+import static com.onthegomap.planetiler.expression.Expression.matchAny;
+import static com.onthegomap.planetiler.expression.Expression.matchField;
+import static com.onthegomap.planetiler.expression.Expression.not;
+
+import com.onthegomap.planetiler.expression.MultiExpression;
+import com.onthegomap.planetiler.reader.WithTags;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matches a mix of typical OSM tag sets against an index of 100 expressions, similar to a profile's layer mapping.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiExpressionBenchmark {
+
+  private static final List<String> KEYS = List.of("highway", "building", "amenity", "shop", "landuse", "natural",
+    "waterway", "railway", "leisure", "tourism");
+
+  @Param({"false", "true"})
+  public boolean compiled;
+
+  private MultiExpression.Index<Integer> index;
+  private WithTags[] inputs;
+
+  @Setup
+  public void setup() {
+    List<MultiExpression.Entry<Integer>> entries = new ArrayList<>();
+    int id = 0;
+    for (String key : KEYS) {
+      for (int i = 0; i < 9; i++) {
+        entries.add(MultiExpression.entry(id++, matchAny(key, key + "_" + i, key + "_" + (i + 10))));
+      }
+      entries.add(MultiExpression.entry(id++, and(matchField(key), not(matchAny("access", "private")))));
+    }
+    var multiExpression = MultiExpression.of(entries);
+    index = compiled ? multiExpression.compiledIndex() : multiExpression.index();
+    inputs = new WithTags[]{
+      WithTags.from(Map.of("highway", "highway_3", "name", "Main Street", "surface", "asphalt")),
+      WithTags.from(Map.of("building", "yes", "addr:housenumber", "10")),
+      WithTags.from(Map.of("amenity", "amenity_15", "access", "private")),
+      WithTags.from(Map.of("source", "survey", "note", "fixme")),
+      WithTags.from(Map.of())
+    };
+  }
+
+  @Benchmark
+  public int getMatches() {
+    int sum = 0;
+    for (WithTags input : inputs) {
+      sum += index.getMatches(input).size();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int getOrElse() {
+    int sum = 0;
+    for (WithTags input : inputs) {
+      sum += index.getOrElse(input, -1);
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,116 @@
+package com.onthegomap.planetiler.benchmarks.jmh;
+
+import com.google.protobuf.ByteString;
+import com.onthegomap.planetiler.reader.osm.OsmElement;
+import com.onthegomap.planetiler.reader.osm.PbfDecoder;
+import crosby.binary.Fileformat;
+import crosby.binary.Osmformat;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decompresses and decodes a synthetic PBF block shaped like the ones osmium writes: 8000 dense nodes, a few of them
+ * tagged, and 1000 tagged ways.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PbfDecoderBenchmark {
+
+  private static final int NODES = 8_000;
+  private static final int WAYS = 1_000;
+  private static final int NODES_PER_WAY = 10;
+
+  @Param({"zlib", "raw"})
+  String compression;
+
+  private byte[] blob;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(0);
+    var strings = Osmformat.StringTable.newBuilder();
+    for (String s : new String[]{"", "highway", "residential", "name", "Main Street", "amenity", "cafe", "building",
+      "yes"}) {
+      strings.addS(ByteString.copyFrom(s, StandardCharsets.UTF_8));
+    }
+
+    var dense = Osmformat.DenseNodes.newBuilder();
+    long lastLat = 0, lastLon = 0;
+    for (int i = 0; i < NODES; i++) {
+      long lat = 400_000_000L + random.nextInt(1_000_000);
+      long lon = -700_000_000L + random.nextInt(1_000_000);
+      dense.addId(i == 0 ? 1 : 1 + random.nextInt(3));
+      dense.addLat(lat - lastLat);
+      dense.addLon(lon - lastLon);
+      lastLat = lat;
+      lastLon = lon;
+      if (i % 20 == 0) {
+        dense.addKeysVals(5).addKeysVals(6);
+      }
+      dense.addKeysVals(0);
+    }
+
+    var ways = Osmformat.PrimitiveGroup.newBuilder();
+    for (int i = 0; i < WAYS; i++) {
+      var way = Osmformat.Way.newBuilder()
+        .setId(i + 1L)
+        .addKeys(1).addVals(2)
+        .addKeys(3).addVals(4);
+      long lastRef = 0;
+      for (int j = 0; j < NODES_PER_WAY; j++) {
+        long ref = 1 + random.nextInt(NODES);
+        way.addRefs(ref - lastRef);
+        lastRef = ref;
+      }
+      ways.addWays(way);
+    }
+
+    byte[] block = Osmformat.PrimitiveBlock.newBuilder()
+      .setStringtable(strings)
+      .addPrimitivegroup(Osmformat.PrimitiveGroup.newBuilder().setDense(dense).build().toByteString())
+      .addPrimitivegroup(ways.build().toByteString())
+      .build()
+      .toByteArray();
+
+    var result = Fileformat.Blob.newBuilder();
+    if ("zlib".equals(compression)) {
+      Deflater deflater = new Deflater();
+      deflater.setInput(block);
+      deflater.finish();
+      byte[] compressed = new byte[block.length + 1024];
+      int length = deflater.deflate(compressed);
+      deflater.end();
+      result.setRawSize(block.length).setZlibData(ByteString.copyFrom(Arrays.copyOf(compressed, length)));
+    } else {
+      result.setRaw(ByteString.copyFrom(block));
+    }
+    blob = result.build().toByteArray();
+  }
+
+  @Benchmark
+  public long decode() {
+    long sum = 0;
+    for (OsmElement element : PbfDecoder.decode(blob)) {
+      sum += element.id();
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,66 @@
+package com.onthegomap.planetiler.benchmarks.jmh;
+
+import com.carrotsearch.hppc.ByteArrayList;
+import com.onthegomap.planetiler.util.VarInt;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Encodes and decodes 10,000 {@link VarInt varints} of mixed length. Replaces the {@code BenchmarkVarInt} main. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VarIntBenchmark {
+
+  private static final int COUNT = 10_000;
+
+  private long[] values;
+  private byte[] encoded;
+  private final ByteArrayList buffer = new ByteArrayList();
+
+  @Setup
+  public void setup() {
+    Random random = new Random(0);
+    values = new long[COUNT];
+    for (int i = 0; i < COUNT; i++) {
+      values[i] = random.nextLong() >>> random.nextInt(64);
+    }
+    ByteArrayList out = new ByteArrayList();
+    for (long value : values) {
+      VarInt.putVarLong(value, out);
+    }
+    encoded = out.toArray();
+  }
+
+  @Benchmark
+  public int encode() {
+    buffer.clear();
+    for (long value : values) {
+      VarInt.putVarLong(value, buffer);
+    }
+    return buffer.size();
+  }
+
+  @Benchmark
+  public long decode() {
+    ByteBuffer buf = ByteBuffer.wrap(encoded);
+    long sum = 0;
+    for (int i = 0; i < COUNT; i++) {
+      sum += VarInt.getVarLong(buf);
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,76 @@
+package com.onthegomap.planetiler.benchmarks.jmh;
+
+import static com.onthegomap.planetiler.geo.GeoUtils.JTS_FACTORY;
+
+import com.onthegomap.planetiler.VectorTile;
+import com.onthegomap.planetiler.geo.GeoUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.locationtech.jts.geom.Coordinate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Encoding a tile with a mix of points, lines, and polygons into protobuf bytes. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VectorTileBenchmark {
+
+  @Param({"10", "1000"})
+  int featuresPerLayer;
+
+  private VectorTile tile;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(0);
+    tile = new VectorTile();
+    List<VectorTile.Feature> points = new ArrayList<>();
+    List<VectorTile.Feature> lines = new ArrayList<>();
+    List<VectorTile.Feature> polygons = new ArrayList<>();
+    for (int i = 0; i < featuresPerLayer; i++) {
+      Map<String, Object> tags = Map.of("class", "class" + (i % 10), "name", "name " + i, "rank", i % 7);
+      double x = random.nextDouble() * 256, y = random.nextDouble() * 256;
+      points.add(new VectorTile.Feature("points", i, VectorTile.encodeGeometry(GeoUtils.point(x, y)), tags));
+      Coordinate[] line = new Coordinate[20];
+      for (int j = 0; j < line.length; j++) {
+        line[j] = new Coordinate(x + j, y + random.nextDouble() * 10);
+      }
+      lines.add(new VectorTile.Feature("lines", i, VectorTile.encodeGeometry(JTS_FACTORY.createLineString(line)),
+        tags));
+      var polygon = JTS_FACTORY.createPolygon(new Coordinate[]{
+        new Coordinate(x, y), new Coordinate(x + 10, y), new Coordinate(x + 10, y + 10), new Coordinate(x, y + 10),
+        new Coordinate(x, y)
+      });
+      polygons.add(new VectorTile.Feature("polygons", i, VectorTile.encodeGeometry(polygon), tags));
+    }
+    tile.addLayerFeatures("points", points);
+    tile.addLayerFeatures("lines", lines);
+    tile.addLayerFeatures("polygons", polygons);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return tile.encode();
+  }
+
+  @Benchmark
+  public byte[] encodeWithProtoBuilders() {
+    return tile.toProto().toByteArray();
+  }
+}
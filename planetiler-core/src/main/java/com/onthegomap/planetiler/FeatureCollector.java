@@ -245,7 +245,9 @@ public class FeatureCollector implements Iterable<FeatureCollector.Feature> {
   /** Returns the minimum zoom level at which this feature is at least {@code pixelSize} pixels large. */
   public int getMinZoomForPixelSize(double pixelSize) {
     try {
-      return GeoUtils.minZoomForPixelSize(source.size(), pixelSize);
+      // features too small for any zoom level used to show up at z15, keep that unless rendering z16+
+      return Math.min(GeoUtils.minZoomForPixelSize(source.size(), pixelSize),
+        Math.max(config.maxzoomForRendering(), 15));
     } catch (GeometryException e) {
       e.log(stats, "min_zoom_for_size_failure", "Error getting min zoom for size from geometry " + source);
       return config.maxzoom();
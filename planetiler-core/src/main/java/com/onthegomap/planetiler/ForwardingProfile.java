@@ -13,8 +13,10 @@ import com.onthegomap.planetiler.reader.osm.OsmRelationInfo;
 import com.onthegomap.planetiler.util.MutableCollections;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
@@ -52,12 +54,19 @@ public abstract class ForwardingProfile implements Profile {
   private final List<MultiExpression.Entry<FeatureProcessor>> sourceElementProcessors = new CopyOnWriteArrayList<>();
   private final List<String> onlyLayers;
   private final List<String> excludeLayers;
+  private final boolean compileExpressions;
   @SuppressWarnings("java:S3077")
   private volatile MultiExpression.Index<FeatureProcessor> indexedSourceElementProcessors = null;
+  // subclasses that override post-processing methods directly need every feature decoded for them
+  private final boolean overridesLayerPostProcessing =
+    ProfileOverrides.overridesPostProcessLayerFeatures(getClass(), ForwardingProfile.class);
+  private final boolean overridesTilePostProcessing =
+    ProfileOverrides.overridesPostProcessTileFeatures(getClass(), ForwardingProfile.class);
 
   protected ForwardingProfile(PlanetilerConfig config, Handler... handlers) {
     onlyLayers = config.arguments().getList("only_layers", "Include only certain layers", List.of());
     excludeLayers = config.arguments().getList("exclude_layers", "Exclude certain layers", List.of());
+    compileExpressions = config.compileExpressions();
     for (var handler : handlers) {
       registerHandler(handler);
     }
@@ -66,11 +75,13 @@ public abstract class ForwardingProfile implements Profile {
   protected ForwardingProfile() {
     onlyLayers = List.of();
     excludeLayers = List.of();
+    compileExpressions = false;
   }
 
   protected ForwardingProfile(Handler... handlers) {
     onlyLayers = List.of();
     excludeLayers = List.of();
+    compileExpressions = false;
     for (var handler : handlers) {
       registerHandler(handler);
     }
@@ -195,7 +206,9 @@ public abstract class ForwardingProfile implements Profile {
       synchronized (sourceElementProcessors) {
         result = indexedSourceElementProcessors;
         if (result == null) {
-          indexedSourceElementProcessors = result = MultiExpression.of(sourceElementProcessors).index();
+          var expressions = MultiExpression.of(sourceElementProcessors);
+          indexedSourceElementProcessors = result = compileExpressions ? expressions.compiledIndex() :
+            expressions.index();
         }
       }
     }
@@ -231,6 +244,33 @@ public abstract class ForwardingProfile implements Profile {
     return result;
   }
 
+  @Override
+  public boolean postProcessesLayer(String layer, int zoom) {
+    return overridesLayerPostProcessing || layerPostProcessors.containsKey(layer);
+  }
+
+  @Override
+  public boolean postProcessesTiles() {
+    return overridesTilePostProcessing || !tilePostProcessors.isEmpty();
+  }
+
+  @Override
+  public List<String> declaredLayers() {
+    // handlers for a layer usually emit features into the layer they are named after
+    Set<String> result = new LinkedHashSet<>();
+    for (var handler : handlers) {
+      if (handler instanceof HandlerForLayer forLayer) {
+        result.add(forLayer.name());
+      }
+    }
+    for (var entry : sourceElementProcessors) {
+      if (entry.result() instanceof HandlerForLayer forLayer) {
+        result.add(forLayer.name());
+      }
+    }
+    return List.copyOf(result);
+  }
+
   @Override
   public Map<String, List<VectorTile.Feature>> postProcessTileFeatures(TileCoord tileCoord,
     Map<String, List<VectorTile.Feature>> layers) throws GeometryException {
@@ -2,12 +2,14 @@ package com.onthegomap.planetiler;
 
 import com.onthegomap.planetiler.archive.TileArchiveConfig;
 import com.onthegomap.planetiler.archive.TileArchiveMetadata;
+import com.onthegomap.planetiler.archive.TileArchiveShards;
 import com.onthegomap.planetiler.archive.TileArchiveWriter;
 import com.onthegomap.planetiler.archive.TileArchives;
 import com.onthegomap.planetiler.archive.WriteableTileArchive;
 import com.onthegomap.planetiler.collection.FeatureGroup;
 import com.onthegomap.planetiler.collection.LongLongMap;
 import com.onthegomap.planetiler.collection.LongLongMultimap;
+import com.onthegomap.planetiler.collection.Storage;
 import com.onthegomap.planetiler.config.Arguments;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.reader.GeoPackageReader;
@@ -22,12 +24,14 @@ import com.onthegomap.planetiler.stats.ProcessInfo;
 import com.onthegomap.planetiler.stats.Stats;
 import com.onthegomap.planetiler.stats.Timers;
 import com.onthegomap.planetiler.util.AnsiColors;
+import com.onthegomap.planetiler.util.BuildCheckpoint;
 import com.onthegomap.planetiler.util.BuildInfo;
 import com.onthegomap.planetiler.util.ByteBufferUtil;
 import com.onthegomap.planetiler.util.Downloader;
 import com.onthegomap.planetiler.util.FileUtils;
 import com.onthegomap.planetiler.util.Format;
 import com.onthegomap.planetiler.util.Geofabrik;
+import com.onthegomap.planetiler.util.LayerAttrStats;
 import com.onthegomap.planetiler.util.LogUtil;
 import com.onthegomap.planetiler.util.ResourceUsage;
 import com.onthegomap.planetiler.util.TileSizeStats;
@@ -44,6 +48,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.IntStream;
@@ -78,6 +83,8 @@ import org.slf4j.LoggerFactory;
 public class Planetiler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(Planetiler.class);
+  /** Number of tile ranges the archive stage checkpoints when resuming is enabled. */
+  private static final int ARCHIVE_CHECKPOINT_RANGES = 64;
   private final List<Stage> stages = new ArrayList<>();
   private final List<ToDownload> toDownload = new ArrayList<>();
   private final List<InputPath> inputPaths = new ArrayList<>();
@@ -113,6 +120,7 @@ public class Planetiler {
   private boolean fetchWikidata = false;
   private final boolean fetchOsmTileStats;
   private TileArchiveMetadata tileArchiveMetadata;
+  private BuildCheckpoint checkpoint = null;
 
   private Planetiler(Arguments arguments) {
     this.arguments = arguments;
@@ -206,17 +214,33 @@ public class Planetiler {
           header.osmosisReplicationSequenceNumber());
         tileArchiveMetadata.setExtraMetadata("planetiler:" + name + ":osmosisreplicationurl",
           header.osmosisReplicationBaseUrl());
+        boolean restoreNodes = checkpoint != null && name.equals(checkpoint.nodes());
+        if (checkpoint != null && !restoreNodes && checkpoint.nodes() != null) {
+          // this source is about to overwrite the node locations saved for another one
+          checkpoint.saveNodes(null);
+        }
+        if (restoreNodes) {
+          LOGGER.info("Reusing {} node locations saved in {}", name, nodeDbPath);
+        }
         try (
-          var nodeLocations =
+          var nodeLocations = restoreNodes ?
+            LongLongMap.withoutWrites(LongLongMap.open(config.nodeMapType(), nodeDbPath, config.nodeMapMadvise())) :
             LongLongMap.from(config.nodeMapType(), config.nodeMapStorage(), nodeDbPath, config.nodeMapMadvise());
           var multipolygonGeometries = LongLongMultimap.newReplaceableMultimap(
             config.multipolygonGeometryStorage(), multipolygonPath, config.multipolygonGeometryMadvise());
           var osmReader = new OsmReader(name, thisInputFile, nodeLocations, multipolygonGeometries, profile(), stats)
         ) {
+          // pass1 still runs when restoring node locations since profiles collect state from it
           osmReader.pass1(config);
+          if (checkpoint != null && !restoreNodes && canSaveNodeLocations()) {
+            nodeLocations.save();
+            checkpoint.saveNodes(name);
+          }
           osmReader.pass2(featureGroup, config);
         } finally {
-          FileUtils.delete(nodeDbPath);
+          if (checkpoint == null || !name.equals(checkpoint.nodes())) {
+            deleteNodeLocations();
+          }
           FileUtils.delete(multipolygonPath);
         }
       }))
@@ -718,6 +742,9 @@ public class Planetiler {
     } else if (onlyRunTests != null) {
       boolean success = JavaProfileValidator.validate(profile(), onlyRunTests, config());
       System.exit(success ? 0 : 1);
+    } else if (config.archiveShard() > 0) {
+      runArchiveShard();
+      return;
     } else if (onlyDownloadSources) {
       // don't check files if not generating map
     } else if (config.append()) {
@@ -759,41 +786,74 @@ public class Planetiler {
         });
     }
 
+    FeatureGroup.Checkpoint resumeFrom = null;
+    if (config.resume() && !onlyDownloadSources && !onlyFetchWikidata) {
+      checkpoint = BuildCheckpoint.load(tmpDir, buildFingerprint());
+      resumeFrom = checkpoint.features();
+      if (resumeFrom != null && !resumeFrom.chunksExistIn(featureDbPath)) {
+        LOGGER.warn("Ignoring checkpoint since temp features are missing from {}", featureDbPath);
+        resumeFrom = null;
+      }
+      if (resumeFrom == null && checkpoint.nodes() != null && !Files.exists(nodeDbPath)) {
+        LOGGER.warn("Ignoring checkpoint since saved node locations are missing from {}", nodeDbPath);
+        checkpoint.saveNodes(null);
+      }
+    }
+
     LOGGER.info("Building {} profile into {} in these phases:", profile.getClass().getSimpleName(), output.uri());
 
-    if (!toDownload.isEmpty()) {
+    boolean readSources = resumeFrom == null;
+    if (!readSources) {
+      LOGGER.info("  (skipped) Read sources {} and sort: restored from checkpoint in {}",
+        stages.stream().map(stage -> stage.id).toList(), tmpDir);
+    }
+
+    if (readSources && !toDownload.isEmpty()) {
       LOGGER.info("  download: Download sources {}", toDownload.stream().map(d -> d.id).toList());
     }
 
-    if (!onlyDownloadSources && fetchWikidata) {
+    if (readSources && !onlyDownloadSources && fetchWikidata) {
       LOGGER.info("  wikidata: Fetch translations from wikidata query service");
     }
 
     if (!onlyDownloadSources && !onlyFetchWikidata) {
-      for (Stage stage : stages) {
-        for (String details : stage.details) {
-          LOGGER.info("  {}", details);
+      if (readSources) {
+        for (Stage stage : stages) {
+          for (String details : stage.details) {
+            LOGGER.info("  {}", details);
+          }
         }
       }
-      LOGGER.info("  sort: Sort rendered features by tile ID");
+      if (resumeFrom == null || !resumeFrom.sorted()) {
+        LOGGER.info("  sort: Sort rendered features by tile ID");
+      }
       LOGGER.info("  archive: Encode each tile and write to {}", output);
     }
 
     // in case any temp files are left from a previous run...
-    FileUtils.delete(tmpDir, nodeDbPath, featureDbPath, multipolygonPath);
+    if (readSources && checkpoint != null && checkpoint.nodes() != null) {
+      // keep the saved node locations and the manifest that points to them
+      FileUtils.delete(featureDbPath, multipolygonPath, archiveShardsPath());
+    } else if (readSources) {
+      FileUtils.delete(tmpDir, nodeDbPath, featureDbPath, multipolygonPath);
+    } else {
+      FileUtils.delete(nodeDbPath, LongLongMap.indexPath(nodeDbPath), multipolygonPath);
+    }
     FileUtils.createDirectory(tmpDir);
     FileUtils.createParentDirectories(nodeDbPath, featureDbPath, multipolygonPath, output.getLocalBasePath());
 
-    if (!toDownload.isEmpty()) {
-      download();
-    }
-    if (fetchOsmTileStats) {
-      TopOsmTiles.downloadPrecomputed(config);
-    }
-    ensureInputFilesExist();
+    if (readSources) {
+      if (!toDownload.isEmpty()) {
+        download();
+      }
+      if (fetchOsmTileStats) {
+        TopOsmTiles.downloadPrecomputed(config);
+      }
+      ensureInputFilesExist();
 
-    if (fetchWikidata) {
-      Wikidata.fetch(osmInputFile(), wikidataNamesFile, config(), profile(), stats());
+      if (fetchWikidata) {
+        Wikidata.fetch(osmInputFile(), wikidataNamesFile, config(), profile(), stats());
+      }
     }
     if (useWikidata) {
       translations().addFallbackTranslationProvider(Wikidata.load(wikidataNamesFile));
@@ -802,9 +862,11 @@ public class Planetiler {
       return; // exit only if just fetching wikidata or downloading sources
     }
 
-    if (osmInputFile != null) {
-      checkDiskSpace();
-      checkMemory();
+    if (osmInputFile != null && Files.exists(osmInputFile.getPath())) {
+      if (readSources) {
+        checkDiskSpace();
+        checkMemory();
+      }
       var bounds = config.bounds();
       if (!parseNodeBounds) {
         bounds.addFallbackProvider(osmInputFile);
@@ -815,37 +877,179 @@ public class Planetiler {
     tileArchiveMetadata = new TileArchiveMetadata(profile, config);
 
     try (WriteableTileArchive archive = TileArchives.newWriter(output, config)) {
-      featureGroup =
-        FeatureGroup.newDiskBackedFeatureGroup(archive.tileOrder(), featureDbPath, profile, config, stats);
+      featureGroup = readSources ?
+        FeatureGroup.newDiskBackedFeatureGroup(archive.tileOrder(), featureDbPath, profile, config, stats) :
+        FeatureGroup.restoreDiskBackedFeatureGroup(archive.tileOrder(), featureDbPath, profile, config, stats,
+          resumeFrom);
       stats.monitorFile("nodes", nodeDbPath);
       stats.monitorFile("features", featureDbPath);
       stats.monitorFile("multipolygons", multipolygonPath);
       stats.monitorFile("archive", output.getLocalPath(), archive::bytesWritten);
 
-      for (Stage stage : stages) {
-        try {
-          stage.task.run();
-        } catch (Exception e) {
-          throw new PlanetilerException("Error occurred during stage " + stage.id, e);
+      if (readSources) {
+        for (Stage stage : stages) {
+          try {
+            stage.task.run();
+          } catch (Exception e) {
+            throw new PlanetilerException("Error occurred during stage " + stage.id, e);
+          }
+        }
+        if (checkpoint != null) {
+          checkpoint.saveFeatures(featureGroup.checkpoint());
         }
-      }
 
-      LOGGER.info("Deleting node.db to make room for output file");
-      profile.release();
-      for (var inputPath : inputPaths) {
-        if (inputPath.freeAfterReading()) {
-          LOGGER.info("Deleting {} ({}) to make room for output file", inputPath.id, inputPath.path);
-          FileUtils.delete(inputPath.path());
+        LOGGER.info("Deleting node.db to make room for output file");
+        deleteNodeLocations();
+        profile.release();
+        for (var inputPath : inputPaths) {
+          if (inputPath.freeAfterReading()) {
+            LOGGER.info("Deleting {} ({}) to make room for output file", inputPath.id, inputPath.path);
+            FileUtils.delete(inputPath.path());
+          }
         }
       }
 
-      featureGroup.prepare();
+      if (resumeFrom == null || !resumeFrom.sorted()) {
+        if (checkpoint != null) {
+          featureGroup.prepare(checkpoint::saveFeatures);
+          checkpoint.saveFeatures(featureGroup.checkpoint());
+        } else {
+          featureGroup.prepare();
+        }
+      }
 
-      TileArchiveWriter.writeOutput(featureGroup, archive, archive::bytesWritten, tileArchiveMetadata, layerStatsPath,
-        config, stats);
+      if (config.archiveShards() > 1) {
+        writeAndMergeArchiveShards(archive);
+      } else if (checkpoint != null && canCheckpointArchive()) {
+        writeAndMergeArchiveRanges(archive);
+      } else {
+        if (checkpoint != null) {
+          LOGGER.warn("Encoding all tiles from the start on the next --resume since the archive stage can only be " +
+            "checkpointed without a tile compression dictionary, layer stats output, or parallel tile writes");
+        }
+        TileArchiveWriter.writeOutput(featureGroup, archive, archive::bytesWritten, tileArchiveMetadata,
+          layerStatsPath, config, stats);
+      }
     } catch (IOException e) {
       throw new PlanetilerException("Unable to write to " + output, e);
     }
+    if (checkpoint != null) {
+      checkpoint.clear();
+      TileArchiveShards.in(archiveShardsPath()).clear();
+    }
+
+    overallTimer.stop();
+    LOGGER.info("FINISHED!");
+    stats.printSummary();
+    try {
+      stats.close();
+    } catch (Exception e) {
+      throw new PlanetilerException(e);
+    }
+  }
+
+  private Path archiveShardsPath() {
+    return tmpDir.resolve("archive-shards");
+  }
+
+  /**
+   * Splits sorted features into {@link PlanetilerConfig#archiveShards()} ranges, encodes the first one, then waits for
+   * workers started with {@code --archive_shard} to encode the rest and merges them all into {@code archive}.
+   */
+  private void writeAndMergeArchiveShards(WriteableTileArchive archive) throws IOException {
+    var shards = TileArchiveShards.in(archiveShardsPath());
+    var plan = new TileArchiveShards.Plan(buildFingerprint(), archive.tileOrder(), archive.deduplicates(),
+      featureGroup.tileBoundaries(config.archiveShards()));
+    shards.savePlan(plan);
+    LOGGER.info("Encoding archive shard 0, start workers for shards 1-{} with the same arguments plus " +
+      "--archive_shard=<shard>", plan.shards() - 1);
+    // shard 0 may already be done if this run resumed from one that crashed while waiting for workers
+    boolean encodeFirstShard = !shards.isComplete(0);
+    if (encodeFirstShard) {
+      try (var shardArchive = shards.newShardWriter(plan, 0)) {
+        TileArchiveWriter.writeShard(featureGroup, plan, 0, shardArchive, tileArchiveMetadata, config, stats);
+      }
+    }
+    try {
+      shards.awaitShards(plan, config.logInterval());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PlanetilerException("Interrupted waiting for archive shards", e);
+    }
+    shards.merge(plan, archive, tileArchiveMetadata, stats, shard -> shard > 0 || !encodeFirstShard);
+  }
+
+  private boolean canCheckpointArchive() {
+    return !config.tileCompressionDictionary() && !config.outputLayerStats() && config.tileWriteThreads() == 1;
+  }
+
+  /**
+   * Encodes tiles into {@link #ARCHIVE_CHECKPOINT_RANGES} range files that record each range once it is complete, then
+   * merges them into {@code archive}, so {@code --resume} after a crash only encodes ranges that were not finished.
+   */
+  private void writeAndMergeArchiveRanges(WriteableTileArchive archive) throws IOException {
+    var shards = TileArchiveShards.in(archiveShardsPath());
+    String fingerprint = buildFingerprint();
+    var plan = shards.loadPlan(fingerprint);
+    if (plan == null || plan.tileOrder() != archive.tileOrder() || plan.deduplicates() != archive.deduplicates()) {
+      shards.clear();
+      plan = new TileArchiveShards.Plan(fingerprint, archive.tileOrder(), archive.deduplicates(),
+        featureGroup.tileBoundaries(ARCHIVE_CHECKPOINT_RANGES));
+      shards.savePlan(plan);
+    }
+    int first = shards.firstIncomplete(plan);
+    if (first > 0) {
+      LOGGER.info("Skipping {} of {} tile ranges encoded by a previous run", first, plan.shards());
+    }
+    if (first < plan.shards()) {
+      var layerStats = new LayerAttrStats();
+      try (var ranges = shards.newRangeWriter(plan, first, layerStats)) {
+        TileArchiveWriter.writeOutputFrom(featureGroup, plan.startTile(first), ranges, layerStats,
+          tileArchiveMetadata, config, stats);
+      }
+    }
+    int skipped = first;
+    shards.merge(plan, archive, tileArchiveMetadata, stats, shard -> shard < skipped);
+  }
+
+  private boolean canSaveNodeLocations() {
+    return LongLongMap.Type.from(config.nodeMapType()) != LongLongMap.Type.NOOP &&
+      Storage.from(config.nodeMapStorage()) == Storage.MMAP;
+  }
+
+  private void deleteNodeLocations() {
+    FileUtils.delete(nodeDbPath);
+    FileUtils.delete(LongLongMap.indexPath(nodeDbPath));
+  }
+
+  /**
+   * Runs as a worker that waits for the coordinator to sort features, then encodes one shard of tiles for the
+   * coordinator to merge into the output.
+   */
+  private void runArchiveShard() {
+    int shard = config.archiveShard();
+    LOGGER.info("Running as worker for archive shard {} of {} into {}", shard, config.archiveShards(),
+      output.uri());
+    String fingerprint = buildFingerprint();
+    var shards = TileArchiveShards.in(archiveShardsPath());
+    try {
+      var plan = shards.awaitPlan(fingerprint);
+      var features = BuildCheckpoint.load(tmpDir, fingerprint).features();
+      if (features == null || !features.sorted()) {
+        throw new IllegalStateException("No sorted features in " + tmpDir + " from a coordinator with these arguments");
+      }
+      featureGroup = FeatureGroup.restoreDiskBackedFeatureGroup(plan.tileOrder(), featureDbPath, profile, config,
+        stats, features);
+      tileArchiveMetadata = new TileArchiveMetadata(profile, config);
+      try (var archive = shards.newShardWriter(plan, shard)) {
+        TileArchiveWriter.writeShard(featureGroup, plan, shard, archive, tileArchiveMetadata, config, stats);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PlanetilerException("Interrupted waiting for archive shard plan", e);
+    } catch (IOException e) {
+      throw new PlanetilerException("Unable to write archive shard " + shard, e);
+    }
 
     overallTimer.stop();
     LOGGER.info("FINISHED!");
@@ -857,6 +1061,19 @@ public class Planetiler {
     }
   }
 
+  /**
+   * Returns a fingerprint of everything that affects the features a build writes, so {@code --resume} only picks up
+   * temp files left by a run with the same arguments and profile.
+   */
+  private String buildFingerprint() {
+    Map<String, String> args = new TreeMap<>(arguments.toMap());
+    args.remove("resume");
+    args.remove("force");
+    args.remove("archive_shard");
+    return BuildCheckpoint.fingerprint(FeatureGroup.ENCODING_VERSION, profile.getClass().getName(), args,
+      inputPaths.stream().map(InputPath::path).toList());
+  }
+
   private void checkDiskSpace() {
     ResourceUsage readPhase = new ResourceUsage("read phase disk");
     ResourceUsage writePhase = new ResourceUsage("write phase disk");
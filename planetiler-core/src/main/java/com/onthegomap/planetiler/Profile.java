@@ -135,6 +135,51 @@ public interface Profile extends FeatureProcessor<SourceFeature> {
     return layers;
   }
 
+  /**
+   * Returns false if {@link #postProcessLayerFeatures(String, int, List)} always returns features in {@code layer} at
+   * {@code zoom} unaltered, so they can be encoded straight into the output tile without decoding each one into a
+   * {@link VectorTile.Feature} first.
+   * <p>
+   * The default implementation returns {@code true}.
+   */
+  default boolean postProcessesLayer(String layer, int zoom) {
+    return true;
+  }
+
+  /**
+   * Returns false if {@link #postProcessTileFeatures(TileCoord, Map)} always returns layers unaltered, which lets
+   * {@link #postProcessesLayer(String, int)} decide which layers skip decoding each feature.
+   * <p>
+   * The default implementation returns {@code true}.
+   */
+  default boolean postProcessesTiles() {
+    return true;
+  }
+
+  /**
+   * Returns the names of output layers this profile emits features into, if they are known ahead of time.
+   * <p>
+   * Layers declared here get IDs before any features are processed, so looking them up while writing features does not
+   * need to update shared state, and more than 256 layers fit in the key that features get sorted by. Features can
+   * still go into layers that are not declared, as long as there are not too many of them.
+   * <p>
+   * The default implementation returns an empty list.
+   */
+  default List<String> declaredLayers() {
+    return List.of();
+  }
+
+  /**
+   * Returns the attribute keys this profile puts on output features, if they are known ahead of time.
+   * <p>
+   * Like {@link #declaredLayers()}, these get IDs before any features are processed and other keys still work.
+   * <p>
+   * The default implementation returns an empty list.
+   */
+  default List<String> declaredAttributeKeys() {
+    return List.of();
+  }
+
   /**
    * Returns the name of the generated tileset to put into {@link Mbtiles} metadata
    *
@@ -260,6 +305,12 @@ public interface Profile extends FeatureProcessor<SourceFeature> {
    */
   class NullProfile implements Profile {
 
+    // subclasses that post-process features need each one decoded for them
+    private final boolean postProcessesLayers =
+      ProfileOverrides.overridesPostProcessLayerFeatures(getClass(), NullProfile.class);
+    private final boolean postProcessesTiles =
+      ProfileOverrides.overridesPostProcessTileFeatures(getClass(), Profile.class);
+
     @Override
     public void processFeature(SourceFeature sourceFeature, FeatureCollector features) {}
 
@@ -269,6 +320,16 @@ public interface Profile extends FeatureProcessor<SourceFeature> {
       return items;
     }
 
+    @Override
+    public boolean postProcessesLayer(String layer, int zoom) {
+      return postProcessesLayers;
+    }
+
+    @Override
+    public boolean postProcessesTiles() {
+      return postProcessesTiles;
+    }
+
     @Override
     public String name() {
       return "Null";
@@ -0,0 +1,32 @@
+package com.onthegomap.planetiler;
+
+import com.onthegomap.planetiler.geo.TileCoord;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks whether a subclass of a built-in {@link Profile} implementation overrides its post-processing methods, since
+ * only then do features need to be decoded before passing them to the profile.
+ */
+final class ProfileOverrides {
+
+  private ProfileOverrides() {}
+
+  /** Returns true if {@code clazz} overrides {@link Profile#postProcessLayerFeatures} from {@code base}. */
+  static boolean overridesPostProcessLayerFeatures(Class<?> clazz, Class<?> base) {
+    return declaringClass(clazz, "postProcessLayerFeatures", String.class, int.class, List.class) != base;
+  }
+
+  /** Returns true if {@code clazz} overrides {@link Profile#postProcessTileFeatures} from {@code base}. */
+  static boolean overridesPostProcessTileFeatures(Class<?> clazz, Class<?> base) {
+    return declaringClass(clazz, "postProcessTileFeatures", TileCoord.class, Map.class) != base;
+  }
+
+  private static Class<?> declaringClass(Class<?> clazz, String name, Class<?>... parameterTypes) {
+    try {
+      return clazz.getMethod(name, parameterTypes).getDeclaringClass();
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -19,9 +19,14 @@
 package com.onthegomap.planetiler;
 
 import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.LongIntHashMap;
 import com.google.common.primitives.Ints;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 import com.onthegomap.planetiler.collection.FeatureGroup;
+import com.onthegomap.planetiler.collection.Hppc;
 import com.onthegomap.planetiler.geo.GeoUtils;
 import com.onthegomap.planetiler.geo.GeometryException;
 import com.onthegomap.planetiler.geo.GeometryType;
@@ -29,6 +34,8 @@ import com.onthegomap.planetiler.geo.MutableCoordinateSequence;
 import com.onthegomap.planetiler.reader.WithTags;
 import com.onthegomap.planetiler.util.Hilbert;
 import com.onthegomap.planetiler.util.LayerAttrStats;
+import com.onthegomap.planetiler.util.TileSizeStats;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -502,6 +509,17 @@ public class VectorTile {
     return this;
   }
 
+  /**
+   * Returns a writer that adds features to a layer in this tile one part at a time, for callers that can decode
+   * features straight into the layer's key/value tables without creating a {@link Feature} for each one first.
+   *
+   * @param layerName name of the layer in this tile to add features to
+   */
+  public LayerWriter layerWriter(String layerName) {
+    return new LayerWriter(layers.computeIfAbsent(layerName, name -> new Layer()),
+      layerStatsTracker.forLayer(layerName));
+  }
+
   /**
    * Returns a vector tile protobuf object with all features in this tile.
    */
@@ -555,7 +573,43 @@ public class VectorTile {
    * Does not compress the result.
    */
   public byte[] encode() {
-    return toProto().toByteArray();
+    return encode(null);
+  }
+
+  /**
+   * Serializes this tile to the same bytes as {@code toProto().toByteArray()} without building the intermediate
+   * protobuf objects, and adds the size of each layer to {@code layerStats} as it goes.
+   * <p>
+   * This computes the size of every layer, feature, and value first so it can write them straight into a byte array
+   * of the exact size. Does not compress the result.
+   *
+   * @param layerStats list to add stats for each layer to in the same order as
+   *                   {@link TileSizeStats#computeTileStats(VectorTileProto.Tile)}, or null to skip them
+   * @return the encoded vector tile
+   */
+  public byte[] encode(List<TileSizeStats.LayerStats> layerStats) {
+    LayerEncoder[] encoders = new LayerEncoder[layers.size()];
+    int size = 0;
+    int i = 0;
+    for (Map.Entry<String, Layer> e : layers.entrySet()) {
+      LayerEncoder encoder = new LayerEncoder(e.getKey(), e.getValue());
+      encoders[i++] = encoder;
+      size += LayerEncoder.messageSize(LayerEncoder.TILE_LAYERS, encoder.size);
+      if (layerStats != null) {
+        layerStats.add(encoder.stats());
+      }
+    }
+    byte[] result = new byte[size];
+    CodedOutputStream output = CodedOutputStream.newInstance(result);
+    try {
+      for (LayerEncoder encoder : encoders) {
+        encoder.writeTo(output);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to encode vector tile", e);
+    }
+    output.checkNoSpaceLeft();
+    return result;
   }
 
   /**
@@ -1217,6 +1271,260 @@ public class VectorTile {
     }
   }
 
+  /**
+   * Writes a layer with the same field order and encoding that the generated {@link VectorTileProto} classes use, after
+   * computing the size of each length-delimited field up front.
+   */
+  private static final class LayerEncoder {
+
+    // field numbers from vector_tile_proto.proto
+    static final int TILE_LAYERS = 3;
+    static final int LAYER_NAME = 1;
+    static final int LAYER_FEATURES = 2;
+    static final int LAYER_KEYS = 3;
+    static final int LAYER_VALUES = 4;
+    static final int LAYER_EXTENT = 5;
+    static final int LAYER_VERSION = 15;
+    static final int FEATURE_ID = 1;
+    static final int FEATURE_TAGS = 2;
+    static final int FEATURE_TYPE = 3;
+    static final int FEATURE_GEOMETRY = 4;
+    static final int VALUE_STRING = 1;
+    static final int VALUE_FLOAT = 2;
+    static final int VALUE_DOUBLE = 3;
+    static final int VALUE_SINT = 6;
+    static final int VALUE_BOOL = 7;
+    static final int VERSION = 2;
+
+    final String name;
+    final Layer layer;
+    final int[] featureSizes;
+    final int[] tagsSizes;
+    final int[] geometrySizes;
+    final int[] valueSizes;
+    final int size;
+    int geometries = 0;
+    int attrBytes = 0;
+
+    LayerEncoder(String name, Layer layer) {
+      this.name = name;
+      this.layer = layer;
+      int result = CodedOutputStream.computeStringSize(LAYER_NAME, name);
+      int numFeatures = layer.encodedFeatures.size();
+      featureSizes = new int[numFeatures];
+      tagsSizes = new int[numFeatures];
+      geometrySizes = new int[numFeatures];
+      for (int i = 0; i < numFeatures; i++) {
+        EncodedFeature feature = layer.encodedFeatures.get(i);
+        int[] commands = feature.geometry.commands();
+        tagsSizes[i] = packedDataSize(feature.tags.buffer, feature.tags.size());
+        geometrySizes[i] = packedDataSize(commands, commands.length);
+        int featureSize = packedSize(FEATURE_TAGS, tagsSizes[i]) +
+          CodedOutputStream.computeEnumSize(FEATURE_TYPE, feature.geometry.geomType().asProtobufType().getNumber()) +
+          packedSize(FEATURE_GEOMETRY, geometrySizes[i]);
+        if (feature.id != NO_FEATURE_ID) {
+          featureSize += CodedOutputStream.computeUInt64Size(FEATURE_ID, feature.id);
+        }
+        featureSizes[i] = featureSize;
+        result += messageSize(LAYER_FEATURES, featureSize);
+        geometries += countGeometries(commands);
+      }
+      for (String key : layer.keys.keySet()) {
+        int keySize = CodedOutputStream.computeStringSizeNoTag(key);
+        result += CodedOutputStream.computeTagSize(LAYER_KEYS) + keySize;
+        attrBytes += stringLength(keySize);
+      }
+      valueSizes = new int[layer.values.size()];
+      int v = 0;
+      for (Object value : layer.values) {
+        int valueSize = switch (value) {
+          case String stringValue -> CodedOutputStream.computeStringSize(VALUE_STRING, stringValue);
+          case Integer intValue -> CodedOutputStream.computeSInt64Size(VALUE_SINT, intValue);
+          case Long longValue -> CodedOutputStream.computeSInt64Size(VALUE_SINT, longValue);
+          case Float floatValue -> CodedOutputStream.computeFloatSize(VALUE_FLOAT, floatValue);
+          case Double doubleValue -> CodedOutputStream.computeDoubleSize(VALUE_DOUBLE, doubleValue);
+          case Boolean booleanValue -> CodedOutputStream.computeBoolSize(VALUE_BOOL, booleanValue);
+          case Object other -> CodedOutputStream.computeStringSize(VALUE_STRING, other.toString());
+        };
+        valueSizes[v++] = valueSize;
+        result += messageSize(LAYER_VALUES, valueSize);
+        attrBytes += valueSize;
+      }
+      result += CodedOutputStream.computeUInt32Size(LAYER_EXTENT, EXTENT);
+      result += CodedOutputStream.computeUInt32Size(LAYER_VERSION, VERSION);
+      size = result;
+    }
+
+    static int messageSize(int field, int size) {
+      return CodedOutputStream.computeTagSize(field) + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    private static int packedDataSize(int[] values, int length) {
+      int result = 0;
+      for (int i = 0; i < length; i++) {
+        result += CodedOutputStream.computeUInt32SizeNoTag(values[i]);
+      }
+      return result;
+    }
+
+    private static int packedSize(int field, int dataSize) {
+      // empty packed fields are omitted entirely
+      return dataSize == 0 ? 0 : messageSize(field, dataSize);
+    }
+
+    /** Returns the length in bytes of a string that takes {@code encodedSize} bytes including the length prefix. */
+    private static int stringLength(int encodedSize) {
+      int length = encodedSize - 1;
+      while (CodedOutputStream.computeUInt32SizeNoTag(length) != encodedSize - length) {
+        length--;
+      }
+      return length;
+    }
+
+    private static int countGeometries(int[] commands) {
+      int result = 0;
+      int idx = 0;
+      while (idx < commands.length) {
+        int length = commands[idx];
+        int command = length & ((1 << 3) - 1);
+        length = length >> 3;
+        if (command == Command.MOVE_TO.value) {
+          result += length;
+        }
+        idx += 1;
+        if (command != Command.CLOSE_PATH.value) {
+          idx += length * 2;
+        }
+      }
+      return result;
+    }
+
+    TileSizeStats.LayerStats stats() {
+      return new TileSizeStats.LayerStats(
+        name,
+        size,
+        layer.encodedFeatures.size(),
+        geometries,
+        attrBytes,
+        layer.keys.size(),
+        layer.values.size()
+      );
+    }
+
+    void writeTo(CodedOutputStream output) throws IOException {
+      output.writeTag(TILE_LAYERS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(size);
+      output.writeString(LAYER_NAME, name);
+      for (int i = 0; i < featureSizes.length; i++) {
+        EncodedFeature feature = layer.encodedFeatures.get(i);
+        output.writeTag(LAYER_FEATURES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(featureSizes[i]);
+        if (feature.id != NO_FEATURE_ID) {
+          output.writeUInt64(FEATURE_ID, feature.id);
+        }
+        writePacked(output, FEATURE_TAGS, tagsSizes[i], feature.tags.buffer, feature.tags.size());
+        output.writeEnum(FEATURE_TYPE, feature.geometry.geomType().asProtobufType().getNumber());
+        int[] commands = feature.geometry.commands();
+        writePacked(output, FEATURE_GEOMETRY, geometrySizes[i], commands, commands.length);
+      }
+      for (String key : layer.keys.keySet()) {
+        output.writeString(LAYER_KEYS, key);
+      }
+      int v = 0;
+      for (Object value : layer.values) {
+        output.writeTag(LAYER_VALUES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(valueSizes[v++]);
+        switch (value) {
+          case String stringValue -> output.writeString(VALUE_STRING, stringValue);
+          case Integer intValue -> output.writeSInt64(VALUE_SINT, intValue);
+          case Long longValue -> output.writeSInt64(VALUE_SINT, longValue);
+          case Float floatValue -> output.writeFloat(VALUE_FLOAT, floatValue);
+          case Double doubleValue -> output.writeDouble(VALUE_DOUBLE, doubleValue);
+          case Boolean booleanValue -> output.writeBool(VALUE_BOOL, booleanValue);
+          case Object other -> output.writeString(VALUE_STRING, other.toString());
+        }
+      }
+      output.writeUInt32(LAYER_EXTENT, EXTENT);
+      output.writeUInt32(LAYER_VERSION, VERSION);
+    }
+
+    private static void writePacked(CodedOutputStream output, int field, int dataSize, int[] values, int length)
+      throws IOException {
+      if (dataSize > 0) {
+        output.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(dataSize);
+        for (int i = 0; i < length; i++) {
+          output.writeUInt32NoTag(values[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds features to a layer from their ID, geometry, and then each of their tags, as an alternative to
+   * {@link #addLayerFeatures(String, List)} that does not need a {@link Feature} or map of tags for each feature.
+   */
+  @NotThreadSafe
+  public static final class LayerWriter {
+
+    private final Layer layer;
+    private final LayerAttrStats.Updater.ForZoom.ForLayer statsTracker;
+    private EncodedFeature current = null;
+
+    private LayerWriter(Layer layer, LayerAttrStats.Updater.ForZoom.ForLayer statsTracker) {
+      this.layer = layer;
+      this.statsTracker = statsTracker;
+    }
+
+    /**
+     * Starts a new feature that following {@code addTag} calls apply to.
+     *
+     * @param id       the feature ID, or {@link VectorTile#NO_FEATURE_ID}
+     * @param geometry the already-unscaled geometry of the feature
+     * @throws IllegalArgumentException if {@code geometry} is empty
+     */
+    public void startFeature(long id, VectorGeometry geometry) {
+      if (geometry.isEmpty()) {
+        throw new IllegalArgumentException("Cannot add a feature with an empty geometry");
+      }
+      current = new EncodedFeature(new IntArrayList(), id, geometry);
+      layer.encodedFeatures.add(current);
+    }
+
+    public void addTag(String key, String value) {
+      addTagId(key, layer.value(value));
+    }
+
+    /**
+     * Adds a string tag whose value the caller has already assigned a unique {@code valueCode} to, which the layer uses
+     * to find the value instead of hashing the string again.
+     */
+    public void addTag(String key, String value, int valueCode) {
+      addTagId(key, layer.value(value, valueCode));
+    }
+
+    public void addTag(String key, long value) {
+      addTagId(key, layer.value(value));
+    }
+
+    public void addTag(String key, double value) {
+      addTagId(key, layer.value(value));
+    }
+
+    public void addTag(String key, boolean value) {
+      addTagId(key, layer.value(Boolean.valueOf(value)));
+    }
+
+    private void addTagId(String key, int valueId) {
+      if (current == null) {
+        throw new IllegalStateException("Call startFeature before adding tags");
+      }
+      current.tags.add(layer.key(key), valueId);
+      // pass the value stored in the layer along so stats tracking doesn't need to box a new one
+      statsTracker.accept(key, layer.values.get(valueId));
+    }
+  }
+
   private record EncodedFeature(IntArrayList tags, long id, VectorGeometry geometry) {
 
     EncodedFeature(Feature in) {
@@ -1232,18 +1540,24 @@ public class VectorTile {
 
     final List<EncodedFeature> encodedFeatures = new ArrayList<>();
     final Map<String, Integer> keys = new LinkedHashMap<>();
-    final Map<Object, Integer> values = new LinkedHashMap<>();
+    /** Each distinct value in the order they were added, so the position of a value in this list is its ID. */
+    final List<Object> values = new ArrayList<>();
+    // numeric values get looked up without boxing them, the rest go through a regular hash map
+    private final LongIntHashMap longValues = Hppc.newLongIntHashMap();
+    private final LongIntHashMap doubleValues = Hppc.newLongIntHashMap();
+    private final Map<Object, Integer> otherValues = new HashMap<>();
+    private final IntIntHashMap valuesByCode = Hppc.newIntIntHashMap();
 
     List<String> keys() {
       return new ArrayList<>(keys.keySet());
     }
 
     List<Object> values() {
-      return new ArrayList<>(values.keySet());
+      return new ArrayList<>(values);
     }
 
     /** Returns the ID associated with {@code key} or adds a new one if not present. */
-    Integer key(String key) {
+    int key(String key) {
       Integer i = keys.get(key);
       if (i == null) {
         i = keys.size();
@@ -1253,12 +1567,56 @@ public class VectorTile {
     }
 
     /** Returns the ID associated with {@code value} or adds a new one if not present. */
-    Integer value(Object value) {
-      Integer i = values.get(value);
-      if (i == null) {
-        i = values.size();
-        values.put(value, i);
+    int value(Object value) {
+      return switch (value) {
+        case Long longValue -> value(longValue.longValue());
+        case Double doubleValue -> value(doubleValue.doubleValue());
+        default -> {
+          Integer i = otherValues.get(value);
+          if (i == null) {
+            i = values.size();
+            values.add(value);
+            otherValues.put(value, i);
+          }
+          yield i;
+        }
+      };
+    }
+
+    /** Returns the ID associated with a string {@code value} that the caller identifies with {@code code}. */
+    int value(String value, int code) {
+      int slot = valuesByCode.indexOf(code);
+      if (valuesByCode.indexExists(slot)) {
+        return valuesByCode.indexGet(slot);
+      }
+      int i = value(value);
+      valuesByCode.indexInsert(slot, code, i);
+      return i;
+    }
+
+    /** Returns the ID associated with a {@link Long} {@code value} or adds a new one if not present. */
+    int value(long value) {
+      int slot = longValues.indexOf(value);
+      if (longValues.indexExists(slot)) {
+        return longValues.indexGet(slot);
+      }
+      int i = values.size();
+      values.add(value);
+      longValues.indexInsert(slot, value, i);
+      return i;
+    }
+
+    /** Returns the ID associated with a {@link Double} {@code value} or adds a new one if not present. */
+    int value(double value) {
+      // same bits that Double#equals compares
+      long bits = Double.doubleToLongBits(value);
+      int slot = doubleValues.indexOf(bits);
+      if (doubleValues.indexExists(slot)) {
+        return doubleValues.indexGet(slot);
       }
+      int i = values.size();
+      values.add(value);
+      doubleValues.indexInsert(slot, bits, i);
       return i;
     }
 
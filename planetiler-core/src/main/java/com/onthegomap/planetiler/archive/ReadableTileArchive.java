@@ -3,6 +3,7 @@ package com.onthegomap.planetiler.archive;
 import com.onthegomap.planetiler.geo.TileCoord;
 import com.onthegomap.planetiler.util.CloseableIterator;
 import java.io.Closeable;
+import java.io.IOException;
 
 /**
  * Read API for on-disk representation of a tileset in a portable format. Example: MBTiles, a sqlite-based archive
@@ -49,5 +50,22 @@ public interface ReadableTileArchive extends Closeable {
    */
   TileArchiveMetadata metadata();
 
+  /**
+   * Returns a utility that decompresses tiles from this archive, including tiles compressed against dictionaries stored
+   * in {@link #metadata()}.
+   */
+  default TileDecompressor tileDecompressor() {
+    return TileDecompressor.fromMetadata(metadata());
+  }
+
+  /**
+   * Returns the uncompressed tile data at {@code coord} or {@code null} if not found, using {@link #tileDecompressor()}
+   * so callers don't need to know how the archive was compressed.
+   */
+  default byte[] getDecompressedTile(TileCoord coord) throws IOException {
+    byte[] bytes = getTile(coord);
+    return bytes == null ? null : tileDecompressor().decompress(coord.z(), bytes);
+  }
+
   // TODO access archive metadata
 }
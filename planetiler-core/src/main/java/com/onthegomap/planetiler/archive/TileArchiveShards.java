@@ -0,0 +1,444 @@
+package com.onthegomap.planetiler.archive;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.geo.TileOrder;
+import com.onthegomap.planetiler.stats.Stats;
+import com.onthegomap.planetiler.util.FileUtils;
+import com.onthegomap.planetiler.util.LayerAttrStats;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits the archive stage across processes that share a temp directory.
+ * <p>
+ * The coordinator sorts features once, then {@link #savePlan(Plan) saves a plan} that divides the sorted tile IDs into
+ * {@code shards} contiguous ranges with about the same number of features each. Each worker encodes the tiles in its
+ * range into a shard file with {@link #newShardWriter(Plan, int)}, then the coordinator {@link #merge merges} those shard
+ * files in order into the final archive. Since shards cover ascending tile ranges, merging is a sequential copy of
+ * already-compressed tiles.
+ * <p>
+ * A single process can also use {@link #newRangeWriter(Plan, int, LayerAttrStats)} to encode every shard in order,
+ * so the completed shards record how far the archive stage got and a resumed run only has to encode the rest.
+ */
+public class TileArchiveShards {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileArchiveShards.class);
+  private static final JsonMapper MAPPER = TileArchiveMetadataDeSer.newBaseBuilder().build();
+  private static final String PLAN_FILE = "plan.json";
+  private static final Duration POLL_INTERVAL = Duration.ofSeconds(1);
+
+  private final Path dir;
+
+  /**
+   * How to split the archive stage.
+   *
+   * @param fingerprint  identifies the build so workers don't pick up a plan left by a different one
+   * @param tileOrder    order that features were sorted in and the final archive expects tiles in
+   * @param deduplicates whether the final archive deduplicates tiles, so workers need to compute tile hashes
+   * @param boundaries   {@code shards + 1} ascending tile IDs where shard {@code i} encodes tile IDs from
+   *                     {@code boundaries[i]} inclusive to {@code boundaries[i + 1]} exclusive
+   */
+  public record Plan(String fingerprint, TileOrder tileOrder, boolean deduplicates, long[] boundaries) {
+
+    public int shards() {
+      return boundaries.length - 1;
+    }
+
+    public long startTile(int shard) {
+      return boundaries[shard];
+    }
+
+    public long endTile(int shard) {
+      return boundaries[shard + 1];
+    }
+  }
+
+  private TileArchiveShards(Path dir) {
+    this.dir = dir;
+  }
+
+  /** Returns a handle to shards stored in {@code dir}. */
+  public static TileArchiveShards in(Path dir) {
+    return new TileArchiveShards(dir);
+  }
+
+  /** Removes the plan and shard files left by a previous run. */
+  public void clear() {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  /** Writes {@code plan} for workers to pick up, replacing any previous plan atomically. */
+  public void savePlan(Plan plan) {
+    FileUtils.createDirectory(dir);
+    writeAtomically(dir.resolve(PLAN_FILE), plan);
+  }
+
+  /** Returns the plan saved for the build identified by {@code fingerprint}, or {@code null} if there is none. */
+  public Plan loadPlan(String fingerprint) {
+    Path path = dir.resolve(PLAN_FILE);
+    if (Files.exists(path)) {
+      try {
+        Plan plan = MAPPER.readValue(path.toFile(), Plan.class);
+        if (fingerprint.equals(plan.fingerprint())) {
+          return plan;
+        }
+      } catch (IOException e) {
+        // coordinator may have removed it in between
+      }
+    }
+    return null;
+  }
+
+  /** Blocks until the coordinator has saved a plan for the build identified by {@code fingerprint}, then returns it. */
+  public Plan awaitPlan(String fingerprint) throws InterruptedException {
+    Path path = dir.resolve(PLAN_FILE);
+    boolean logged = false;
+    while (true) {
+      Plan plan = loadPlan(fingerprint);
+      if (plan != null) {
+        return plan;
+      }
+      if (!logged) {
+        LOGGER.info("Waiting for coordinator to sort features and write {}", path);
+        logged = true;
+      }
+      Thread.sleep(POLL_INTERVAL);
+    }
+  }
+
+  private Path tilesPath(int shard) {
+    return dir.resolve("shard-" + shard + ".bin");
+  }
+
+  private Path layersPath(int shard) {
+    return dir.resolve("shard-" + shard + ".json");
+  }
+
+  /** Returns true if {@code shard} has finished writing. */
+  public boolean isComplete(int shard) {
+    return Files.exists(layersPath(shard));
+  }
+
+  /** Returns the first shard in {@code plan} that has not finished writing, or {@code plan.shards()} if they all have. */
+  public int firstIncomplete(Plan plan) {
+    return IntStream.range(0, plan.shards()).filter(shard -> !isComplete(shard)).findFirst().orElse(plan.shards());
+  }
+
+  /** Returns true if every shard in {@code plan} has finished writing. */
+  public boolean isComplete(Plan plan) {
+    return IntStream.range(0, plan.shards()).allMatch(this::isComplete);
+  }
+
+  /** Blocks until every shard in {@code plan} has finished writing, logging the ones still pending. */
+  public void awaitShards(Plan plan, Duration logInterval) throws InterruptedException {
+    long lastLog = System.nanoTime();
+    while (!isComplete(plan)) {
+      if (System.nanoTime() - lastLog > logInterval.toNanos()) {
+        LOGGER.info("Waiting for archive shards {}", IntStream.range(0, plan.shards())
+          .filter(shard -> !isComplete(shard)).boxed().toList());
+        lastLog = System.nanoTime();
+      }
+      Thread.sleep(POLL_INTERVAL);
+    }
+  }
+
+  /**
+   * Returns an archive that stores encoded tiles for {@code shard} to be merged by the coordinator later. The shard is
+   * only visible to the coordinator after {@link WriteableTileArchive#finish(TileArchiveMetadata)} completes.
+   */
+  public WriteableTileArchive newShardWriter(Plan plan, int shard) {
+    FileUtils.createDirectory(dir);
+    FileUtils.delete(tilesPath(shard), layersPath(shard));
+    return new ShardWriter(plan, shard);
+  }
+
+  /**
+   * Returns an archive that writes tiles from shard {@code firstShard} of {@code plan} onwards into the file for the
+   * shard that contains each one.
+   * <p>
+   * Tiles must arrive in order from a single thread, so once a tile from a later shard arrives, earlier shards are
+   * complete and get marked that way with the layers {@code layerStats} has seen so far. Remaining shards get marked
+   * complete with the layers from {@link WriteableTileArchive#finish(TileArchiveMetadata)}.
+   */
+  public WriteableTileArchive newRangeWriter(Plan plan, int firstShard, LayerAttrStats layerStats) {
+    FileUtils.createDirectory(dir);
+    for (int shard = firstShard; shard < plan.shards(); shard++) {
+      FileUtils.delete(tilesPath(shard), layersPath(shard));
+    }
+    return new RangeWriter(plan, firstShard, layerStats);
+  }
+
+  /**
+   * Copies tiles from every shard in order into {@code output} and finishes it with {@code metadata} plus the layer
+   * stats merged from all shards.
+   * <p>
+   * Only tiles from shards where {@code countTiles} is true get counted in {@code stats}, since this process already
+   * counted tiles in shards it encoded itself.
+   */
+  public void merge(Plan plan, WriteableTileArchive output, TileArchiveMetadata metadata, Stats stats,
+    IntPredicate countTiles) {
+    var timer = stats.startStage("merge");
+    List<List<LayerAttrStats.VectorLayer>> layers = new ArrayList<>();
+    output.initialize();
+    try (var writer = output.newTileWriter()) {
+      for (int shard = 0; shard < plan.shards(); shard++) {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(tilesPath(shard))))) {
+          while (true) {
+            long coord;
+            try {
+              coord = in.readLong();
+            } catch (EOFException e) {
+              break;
+            }
+            int rawSize = in.readInt();
+            OptionalLong hash = in.readBoolean() ? OptionalLong.of(in.readLong()) : OptionalLong.empty();
+            byte[] data = in.readNBytes(in.readInt());
+            TileCoord tileCoord = TileCoord.decode(coord);
+            writer.write(new TileEncodingResult(tileCoord, data, rawSize, hash, List.of()));
+            if (countTiles.test(shard)) {
+              stats.wroteTile(tileCoord.z(), data.length);
+            }
+          }
+        }
+        layers.add(MAPPER.readValue(layersPath(shard).toFile(), new TypeReference<>() {}));
+      }
+      writer.printStats();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    output.finish(metadata.withLayerStats(mergeLayers(layers)));
+    timer.stop();
+  }
+
+  static List<LayerAttrStats.VectorLayer> mergeLayers(List<List<LayerAttrStats.VectorLayer>> shards) {
+    Map<String, LayerAttrStats.VectorLayer> result = new TreeMap<>();
+    for (var layers : shards) {
+      for (var layer : layers) {
+        result.merge(layer.id(), layer, (a, b) -> {
+          Map<String, LayerAttrStats.FieldType> fields = new TreeMap<>(a.fields());
+          b.fields().forEach((key, type) -> fields.merge(key, type, LayerAttrStats.FieldType::merge));
+          return new LayerAttrStats.VectorLayer(a.id(), fields, a.description(),
+            min(a.minzoom(), b.minzoom()), max(a.maxzoom(), b.maxzoom()));
+        });
+      }
+    }
+    return List.copyOf(result.values());
+  }
+
+  private static OptionalInt min(OptionalInt a, OptionalInt b) {
+    return a.isEmpty() ? b : b.isEmpty() ? a : OptionalInt.of(Math.min(a.getAsInt(), b.getAsInt()));
+  }
+
+  private static OptionalInt max(OptionalInt a, OptionalInt b) {
+    return a.isEmpty() ? b : b.isEmpty() ? a : OptionalInt.of(Math.max(a.getAsInt(), b.getAsInt()));
+  }
+
+  private static void writeAtomically(Path path, Object value) {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      MAPPER.writeValue(tmp.toFile(), value);
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static DataOutputStream openTiles(Path path) {
+    try {
+      return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Appends a length-prefixed record for {@code encodingResult} to {@code out} and returns the tile size. */
+  private static int writeTile(DataOutputStream out, TileEncodingResult encodingResult) {
+    try {
+      byte[] data = encodingResult.tileData();
+      out.writeLong(encodingResult.coord().encoded());
+      out.writeInt(encodingResult.rawTileSize());
+      out.writeBoolean(encodingResult.tileDataHash().isPresent());
+      if (encodingResult.tileDataHash().isPresent()) {
+        out.writeLong(encodingResult.tileDataHash().getAsLong());
+      }
+      out.writeInt(data.length);
+      out.write(data);
+      return data.length;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void closeTiles(DataOutputStream out) {
+    try {
+      out.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Marks {@code shard} complete, with {@code layers} to merge into the final archive's metadata. */
+  private void markComplete(int shard, List<LayerAttrStats.VectorLayer> layers) {
+    // the layer stats file doubles as the marker that this shard is complete
+    writeAtomically(layersPath(shard), layers);
+  }
+
+  /** Writes encoded tiles for one shard to a flat file of length-prefixed records. */
+  private class ShardWriter implements WriteableTileArchive {
+
+    private final Plan plan;
+    private final int shard;
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+
+    private ShardWriter(Plan plan, int shard) {
+      this.plan = plan;
+      this.shard = shard;
+    }
+
+    @Override
+    public boolean deduplicates() {
+      return plan.deduplicates();
+    }
+
+    @Override
+    public TileOrder tileOrder() {
+      return plan.tileOrder();
+    }
+
+    @Override
+    public TileWriter newTileWriter() {
+      DataOutputStream out = openTiles(tilesPath(shard));
+      return new TileWriter() {
+        @Override
+        public void write(TileEncodingResult encodingResult) {
+          bytesWritten.addAndGet(writeTile(out, encodingResult));
+        }
+
+        @Override
+        public void close() {
+          closeTiles(out);
+        }
+      };
+    }
+
+    @Override
+    public void finish(TileArchiveMetadata tileArchiveMetadata) {
+      markComplete(shard, layers(tileArchiveMetadata));
+    }
+
+    @Override
+    public long bytesWritten() {
+      return bytesWritten.get();
+    }
+
+    @Override
+    public void close() {
+      // tile writer closes its own stream
+    }
+  }
+
+  private static List<LayerAttrStats.VectorLayer> layers(TileArchiveMetadata metadata) {
+    return metadata.json() == null ? List.of() : metadata.json().vectorLayers();
+  }
+
+  /** Writes encoded tiles into the file for the shard that contains them, and marks shards complete as it passes them. */
+  private class RangeWriter implements WriteableTileArchive {
+
+    private final Plan plan;
+    private final LayerAttrStats layerStats;
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+    // shard that tiles are currently being written to, only the tile writer thread updates it
+    private volatile int shard;
+
+    private RangeWriter(Plan plan, int firstShard, LayerAttrStats layerStats) {
+      this.plan = plan;
+      this.shard = firstShard;
+      this.layerStats = layerStats;
+    }
+
+    @Override
+    public boolean deduplicates() {
+      return plan.deduplicates();
+    }
+
+    @Override
+    public TileOrder tileOrder() {
+      return plan.tileOrder();
+    }
+
+    @Override
+    public TileWriter newTileWriter() {
+      return new TileWriter() {
+        private DataOutputStream out = openTiles(tilesPath(shard));
+
+        @Override
+        public void write(TileEncodingResult encodingResult) {
+          long tileId = plan.tileOrder().encode(encodingResult.coord());
+          if (tileId >= plan.endTile(shard)) {
+            closeTiles(out);
+            // tiles up to this one have been encoded, so layer stats include everything in earlier shards
+            var layers = layerStats.getTileStats();
+            markComplete(shard, layers);
+            while (tileId >= plan.endTile(shard + 1)) {
+              shard++;
+              closeTiles(openTiles(tilesPath(shard)));
+              markComplete(shard, List.of());
+            }
+            shard++;
+            LOGGER.debug("Encoded {} of {} archive ranges", shard, plan.shards());
+            out = openTiles(tilesPath(shard));
+          }
+          bytesWritten.addAndGet(writeTile(out, encodingResult));
+        }
+
+        @Override
+        public void close() {
+          closeTiles(out);
+        }
+      };
+    }
+
+    @Override
+    public void finish(TileArchiveMetadata tileArchiveMetadata) {
+      var layers = layers(tileArchiveMetadata);
+      for (int i = shard; i < plan.shards(); i++) {
+        if (!Files.exists(tilesPath(i))) {
+          closeTiles(openTiles(tilesPath(i)));
+        }
+        markComplete(i, layers);
+      }
+    }
+
+    @Override
+    public long bytesWritten() {
+      return bytesWritten.get();
+    }
+
+    @Override
+    public void close() {
+      // tile writer closes its own stream
+    }
+  }
+}
@@ -1,6 +1,6 @@
 package com.onthegomap.planetiler.archive;
 
-import static com.onthegomap.planetiler.util.Gzip.gzip;
+import static com.onthegomap.planetiler.util.Exceptions.throwFatalException;
 import static com.onthegomap.planetiler.worker.Worker.joinFutures;
 
 import com.onthegomap.planetiler.VectorTile;
@@ -33,6 +33,7 @@ import java.util.Map;
 import java.util.OptionalLong;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
@@ -49,9 +50,21 @@ import org.slf4j.LoggerFactory;
 public class TileArchiveWriter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TileArchiveWriter.class);
+  // upper bounds on batch size to limit memory used by queued batches
   private static final long MAX_FEATURES_PER_BATCH = 10_000;
   private static final long MAX_TILES_PER_BATCH = 1_000;
+  // once encode times have been measured, batches get cut off after about this much expected work
+  private static final long TARGET_BATCH_NANOS = 20_000_000;
+  // batches cut off by encode time can be much smaller than the tile and feature limits allow, so queues hold this many
+  // times more of them and the limit on queued features is what bounds memory
+  private static final int QUEUED_BATCHES_PER_SLOT = 10;
+  private static final int DICTIONARY_SAMPLES_PER_BAND = 2_000;
+  // dictionaries get trained from tiles in DICTIONARY_SAMPLE_RANGES of DICTIONARY_RANGES evenly spaced key ranges with
+  // about the same number of features each, so only about 5% of features get read before writing the archive
+  private static final int DICTIONARY_RANGES = 1_000;
+  private static final int DICTIONARY_SAMPLE_RANGES = 50;
   private final Counter.Readable featuresProcessed;
+  private final Counter.MultiThreadCounter encodeNanos;
   private final Counter memoizedTiles;
   private final WriteableTileArchive archive;
   private final PlanetilerConfig config;
@@ -61,21 +74,33 @@ public class TileArchiveWriter {
   private final AtomicReference<TileCoord> lastTileWritten = new AtomicReference<>();
   private final TileArchiveMetadata tileArchiveMetadata;
   private final TilesetSummaryStatistics tileStats;
-  private final LayerAttrStats layerAttrStats = new LayerAttrStats();
+  private final LayerAttrStats layerAttrStats;
+  private final ZstdDictionaries dictionaries;
+  private final TileEncodeCosts encodeCosts;
+  private final Semaphore queuedFeatures;
+  private final int maxQueuedFeatures;
 
   private TileArchiveWriter(Iterable<FeatureGroup.TileFeatures> inputTiles, WriteableTileArchive archive,
-    PlanetilerConfig config, TileArchiveMetadata tileArchiveMetadata, Stats stats) {
+    PlanetilerConfig config, TileArchiveMetadata tileArchiveMetadata, ZstdDictionaries dictionaries,
+    LayerAttrStats layerAttrStats, int maxQueuedFeatures, Stats stats) {
     this.tileStats = new TilesetSummaryStatistics(TileWeights.readFromFile(config.tileWeights()));
     this.inputTiles = inputTiles;
     this.archive = archive;
     this.config = config;
     this.tileArchiveMetadata = tileArchiveMetadata;
+    this.dictionaries = dictionaries;
+    this.layerAttrStats = layerAttrStats;
     this.stats = stats;
     tilesByZoom = IntStream.rangeClosed(0, config.maxzoom())
       .mapToObj(i -> Counter.newSingleThreadCounter())
       .toArray(Counter.Readable[]::new);
     memoizedTiles = stats.longCounter("archive_memoized_tiles");
     featuresProcessed = stats.longCounter("archive_features_processed");
+    encodeNanos = stats.nanoCounter("archive_encode_time_seconds");
+    encodeCosts = new TileEncodeCosts(config.maxzoom());
+    this.maxQueuedFeatures = maxQueuedFeatures;
+    queuedFeatures = new Semaphore(maxQueuedFeatures);
+    stats.gauge("archive_queued_features", () -> maxQueuedFeatures - queuedFeatures.availablePermits());
     Map<String, LongSupplier> countsByZoom = new LinkedHashMap<>();
     for (int zoom = config.minzoom(); zoom <= config.maxzoom(); zoom++) {
       countsByZoom.put(Integer.toString(zoom), tilesByZoom[zoom]);
@@ -86,20 +111,72 @@ public class TileArchiveWriter {
   /** Reads all {@code features}, encodes them in parallel, and writes to {@code output}. */
   public static void writeOutput(FeatureGroup features, WriteableTileArchive output, DiskBacked fileSize,
     TileArchiveMetadata tileArchiveMetadata, Path layerStatsPath, PlanetilerConfig config, Stats stats) {
+    writeOutput(features, null, output, fileSize, tileArchiveMetadata, layerStatsPath, new LayerAttrStats(), config,
+      stats);
+  }
+
+  /**
+   * Reads {@code features} from tile ID {@code startTile} on, encodes them in parallel, and writes them to
+   * {@code output} in order.
+   * <p>
+   * The layers in each tile get recorded in {@code layerStats} before the tile is written, so {@code output} can save
+   * the layers in tiles it has received so far along with those tiles.
+   */
+  public static void writeOutputFrom(FeatureGroup features, long startTile, WriteableTileArchive output,
+    LayerAttrStats layerStats, TileArchiveMetadata tileArchiveMetadata, PlanetilerConfig config, Stats stats) {
+    writeOutput(features, startTile == 0 ? null : features.tileRange(startTile, Long.MAX_VALUE), output,
+      output::bytesWritten, tileArchiveMetadata, null, layerStats, config, stats);
+  }
+
+  /**
+   * Reads {@code features} in one shard of {@code plan}, encodes them in parallel, and writes to {@code output} for
+   * the coordinator to merge later.
+   */
+  public static void writeShard(FeatureGroup features, TileArchiveShards.Plan plan, int shard,
+    WriteableTileArchive output, TileArchiveMetadata tileArchiveMetadata, PlanetilerConfig config, Stats stats) {
+    LOGGER.info("Writing archive shard {} of {} with tile IDs from {} to {}", shard, plan.shards(),
+      plan.startTile(shard), plan.endTile(shard));
+    writeOutput(features, features.tileRange(plan.startTile(shard), plan.endTile(shard)), output,
+      output::bytesWritten, tileArchiveMetadata, null, new LayerAttrStats(), config, stats);
+  }
+
+  private static void writeOutput(FeatureGroup features, Iterable<FeatureGroup.TileFeatures> tileRange,
+    WriteableTileArchive output, DiskBacked fileSize, TileArchiveMetadata tileArchiveMetadata, Path layerStatsPath,
+    LayerAttrStats layerStats, PlanetilerConfig config, Stats stats) {
+    ZstdDictionaries dictionaries = null;
+    if (config.tileCompressionDictionary()) {
+      dictionaries = trainDictionaries(features, config, stats);
+      tileArchiveMetadata = dictionaries.addToMetadata(tileArchiveMetadata);
+    }
+
     var timer = stats.startStage("archive");
 
     int chunksToRead = Math.max(1, features.chunksToRead());
-    int readThreads = Math.min(config.featureReadThreads(), chunksToRead);
+    int mergeThreads = config.featureMergeThreads();
+    boolean partitioned = tileRange == null && mergeThreads > 1 && chunksToRead > 1;
+    int readThreads = partitioned ? mergeThreads : Math.min(config.featureReadThreads(), chunksToRead);
     int threads = config.threads();
     int processThreads = threads < 8 ? threads : (threads - readThreads);
     int tileWriteThreads = config.tileWriteThreads();
 
+    // when merging key ranges in parallel: (N merge threads) -> (1 thread to emit ranges in order) -> ...
     // when using more than 1 read thread: (N read threads) -> (1 merge thread) -> ...
     // when using 1 read thread we just have: (1 read & merge thread) -> ...
     Worker readWorker = null;
+    String readWorkerName = "read";
     Iterable<FeatureGroup.TileFeatures> inputTiles;
     String secondStageName;
-    if (readThreads == 1) {
+    if (tileRange != null) {
+      // shards seek each chunk to the start of their range, then merge it with a single sequential reader
+      secondStageName = "read";
+      inputTiles = tileRange;
+    } else if (partitioned) {
+      secondStageName = "read";
+      var reader = features.partitionedIterator(mergeThreads);
+      inputTiles = reader.result();
+      readWorker = reader.readWorker();
+      readWorkerName = "merge";
+    } else if (readThreads == 1) {
       secondStageName = "read";
       inputTiles = features;
     } else {
@@ -109,10 +186,6 @@ public class TileArchiveWriter {
       readWorker = reader.readWorker();
     }
 
-    TileArchiveWriter writer = new TileArchiveWriter(inputTiles, output, config, tileArchiveMetadata, stats);
-
-    var pipeline = WorkerPipeline.start("archive", stats);
-
     // a larger tile queue size helps keep cores busy, but needs a lot of RAM
     // 5k works fine with 100GB of RAM, so adjust the queue size down from there
     // but no less than 100
@@ -120,19 +193,30 @@ public class TileArchiveWriter {
       100,
       (int) (5_000d * ProcessInfo.getMaxMemoryBytes() / 100_000_000_000d)
     );
+    // bound read-ahead by the number of features that have been read but not written yet, since batches cut off by
+    // encode time vary from 1 to 1,000 tiles and bounding by batch count would shrink read-ahead along with them
+    int maxQueuedFeatures = (int) (queueSize * MAX_FEATURES_PER_BATCH);
+    int batchQueueSize = queueSize * QUEUED_BATCHES_PER_SLOT;
+
+    TileArchiveWriter writer =
+      new TileArchiveWriter(inputTiles, output, config, tileArchiveMetadata, dictionaries, layerStats,
+        maxQueuedFeatures, stats);
+
+    var pipeline = WorkerPipeline.start("archive", stats);
 
     /*
      * To emit tiles in order, fork the input queue and send features to both the encoder and writer. The writer
      * waits on them to be encoded in the order they were received, and the encoder processes them in parallel.
-     * One batch might take a long time to process, so make the queues very big to avoid idle encoding CPUs.
+     * One batch might take a long time to process, so make the queues very big to avoid idle encoding CPUs, and put
+     * tiles that are expected to be expensive in their own batch so they hold up as few other tiles as possible.
      *
      * Note:
      * In the future emitting tiles out order might be especially interesting when tileWriteThreads>1,
      * since when multiple threads/files are included there's no order that needs to be preserved.
      * So some of the restrictions could be lifted then.
      */
-    WorkQueue<TileBatch> writerQueue = new WorkQueue<>("archive_writer_queue", queueSize, 1, stats);
-    WorkQueue<TileBatch> layerStatsQueue = new WorkQueue<>("archive_layerstats_queue", queueSize, 1, stats);
+    WorkQueue<TileBatch> writerQueue = new WorkQueue<>("archive_writer_queue", batchQueueSize, 1, stats);
+    WorkQueue<TileBatch> layerStatsQueue = new WorkQueue<>("archive_layerstats_queue", batchQueueSize, 1, stats);
     WorkerPipeline<TileBatch> encodeBranch = pipeline
       .<TileBatch>fromGenerator(secondStageName, next -> {
         try (writerQueue; layerStatsQueue) {
@@ -148,7 +232,7 @@ public class TileArchiveWriter {
         }
         // use only 1 thread since readFeaturesAndBatch needs to be single-threaded
       }, 1)
-      .addBuffer("reader_queue", queueSize)
+      .addBuffer("reader_queue", batchQueueSize)
       .sinkTo("encode", processThreads, writer::tileEncoderSink);
 
     // ensure to initialize the archive BEFORE starting to write any tiles
@@ -174,9 +258,10 @@ public class TileArchiveWriter {
       .addProcessStats()
       .newLine();
     if (readWorker != null) {
-      loggers.addThreadPoolStats("read", readWorker);
+      loggers.addThreadPoolStats(readWorkerName, readWorker);
     }
     loggers.addPipelineStats(encodeBranch)
+      .addUtilization(writer.encodeNanos, processThreads)
       .addPipelineStats(writeBranch);
     if (layerStatsBranch != null) {
       loggers.addPipelineStats(layerStatsBranch);
@@ -196,6 +281,38 @@ public class TileArchiveWriter {
     timer.stop();
   }
 
+  /**
+   * Encodes a random sample of tiles from each band of zoom levels and trains a zstd dictionary for each band from
+   * them.
+   * <p>
+   * Tiles get sampled from evenly spaced ranges of {@code features} so that every zoom level with many features gets
+   * represented without reading all of them, and disk-backed feature groups seek to the start of each range using keys
+   * sampled while sorting. Only tiles that make it into the sample get encoded.
+   */
+  private static ZstdDictionaries trainDictionaries(FeatureGroup features, PlanetilerConfig config, Stats stats) {
+    var timer = stats.startStage("dictionary");
+    var sampler = ZstdDictionaries.sampler(config.minzoom(), config.maxzoom(), DICTIONARY_SAMPLES_PER_BAND);
+    long[] boundaries = features.tileBoundaries(DICTIONARY_RANGES);
+    for (int i = 0; i < DICTIONARY_SAMPLE_RANGES; i++) {
+      int range = i * DICTIONARY_RANGES / DICTIONARY_SAMPLE_RANGES;
+      long start = boundaries[range];
+      long end = boundaries[range + 1];
+      // ranges past the last feature, or within a single tile, are empty
+      if (start < end && start != Long.MAX_VALUE) {
+        for (var tile : features.tileRange(start, end)) {
+          sampler.offer(tile.tileCoord().z(), () -> tile.getVectorTile().encode());
+        }
+      }
+    }
+    var result = sampler.train(ZstdDictionaries.DEFAULT_DICTIONARY_SIZE);
+    for (var band : result.bands()) {
+      LOGGER.info("z{}-z{} zstd dictionary: {}", band.minzoom(), band.maxzoom(),
+        band.dictionary() == null ? "none" : Format.defaultInstance().storage(band.dictionary().length));
+    }
+    timer.stop();
+    return result;
+  }
+
   private static WorkerPipeline.SinkStep<TileBatch> tileStatsWriter(Path layerStatsPath) {
     return prev -> {
       try (var statsWriter = TileSizeStats.newWriter(layerStatsPath)) {
@@ -227,11 +344,17 @@ public class TileArchiveWriter {
     return "last tile: " + blurb;
   }
 
+  /**
+   * Groups tiles into batches for encoder threads to pick up, cutting them off where {@link TileBatcher} says to.
+   * <p>
+   * Blocks before handing off each batch until writing earlier batches has brought the number of queued features
+   * below the limit.
+   */
   private void readFeaturesAndBatch(Consumer<TileBatch> next) {
     int currentZoom = Integer.MIN_VALUE;
-    TileBatch batch = new TileBatch();
+    var batcher = new TileBatcher(encodeCosts, MAX_TILES_PER_BATCH, MAX_FEATURES_PER_BATCH, TARGET_BATCH_NANOS);
+    List<FeatureGroup.TileFeatures> batch = new ArrayList<>();
     long featuresInThisBatch = 0;
-    long tilesInThisBatch = 0;
     for (var feature : inputTiles) {
       int z = feature.tileCoord().z();
       if (z != currentZoom) {
@@ -239,23 +362,32 @@ public class TileArchiveWriter {
         currentZoom = z;
       }
       long thisTileFeatures = feature.getNumFeaturesToEmit();
-      if (tilesInThisBatch > 0 &&
-        (tilesInThisBatch >= MAX_TILES_PER_BATCH ||
-          ((featuresInThisBatch + thisTileFeatures) > MAX_FEATURES_PER_BATCH))) {
-        next.accept(batch);
-        batch = new TileBatch();
+      if (batcher.add(z, thisTileFeatures)) {
+        next.accept(newBatch(batch, featuresInThisBatch));
+        batch = new ArrayList<>();
         featuresInThisBatch = 0;
-        tilesInThisBatch = 0;
       }
-      featuresInThisBatch += thisTileFeatures;
-      tilesInThisBatch++;
-      batch.in.add(feature);
+      // count each tile as one extra feature so that batches of empty tiles still take up room
+      featuresInThisBatch += thisTileFeatures + 1;
+      batch.add(feature);
     }
-    if (!batch.in.isEmpty()) {
-      next.accept(batch);
+    if (!batch.isEmpty()) {
+      next.accept(newBatch(batch, featuresInThisBatch));
     }
   }
 
+  private TileBatch newBatch(List<FeatureGroup.TileFeatures> tiles, long features) {
+    // a single tile can have more features than the limit, so let it through once nothing else is queued
+    int permits = (int) Math.min(features, maxQueuedFeatures);
+    try {
+      queuedFeatures.acquire(permits);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throwFatalException(e);
+    }
+    return new TileBatch(tiles, permits, new CompletableFuture<>());
+  }
+
   private void tileEncoderSink(Iterable<TileBatch> prev) throws IOException {
     /*
      * To optimize emitting many identical consecutive tiles (like large ocean areas), memoize output to avoid
@@ -266,16 +398,19 @@ public class TileArchiveWriter {
     boolean lastIsFill = false;
     List<TileSizeStats.LayerStats> lastLayerStats = null;
     boolean skipFilled = config.skipFilledTiles();
+    TileCompression tileCompression = config.tileCompression();
     var layerStatsSerializer = TileSizeStats.newThreadLocalSerializer();
 
     var tileStatsUpdater = tileStats.threadLocalUpdater();
     var layerAttrStatsUpdater = layerAttrStats.handlerForThread();
+    var encodeNanosForThread = encodeNanos.counterForThread();
     for (TileBatch batch : prev) {
       List<TileEncodingResult> result = new ArrayList<>(batch.size());
       FeatureGroup.TileFeatures last = null;
       // each batch contains tile ordered by tile-order ID ascending
       for (int i = 0; i < batch.in.size(); i++) {
         FeatureGroup.TileFeatures tileFeatures = batch.in.get(i);
+        long start = System.nanoTime();
         featuresProcessed.incBy(tileFeatures.getNumFeaturesProcessed());
         byte[] bytes, encoded;
         List<TileSizeStats.LayerStats> layerStats;
@@ -293,14 +428,11 @@ public class TileArchiveWriter {
             layerStats = null;
             bytes = null;
           } else {
-            var proto = tile.toProto();
-            encoded = proto.toByteArray();
-            bytes = switch (config.tileCompression()) {
-              case GZIP -> gzip(encoded);
-              case NONE -> encoded;
-              case UNKNOWN -> throw new IllegalArgumentException("cannot compress \"UNKNOWN\"");
-            };
-            layerStats = TileSizeStats.computeTileStats(proto);
+            layerStats = new ArrayList<>();
+            encoded = tile.encode(layerStats);
+            bytes = dictionaries != null ?
+              dictionaries.compress(tileFeatures.tileCoord().z(), encoded) :
+              tileCompression.compress(encoded);
             if (encoded.length > config.tileWarningSizeBytes()) {
               LOGGER.warn("{} {}kb uncompressed",
                 tileFeatures.tileCoord(),
@@ -333,6 +465,9 @@ public class TileArchiveWriter {
             )
           );
         }
+        long nanos = System.nanoTime() - start;
+        encodeNanosForThread.incBy(nanos);
+        encodeCosts.record(tileFeatures.tileCoord().z(), tileFeatures.getNumFeaturesToEmit(), nanos);
       }
       // hand result off to writer
       batch.out.complete(result);
@@ -382,6 +517,7 @@ public class TileArchiveWriter {
           tilesByZoom[z].inc();
         }
         lastTileWritten.set(lastTile);
+        queuedFeatures.release(batch.permits);
       }
       tileWriter.printStats();
     }
@@ -419,21 +555,19 @@ public class TileArchiveWriter {
    * Container for a batch of tiles to be processed together in the encoder and writer threads.
    * <p>
    * The cost of encoding a tile may vary dramatically by its size (depending on the profile) so batches are sized
-   * dynamically to put as little as 1 large tile, or as many as 10,000 small tiles in a batch to keep encoding threads
-   * busy.
+   * dynamically from measured encode times to put as little as 1 expensive tile, or as many as 1,000 cheap tiles in a
+   * batch to keep encoding threads busy (see {@link #readFeaturesAndBatch(Consumer)}).
    *
-   * @param in  the tile data to encode
-   * @param out the future that encoder thread completes to hand finished tile off to writer thread
+   * @param in      the tile data to encode
+   * @param permits the number of queued features this batch counts for until the writer thread writes it
+   * @param out     the future that encoder thread completes to hand finished tile off to writer thread
    */
   private record TileBatch(
     List<FeatureGroup.TileFeatures> in,
+    int permits,
     CompletableFuture<List<TileEncodingResult>> out
   ) {
 
-    TileBatch() {
-      this(new ArrayList<>(), new CompletableFuture<>());
-    }
-
     public int size() {
       return in.size();
     }
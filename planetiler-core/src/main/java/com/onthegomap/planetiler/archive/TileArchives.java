@@ -72,7 +72,7 @@ public class TileArchives {
     var options = archive.applyFallbacks(config.arguments());
     return switch (archive.format()) {
       case MBTILES -> Mbtiles.newReadOnlyDatabase(archive.getLocalPath(), options);
-      case PMTILES -> ReadablePmtiles.newReadFromFile(archive.getLocalPath());
+      case PMTILES -> ReadablePmtiles.newReadFromFile(archive.getLocalPath(), options);
       case CSV, TSV -> throw new UnsupportedOperationException("reading CSV is not supported");
       case PROTO, PBF -> throw new UnsupportedOperationException("reading PROTO is not supported");
       case JSON -> throw new UnsupportedOperationException("reading JSON is not supported");
@@ -0,0 +1,59 @@
+package com.onthegomap.planetiler.archive;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Decides where {@link TileArchiveWriter} cuts off batches of tiles for encoder threads to pick up.
+ * <p>
+ * Until {@link TileEncodeCosts} has enough measurements, batches only get limited by tile and feature count. After that,
+ * batches also get cut off once the tiles in them are expected to take about {@code targetNanos} to encode based on the
+ * zoom level and number of features in each tile. A tile expected to take longer than that ends up in a batch by itself
+ * so that an idle encoder thread can pick it up while others work through the tiles around it, instead of holding up
+ * everything else in its batch.
+ */
+@NotThreadSafe
+class TileBatcher {
+
+  private final TileEncodeCosts costs;
+  private final long maxTiles;
+  private final long maxFeatures;
+  private final long targetNanos;
+  private int currentZoom = Integer.MIN_VALUE;
+  private double nanosPerFeature = -1;
+  private long tiles = 0;
+  private long features = 0;
+  private double nanos = 0;
+
+  TileBatcher(TileEncodeCosts costs, long maxTiles, long maxFeatures, long targetNanos) {
+    this.costs = costs;
+    this.maxTiles = maxTiles;
+    this.maxFeatures = maxFeatures;
+    this.targetNanos = targetNanos;
+  }
+
+  /**
+   * Adds a tile at {@code zoom} with {@code tileFeatures} features and returns true if it should go in a new batch
+   * instead of the current one.
+   */
+  boolean add(int zoom, long tileFeatures) {
+    if (zoom != currentZoom) {
+      currentZoom = zoom;
+      nanosPerFeature = costs.nanosPerFeature(zoom);
+    }
+    double tileNanos = nanosPerFeature < 0 ? 0 : (tileFeatures + 1) * nanosPerFeature;
+    boolean newBatch = tiles > 0 &&
+      (tiles >= maxTiles || (features + tileFeatures) > maxFeatures || (nanos + tileNanos) > targetNanos);
+    if (newBatch) {
+      tiles = 0;
+      features = 0;
+      nanos = 0;
+      // pick up the latest measurements for the next batch
+      nanosPerFeature = costs.nanosPerFeature(zoom);
+      tileNanos = nanosPerFeature < 0 ? 0 : (tileFeatures + 1) * nanosPerFeature;
+    }
+    tiles++;
+    features += tileFeatures;
+    nanos += tileNanos;
+    return newBatch;
+  }
+}
@@ -5,6 +5,9 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.onthegomap.planetiler.util.Brotli;
+import com.onthegomap.planetiler.util.Gzip;
+import com.onthegomap.planetiler.util.Zstd;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Optional;
@@ -19,6 +22,10 @@ public enum TileCompression {
   NONE("none"),
   @JsonProperty("gzip")
   GZIP("gzip"),
+  @JsonProperty("brotli")
+  BROTLI("brotli"),
+  @JsonProperty("zstd")
+  ZSTD("zstd"),
   @JsonProperty("unknown")
   UNKNOWN("unknown");
 
@@ -49,6 +56,28 @@ public enum TileCompression {
     return id;
   }
 
+  /** Returns {@code bytes} compressed with this codec. */
+  public byte[] compress(byte[] bytes) throws IOException {
+    return switch (this) {
+      case NONE -> bytes;
+      case GZIP -> Gzip.gzip(bytes);
+      case BROTLI -> Brotli.brotli(bytes);
+      case ZSTD -> Zstd.zstd(bytes);
+      case UNKNOWN -> throw new IllegalArgumentException("cannot compress \"UNKNOWN\"");
+    };
+  }
+
+  /** Returns {@code bytes} decompressed with this codec. */
+  public byte[] decompress(byte[] bytes) throws IOException {
+    return switch (this) {
+      case NONE -> bytes;
+      case GZIP -> Gzip.gunzip(bytes);
+      case BROTLI -> Brotli.unbrotli(bytes);
+      case ZSTD -> Zstd.unzstd(bytes);
+      case UNKNOWN -> throw new IllegalArgumentException("cannot decompress \"UNKNOWN\"");
+    };
+  }
+
   static class Deserializer extends JsonDeserializer<TileCompression> {
     @Override
     public TileCompression deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
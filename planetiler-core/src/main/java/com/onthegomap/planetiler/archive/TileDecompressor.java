@@ -0,0 +1,27 @@
+package com.onthegomap.planetiler.archive;
+
+import java.io.IOException;
+
+/**
+ * Decompresses tiles read from an archive, using any zstd dictionaries stored in the archive metadata.
+ *
+ * @see ZstdDictionaries
+ */
+@FunctionalInterface
+public interface TileDecompressor {
+
+  /** Returns a decompressor for tiles in an archive described by {@code metadata}, assuming gzip if it's missing. */
+  static TileDecompressor fromMetadata(TileArchiveMetadata metadata) {
+    TileCompression compression = metadata == null ? TileCompression.GZIP : metadata.tileCompression();
+    if (compression == TileCompression.ZSTD) {
+      var dictionaries = ZstdDictionaries.fromMetadata(metadata);
+      if (dictionaries != null) {
+        return dictionaries::decompress;
+      }
+    }
+    return (z, bytes) -> compression.decompress(bytes);
+  }
+
+  /** Returns the uncompressed contents of {@code bytes}, a tile at zoom {@code z}. */
+  byte[] decompress(int z, byte[] bytes) throws IOException;
+}
@@ -0,0 +1,59 @@
+package com.onthegomap.planetiler.archive;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Estimates how long a tile will take to encode from the time encoder threads have spent on tiles so far, so
+ * {@link TileArchiveWriter} can size batches by expected encode time instead of only by tile and feature counts.
+ * <p>
+ * Each zoom level gets its own cost per feature since low zoom tiles that merge large polygons cost much more per
+ * feature than high zoom tiles. Every tile counts as one extra feature to account for fixed per-tile overhead.
+ */
+@ThreadSafe
+class TileEncodeCosts {
+
+  /** Fewest tiles to measure at a zoom level before trusting its average over the average for all zoom levels. */
+  static final int MIN_TILES_PER_ZOOM = 16;
+
+  private final Zoom[] zooms;
+  private final Zoom all = new Zoom();
+
+  TileEncodeCosts(int maxzoom) {
+    zooms = IntStream.rangeClosed(0, maxzoom).mapToObj(i -> new Zoom()).toArray(Zoom[]::new);
+  }
+
+  /** Records that an encoder thread spent {@code nanos} on a tile at {@code zoom} with {@code features} features. */
+  void record(int zoom, long features, long nanos) {
+    zooms[zoom].add(features, nanos);
+    all.add(features, nanos);
+  }
+
+  /**
+   * Returns the average number of nanoseconds it has taken to encode each feature in tiles at {@code zoom}, counting
+   * each tile as one extra feature, or -1 if not enough tiles have been measured yet to tell.
+   * <p>
+   * Multiply by {@code features + 1} to estimate the time a tile with {@code features} features will take.
+   */
+  double nanosPerFeature(int zoom) {
+    Zoom costs = zooms[zoom].tiles.sum() >= MIN_TILES_PER_ZOOM ? zooms[zoom] : all;
+    long tiles = costs.tiles.sum();
+    if (tiles < MIN_TILES_PER_ZOOM) {
+      return -1;
+    }
+    return costs.nanos.sum() / (double) (costs.features.sum() + tiles);
+  }
+
+  private static class Zoom {
+    private final LongAdder tiles = new LongAdder();
+    private final LongAdder features = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    void add(long features, long nanos) {
+      this.tiles.increment();
+      this.features.add(features);
+      this.nanos.add(nanos);
+    }
+  }
+}
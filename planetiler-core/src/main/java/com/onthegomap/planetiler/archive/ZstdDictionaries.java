@@ -0,0 +1,231 @@
+package com.onthegomap.planetiler.archive;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zstandard dictionaries trained from a sample of encoded vector tiles, one for each band of zoom levels.
+ * <p>
+ * Tiles from a single profile repeat the same layer names, keys, and values so small tiles compress poorly on their
+ * own. Compressing each tile against a shared dictionary makes output smaller and compression cheaper. Dictionaries
+ * get stored in archive metadata under {@link #METADATA_KEY_PREFIX} and {@link TileDecompressor#fromMetadata} picks
+ * them up when reading. Generic PMTiles or MBTiles clients will not be able to decode tiles written this way.
+ */
+@ThreadSafe
+public class ZstdDictionaries {
+
+  public static final String METADATA_KEY_PREFIX = "planetiler:zstd_dictionary:";
+  /** Zoom levels where each band of tiles that share a dictionary starts. */
+  public static final int[] DEFAULT_BAND_MINZOOMS = {0, 8, 12};
+  /** Same as the zstd CLI default dictionary size. */
+  public static final int DEFAULT_DICTIONARY_SIZE = 112_640;
+  private static final Logger LOGGER = LoggerFactory.getLogger(ZstdDictionaries.class);
+
+  private final List<Band> bands;
+  private final Band[] bandForZoom = new Band[PlanetilerConfig.MAX_MAXZOOM + 1];
+
+  /**
+   * A dictionary used by tiles from {@code minzoom} to {@code maxzoom} inclusive, or {@code null} dictionary if
+   * training failed for that band.
+   */
+  public record Band(int minzoom, int maxzoom, byte[] dictionary, ZstdDictCompress compress,
+    ZstdDictDecompress decompress) {
+
+    Band(int minzoom, int maxzoom, byte[] dictionary, int level) {
+      this(minzoom, maxzoom, dictionary,
+        dictionary == null ? null : new ZstdDictCompress(dictionary, level),
+        dictionary == null ? null : new ZstdDictDecompress(dictionary));
+    }
+
+    String metadataKey() {
+      return METADATA_KEY_PREFIX + minzoom + "-" + maxzoom;
+    }
+  }
+
+  ZstdDictionaries(List<Band> bands) {
+    this.bands = List.copyOf(bands);
+    for (var band : bands) {
+      for (int z = band.minzoom; z <= band.maxzoom && z < bandForZoom.length; z++) {
+        bandForZoom[z] = band;
+      }
+    }
+  }
+
+  /** Returns a new sampler that collects up to {@code samplesPerBand} encoded tiles for each band of zoom levels. */
+  public static Sampler sampler(int minzoom, int maxzoom, int samplesPerBand) {
+    return new Sampler(minzoom, maxzoom, samplesPerBand);
+  }
+
+  /**
+   * Returns the dictionaries stored in {@code metadata} by {@link #addToMetadata(TileArchiveMetadata)} or {@code null}
+   * if there are none.
+   */
+  public static ZstdDictionaries fromMetadata(TileArchiveMetadata metadata) {
+    if (metadata == null || metadata.others() == null) {
+      return null;
+    }
+    List<Band> bands = new ArrayList<>();
+    for (var entry : metadata.others().entrySet()) {
+      if (entry.getKey().startsWith(METADATA_KEY_PREFIX)) {
+        String[] range = entry.getKey().substring(METADATA_KEY_PREFIX.length()).split("-");
+        if (range.length != 2) {
+          throw new IllegalArgumentException("Invalid zstd dictionary metadata key: " + entry.getKey());
+        }
+        bands.add(new Band(Integer.parseInt(range[0]), Integer.parseInt(range[1]),
+          Base64.getDecoder().decode(entry.getValue()), com.onthegomap.planetiler.util.Zstd.DEFAULT_LEVEL));
+      }
+    }
+    return bands.isEmpty() ? null : new ZstdDictionaries(bands);
+  }
+
+  /** Returns a copy of {@code metadata} with each trained dictionary added to {@link TileArchiveMetadata#others()}. */
+  public TileArchiveMetadata addToMetadata(TileArchiveMetadata metadata) {
+    Map<String, String> others = new LinkedHashMap<>(metadata.others());
+    for (var band : bands) {
+      if (band.dictionary != null) {
+        others.put(band.metadataKey(), Base64.getEncoder().encodeToString(band.dictionary));
+      }
+    }
+    return new TileArchiveMetadata(metadata.name(), metadata.description(), metadata.attribution(),
+      metadata.version(), metadata.type(), metadata.format(), metadata.bounds(), metadata.center(),
+      metadata.minzoom(), metadata.maxzoom(), metadata.json(), others, metadata.tileCompression());
+  }
+
+  public List<Band> bands() {
+    return bands;
+  }
+
+  private Band band(int z) {
+    return z >= 0 && z < bandForZoom.length ? bandForZoom[z] : null;
+  }
+
+  /** Compresses an encoded tile at zoom {@code z} using that zoom's dictionary, or plain zstd if there is none. */
+  public byte[] compress(int z, byte[] bytes) throws IOException {
+    var band = band(z);
+    if (band == null || band.compress == null) {
+      return com.onthegomap.planetiler.util.Zstd.zstd(bytes);
+    }
+    try {
+      return Zstd.compress(bytes, band.compress);
+    } catch (ZstdException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /** Decompresses a tile at zoom {@code z} compressed by {@link #compress(int, byte[])}. */
+  public byte[] decompress(int z, byte[] bytes) throws IOException {
+    var band = band(z);
+    if (band == null || band.decompress == null) {
+      return com.onthegomap.planetiler.util.Zstd.unzstd(bytes);
+    }
+    try {
+      long size = Zstd.getFrameContentSize(bytes);
+      if (size < 0 || size > Integer.MAX_VALUE) {
+        throw new IOException("Unable to determine decompressed size of zstd frame: " + size);
+      }
+      return Zstd.decompress(bytes, band.decompress, (int) size);
+    } catch (ZstdException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Collects a uniform random sample of encoded tiles from each band of zoom levels using reservoir sampling, so that
+   * only tiles that make it into the sample need to be encoded.
+   */
+  @NotThreadSafe
+  public static class Sampler {
+
+    private final int samplesPerBand;
+    private final List<int[]> ranges = new ArrayList<>();
+    private final List<List<byte[]>> samples = new ArrayList<>();
+    private final long[] seen;
+    private final Random random = new Random(0);
+
+    private Sampler(int minzoom, int maxzoom, int samplesPerBand) {
+      this.samplesPerBand = samplesPerBand;
+      for (int i = 0; i < DEFAULT_BAND_MINZOOMS.length; i++) {
+        int bandMin = Math.max(minzoom, DEFAULT_BAND_MINZOOMS[i]);
+        int bandMax = Math.min(maxzoom, i + 1 < DEFAULT_BAND_MINZOOMS.length ? DEFAULT_BAND_MINZOOMS[i + 1] - 1 :
+          PlanetilerConfig.MAX_MAXZOOM);
+        if (bandMin <= bandMax) {
+          ranges.add(new int[]{bandMin, bandMax});
+          samples.add(new ArrayList<>());
+        }
+      }
+      seen = new long[ranges.size()];
+    }
+
+    private int bandIndex(int z) {
+      for (int i = 0; i < ranges.size(); i++) {
+        if (z >= ranges.get(i)[0] && z <= ranges.get(i)[1]) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /** Considers a tile at zoom {@code z} for the sample, and only calls {@code encoder} if it gets included. */
+    public void offer(int z, Supplier<byte[]> encoder) {
+      int idx = bandIndex(z);
+      if (idx < 0) {
+        return;
+      }
+      long count = ++seen[idx];
+      var bandSamples = samples.get(idx);
+      if (bandSamples.size() < samplesPerBand) {
+        bandSamples.add(encoder.get());
+      } else {
+        long replace = random.nextLong(count);
+        if (replace < samplesPerBand) {
+          bandSamples.set((int) replace, encoder.get());
+        }
+      }
+    }
+
+    /** Trains a dictionary of {@code dictionarySize} bytes for each band from the tiles sampled so far. */
+    public ZstdDictionaries train(int dictionarySize) {
+      List<Band> bands = new ArrayList<>();
+      for (int i = 0; i < ranges.size(); i++) {
+        int[] range = ranges.get(i);
+        var bandSamples = samples.get(i);
+        long totalBytes = bandSamples.stream().mapToLong(b -> b.length).sum();
+        byte[] dictionary = null;
+        if (!bandSamples.isEmpty()) {
+          var trainer = new ZstdDictTrainer((int) Math.min(Integer.MAX_VALUE - 8, totalBytes), dictionarySize);
+          for (byte[] sample : bandSamples) {
+            trainer.addSample(sample);
+          }
+          try {
+            dictionary = trainer.trainSamples();
+          } catch (ZstdException e) {
+            LOGGER.warn("Unable to train zstd dictionary for z{}-z{} from {} samples: {}", range[0], range[1],
+              bandSamples.size(), e.getMessage());
+          }
+        }
+        if (dictionary != null) {
+          LOGGER.debug("Trained {} byte zstd dictionary for z{}-z{} from {} samples", dictionary.length, range[0],
+            range[1], bandSamples.size());
+        }
+        bands.add(new Band(range[0], range[1], dictionary, com.onthegomap.planetiler.util.Zstd.DEFAULT_LEVEL));
+      }
+      return new ZstdDictionaries(bands);
+    }
+  }
+}
@@ -29,6 +29,20 @@ interface AppendStore extends Closeable, MemoryEstimator.HasEstimate, DiskBacked
     return 0;
   }
 
+  /**
+   * Hints that the first {@code count} elements of {@code sortedIndexes}, in ascending order, will be read soon so that
+   * implementations backed by memory-mapped files can start loading them.
+   */
+  default void prefetch(long[] sortedIndexes, int count) {}
+
+  /**
+   * Writes buffered elements to disk after the last append so another process can open them for reading, or throws
+   * {@link UnsupportedOperationException} if elements are only stored in memory.
+   */
+  default void save() {
+    throw new UnsupportedOperationException("Only memory-mapped stores can be saved");
+  }
+
   @Override
   default long diskUsageBytes() {
     return 0;
@@ -45,6 +59,11 @@ interface AppendStore extends Closeable, MemoryEstimator.HasEstimate, DiskBacked
       };
     }
 
+    /** Opens ints that a {@link Storage#MMAP} store {@link #save() saved} to {@code params} for reading. */
+    static Ints open(Storage.Params params) {
+      return new AppendStoreMmap.Ints(params, true);
+    }
+
     void appendInt(int value);
 
     int getInt(long index);
@@ -61,6 +80,11 @@ interface AppendStore extends Closeable, MemoryEstimator.HasEstimate, DiskBacked
       };
     }
 
+    /** Opens longs that a {@link Storage#MMAP} store {@link #save() saved} to {@code params} for reading. */
+    static Longs open(Storage.Params params) {
+      return new AppendStoreMmap.Longs(params, true);
+    }
+
     void appendLong(long value);
 
     long getLong(long index);
@@ -80,6 +104,8 @@ interface AppendStore extends Closeable, MemoryEstimator.HasEstimate, DiskBacked
     SmallLongs(IntFunction<Ints> supplier) {
       for (int i = 0; i < ints.length; i++) {
         ints[i] = supplier.apply(i);
+        // non-empty when opening saved slabs
+        numWritten += ints[i].size();
       }
     }
 
@@ -110,6 +136,13 @@ interface AppendStore extends Closeable, MemoryEstimator.HasEstimate, DiskBacked
       return numWritten;
     }
 
+    @Override
+    public void save() {
+      for (var child : ints) {
+        child.save();
+      }
+    }
+
     @Override
     public void close() throws IOException {
       for (var child : ints) {
@@ -21,8 +21,9 @@ import org.slf4j.LoggerFactory;
 abstract class AppendStoreMmap implements AppendStore {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(AppendStoreMmap.class);
+  private static final long DEFAULT_SEGMENT_BYTES = 1 << 30; // 1GB
 
-  // writes are done using a BufferedOutputStream
+  // writes are done using a BufferedOutputStream, or null when reading a file that was already saved
   final DataOutputStream outputStream;
   final int segmentBits;
   final long segmentMask;
@@ -34,10 +35,15 @@ abstract class AppendStoreMmap implements AppendStore {
   private volatile FileChannel channel; // NOSONAR - channel is not thread-safe, but we only map over it once then close
 
   AppendStoreMmap(Path path, boolean madvise) {
-    this(path, 1 << 30, madvise); // 1GB
+    this(path, DEFAULT_SEGMENT_BYTES, madvise);
   }
 
   AppendStoreMmap(Path path, long segmentSizeBytes, boolean madvise) {
+    this(path, segmentSizeBytes, madvise, false);
+  }
+
+  /** When {@code existing} is true, reads elements that a previous store {@link #save() saved} to {@code path}. */
+  AppendStoreMmap(Path path, long segmentSizeBytes, boolean madvise, boolean existing) {
     FileUtils.createParentDirectories(path);
     this.madvise = madvise;
     segmentBits = (int) (Math.log(segmentSizeBytes) / Math.log(2));
@@ -47,10 +53,15 @@ abstract class AppendStoreMmap implements AppendStore {
       throw new IllegalArgumentException("segment size must be a multiple of 8 and power of 2: " + segmentSizeBytes);
     }
     this.path = path;
-    try {
-      this.outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 50_000));
-    } catch (IOException e) {
-      throw new IllegalStateException("Could not create SequentialWriteRandomReadFile output stream", e);
+    if (existing) {
+      this.outputStream = null;
+      this.outIdx = FileUtils.size(path);
+    } else {
+      try {
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 50_000));
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not create SequentialWriteRandomReadFile output stream", e);
+      }
     }
   }
 
@@ -60,7 +71,9 @@ abstract class AppendStoreMmap implements AppendStore {
         if (segments == null) {
           try {
             // prepare the memory mapped file: stop writing, start reading
-            outputStream.close();
+            if (outputStream != null) {
+              outputStream.close();
+            }
             channel = FileChannel.open(path, StandardOpenOption.READ);
             segments = ByteBufferUtil.mapFile(channel, outIdx, segmentBytes, madvise);
           } catch (IOException e) {
@@ -72,9 +85,22 @@ abstract class AppendStoreMmap implements AppendStore {
     return segments;
   }
 
+  @Override
+  public void save() {
+    if (outputStream != null) {
+      try {
+        outputStream.flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
   @Override
   public void close() throws IOException {
-    outputStream.close();
+    if (outputStream != null) {
+      outputStream.close();
+    }
     synchronized (this) {
       if (channel != null) {
         channel.close();
@@ -95,12 +121,31 @@ abstract class AppendStoreMmap implements AppendStore {
     return FileUtils.size(path);
   }
 
+  /** Asks the OS to start loading elements of {@code 1 << elementBits} bytes if madvise is enabled. */
+  void prefetch(long[] sortedIndexes, int count, int elementBits) {
+    if (madvise && count > 0) {
+      long[] offsets = new long[count];
+      for (int i = 0; i < count; i++) {
+        offsets[i] = sortedIndexes[i] << elementBits;
+      }
+      try {
+        ByteBufferUtil.madviseWillNeed(getSegments(), segmentBits, offsets, count, 1 << elementBits);
+      } catch (IOException e) {
+        // madvise not available, reads will just be slower
+      }
+    }
+  }
+
   static class Ints extends AppendStoreMmap implements AppendStore.Ints {
 
     Ints(Storage.Params params) {
       this(params.path(), params.madvise());
     }
 
+    Ints(Storage.Params params, boolean existing) {
+      super(params.path(), DEFAULT_SEGMENT_BYTES, params.madvise(), existing);
+    }
+
     Ints(Path path, boolean madvise) {
       super(path, madvise);
     }
@@ -133,6 +178,11 @@ abstract class AppendStoreMmap implements AppendStore {
     public long size() {
       return outIdx >>> 2;
     }
+
+    @Override
+    public void prefetch(long[] sortedIndexes, int count) {
+      prefetch(sortedIndexes, count, 2);
+    }
   }
 
   static class Longs extends AppendStoreMmap implements AppendStore.Longs {
@@ -141,6 +191,10 @@ abstract class AppendStoreMmap implements AppendStore {
       this(params.path(), params.madvise());
     }
 
+    Longs(Storage.Params params, boolean existing) {
+      super(params.path(), DEFAULT_SEGMENT_BYTES, params.madvise(), existing);
+    }
+
     Longs(Path path, boolean madvise) {
       super(path, madvise);
     }
@@ -173,5 +227,10 @@ abstract class AppendStoreMmap implements AppendStore {
     public long size() {
       return outIdx >>> 3;
     }
+
+    @Override
+    public void prefetch(long[] sortedIndexes, int count) {
+      prefetch(sortedIndexes, count, 3);
+    }
   }
 }
@@ -4,6 +4,9 @@ import static com.onthegomap.planetiler.util.MemoryEstimator.POINTER_BYTES;
 import static com.onthegomap.planetiler.util.MemoryEstimator.estimateByteArraySize;
 import static com.onthegomap.planetiler.util.MemoryEstimator.estimateIntArraySize;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -135,5 +138,22 @@ abstract class AppendStoreRam implements AppendStore {
     public long size() {
       return writeOffset >> 3;
     }
+
+    /** Writes the number of values then each value to {@code out} for {@link #readFrom(DataInput)} to load. */
+    void writeTo(DataOutput out) throws IOException {
+      long size = size();
+      out.writeLong(size);
+      for (long i = 0; i < size; i++) {
+        out.writeLong(getLong(i));
+      }
+    }
+
+    /** Appends values that {@link #writeTo(DataOutput)} wrote to {@code in}. */
+    void readFrom(DataInput in) throws IOException {
+      long size = in.readLong();
+      for (long i = 0; i < size; i++) {
+        appendLong(in.readLong());
+      }
+    }
   }
 }
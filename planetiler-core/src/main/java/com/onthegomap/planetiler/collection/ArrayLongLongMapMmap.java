@@ -63,6 +63,9 @@ class ArrayLongLongMapMmap implements LongLongMap.ParallelWrites {
   private FileChannel readChannel = null;
   private volatile int tail = 0;
   private volatile boolean initialized = false;
+  // true when reading values another process saved, so every segment of the file may have data
+  private boolean existing = false;
+  private volatile boolean keepFile = false;
 
   ArrayLongLongMapMmap(Path path, boolean madvise) {
     this(
@@ -91,6 +94,14 @@ class ArrayLongLongMapMmap implements LongLongMap.ParallelWrites {
     }
   }
 
+  /** Opens values that {@link #save()} left in {@code path} for reading. */
+  static ArrayLongLongMapMmap open(Path path, boolean madvise) {
+    var result = new ArrayLongLongMapMmap(path, madvise);
+    result.existing = true;
+    result.keepFile = true;
+    return result;
+  }
+
   private static int guessPendingChunkLimit(long chunkSize) {
     int minChunks = 1;
     int maxChunks = (int) (MAX_BYTES_TO_USE / chunkSize);
@@ -111,7 +122,8 @@ class ArrayLongLongMapMmap implements LongLongMap.ParallelWrites {
       }
       writeChannel.close();
       readChannel = FileChannel.open(path, READ);
-      segmentsArray = ByteBufferUtil.mapFile(readChannel, readChannel.size(), segmentBytes, madvise, usedSegments::get);
+      segmentsArray = ByteBufferUtil.mapFile(readChannel, readChannel.size(), segmentBytes, madvise,
+        existing ? i -> true : usedSegments::get);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
@@ -150,6 +162,28 @@ class ArrayLongLongMapMmap implements LongLongMap.ParallelWrites {
     return result == 0 ? LongLongMap.MISSING_VALUE : result;
   }
 
+  @Override
+  public void prefetch(long[] sortedKeys) {
+    if (madvise && sortedKeys.length > 0) {
+      initOnce();
+      long[] offsets = new long[sortedKeys.length];
+      for (int i = 0; i < sortedKeys.length; i++) {
+        offsets[i] = sortedKeys[i] << 3;
+      }
+      try {
+        ByteBufferUtil.madviseWillNeed(segmentsArray, segmentBits, offsets, offsets.length, Long.BYTES);
+      } catch (IOException e) {
+        // madvise not available, reads will just be slower
+      }
+    }
+  }
+
+  @Override
+  public void save() {
+    // writers flush their segments to the file when the last one closes, so all that's left is to keep the file
+    keepFile = true;
+  }
+
   @Override
   public long diskUsageBytes() {
     return FileUtils.size(path);
@@ -174,7 +208,9 @@ class ArrayLongLongMapMmap implements LongLongMap.ParallelWrites {
       readChannel.close();
       readChannel = null;
     }
-    FileUtils.delete(path);
+    if (!keepFile) {
+      FileUtils.delete(path);
+    }
   }
 
   /**
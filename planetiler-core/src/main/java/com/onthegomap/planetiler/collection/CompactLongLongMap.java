@@ -0,0 +1,259 @@
+package com.onthegomap.planetiler.collection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A longlong map that stores values in compressed blocks of 256 consecutive keys, for values like node locations where
+ * nearby keys tend to have nearby values.
+ * <p>
+ * Each block stores a varint of the number of entries then for each entry: a varint of the gap from the previous key,
+ * and zigzag varints of the difference from the upper and lower 32 bits of the previous value. For node locations
+ * encoded with {@link com.onthegomap.planetiler.geo.GeoUtils#encodeFlatLocation(double, double)} those are the x and y
+ * coordinates. Blocks are padded to a whole number of longs and stored in an {@link AppendStore.Longs} with an
+ * in-memory index of where each block starts.
+ * <p>
+ * Reads decode a whole block into a per-thread cache, so lookups of nearby keys from the same thread only decode each
+ * block once.
+ */
+public class CompactLongLongMap implements LongLongMap, LongLongMap.SequentialWrites {
+
+  private static final int BLOCK_BITS = 8;
+  private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+  // entry count, then up to 5 bytes for the key gap and each half of the value, then padding
+  private static final int MAX_BLOCK_BYTES = 5 + BLOCK_SIZE * 15 + Long.BYTES;
+
+  // index in values of the first long for each block of 256 keys
+  private final AppendStoreRam.Longs offsets = new AppendStoreRam.Longs(false);
+  private final AppendStore.Longs values;
+  private final Path indexPath;
+  private final ThreadLocal<DecodedBlock> decoded = ThreadLocal.withInitial(DecodedBlock::new);
+
+  // entries in the current block that have not been written yet
+  private final int[] pendingKeys = new int[BLOCK_SIZE];
+  private final long[] pendingValues = new long[BLOCK_SIZE];
+  private final byte[] encoded = new byte[MAX_BLOCK_BYTES];
+  private final ByteBuffer encodedView = ByteBuffer.wrap(encoded);
+  private int pending = 0;
+  private long lastBlock = -1;
+  private long lastKey = -1;
+  private volatile boolean finished = false;
+
+  public CompactLongLongMap(AppendStore.Longs values) {
+    this(values, null);
+  }
+
+  /** Creates a map that {@link #save()} writes the in-memory block index of to {@code indexPath}. */
+  CompactLongLongMap(AppendStore.Longs values, Path indexPath) {
+    this.values = values;
+    this.indexPath = indexPath;
+  }
+
+  /** Opens a map that {@link #save()} stored in {@code params} for reading. */
+  static CompactLongLongMap open(Storage.Params params) {
+    var result = new CompactLongLongMap(AppendStore.Longs.open(params), LongLongMap.indexPath(params.path()));
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(result.indexPath)))) {
+      result.offsets.readFrom(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    result.finished = true;
+    return result;
+  }
+
+  @Override
+  public void put(long key, long value) {
+    if (finished) {
+      throw new IllegalStateException("Cannot write after reading");
+    }
+    if (key <= lastKey) {
+      throw new IllegalArgumentException("Nodes must be sorted ascending by ID, " + key + " came after " + lastKey);
+    }
+    lastKey = key;
+    long block = key >>> BLOCK_BITS;
+    if (block != lastBlock) {
+      writePending();
+      while (offsets.size() <= block) {
+        offsets.appendLong(values.size());
+      }
+      lastBlock = block;
+    }
+    pendingKeys[pending] = (int) (key & BLOCK_MASK);
+    pendingValues[pending] = value;
+    pending++;
+  }
+
+  private void writePending() {
+    if (pending == 0) {
+      return;
+    }
+    int position = putVarInt(encoded, 0, pending);
+    int prevKey = -1;
+    int prevHi = 0;
+    int prevLo = 0;
+    for (int i = 0; i < pending; i++) {
+      int hi = (int) (pendingValues[i] >>> 32);
+      int lo = (int) pendingValues[i];
+      position = putVarInt(encoded, position, pendingKeys[i] - prevKey - 1);
+      position = putVarInt(encoded, position, zigzag(hi - prevHi));
+      position = putVarInt(encoded, position, zigzag(lo - prevLo));
+      prevKey = pendingKeys[i];
+      prevHi = hi;
+      prevLo = lo;
+    }
+    int longs = (position + Long.BYTES - 1) / Long.BYTES;
+    Arrays.fill(encoded, position, longs * Long.BYTES, (byte) 0);
+    for (int i = 0; i < longs; i++) {
+      values.appendLong(encodedView.getLong(i * Long.BYTES));
+    }
+    pending = 0;
+  }
+
+  private void finish() {
+    if (!finished) {
+      synchronized (this) {
+        if (!finished) {
+          writePending();
+          finished = true;
+        }
+      }
+    }
+  }
+
+  @Override
+  public long get(long key) {
+    finish();
+    long block = key >>> BLOCK_BITS;
+    if (block >= offsets.size()) {
+      return MISSING_VALUE;
+    }
+    DecodedBlock cached = decoded.get();
+    if (cached.block != block) {
+      cached.decode(block);
+    }
+    return cached.values[(int) (key & BLOCK_MASK)];
+  }
+
+  @Override
+  public void prefetch(long[] sortedKeys) {
+    finish();
+    // request the first and last long of each block, which covers the whole block
+    long[] indexes = new long[sortedKeys.length * 2];
+    int count = 0;
+    long lastPrefetched = -1;
+    for (long key : sortedKeys) {
+      long block = key >>> BLOCK_BITS;
+      if (block != lastPrefetched && block < offsets.size()) {
+        long start = offsets.getLong(block);
+        long end = block + 1 < offsets.size() ? offsets.getLong(block + 1) : values.size();
+        if (end > start) {
+          indexes[count++] = start;
+          indexes[count++] = end - 1;
+        }
+        lastPrefetched = block;
+      }
+    }
+    values.prefetch(indexes, count);
+  }
+
+  @Override
+  public void save() {
+    if (indexPath == null) {
+      throw new UnsupportedOperationException("Only maps from LongLongMap.from can be saved");
+    }
+    finish();
+    values.save();
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexPath)))) {
+      offsets.writeTo(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public long diskUsageBytes() {
+    return values.diskUsageBytes();
+  }
+
+  @Override
+  public long estimateMemoryUsageBytes() {
+    return values.estimateMemoryUsageBytes() + offsets.estimateMemoryUsageBytes();
+  }
+
+  @Override
+  public void close() throws IOException {
+    decoded.remove();
+    values.close();
+    offsets.close();
+  }
+
+  private static int zigzag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private static int unzigzag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static int putVarInt(byte[] dest, int position, int value) {
+    while ((value & ~0x7F) != 0) {
+      dest[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    dest[position++] = (byte) value;
+    return position;
+  }
+
+  /** The values from the block that a thread read most recently. */
+  private class DecodedBlock {
+
+    private final long[] values = new long[BLOCK_SIZE];
+    private final byte[] bytes = new byte[MAX_BLOCK_BYTES];
+    private final ByteBuffer bytesView = ByteBuffer.wrap(bytes);
+    private long block = -1;
+    private int position = 0;
+
+    private void decode(long newBlock) {
+      long start = offsets.getLong(newBlock);
+      long end = newBlock + 1 < offsets.size() ? offsets.getLong(newBlock + 1) : CompactLongLongMap.this.values.size();
+      Arrays.fill(values, MISSING_VALUE);
+      if (end > start) {
+        for (long i = start; i < end; i++) {
+          bytesView.putLong((int) (i - start) * Long.BYTES, CompactLongLongMap.this.values.getLong(i));
+        }
+        position = 0;
+        int count = getVarInt();
+        int key = -1;
+        int hi = 0;
+        int lo = 0;
+        for (int i = 0; i < count; i++) {
+          key += getVarInt() + 1;
+          hi += unzigzag(getVarInt());
+          lo += unzigzag(getVarInt());
+          values[key] = ((long) hi << 32) | (lo & 0xFFFFFFFFL);
+        }
+      }
+      block = newBlock;
+    }
+
+    private int getVarInt() {
+      int result = 0;
+      for (int shift = 0;; shift += 7) {
+        byte b = bytes[position++];
+        result |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          return result;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,332 @@
+package com.onthegomap.planetiler.collection;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdException;
+import com.onthegomap.planetiler.util.ByteBufferUtil;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Block-compressed format for temporary feature chunks that can be written and read through either streams or
+ * memory-mapped files.
+ * <p>
+ * Records, either raw {@code key, length, value} or in {@link DeltaEncoding}, are grouped into blocks of up to
+ * {@link #BLOCK_SIZE} bytes that are compressed independently with fast zstd. Each block starts with an
+ * {@code int compressed length, int length} header, and blocks that do not shrink are stored as-is with both lengths
+ * equal. A record never spans two blocks, so readers only need to hold one decompressed block at a time. After the
+ * last block, an index of {@code long offset, long first key, int items} for each block is followed by the {@code int}
+ * number of blocks.
+ */
+final class CompressedBlocks {
+
+  /** Records are grouped into blocks of up to this many bytes before compressing. */
+  static final int BLOCK_SIZE = 1 << 18;
+  private static final int LEVEL = 1;
+  private static final int HEADER_BYTES = 2 * Integer.BYTES;
+  private static final int INDEX_ENTRY_BYTES = 2 * Long.BYTES + Integer.BYTES;
+
+  private CompressedBlocks() {}
+
+  /** Location and contents of a block, from the index at the end of a chunk. */
+  record BlockInfo(long offset, long firstKey, int items) {}
+
+  /** Returns the block index stored at the end of {@code chunk}. */
+  static List<BlockInfo> readIndex(ByteBuffer chunk) {
+    int end = chunk.limit();
+    int count = chunk.getInt(end - Integer.BYTES);
+    int offset = end - Integer.BYTES - count * INDEX_ENTRY_BYTES;
+    List<BlockInfo> result = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      result.add(new BlockInfo(chunk.getLong(offset), chunk.getLong(offset + Long.BYTES),
+        chunk.getInt(offset + 2 * Long.BYTES)));
+      offset += INDEX_ENTRY_BYTES;
+    }
+    return result;
+  }
+
+  /** Returns a stream of the decompressed records in {@code input}, which must be read sequentially. */
+  static InputStream newInputStream(InputStream input) {
+    return new SequentialBlockInputStream(input);
+  }
+
+  /**
+   * Returns a stream of the decompressed records in a memory-mapped chunk starting at the block at {@code position},
+   * using the block index to find each block. Closing the stream unmaps {@code chunk}.
+   */
+  static InputStream newInputStream(ByteBuffer chunk, long position) {
+    return new MappedBlockInputStream(chunk, position);
+  }
+
+  /** Returns a stream of all the decompressed records in a memory-mapped chunk. */
+  static InputStream newInputStream(ByteBuffer chunk) {
+    return newInputStream(chunk, 0);
+  }
+
+  private static void decompress(byte[] src, int srcLength, byte[] dst, int length) throws IOException {
+    if (srcLength == length) {
+      System.arraycopy(src, 0, dst, 0, length);
+    } else {
+      long result;
+      try {
+        result = Zstd.decompressByteArray(dst, 0, length, src, 0, srcLength);
+      } catch (ZstdException e) {
+        throw new IOException("Failed to decompress block", e);
+      }
+      if (result != length) {
+        throw new IOException("Failed to decompress block: got " + result + " bytes, expected " + length);
+      }
+    }
+  }
+
+  /**
+   * Groups records into compressed blocks and sends them to a {@link FeatureArena.RecordWriter}.
+   * <p>
+   * {@link #close()} writes the final block and the block index the first time it is called, but does not close the
+   * underlying output.
+   */
+  @NotThreadSafe
+  static class Writer implements Closeable {
+
+    private final FeatureArena.RecordWriter out;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final ByteBuffer blockView = ByteBuffer.wrap(block);
+    private final byte[] header = new byte[HEADER_BYTES];
+    private final ByteBuffer headerView = ByteBuffer.wrap(header);
+    private final List<BlockInfo> index = new ArrayList<>();
+    private byte[] compressed = new byte[0];
+    private int used = 0;
+    private int items = 0;
+    private long firstKey = 0;
+    private long offset = 0;
+    private boolean closed = false;
+
+    Writer(FeatureArena.RecordWriter out) {
+      this.out = out;
+    }
+
+    /** Adds {@code feature} to the current block. */
+    void write(SortableFeature feature) throws IOException {
+      byte[] value = feature.value();
+      int length = FeatureArena.HEADER_BYTES + value.length;
+      if (length > BLOCK_SIZE) {
+        byte[] record = ByteBuffer.allocate(length).putLong(feature.key()).putInt(value.length).put(value).array();
+        writeRecord(feature.key(), record, 0, length);
+        return;
+      }
+      startRecord(feature.key(), length);
+      blockView.putLong(used, feature.key());
+      blockView.putInt(used + Long.BYTES, value.length);
+      System.arraycopy(value, 0, block, used + FeatureArena.HEADER_BYTES, value.length);
+      used += length;
+      items++;
+    }
+
+    /** Adds a single already-encoded {@code key, length, value} record to the current block. */
+    void writeRaw(byte[] bytes, int offset, int length) throws IOException {
+      writeRecord(ByteBuffer.wrap(bytes, offset, Long.BYTES).getLong(), bytes, offset, length);
+    }
+
+    /** Adds a single record in any format for a feature with {@code key} to the current block. */
+    void writeRecord(long key, byte[] bytes, int offset, int length) throws IOException {
+      if (length > BLOCK_SIZE) {
+        // records larger than a block get a block to themselves
+        flushBlock();
+        writeBlock(bytes, offset, length, 1, key);
+      } else {
+        startRecord(key, length);
+        System.arraycopy(bytes, offset, block, used, length);
+        used += length;
+        items++;
+      }
+    }
+
+    private void startRecord(long key, int length) throws IOException {
+      if (used + length > BLOCK_SIZE) {
+        flushBlock();
+      }
+      if (items == 0) {
+        firstKey = key;
+      }
+    }
+
+    /** Ends the current block so the next record starts a new one, and returns the position of that block. */
+    long startBlock() throws IOException {
+      flushBlock();
+      return offset;
+    }
+
+    private void flushBlock() throws IOException {
+      if (items > 0) {
+        writeBlock(block, 0, used, items, firstKey);
+        used = 0;
+        items = 0;
+      }
+    }
+
+    private void writeBlock(byte[] bytes, int start, int length, int count, long key) throws IOException {
+      int bound = (int) Zstd.compressBound(length);
+      if (compressed.length < bound) {
+        compressed = new byte[bound];
+      }
+      long size;
+      try {
+        size = Zstd.compressByteArray(compressed, 0, compressed.length, bytes, start, length, LEVEL);
+      } catch (ZstdException e) {
+        throw new IOException("Failed to compress block", e);
+      }
+      boolean stored = size >= length;
+      int compressedLength = stored ? length : (int) size;
+      headerView.putInt(0, compressedLength).putInt(Integer.BYTES, length);
+      out.write(header, 0, HEADER_BYTES);
+      if (stored) {
+        out.write(bytes, start, length);
+      } else {
+        out.write(compressed, 0, compressedLength);
+      }
+      index.add(new BlockInfo(offset, key, count));
+      offset += HEADER_BYTES + compressedLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      flushBlock();
+      ByteBuffer footer = ByteBuffer.allocate(index.size() * INDEX_ENTRY_BYTES + Integer.BYTES);
+      for (var info : index) {
+        footer.putLong(info.offset).putLong(info.firstKey).putInt(info.items);
+      }
+      footer.putInt(index.size());
+      out.write(footer.array(), 0, footer.capacity());
+    }
+  }
+
+  /** Serves bytes from one decompressed block at a time. */
+  private abstract static class BlockInputStream extends InputStream {
+
+    byte[] compressed = new byte[0];
+    byte[] block = new byte[0];
+    private int position = 0;
+    private int limit = 0;
+
+    /** Decompresses the next block into {@link #block} and returns its length, or -1 if there are no more. */
+    abstract int readBlock() throws IOException;
+
+    void ensureCapacity(int compressedLength, int length) {
+      if (compressed.length < compressedLength) {
+        compressed = new byte[Math.max(compressedLength, BLOCK_SIZE)];
+      }
+      if (block.length < length) {
+        block = new byte[Math.max(length, BLOCK_SIZE)];
+      }
+    }
+
+    private boolean fill() throws IOException {
+      while (position >= limit) {
+        int length = readBlock();
+        if (length < 0) {
+          return false;
+        }
+        position = 0;
+        limit = length;
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? (block[position++] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      int n = Math.min(len, limit - position);
+      System.arraycopy(block, position, b, off, n);
+      position += n;
+      return n;
+    }
+  }
+
+  /**
+   * Reads blocks in order from a stream. Callers must stop after the last record since this stream does not look
+   * ahead to the index to know where the blocks end.
+   */
+  private static class SequentialBlockInputStream extends BlockInputStream {
+
+    private final DataInputStream input;
+
+    SequentialBlockInputStream(InputStream input) {
+      this.input = new DataInputStream(input);
+    }
+
+    @Override
+    int readBlock() throws IOException {
+      int compressedLength;
+      try {
+        compressedLength = input.readInt();
+      } catch (EOFException e) {
+        return -1;
+      }
+      int length = input.readInt();
+      ensureCapacity(compressedLength, length);
+      input.readFully(compressed, 0, compressedLength);
+      decompress(compressed, compressedLength, block, length);
+      return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+      input.close();
+    }
+  }
+
+  /** Reads blocks from a memory-mapped chunk using its block index. */
+  private static class MappedBlockInputStream extends BlockInputStream {
+
+    private final ByteBuffer chunk;
+    private final List<BlockInfo> index;
+    private int next = 0;
+
+    MappedBlockInputStream(ByteBuffer chunk, long position) {
+      this.chunk = chunk;
+      this.index = readIndex(chunk);
+      while (next < index.size() && index.get(next).offset < position) {
+        next++;
+      }
+    }
+
+    @Override
+    int readBlock() throws IOException {
+      if (next >= index.size()) {
+        return -1;
+      }
+      int offset = (int) index.get(next++).offset;
+      int compressedLength = chunk.getInt(offset);
+      int length = chunk.getInt(offset + Integer.BYTES);
+      ensureCapacity(compressedLength, length);
+      chunk.get(offset + HEADER_BYTES, compressed, 0, compressedLength);
+      decompress(compressed, compressedLength, block, length);
+      return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+      ByteBufferUtil.free(chunk);
+    }
+  }
+}
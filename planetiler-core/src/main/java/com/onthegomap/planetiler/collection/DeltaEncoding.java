@@ -0,0 +1,169 @@
+package com.onthegomap.planetiler.collection;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Compact encoding for chunks of features that are sorted by key.
+ * <p>
+ * Consecutive features in a sorted chunk have keys that share most of their high bits, and values that often start
+ * with the same bytes as the previous value, so each record is stored as:
+ * <ul>
+ * <li>varint of the key minus the previous key</li>
+ * <li>varint of the number of leading bytes the value shares with the previous value</li>
+ * <li>varint of the number of remaining bytes, followed by those bytes</li>
+ * </ul>
+ * A value identical to the previous one takes up a single byte after the shared length. Records must be decoded in
+ * order starting from the beginning of the chunk, or from a point where the encoder was {@link Encoder#reset()}.
+ */
+final class DeltaEncoding {
+
+  /** The most bytes an encoded record can take up beyond the raw {@code key, length, value} record. */
+  static final int MAX_OVERHEAD_BYTES = 10 + 5 + 5 - FeatureArena.HEADER_BYTES;
+
+  private DeltaEncoding() {}
+
+  /** Encodes features in sorted order. */
+  @NotThreadSafe
+  static class Encoder {
+
+    private final ByteBuffer keyView = ByteBuffer.allocate(Long.BYTES);
+    private long prevKey = 0;
+    private byte[] prev = new byte[256];
+    private int prevLength = 0;
+    private byte[] out = new byte[256];
+    private int position = 0;
+
+    /**
+     * Encodes a raw {@code key, length, value} record into {@link #buffer()} and returns the number of bytes written.
+     */
+    int encodeRaw(byte[] bytes, int offset, int length) {
+      keyView.put(0, bytes, offset, Long.BYTES);
+      return encode(keyView.getLong(0), bytes, offset + FeatureArena.HEADER_BYTES,
+        length - FeatureArena.HEADER_BYTES);
+    }
+
+    /** Encodes {@code feature} into {@link #buffer()} and returns the number of bytes written. */
+    int encode(SortableFeature feature) {
+      return encode(feature.key(), feature.value(), 0, feature.value().length);
+    }
+
+    /** Encodes the next record as if it were the first so that a new {@link Decoder} can start reading from it. */
+    void reset() {
+      prevKey = 0;
+      prevLength = 0;
+    }
+
+    /** Returns the key of the last feature encoded. */
+    long lastKey() {
+      return prevKey;
+    }
+
+    /** Returns the buffer that holds the last encoded record. */
+    byte[] buffer() {
+      return out;
+    }
+
+    private int encode(long key, byte[] value, int offset, int length) {
+      if (out.length < length + FeatureArena.HEADER_BYTES + MAX_OVERHEAD_BYTES) {
+        out = new byte[Math.max(out.length * 2, length + FeatureArena.HEADER_BYTES + MAX_OVERHEAD_BYTES)];
+      }
+      int shared = Arrays.mismatch(prev, 0, prevLength, value, offset, offset + length);
+      if (shared < 0) {
+        shared = length;
+      }
+      position = 0;
+      putVarLong(key - prevKey);
+      putVarLong(shared);
+      putVarLong(length - shared);
+      System.arraycopy(value, offset + shared, out, position, length - shared);
+      position += length - shared;
+
+      prevKey = key;
+      if (prev.length < length) {
+        prev = new byte[Math.max(prev.length * 2, length)];
+      }
+      System.arraycopy(value, offset, prev, 0, length);
+      prevLength = length;
+      return position;
+    }
+
+    private void putVarLong(long value) {
+      while ((value & ~0x7FL) != 0) {
+        out[position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out[position++] = (byte) value;
+    }
+  }
+
+  /** Decodes features in the order they were encoded. */
+  @NotThreadSafe
+  static class Decoder {
+
+    private long prevKey = 0;
+    private byte[] prev = new byte[0];
+
+    /** Reads the next record as the first one, to match where the encoder was {@link Encoder#reset()}. */
+    void reset() {
+      prevKey = 0;
+      prev = new byte[0];
+    }
+
+    /** Reads the next feature from {@code input}. */
+    SortableFeature read(DataInput input) throws IOException {
+      long key = prevKey + readVarLong(input);
+      int shared = (int) readVarLong(input);
+      int suffix = (int) readVarLong(input);
+      byte[] value = new byte[shared + suffix];
+      System.arraycopy(prev, 0, value, 0, shared);
+      input.readFully(value, shared, suffix);
+      return next(key, value);
+    }
+
+    /** Reads the next feature from the current position of {@code input}. */
+    SortableFeature read(ByteBuffer input) {
+      long key = prevKey + readVarLong(input);
+      int shared = (int) readVarLong(input);
+      int suffix = (int) readVarLong(input);
+      byte[] value = new byte[shared + suffix];
+      System.arraycopy(prev, 0, value, 0, shared);
+      input.get(value, shared, suffix);
+      return next(key, value);
+    }
+
+    private SortableFeature next(long key, byte[] value) {
+      prevKey = key;
+      // values are never modified after they are read, so the next record can share this one
+      prev = value;
+      return new SortableFeature(key, value);
+    }
+
+    private static long readVarLong(DataInput input) throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = input.readByte();
+        result |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return result;
+        }
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    private static long readVarLong(ByteBuffer input) {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = input.get();
+        result |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return result;
+        }
+      }
+      throw new IllegalStateException("Malformed varint");
+    }
+  }
+}
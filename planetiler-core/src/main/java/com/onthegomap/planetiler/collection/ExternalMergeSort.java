@@ -2,6 +2,7 @@ package com.onthegomap.planetiler.collection;
 
 import static com.onthegomap.planetiler.util.Exceptions.throwFatalException;
 
+import com.carrotsearch.hppc.LongArrayList;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.stats.ProcessInfo;
 import com.onthegomap.planetiler.stats.ProgressLoggers;
@@ -11,6 +12,7 @@ import com.onthegomap.planetiler.util.BinPack;
 import com.onthegomap.planetiler.util.ByteBufferUtil;
 import com.onthegomap.planetiler.util.CloseableConsumer;
 import com.onthegomap.planetiler.util.FileUtils;
+import com.onthegomap.planetiler.worker.Worker;
 import com.onthegomap.planetiler.worker.WorkerPipeline;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -19,7 +21,6 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
@@ -30,22 +31,24 @@ import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xerial.snappy.SnappyInputStream;
-import org.xerial.snappy.SnappyOutputStream;
 
 /**
  * A utility that writes {@link SortableFeature SortableFeatures} to disk and uses merge sort to efficiently sort much
@@ -55,6 +58,18 @@ import org.xerial.snappy.SnappyOutputStream;
  * chunk. The sort process sorts the chunks, limiting the number of parallel threads by CPU cores and available RAM.
  * Reads do a k-way merge of the sorted chunks using a priority queue of minimum values from each.
  * <p>
+ * With {@code sortOnSpill} each writer thread instead buffers features in memory and sorts them before writing each
+ * chunk, so every chunk is already sorted when it lands on disk. Then the sort process only needs to combine small
+ * chunks left over when writers are closed, instead of reading and rewriting every chunk.
+ * <p>
+ * Chunks are written in {@link DeltaEncoding} once they are sorted. With {@code compress} chunks are also stored in
+ * {@link CompressedBlocks} which works with both buffered and memory-mapped IO.
+ * <p>
+ * While writing sorted chunks, the sorter samples a key every {@link #SAMPLE_INTERVAL} features along with where to
+ * start reading from to get to it, and saves them next to the chunk so they survive restoring from a checkpoint.
+ * {@link #partitionedIterator(Stats, int)} uses those samples to split the key space into ranges that can be merged
+ * independently in parallel, and {@link #keyRange(long, long)} uses them to skip straight to the first key in a range.
+ * <p>
  * Only supports single-threaded writes and reads.
  */
 @NotThreadSafe
@@ -62,6 +77,10 @@ class ExternalMergeSort implements FeatureSort {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ExternalMergeSort.class);
   private static final long MAX_CHUNK_SIZE = 2_000_000_000; // 2GB
+  /** Number of features between keys sampled from sorted chunks. */
+  static final int SAMPLE_INTERVAL = 4_096;
+  // aim for ranges small enough that a few per merge thread fit in memory at once
+  private static final int FEATURES_PER_RANGE = 50_000;
   private final Path dir;
   private final Stats stats;
   private final int chunkSizeLimit;
@@ -76,6 +95,8 @@ class ExternalMergeSort implements FeatureSort {
   private final boolean mmapIO;
   private final boolean parallelSort;
   private final boolean madvise;
+  private final boolean sortOnSpill;
+  private final int spillSizeLimit;
   private final AtomicBoolean madviseFailed = new AtomicBoolean(false);
   private volatile boolean sorted = false;
 
@@ -83,10 +104,7 @@ class ExternalMergeSort implements FeatureSort {
     this(
       tempDir,
       config.threads(),
-      (int) Math.min(
-        MAX_CHUNK_SIZE,
-        ProcessInfo.getMaxMemoryBytes() / 3
-      ),
+      defaultChunkSizeLimit(),
       config.compressTempStorage(),
       config.mmapTempStorage(),
       true,
@@ -98,16 +116,21 @@ class ExternalMergeSort implements FeatureSort {
 
   ExternalMergeSort(Path dir, int workers, int chunkSizeLimit, boolean compress, boolean mmap, boolean parallelSort,
     boolean madvise, PlanetilerConfig config, Stats stats) {
+    this(dir, workers, chunkSizeLimit, compress, mmap, parallelSort, madvise, config, stats, null);
+  }
+
+  /**
+   * Creates a sorter that picks up chunks recorded in {@code restore} by a previous run instead of starting from an
+   * empty directory, or starts fresh if {@code restore} is null.
+   */
+  ExternalMergeSort(Path dir, int workers, int chunkSizeLimit, boolean compress, boolean mmap, boolean parallelSort,
+    boolean madvise, PlanetilerConfig config, Stats stats, FeatureGroup.Checkpoint restore) {
     this.config = config;
     this.madvise = madvise;
     this.dir = dir;
     this.stats = stats;
     this.parallelSort = parallelSort;
     this.chunkSizeLimit = chunkSizeLimit;
-    if (compress && mmap) {
-      LOGGER.warn("--compress-temp option not supported with --mmap-temp, falling back to --mmap-temp=false");
-      mmap = false;
-    }
     this.compress = compress;
     this.mmapIO = mmap;
     long memLimit = ProcessInfo.getMaxMemoryBytes() / 3;
@@ -118,13 +141,73 @@ class ExternalMergeSort implements FeatureSort {
     this.workers = Math.min(workers, maxWorkersBasedOnMemory);
     this.readerLimit = Math.max(1, config.sortMaxReaders());
     this.writerLimit = Math.max(1, config.sortMaxWriters());
-    LOGGER.info("Using merge sort feature map, chunk size={}mb max workers={}", chunkSizeLimit / 1_000_000, workers);
-    try {
-      FileUtils.deleteDirectory(dir);
-      Files.createDirectories(dir);
+    this.sortOnSpill = config.sortOnSpill();
+    // every writer thread holds a buffer in memory at once, so split the chunk size between them
+    this.spillSizeLimit = chunkSizeLimit / Math.max(1, config.featureWriteThreads());
+    LOGGER.info("Using merge sort feature map, chunk size={}mb max workers={}{}", chunkSizeLimit / 1_000_000, workers,
+      sortOnSpill ? " sort on spill=" + spillSizeLimit / 1_000_000 + "mb" : "");
+    if (restore != null) {
+      restoreChunks(restore);
+    } else {
+      try {
+        FileUtils.deleteDirectory(dir);
+        Files.createDirectories(dir);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private void restoreChunks(FeatureGroup.Checkpoint restore) {
+    int maxChunkNum = 0;
+    for (var saved : restore.chunks()) {
+      Path path = dir.resolve(saved.name());
+      if (!Files.exists(path)) {
+        throw new IllegalStateException("Missing chunk from checkpoint: " + path);
+      }
+      var chunk = new Chunk(path, saved.items(), saved.bytesInMemory(), saved.sorted());
+      if (chunk.sorted && Files.exists(samplesPath(path))) {
+        chunk.loadSamples();
+      }
+      chunks.add(chunk);
+      maxChunkNum = Math.max(maxChunkNum, Integer.parseInt(saved.name().replace("chunk", "")));
+    }
+    // remove partial chunks written after the checkpoint was taken
+    var expected = restore.chunks().stream()
+      .flatMap(chunk -> Stream.of(chunk.name(), samplesPath(Path.of(chunk.name())).toString()))
+      .collect(Collectors.toSet());
+    try (var files = Files.list(dir)) {
+      files.filter(file -> !expected.contains(file.getFileName().toString())).forEach(FileUtils::delete);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
+    chunkNum.set(maxChunkNum);
+    features.set(restore.features());
+    sorted = restore.sorted();
+    LOGGER.info("Restored {} {}chunks with {} features from checkpoint", chunks.size(), sorted ? "sorted " : "",
+      features.get());
+  }
+
+  /**
+   * Returns the chunks written so far so that a later run can restore them, must only be called when no writers are
+   * open.
+   */
+  List<FeatureGroup.Checkpoint.Chunk> checkpointChunks() {
+    return chunks.stream()
+      .map(chunk -> new FeatureGroup.Checkpoint.Chunk(chunk.path.getFileName().toString(), chunk.itemCount,
+        chunk.bytesInMemory, chunk.sorted))
+      .toList();
+  }
+
+  boolean isSorted() {
+    return sorted;
+  }
+
+  static int defaultChunkSizeLimit() {
+    return (int) Math.min(
+      MAX_CHUNK_SIZE,
+      ProcessInfo.getMaxMemoryBytes() / 3
+    );
   }
 
   private static <T> T time(AtomicLong total, Supplier<T> func) {
@@ -138,7 +221,7 @@ class ExternalMergeSort implements FeatureSort {
 
   @Override
   public CloseableConsumer<SortableFeature> writerForThread() {
-    return new ThreadLocalWriter();
+    return sortOnSpill ? new SortingThreadLocalWriter() : new ThreadLocalWriter();
   }
 
   @Override
@@ -153,7 +236,21 @@ class ExternalMergeSort implements FeatureSort {
 
   @Override
   public void sort() {
-    assert !sorted;
+    sort(() -> {});
+  }
+
+  /**
+   * Sorts chunks like {@link #sort()} and runs {@code onChunksReplaced} each time a group of chunks has been merged
+   * into a new sorted chunk.
+   * <p>
+   * The chunk files that were merged stay on disk until {@code onChunksReplaced} returns, so a checkpoint it takes
+   * from {@link #checkpointChunks()} replaces the previous one before any file that checkpoint refers to is deleted.
+   */
+  void sort(Runnable onChunksReplaced) {
+    if (sorted) {
+      // already sorted by a previous run that this one resumed from
+      return;
+    }
     for (var chunk : chunks) {
       try {
         chunk.close();
@@ -161,48 +258,52 @@ class ExternalMergeSort implements FeatureSort {
         // ok
       }
     }
-    var timer = stats.startStage("sort");
-    Semaphore readSemaphore = new Semaphore(readerLimit);
-    Semaphore writeSemaphore = new Semaphore(writerLimit);
-    AtomicLong reading = new AtomicLong(0);
-    AtomicLong writing = new AtomicLong(0);
-    AtomicLong sorting = new AtomicLong(0);
-    AtomicLong doneCounter = new AtomicLong(0);
-
     // we may end up with many small chunks because each thread-local writer starts a new one
     // so group together smaller chunks that can be sorted together in-memory to minimize the
     // number of chunks that the reader needs to deal with
+    // chunks that writers sorted when they filled up are already as big as they can get, so leave them alone
     List<List<ExternalMergeSort.Chunk>> groups = BinPack.pack(
-      chunks,
+      chunks.stream().filter(chunk -> !chunk.sorted || chunk.bytesInMemory < spillSizeLimit / 2).toList(),
       chunkSizeLimit,
       chunk -> chunk.bytesInMemory
-    );
+    ).stream()
+      // a single chunk that is already sorted does not need to be rewritten
+      .filter(group -> group.size() > 1 || !group.getFirst().sorted)
+      .toList();
+
+    LOGGER.info("Grouped {} chunks into {} to sort", chunks.size(), groups.size());
+    if (groups.isEmpty()) {
+      // writers already sorted every chunk, so skip the sort stage
+      sorted = true;
+      return;
+    }
 
-    LOGGER.info("Grouped {} chunks into {}", chunks.size(), groups.size());
+    var timer = stats.startStage("sort");
+    Semaphore readSemaphore = new Semaphore(readerLimit);
+    Semaphore writeSemaphore = new Semaphore(writerLimit);
+    AtomicLong reading = new AtomicLong(0);
+    AtomicLong writing = new AtomicLong(0);
+    AtomicLong sorting = new AtomicLong(0);
+    AtomicLong doneCounter = new AtomicLong(0);
 
     var pipeline = WorkerPipeline.start("sort", stats)
       .readFromTiny("item_queue", groups)
       .sinkToConsumer("worker", workers, group -> {
         try {
           readSemaphore.acquire();
-          var chunk = group.getFirst();
-          var others = group.stream().skip(1).toList();
-          var toSort = time(reading, () -> {
-            // merge all chunks into first one, and remove the others
-            var result = chunk.readAllAndMergeIn(others);
-            for (var other : others) {
-              other.remove();
-            }
-            return result;
-          });
+          var toSort = time(reading, () -> readGroup(group));
           readSemaphore.release();
 
           time(sorting, toSort::sort);
 
           writeSemaphore.acquire();
-          time(writing, toSort::flush);
+          var merged = time(writing, toSort::flush);
           writeSemaphore.release();
 
+          replaceChunks(group, merged, onChunksReplaced);
+          for (var chunk : group) {
+            FileUtils.delete(chunk.path, samplesPath(chunk.path));
+          }
           doneCounter.incrementAndGet();
         } catch (InterruptedException e) {
           Thread.currentThread().interrupt();
@@ -228,6 +329,42 @@ class ExternalMergeSort implements FeatureSort {
       Duration.ofNanos(sorting.get()).toSeconds());
   }
 
+  /** Reads every feature from {@code group} into memory so they can be sorted and written to a new chunk. */
+  private Chunk.SortableChunk readGroup(List<Chunk> group) {
+    int items = 0;
+    int bytes = 0;
+    for (var chunk : group) {
+      if (Integer.MAX_VALUE - items < chunk.itemCount) {
+        throw new IllegalStateException("Too many items in merged chunk: " + group.stream().map(c -> c.itemCount)
+          .toList());
+      }
+      if (Integer.MAX_VALUE - bytes < chunk.bytesInMemory) {
+        throw new IllegalStateException("Too big merged chunk: " + group.stream().map(c -> c.bytesInMemory).toList());
+      }
+      items += chunk.itemCount;
+      bytes += chunk.bytesInMemory;
+    }
+    Path path = dir.resolve("chunk" + chunkNum.incrementAndGet());
+    if (!config.resume()) {
+      FileUtils.deleteOnExit(path);
+    }
+    var result = new Chunk(path, items, bytes, true).new SortableChunk();
+    for (var chunk : group) {
+      result.readAll(chunk);
+    }
+    return result;
+  }
+
+  /**
+   * Swaps the chunks in {@code group} for {@code merged} then runs {@code onChunksReplaced}, synchronized so that
+   * checkpoints get saved in the same order that chunks were replaced.
+   */
+  private synchronized void replaceChunks(List<Chunk> group, Chunk merged, Runnable onChunksReplaced) {
+    chunks.set(chunks.indexOf(group.getFirst()), merged);
+    chunks.removeAll(group.subList(1, group.size()));
+    onChunksReplaced.run();
+  }
+
   @Override
   public long numFeaturesWritten() {
     return features.get();
@@ -256,11 +393,178 @@ class ExternalMergeSort implements FeatureSort {
     return LongMerger.mergeIterators(iterators, SortableFeature.COMPARE_BYTES);
   }
 
+  private boolean allChunksSampled() {
+    return chunks.stream().noneMatch(chunk -> chunk.itemCount > 0 && chunk.samples == null);
+  }
+
+  /**
+   * Merges features from {@code fromKey} inclusive to {@code toKey} exclusive, starting each chunk from the last key
+   * sampled before {@code fromKey} instead of from the beginning.
+   * <p>
+   * Falls back to reading from the beginning of every chunk if some chunks were not sampled.
+   */
+  @Override
+  public Iterator<SortableFeature> keyRange(long fromKey, long toKey) {
+    assert sorted;
+    if (!allChunksSampled()) {
+      LOGGER.info("Some chunks were not sampled, reading from the start to get to key {}", fromKey);
+      return FeatureSort.super.keyRange(fromKey, toKey);
+    }
+    return rangeIterator(fromKey, toKey, toKey == Long.MAX_VALUE);
+  }
+
+  /** Returns keys that split features into {@code parts} ranges using keys sampled while sorting. */
+  @Override
+  public long[] splitKeys(int parts) {
+    assert sorted;
+    if (!allChunksSampled()) {
+      return FeatureSort.super.splitKeys(parts);
+    }
+    long[] sampledKeys = sampledKeys();
+    long[] result = new long[parts - 1];
+    for (int part = 1; part < parts; part++) {
+      int index = (int) ((long) sampledKeys.length * part / parts);
+      result[part - 1] = index < sampledKeys.length ? sampledKeys[index] : Long.MAX_VALUE;
+    }
+    return result;
+  }
+
+  /**
+   * Splits features into key ranges using keys sampled while sorting, then merges each range independently using
+   * {@code threads} threads and returns the ranges in order.
+   * <p>
+   * Falls back to {@link #parallelIterator(Stats, int)} if some chunks were not sampled.
+   */
+  @Override
+  public ParallelIterator partitionedIterator(Stats stats, int threads) {
+    assert sorted;
+    if (!allChunksSampled()) {
+      LOGGER.info("Some chunks were not sampled, falling back to a single merge thread");
+      return parallelIterator(stats, threads);
+    }
+    long[] splitters = splitters(FEATURES_PER_RANGE);
+    int ranges = splitters.length + 1;
+    LOGGER.info("Merging {} ranges of features with {} threads", ranges, threads);
+    AtomicReferenceArray<CompletableFuture<List<SortableFeature>>> results = new AtomicReferenceArray<>(ranges);
+    for (int i = 0; i < ranges; i++) {
+      results.set(i, new CompletableFuture<>());
+    }
+    // limit how many ranges are held in memory waiting to be consumed, a permit is taken before claiming a range so
+    // the next one the consumer needs always has a permit
+    Semaphore inFlight = new Semaphore(threads * 2);
+    AtomicInteger nextRange = new AtomicInteger(0);
+    Worker worker = new Worker("merge", stats, threads, () -> {
+      while (true) {
+        inFlight.acquire();
+        int range = nextRange.getAndIncrement();
+        if (range >= ranges) {
+          inFlight.release();
+          return;
+        }
+        var result = results.get(range);
+        try {
+          List<SortableFeature> features = new ArrayList<>();
+          rangeIterator(
+            range == 0 ? Long.MIN_VALUE : splitters[range - 1],
+            range == ranges - 1 ? Long.MAX_VALUE : splitters[range],
+            range == ranges - 1
+          ).forEachRemaining(features::add);
+          result.complete(features);
+        } catch (RuntimeException | Error e) {
+          result.completeExceptionally(e);
+          throw e;
+        }
+      }
+    });
+    Iterator<SortableFeature> iterator = new Iterator<>() {
+      private int range = 0;
+      private Iterator<SortableFeature> current = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!current.hasNext()) {
+          if (range >= ranges) {
+            return false;
+          }
+          try {
+            current = results.get(range).get().iterator();
+            // only drop the future once it is done, the worker that claims this range may not have looked it up yet
+            results.set(range++, null);
+          } catch (InterruptedException e) {
+            return throwFatalException(e);
+          } catch (ExecutionException e) {
+            return throwFatalException(e.getCause());
+          }
+          inFlight.release();
+        }
+        return true;
+      }
+
+      @Override
+      public SortableFeature next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return current.next();
+      }
+    };
+    return new ParallelIterator(worker, iterator);
+  }
+
+  /** Returns the keys sampled from every chunk in ascending order. */
+  private long[] sampledKeys() {
+    LongArrayList keys = new LongArrayList();
+    for (var chunk : chunks) {
+      if (chunk.samples != null) {
+        for (var sample : chunk.samples) {
+          keys.add(sample.key);
+        }
+      }
+    }
+    long[] sortedKeys = keys.toArray();
+    Arrays.sort(sortedKeys);
+    return sortedKeys;
+  }
+
+  /** Returns ascending keys that split features into ranges with about {@code featuresPerRange} features each. */
+  private long[] splitters(int featuresPerRange) {
+    long[] sortedKeys = sampledKeys();
+    // each sample stands for up to SAMPLE_INTERVAL features that follow it
+    int step = Math.max(1, featuresPerRange / SAMPLE_INTERVAL);
+    LongArrayList result = new LongArrayList();
+    for (int i = step; i < sortedKeys.length; i += step) {
+      long key = sortedKeys[i];
+      if (result.isEmpty() || key > result.get(result.size() - 1)) {
+        result.add(key);
+      }
+    }
+    return result.toArray();
+  }
+
+  /**
+   * Returns a merged iterator over features from all chunks with keys from {@code lo} inclusive to {@code hi}
+   * exclusive, or with no upper limit if {@code last}.
+   */
+  private Iterator<SortableFeature> rangeIterator(long lo, long hi, boolean last) {
+    List<Iterator<SortableFeature>> iterators = new ArrayList<>();
+    for (var chunk : chunks) {
+      if (chunk.itemCount > 0 && chunk.maxKey >= lo && (last || chunk.samples.getFirst().key < hi)) {
+        iterators.add(new RangeReader(chunk.newReader(chunk.seekTo(lo)), lo, hi, last));
+      }
+    }
+    return LongMerger.mergeIterators(iterators, SortableFeature.COMPARE_BYTES);
+  }
+
   @Override
   public int chunksToRead() {
     return chunks.size();
   }
 
+  /** Returns where keys sampled from the chunk at {@code chunk} get saved. */
+  private static Path samplesPath(Path chunk) {
+    return chunk.resolveSibling(chunk.getFileName() + ".samples");
+  }
+
   public int chunks() {
     return chunks.size();
   }
@@ -278,6 +582,21 @@ class ExternalMergeSort implements FeatureSort {
   private interface Writer extends Closeable {
 
     void write(SortableFeature feature) throws IOException;
+
+    /** Writes an already-encoded {@code key, length, value} record. */
+    void writeRaw(byte[] bytes, int offset, int length) throws IOException;
+  }
+
+  /** A {@link Writer} that stores records in the chunk file, which {@link WriterDelta} writes through. */
+  private interface Sink extends Writer {
+
+    /** Writes a record for a feature with {@code key} that has already been encoded in some other format. */
+    default void writeEncoded(long key, byte[] bytes, int offset, int length) throws IOException {
+      writeRaw(bytes, offset, length);
+    }
+
+    /** Returns the position that a reader can start from to read the next record written. */
+    long restart() throws IOException;
   }
 
   private interface Reader extends Closeable, Iterator<SortableFeature> {
@@ -286,31 +605,81 @@ class ExternalMergeSort implements FeatureSort {
     void close();
   }
 
-  /** Read all features from a chunk file using a {@link BufferedInputStream}. */
+  /** A key sampled from a sorted chunk, the position to start reading from to get to it, and features before it. */
+  private record Sample(long key, long position, int items) {}
+
+  /** Skips features from {@code reader} before {@code lo} and stops at {@code hi} unless {@code last}. */
+  private static class RangeReader implements Iterator<SortableFeature> {
+
+    private final Reader reader;
+    private final long lo;
+    private final long hi;
+    private final boolean last;
+    private SortableFeature next;
+
+    RangeReader(Reader reader, long lo, long hi, boolean last) {
+      this.reader = reader;
+      this.lo = lo;
+      this.hi = hi;
+      this.last = last;
+      next = advance();
+    }
+
+    private SortableFeature advance() {
+      while (reader.hasNext()) {
+        SortableFeature feature = reader.next();
+        if (!last && feature.key() >= hi) {
+          // readers close themselves after the last feature, and unmapping a chunk twice would crash
+          if (reader.hasNext()) {
+            reader.close();
+          }
+          return null;
+        } else if (feature.key() >= lo) {
+          return feature;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public SortableFeature next() {
+      SortableFeature result = next;
+      if (result == null) {
+        throw new NoSuchElementException();
+      }
+      next = advance();
+      return result;
+    }
+  }
+
+  /** Read all features from a chunk file using a {@link BufferedInputStream} or {@link CompressedBlocks}. */
   private static class ReaderBuffered extends BaseReader {
 
     private final int count;
     private final DataInputStream input;
+    private final DeltaEncoding.Decoder decoder;
     private int read = 0;
 
-    ReaderBuffered(Path path, int count, boolean compress) {
+    ReaderBuffered(InputStream inputStream, int count, boolean delta) {
       this.count = count;
-      try {
-        InputStream inputStream = new BufferedInputStream(Files.newInputStream(path));
-        if (compress) {
-          inputStream = new SnappyInputStream(inputStream);
-        }
-        input = new DataInputStream(inputStream);
-        next = readNextFeature();
-      } catch (IOException e) {
-        throw new UncheckedIOException(e);
-      }
+      this.decoder = delta ? new DeltaEncoding.Decoder() : null;
+      input = new DataInputStream(inputStream);
+      next = readNextFeature();
     }
 
     @Override
     SortableFeature readNextFeature() {
       if (read < count) {
         try {
+          if (decoder != null) {
+            restartDecoder(decoder, read++);
+            return decoder.read(input);
+          }
           long nextSort = input.readLong();
           int length = input.readInt();
           byte[] bytes = input.readNBytes(length);
@@ -335,17 +704,13 @@ class ExternalMergeSort implements FeatureSort {
   }
 
   /** Write features to the chunk file using a {@link BufferedOutputStream}. */
-  private static class WriterBuffered implements Writer {
+  private static class WriterBuffered implements Sink {
 
     private final DataOutputStream out;
 
-    WriterBuffered(Path path, boolean compress) {
+    WriterBuffered(Path path) {
       try {
-        OutputStream rawOutputStream = new BufferedOutputStream(Files.newOutputStream(path));
-        if (compress) {
-          rawOutputStream = new SnappyOutputStream(rawOutputStream);
-        }
-        this.out = new DataOutputStream(rawOutputStream);
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
       } catch (IOException e) {
         throw new UncheckedIOException(e);
       }
@@ -362,6 +727,111 @@ class ExternalMergeSort implements FeatureSort {
       out.writeInt(feature.value().length);
       out.write(feature.value());
     }
+
+    @Override
+    public void writeRaw(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+    }
+
+    @Override
+    public long restart() {
+      return out.size();
+    }
+  }
+
+  /** Compress features into {@link CompressedBlocks} before sending them to another writer. */
+  private static class WriterCompressed implements Sink {
+
+    private final Writer out;
+    private final CompressedBlocks.Writer blocks;
+
+    WriterCompressed(Writer out) {
+      this.out = out;
+      this.blocks = new CompressedBlocks.Writer(out::writeRaw);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try (out) {
+        blocks.close();
+      }
+    }
+
+    @Override
+    public void write(SortableFeature feature) throws IOException {
+      blocks.write(feature);
+    }
+
+    @Override
+    public void writeRaw(byte[] bytes, int offset, int length) throws IOException {
+      blocks.writeRaw(bytes, offset, length);
+    }
+
+    @Override
+    public void writeEncoded(long key, byte[] bytes, int offset, int length) throws IOException {
+      blocks.writeRecord(key, bytes, offset, length);
+    }
+
+    @Override
+    public long restart() throws IOException {
+      // readers can only start from the beginning of a block
+      return blocks.startBlock();
+    }
+  }
+
+  /**
+   * Write features in {@link DeltaEncoding} to another writer and sample keys for {@code chunk}, must receive features
+   * in sorted order.
+   */
+  private static class WriterDelta implements Writer {
+
+    private final Sink out;
+    private final Chunk chunk;
+    private final DeltaEncoding.Encoder encoder = new DeltaEncoding.Encoder();
+    private final List<Sample> samples = new ArrayList<>();
+    private int items = 0;
+    private long restartPosition = 0;
+
+    WriterDelta(Sink out, Chunk chunk) {
+      this.out = out;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+      chunk.samples = samples;
+      chunk.maxKey = encoder.lastKey();
+      chunk.saveSamples();
+    }
+
+    private void beforeRecord() throws IOException {
+      if (items % SAMPLE_INTERVAL == 0) {
+        restartPosition = out.restart();
+        encoder.reset();
+      }
+    }
+
+    private void afterRecord(int length) throws IOException {
+      long key = encoder.lastKey();
+      if (items % SAMPLE_INTERVAL == 0) {
+        samples.add(new Sample(key, restartPosition, items));
+      }
+      out.writeEncoded(key, encoder.buffer(), 0, length);
+      items++;
+    }
+
+    @Override
+    public void write(SortableFeature feature) throws IOException {
+      beforeRecord();
+      afterRecord(encoder.encode(feature));
+    }
+
+    @Override
+    public void writeRaw(byte[] bytes, int offset, int length) throws IOException {
+      beforeRecord();
+      afterRecord(encoder.encodeRaw(bytes, offset, length));
+    }
   }
 
   /** Common functionality between {@link ReaderMmap} and {@link ReaderBuffered}. */
@@ -387,6 +857,16 @@ class ExternalMergeSort implements FeatureSort {
     }
 
     abstract SortableFeature readNextFeature();
+
+    /**
+     * {@link WriterDelta} restarts the encoding every {@link #SAMPLE_INTERVAL} features, and readers always start at one
+     * of those samples, so the decoder needs to restart at the same places.
+     */
+    static void restartDecoder(DeltaEncoding.Decoder decoder, int read) {
+      if (read % SAMPLE_INTERVAL == 0) {
+        decoder.reset();
+      }
+    }
   }
 
   /** Writer that a single thread can use to write features independent of writers used in other threads. */
@@ -419,7 +899,9 @@ class ExternalMergeSort implements FeatureSort {
 
     private void newChunk() throws IOException {
       Path chunkPath = dir.resolve("chunk" + chunkNum.incrementAndGet());
-      FileUtils.deleteOnExit(chunkPath);
+      if (!config.resume()) {
+        FileUtils.deleteOnExit(chunkPath);
+      }
       if (currentChunk != null) {
         currentChunk.close();
       }
@@ -434,8 +916,59 @@ class ExternalMergeSort implements FeatureSort {
     }
   }
 
+  /**
+   * Writer that a single thread can use to buffer features in memory, then sort them and write to a new chunk when the
+   * buffer fills up.
+   */
+  @NotThreadSafe
+  private class SortingThreadLocalWriter implements CloseableConsumer<SortableFeature> {
+
+    private FeatureArena arena = new FeatureArena(0, 0);
+    private int bytesInMemory = 0;
+
+    @Override
+    public void accept(SortableFeature item) {
+      assert !sorted;
+      features.incrementAndGet();
+      arena.add(item);
+      bytesInMemory += FeatureArena.bytesInMemory(item.value().length);
+      if (bytesInMemory > spillSizeLimit) {
+        spill();
+      }
+    }
+
+    private void spill() {
+      if (arena.size() == 0) {
+        return;
+      }
+      Path chunkPath = dir.resolve("chunk" + chunkNum.incrementAndGet());
+      if (!config.resume()) {
+        FileUtils.deleteOnExit(chunkPath);
+      }
+      arena.sort(parallelSort);
+      var chunk = new Chunk(chunkPath, arena.size(), bytesInMemory, true);
+      try (Writer out = chunk.newWriter(chunkPath, true)) {
+        arena.writeTo(out::writeRaw);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      // only publish the chunk once it has been fully written
+      chunks.add(chunk);
+      arena.clear();
+      bytesInMemory = 0;
+    }
+
+    @Override
+    public void close() {
+      if (arena != null) {
+        spill();
+        arena = null;
+      }
+    }
+  }
+
   /** Write features to the chunk file through a memory-mapped file. */
-  private class WriterMmap implements Writer {
+  private class WriterMmap implements Sink {
 
     private final FileChannel channel;
     private final MappedByteBuffer buffer;
@@ -468,6 +1001,16 @@ class ExternalMergeSort implements FeatureSort {
       buffer.putInt(feature.value().length);
       buffer.put(feature.value());
     }
+
+    @Override
+    public void writeRaw(byte[] bytes, int offset, int length) {
+      buffer.put(bytes, offset, length);
+    }
+
+    @Override
+    public long restart() {
+      return buffer.position();
+    }
   }
 
   /**
@@ -480,114 +1023,179 @@ class ExternalMergeSort implements FeatureSort {
     // estimate how much RAM it would take to sort this chunk
     private int bytesInMemory = 0;
     private int itemCount = 0;
+    // true if features in the chunk file are already in order, and stored in DeltaEncoding
+    private boolean sorted = false;
+    // keys sampled while writing a sorted chunk, or null if not known
+    private List<Sample> samples = null;
+    private long maxKey = Long.MAX_VALUE;
+    private boolean closed = false;
 
     private Chunk(Path path) {
       this.path = path;
-      this.writer = newWriter(path);
+      this.writer = newWriter(path, false);
+    }
+
+    /** Refers to a chunk that has already been written to {@code path}. */
+    private Chunk(Path path, int itemCount, int bytesInMemory, boolean sorted) {
+      this.path = path;
+      this.writer = null;
+      this.itemCount = itemCount;
+      this.bytesInMemory = bytesInMemory;
+      this.sorted = sorted;
     }
 
     public void add(SortableFeature entry) throws IOException {
       writer.write(entry);
-      bytesInMemory +=
-        // pointer to feature
-        8 +
-          // Feature class overhead
-          16 +
-          // long sort member of feature
-          8 +
-          // byte array pointer
-          8 +
-          // byte array size
-          24 + entry.value().length;
+      bytesInMemory += FeatureArena.bytesInMemory(entry.value().length);
       itemCount++;
     }
 
-    private SortableChunk readAllAndMergeIn(Collection<Chunk> others) {
-      // first, grow this chunk
-      int newItems = itemCount;
-      int newBytes = bytesInMemory;
-      for (var other : others) {
-        if (Integer.MAX_VALUE - newItems < other.itemCount) {
-          throw new IllegalStateException("Too many items in merged chunk: " + itemCount + "+" +
-            others.stream().map(c -> c.itemCount).toList());
+    /** Returns the number of bytes of {@code key, length, value} records in this chunk once decompressed. */
+    private int recordBytes() {
+      return FeatureArena.recordBytes(bytesInMemory, itemCount);
+    }
+
+    /** Returns a writer for features in any order, or in {@link DeltaEncoding} if they will be written in order. */
+    private Writer newWriter(Path path, boolean sortedOutput) {
+      Sink writer = mmapIO ? new WriterMmap(path) : new WriterBuffered(path);
+      if (compress) {
+        writer = new WriterCompressed(writer);
+      }
+      return sortedOutput ? new WriterDelta(writer, this) : writer;
+    }
+
+    /** Saves keys sampled from this chunk next to it so a later run that restores the chunk can seek through it. */
+    private void saveSamples() throws IOException {
+      Path samplesPath = samplesPath(path);
+      if (!config.resume()) {
+        FileUtils.deleteOnExit(samplesPath);
+      }
+      try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(samplesPath)))) {
+        out.writeLong(maxKey);
+        out.writeInt(samples.size());
+        for (var sample : samples) {
+          out.writeLong(sample.key);
+          out.writeLong(sample.position);
+          out.writeInt(sample.items);
         }
-        if (Integer.MAX_VALUE - newBytes < other.bytesInMemory) {
-          throw new IllegalStateException("Too big merged chunk: " + bytesInMemory + "+" +
-            others.stream().map(c -> c.bytesInMemory).toList());
+      }
+    }
+
+    private void loadSamples() {
+      try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(samplesPath(path))))) {
+        maxKey = in.readLong();
+        int count = in.readInt();
+        List<Sample> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          result.add(new Sample(in.readLong(), in.readLong(), in.readInt()));
         }
-        newItems += other.itemCount;
-        newBytes += other.bytesInMemory;
+        samples = result;
+      } catch (IOException e) {
+        throw new UncheckedIOException("Error reading samples for " + path, e);
       }
-      // then read items from all chunks into memory
-      SortableChunk result = new SortableChunk(newItems);
-      result.readAll(this);
-      itemCount = newItems;
-      bytesInMemory = newBytes;
-      for (var other : others) {
-        result.readAll(other);
+    }
+
+    /** Returns the last sample with a key before {@code key}, or the start of the chunk if there are none. */
+    private Sample seekTo(long key) {
+      int lo = 0;
+      int hi = samples.size() - 1;
+      while (lo < hi) {
+        int mid = (lo + hi + 1) >>> 1;
+        if (samples.get(mid).key < key) {
+          lo = mid;
+        } else {
+          hi = mid - 1;
+        }
       }
-      if (result.i != itemCount) {
-        throw new IllegalStateException("Expected " + itemCount + " features in " + path + " got " + result.i);
+      return samples.get(lo);
+    }
+
+    private Reader newReader() {
+      return newReader(new Sample(Long.MIN_VALUE, 0, 0));
+    }
+
+    private Reader newReader(Sample from) {
+      int count = itemCount - from.items;
+      if (mmapIO && !compress) {
+        return new ReaderMmap(path, count, sorted, from.position);
+      }
+      try {
+        return new ReaderBuffered(newInputStream(from.position), count, sorted);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
-      return result;
     }
 
-    private Writer newWriter(Path path) {
-      return mmapIO ? new WriterMmap(path) : new WriterBuffered(path, compress);
+    private InputStream newInputStream() throws IOException {
+      return newInputStream(0);
     }
 
-    private Reader newReader() {
-      return mmapIO ? new ReaderMmap(path, itemCount) : new ReaderBuffered(path, itemCount, compress);
+    private InputStream newInputStream(long position) throws IOException {
+      if (compress && mmapIO) {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+          var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+          if (madvise) {
+            tryMadviseSequential(buffer);
+          }
+          return CompressedBlocks.newInputStream(buffer, position);
+        }
+      }
+      InputStream file = Files.newInputStream(path);
+      file.skipNBytes(position);
+      InputStream inputStream = new BufferedInputStream(file);
+      return compress ? CompressedBlocks.newInputStream(inputStream) : inputStream;
     }
 
     @Override
     public void close() throws IOException {
-      writer.close();
-    }
-
-    public void remove() {
-      chunks.remove(this);
-      FileUtils.delete(path);
+      // writers close their chunk when they start a new one, then sort() closes every chunk again
+      if (writer != null && !closed) {
+        closed = true;
+        writer.close();
+      }
     }
 
     /**
-     * A container for all features in a chunk read into memory for sorting.
+     * A container for all features that will be written to this chunk, read into memory for sorting.
+     * <p>
+     * The chunk gets written to a new file so the chunks it was read from stay intact until they are no longer needed
+     * to {@code --resume} from.
      */
     private class SortableChunk {
 
-      private SortableFeature[] featuresToSort;
-      private int i = 0;
+      private FeatureArena arena;
 
-      private SortableChunk(int itemCount) {
-        this.featuresToSort = new SortableFeature[itemCount];
+      private SortableChunk() {
+        this.arena = new FeatureArena(recordBytes(), itemCount);
       }
 
       public SortableChunk sort() {
-        if (parallelSort) {
-          Arrays.parallelSort(featuresToSort);
-        } else {
-          Arrays.sort(featuresToSort);
-        }
+        arena.sort(parallelSort);
         return this;
       }
 
-      public SortableChunk flush() {
-        try (Writer out = newWriter(path)) {
-          for (SortableFeature feature : featuresToSort) {
-            out.write(feature);
-          }
-          featuresToSort = null;
-          return this;
+      public Chunk flush() {
+        try (Writer out = newWriter(path, true)) {
+          arena.writeTo(out::writeRaw);
+          arena = null;
         } catch (IOException e) {
           throw new UncheckedIOException(e);
         }
+        return Chunk.this;
       }
 
       private void readAll(Chunk chunk) {
-        try (var iterator = chunk.newReader()) {
-          while (iterator.hasNext()) {
-            featuresToSort[i++] = iterator.next();
+        if (chunk.sorted) {
+          // delta-encoded chunks have to be decoded one feature at a time
+          try (var reader = chunk.newReader()) {
+            reader.forEachRemaining(arena::add);
           }
+          return;
+        }
+        try (var input = chunk.newInputStream()) {
+          arena.readFrom(input, chunk.recordBytes(), chunk.itemCount);
+        } catch (IOException e) {
+          throw new UncheckedIOException("Error reading " + chunk.path, e);
         }
       }
     }
@@ -599,10 +1207,12 @@ class ExternalMergeSort implements FeatureSort {
     private final int count;
     private final FileChannel channel;
     private final MappedByteBuffer buffer;
+    private final DeltaEncoding.Decoder decoder;
     private int read = 0;
 
-    ReaderMmap(Path path, int count) {
+    ReaderMmap(Path path, int count, boolean delta, long position) {
       this.count = count;
+      this.decoder = delta ? new DeltaEncoding.Decoder() : null;
       try {
         channel = FileChannel.open(path, StandardOpenOption.READ);
         buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
@@ -610,6 +1220,7 @@ class ExternalMergeSort implements FeatureSort {
           // give the OS a hint that pages will be read sequentially so it can read-ahead and drop as soon as we're done
           tryMadviseSequential(buffer);
         }
+        buffer.position((int) position);
         next = readNextFeature();
       } catch (IOException e) {
         throw new UncheckedIOException(e);
@@ -619,6 +1230,10 @@ class ExternalMergeSort implements FeatureSort {
     @Override
     SortableFeature readNextFeature() {
       if (read < count) {
+        if (decoder != null) {
+          restartDecoder(decoder, read++);
+          return decoder.read(buffer);
+        }
         long nextSort = buffer.getLong();
         int length = buffer.getInt();
         byte[] bytes = new byte[length];
@@ -0,0 +1,239 @@
+package com.onthegomap.planetiler.collection;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Sorts {@link SortableFeature SortableFeatures} without allocating an object per feature.
+ * <p>
+ * Features are packed back-to-back into a single {@code byte[]} in the same {@code key, length, value} layout used in
+ * chunk files, and the sort reorders a {@code long[]} of {@code (key, offset)} pairs that point into it. Comparing two
+ * features only has to look at the arena when their keys are equal. This takes {@link #BYTES_PER_FEATURE} bytes plus
+ * the value length per feature, compared to about 72 bytes of object and array headers per feature for sorting an array
+ * of {@link SortableFeature} objects.
+ */
+@NotThreadSafe
+class FeatureArena {
+
+  /** Bytes in the {@code long key, int length} header that precedes each value. */
+  static final int HEADER_BYTES = Long.BYTES + Integer.BYTES;
+  /** Memory used per feature aside from its value: the record header plus index and scratch pairs for the sort. */
+  static final int BYTES_PER_FEATURE = HEADER_BYTES + 4 * Long.BYTES;
+  // below this size, an insertion sort is faster than recursing
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+  // below this size, sort in the current thread instead of forking
+  private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+  private byte[] data;
+  private ByteBuffer view;
+  private long[] index;
+  private int used = 0;
+  private int size = 0;
+
+  /**
+   * Creates an arena with room for {@code maxItems} features taking up {@code maxBytes} on disk, that grows if more are
+   * added.
+   */
+  FeatureArena(int maxBytes, int maxItems) {
+    this.data = new byte[maxBytes];
+    this.view = ByteBuffer.wrap(data);
+    this.index = new long[maxItems * 2];
+  }
+
+  /** Returns the bytes needed to sort a feature with a {@code valueLength}-byte value. */
+  static int bytesInMemory(int valueLength) {
+    return BYTES_PER_FEATURE + valueLength;
+  }
+
+  /** Returns the size of {@code key, length, value} records for {@code items} features using {@code bytesInMemory}. */
+  static int recordBytes(int bytesInMemory, int items) {
+    return bytesInMemory - items * (BYTES_PER_FEATURE - HEADER_BYTES);
+  }
+
+  /** Returns the number of features in this arena. */
+  int size() {
+    return size;
+  }
+
+  /** Removes all features but keeps the arrays allocated so they can be reused. */
+  void clear() {
+    used = 0;
+    size = 0;
+  }
+
+  /** Copies {@code feature} into the arena. */
+  void add(SortableFeature feature) {
+    byte[] value = feature.value();
+    ensureCapacity(HEADER_BYTES + value.length, 1);
+    view.putLong(used, feature.key());
+    view.putInt(used + Long.BYTES, value.length);
+    System.arraycopy(value, 0, data, used + HEADER_BYTES, value.length);
+    addToIndex(feature.key(), used);
+    used += HEADER_BYTES + value.length;
+  }
+
+  /**
+   * Reads {@code count} features stored in {@code bytes} bytes of {@code key, length, value} records from {@code input}
+   * into the arena.
+   */
+  void readFrom(InputStream input, int bytes, int count) throws IOException {
+    ensureCapacity(bytes, count);
+    int start = used;
+    new DataInputStream(input).readFully(data, start, bytes);
+    int end = start + bytes;
+    int offset = start;
+    for (int i = 0; i < count; i++) {
+      if (offset + HEADER_BYTES > end) {
+        throw new IOException("Expected " + count + " features in " + bytes + " bytes, got " + i);
+      }
+      addToIndex(view.getLong(offset), offset);
+      offset += HEADER_BYTES + view.getInt(offset + Long.BYTES);
+    }
+    if (offset != end) {
+      throw new IOException("Expected " + bytes + " bytes for " + count + " features, got " + (offset - start));
+    }
+    used = end;
+  }
+
+  private void ensureCapacity(int bytes, int items) {
+    if (data.length - used < bytes) {
+      data = Arrays.copyOf(data, grow(data.length, used + (long) bytes));
+      view = ByteBuffer.wrap(data);
+    }
+    if (index.length / 2 - size < items) {
+      index = Arrays.copyOf(index, grow(index.length, (size + (long) items) * 2));
+    }
+  }
+
+  private static int grow(int length, long needed) {
+    long result = Math.max(needed, Math.min(Integer.MAX_VALUE - 8, length * 2L));
+    if (result > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("Arena too large: " + needed);
+    }
+    return (int) result;
+  }
+
+  private void addToIndex(long key, int offset) {
+    index[size * 2] = key;
+    index[size * 2 + 1] = offset;
+    size++;
+  }
+
+  /** Sorts features by key then by value bytes, the same order as {@link SortableFeature#compareTo}. */
+  void sort(boolean parallel) {
+    long[] scratch = Arrays.copyOf(index, size * 2);
+    var task = new SortTask(scratch, index, 0, size, parallel);
+    if (parallel && size > PARALLEL_THRESHOLD) {
+      ForkJoinTask.invokeAll(task);
+    } else {
+      task.compute();
+    }
+  }
+
+  /** Sends each feature's {@code key, length, value} record to {@code writer} in sorted order. */
+  void writeTo(RecordWriter writer) throws IOException {
+    for (int i = 0; i < size; i++) {
+      int offset = (int) index[i * 2 + 1];
+      writer.write(data, offset, HEADER_BYTES + view.getInt(offset + Long.BYTES));
+    }
+  }
+
+  private int compare(long[] a, int i, long[] b, int j) {
+    long keyA = a[i * 2];
+    long keyB = b[j * 2];
+    if (keyA != keyB) {
+      return keyA < keyB ? -1 : 1;
+    }
+    int offsetA = (int) a[i * 2 + 1] + Long.BYTES;
+    int offsetB = (int) b[j * 2 + 1] + Long.BYTES;
+    int startA = offsetA + Integer.BYTES;
+    int startB = offsetB + Integer.BYTES;
+    return Arrays.compareUnsigned(
+      data, startA, startA + view.getInt(offsetA),
+      data, startB, startB + view.getInt(offsetB)
+    );
+  }
+
+  /** Receives raw feature records. */
+  @FunctionalInterface
+  interface RecordWriter {
+
+    void write(byte[] bytes, int offset, int length) throws IOException;
+  }
+
+  /**
+   * Top-down merge sort of {@code (key, offset)} pairs from {@code lo} to {@code hi} into {@code dst}, using
+   * {@code src} which starts as a copy of {@code dst} as scratch space.
+   */
+  private class SortTask extends RecursiveAction {
+
+    private final long[] src;
+    private final long[] dst;
+    private final int lo;
+    private final int hi;
+    private final boolean parallel;
+
+    SortTask(long[] src, long[] dst, int lo, int hi, boolean parallel) {
+      this.src = src;
+      this.dst = dst;
+      this.lo = lo;
+      this.hi = hi;
+      this.parallel = parallel;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+        insertionSort();
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      var left = new SortTask(dst, src, lo, mid, parallel);
+      var right = new SortTask(dst, src, mid, hi, parallel);
+      if (parallel && hi - lo > PARALLEL_THRESHOLD) {
+        invokeAll(left, right);
+      } else {
+        left.compute();
+        right.compute();
+      }
+      merge(mid);
+    }
+
+    private void insertionSort() {
+      for (int i = lo + 1; i < hi; i++) {
+        long key = dst[i * 2];
+        long offset = dst[i * 2 + 1];
+        int j = i - 1;
+        while (j >= lo && compare(dst, j, dst, i) > 0) {
+          j--;
+        }
+        if (j + 1 < i) {
+          System.arraycopy(dst, (j + 1) * 2, dst, (j + 2) * 2, (i - j - 1) * 2);
+          dst[(j + 1) * 2] = key;
+          dst[(j + 1) * 2 + 1] = offset;
+        }
+      }
+    }
+
+    private void merge(int mid) {
+      if (compare(src, mid - 1, src, mid) <= 0) {
+        // already in order
+        System.arraycopy(src, lo * 2, dst, lo * 2, (hi - lo) * 2);
+        return;
+      }
+      int i = lo;
+      int j = mid;
+      for (int k = lo; k < hi; k++) {
+        int from = j >= hi || (i < mid && compare(src, i, src, j) <= 0) ? i++ : j++;
+        dst[k * 2] = src[from * 2];
+        dst[k * 2 + 1] = src[from * 2 + 1];
+      }
+    }
+  }
+}
@@ -19,6 +19,7 @@ import com.onthegomap.planetiler.util.LayerAttrStats;
 import com.onthegomap.planetiler.worker.Worker;
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -30,11 +31,13 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.msgpack.core.MessageBufferPacker;
 import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessageUnpacker;
+import org.msgpack.core.buffer.ArrayBufferInput;
 import org.msgpack.value.Value;
 import org.msgpack.value.ValueFactory;
 import org.slf4j.Logger;
@@ -45,8 +48,18 @@ import org.slf4j.LoggerFactory;
  * <p>
  * Only support single-threaded writes and reads.
  * <p>
- * Limitation: layer name and attribute key strings get compressed into a single byte, so only 250 unique values are
- * supported (see {@link CommonStringEncoder})
+ * Layer names and attribute keys get replaced with IDs from a {@link CommonStringEncoder}. Layers and keys that the
+ * profile declares through {@link Profile#declaredLayers()} and {@link Profile#declaredAttributeKeys()} get their IDs
+ * up front, so writers look them up without touching shared mutable state.
+ * <p>
+ * String attribute values that features use over and over (i.e. {@code class=residential}) get replaced with an ID
+ * from a bounded dictionary once they have been seen enough times, which shrinks temp features and lets
+ * {@link VectorTile} look them up by ID instead of hashing them again when encoding tiles.
+ * <p>
+ * Each feature gets sorted by a 64-bit key that packs tile ID, layer, sort key, and whether it has group info. The
+ * {@link FeatureKeyLayout} splits those bits up based on {@link PlanetilerConfig#maxzoom()} and how many layers the
+ * profile declares: at least 256 layers are always supported, and when tile IDs and layers leave too little room in the
+ * key, the low bits of the sort key and the group bit move to a prefix byte of the value.
  */
 @NotThreadSafe
 public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>, DiskBacked {
@@ -54,12 +67,22 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
   public static final int SORT_KEY_BITS = 23;
   public static final int SORT_KEY_MAX = (1 << (SORT_KEY_BITS - 1)) - 1;
   public static final int SORT_KEY_MIN = -(1 << (SORT_KEY_BITS - 1));
-  private static final int SORT_KEY_MASK = (1 << SORT_KEY_BITS) - 1;
+  /** Changes whenever the format of temp features changes, so checkpoints from older versions are not reused. */
+  public static final int ENCODING_VERSION = 3;
+  // attribute keys get stored shifted left by one bit, so this leaves room in an int
+  static final int MAX_ATTRIBUTE_KEYS = 1 << 24;
+  static final int VALUE_DICTIONARY_SIZE = 65_536;
+  static final int VALUE_DICTIONARY_MIN_OCCURRENCES = 32;
+  private static final int VALUE_DICTIONARY_MAX_CANDIDATES = 100_000;
   private static final Logger LOGGER = LoggerFactory.getLogger(FeatureGroup.class);
   private final FeatureSort sorter;
   private final Profile profile;
-  private final CommonStringEncoder.AsByte commonLayerStrings = new CommonStringEncoder.AsByte();
-  private final CommonStringEncoder commonValueStrings = new CommonStringEncoder(100_000);
+  private final FeatureKeyLayout layout;
+  private final CommonStringEncoder commonLayerStrings;
+  private final CommonStringEncoder commonValueStrings;
+  // string attribute values that show up often enough get stored as an ID instead of repeating the string every time
+  private final CommonStringEncoder.Adaptive commonAttrValues = new CommonStringEncoder.Adaptive(
+    VALUE_DICTIONARY_SIZE, VALUE_DICTIONARY_MIN_OCCURRENCES, VALUE_DICTIONARY_MAX_CANDIDATES);
   private final Stats stats;
   private final PlanetilerConfig config;
   private volatile boolean prepared = false;
@@ -72,6 +95,27 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
     this.profile = profile;
     this.config = config;
     this.stats = stats;
+    List<String> declaredLayers = profile.declaredLayers();
+    this.layout = FeatureKeyLayout.forMaxzoom(config.maxzoom(), declaredLayers.size());
+    this.commonLayerStrings = new CommonStringEncoder(layout.maxLayers(), declaredLayers);
+    this.commonValueStrings = new CommonStringEncoder(MAX_ATTRIBUTE_KEYS, profile.declaredAttributeKeys());
+  }
+
+  private FeatureGroup(ExternalMergeSort sorter, TileOrder tileOrder, Profile profile, PlanetilerConfig config,
+    Stats stats, Checkpoint checkpoint) {
+    this(sorter, tileOrder, profile, config, stats);
+    // encoders hand out IDs sequentially after the ones the profile declared, so re-encoding in the same order
+    // restores the same IDs
+    for (String layer : checkpoint.layers()) {
+      commonLayerStrings.encode(layer);
+    }
+    for (String key : checkpoint.keys()) {
+      commonValueStrings.encode(key);
+    }
+    for (String value : checkpoint.values()) {
+      commonAttrValues.encode(value);
+    }
+    this.prepared = checkpoint.sorted();
   }
 
   /** Returns a feature grouper that stores all feature in-memory. Only suitable for toy use-cases like unit tests. */
@@ -94,32 +138,35 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
   }
 
   /**
-   * Encode key by {@code tile} asc, {@code layer} asc, {@code sortKey} asc with an extra bit to indicate whether the
-   * value contains grouping information.
+   * Returns a feature grouper that picks up the features a previous run wrote to disk, as recorded by
+   * {@link #checkpoint()}.
    */
-  static long encodeKey(int tile, byte layer, int sortKey, boolean hasGroup) {
-    return ((long) tile << 32L) | ((long) (layer & 0xff) << 24L) | (((sortKey - SORT_KEY_MIN) & SORT_KEY_MASK) << 1L) |
-      (hasGroup ? 1 : 0);
+  public static FeatureGroup restoreDiskBackedFeatureGroup(TileOrder tileOrder, Path tempDir, Profile profile,
+    PlanetilerConfig config, Stats stats, Checkpoint checkpoint) {
+    var sorter = new ExternalMergeSort(tempDir, config.threads(), ExternalMergeSort.defaultChunkSizeLimit(),
+      config.compressTempStorage(), config.mmapTempStorage(), true, true, config, stats, checkpoint);
+    return new FeatureGroup(sorter, tileOrder, profile, config, stats, checkpoint);
   }
 
-  static boolean extractHasGroupFromKey(long key) {
-    return (key & 1) == 1;
+  private long tileFromKey(long key) {
+    return layout.extractTile(key);
   }
 
-  static int extractTileFromKey(long key) {
-    return (int) (key >> 32L);
+  private int layerFromKey(long key) {
+    return layout.extractLayer(key);
   }
 
-  static byte extractLayerIdFromKey(long key) {
-    return (byte) (key >> 24);
+  private boolean hasGroup(SortableFeature feature) {
+    return layout.extractHasGroup(feature.key(), layout.hasPrefix() ? feature.value()[0] : 0);
   }
 
-  static int extractSortKeyFromKey(long key) {
-    return ((int) ((key >> 1) & SORT_KEY_MASK)) + SORT_KEY_MIN;
+  /** Returns the offset where msgpack-encoded feature data starts in a value, after the key layout prefix if present. */
+  private int valueOffset() {
+    return layout.hasPrefix() ? 1 : 0;
   }
 
-  private static RenderedFeature.Group peekAtGroupInfo(byte[] encoded) {
-    try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(encoded)) {
+  private static RenderedFeature.Group peekAtGroupInfo(byte[] encoded, int offset) {
+    try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(encoded, offset, encoded.length - offset)) {
       long group = unpacker.unpackLong();
       int limit = unpacker.unpackInt();
       return new RenderedFeature.Group(group, limit);
@@ -163,12 +210,12 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
         var thisFeature = feature.vectorTileFeature();
         byte[] encodedValue;
         if (group != null) { // don't bother memoizing if group is present
-          encodedValue = encodeValue(thisFeature, group, packer);
+          encodedValue = encodeValue(thisFeature, group, feature.sortKey(), packer);
         } else if (lastFeature == thisFeature) {
           encodedValue = lastEncodedValue;
         } else { // feature changed, memoize new value
           lastFeature = thisFeature;
-          lastEncodedValue = encodedValue = encodeValue(feature.vectorTileFeature(), null, packer);
+          lastEncodedValue = encodedValue = encodeValue(feature.vectorTileFeature(), null, feature.sortKey(), packer);
         }
 
         return new SortableFeature(encodeKey(feature), encodedValue);
@@ -183,9 +230,9 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
 
   private long encodeKey(RenderedFeature feature) {
     var vectorTileFeature = feature.vectorTileFeature();
-    byte encodedLayer = commonLayerStrings.encode(vectorTileFeature.layer());
+    int encodedLayer = commonLayerStrings.encode(vectorTileFeature.layer());
 
-    return encodeKey(
+    return layout.encodeKey(
       this.tileOrder.encode(feature.tile()),
       encodedLayer,
       feature.sortKey(),
@@ -193,11 +240,14 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
     );
   }
 
-  private byte[] encodeValue(VectorTile.Feature vectorTileFeature, RenderedFeature.Group group,
+  private byte[] encodeValue(VectorTile.Feature vectorTileFeature, RenderedFeature.Group group, int sortKey,
     MessageBufferPacker packer) {
     packer.clear();
     try {
-      // hasGroup bit in key will tell consumers whether they need to decode group info from value
+      if (layout.hasPrefix()) {
+        packer.packByte(layout.encodePrefix(sortKey, group != null));
+      }
+      // hasGroup bit in key (or key layout prefix) will tell consumers whether they need to decode group info from value
       if (group != null) {
         packer.packLong(group.group());
         packer.packInt(group.limit());
@@ -209,7 +259,16 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
       for (Map.Entry<String, Object> entry : attrs.entrySet()) {
         Object value = entry.getValue();
         if (value != null) {
-          packer.packInt(commonValueStrings.encode(entry.getKey()));
+          int key = commonValueStrings.encode(entry.getKey());
+          int valueId = value instanceof String string ? commonAttrValues.encodeIfCommon(string) :
+            CommonStringEncoder.Adaptive.NONE;
+          // the low bit of the key tells readers whether the value is an ID from commonAttrValues or a msgpack value
+          if (valueId != CommonStringEncoder.Adaptive.NONE) {
+            packer.packInt((key << 1) | 1);
+            packer.packInt(valueId);
+            continue;
+          }
+          packer.packInt(key << 1);
           packer.packValue(switch (value) {
             case String string -> ValueFactory.newString(string);
             case Integer integer -> ValueFactory.newInteger(integer.longValue());
@@ -246,6 +305,41 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
     return groupIntoTiles(sorter.iterator());
   }
 
+  /**
+   * Returns the tiles with IDs from {@code startTile} inclusive to {@code endTile} exclusive, or with no upper limit if
+   * {@code endTile} is {@link Long#MAX_VALUE}.
+   * <p>
+   * Disk-backed feature groups start reading each chunk from a key sampled just before {@code startTile} instead of
+   * from the beginning.
+   */
+  public Iterable<TileFeatures> tileRange(long startTile, long endTile) {
+    return () -> {
+      prepare();
+      return groupIntoTiles(sorter.keyRange(layout.firstKey(startTile),
+        endTile == Long.MAX_VALUE ? Long.MAX_VALUE : layout.firstKey(endTile)));
+    };
+  }
+
+  /**
+   * Returns {@code parts + 1} ascending tile IDs that split sorted features into {@code parts} contiguous ranges with
+   * about the same number of features each, for use with {@link #tileRange(long, long)}.
+   * <p>
+   * The first boundary is 0 and the last is {@link Long#MAX_VALUE}. Disk-backed feature groups use keys sampled while
+   * sorting instead of reading every feature.
+   */
+  public long[] tileBoundaries(int parts) {
+    prepare();
+    long[] result = new long[parts + 1];
+    result[parts] = Long.MAX_VALUE;
+    long[] splitKeys = sorter.splitKeys(parts);
+    for (int part = 1; part < parts; part++) {
+      long key = splitKeys[part - 1];
+      // split at the start of the tile a key is in, so a tile never gets split across ranges
+      result[part] = key == Long.MAX_VALUE ? Long.MAX_VALUE : tileFromKey(key);
+    }
+    return result;
+  }
+
   /**
    * Reads temp features using {@code threads} parallel threads and merges into a sorted list.
    *
@@ -259,6 +353,20 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
     return new Reader(parIter.reader(), () -> groupIntoTiles(parIter.iterator()));
   }
 
+  /**
+   * Splits temp features into key ranges, merges each range independently using {@code threads} parallel threads, and
+   * returns the ranges in order.
+   *
+   * @param threads The number of parallel merge threads to spawn
+   * @return a {@link Reader} with a handle to the new merge threads that were spawned, and in {@link Iterable} that can
+   *         be used to iterate over the results.
+   */
+  public Reader partitionedIterator(int threads) {
+    prepare();
+    var parIter = sorter.partitionedIterator(stats, threads);
+    return new Reader(parIter.reader(), () -> groupIntoTiles(parIter.iterator()));
+  }
+
   private Iterator<TileFeatures> groupIntoTiles(Iterator<SortableFeature> entries) {
     // entries are sorted by tile ID, so group consecutive entries in same tile into tiles
     if (!entries.hasNext()) {
@@ -272,7 +380,7 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
     SortableFeature firstFeature = entries.next();
     return new Iterator<>() {
       private SortableFeature lastFeature = firstFeature;
-      private int lastTileId = extractTileFromKey(firstFeature.key());
+      private long lastTileId = tileFromKey(firstFeature.key());
 
       @Override
       public boolean hasNext() {
@@ -283,12 +391,12 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
       public TileFeatures next() {
         TileFeatures result = new TileFeatures(lastTileId);
         result.add(lastFeature);
-        int lastTile = lastTileId;
+        long lastTile = lastTileId;
 
         while (entries.hasNext()) {
           SortableFeature next = entries.next();
           lastFeature = next;
-          lastTileId = extractTileFromKey(lastFeature.key());
+          lastTileId = tileFromKey(lastFeature.key());
           if (lastTile != lastTileId) {
             return result;
           }
@@ -307,10 +415,22 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
 
   /** Sorts features to prepare for grouping after all features have been written. */
   public void prepare() {
+    prepare(null);
+  }
+
+  /**
+   * Sorts features like {@link #prepare()} and passes a new {@link #checkpoint()} to {@code saveCheckpoint} each time
+   * sorting replaces chunks on disk, before the replaced chunk files get deleted.
+   */
+  public void prepare(Consumer<Checkpoint> saveCheckpoint) {
     if (!prepared) {
       synchronized (this) {
         if (!prepared) {
-          sorter.sort();
+          if (saveCheckpoint != null && sorter instanceof ExternalMergeSort externalMergeSort) {
+            externalMergeSort.sort(() -> saveCheckpoint.accept(checkpoint()));
+          } else {
+            sorter.sort();
+          }
           prepared = true;
         }
       }
@@ -321,10 +441,55 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
     return sorter.chunksToRead();
   }
 
+  /**
+   * Returns a snapshot of the features written to disk so far that {@link #restoreDiskBackedFeatureGroup} can use to
+   * resume from in a later run. Must only be called while no writers are open.
+   *
+   * @throws UnsupportedOperationException if features are not stored on disk
+   */
+  public Checkpoint checkpoint() {
+    if (!(sorter instanceof ExternalMergeSort externalMergeSort)) {
+      throw new UnsupportedOperationException("Only disk-backed feature groups support checkpoints");
+    }
+    return new Checkpoint(
+      commonLayerStrings.strings(),
+      commonValueStrings.strings(),
+      commonAttrValues.strings(),
+      externalMergeSort.checkpointChunks(),
+      externalMergeSort.numFeaturesWritten(),
+      externalMergeSort.isSorted()
+    );
+  }
+
   public interface RenderedFeatureEncoder extends Function<RenderedFeature, SortableFeature>, Closeable {}
 
   public record Reader(Worker readWorker, Iterable<TileFeatures> result) {}
 
+  /**
+   * Everything needed to restore a disk-backed feature group in a later run.
+   *
+   * @param layers   layer names in the order they were assigned IDs
+   * @param keys     attribute keys in the order they were assigned IDs
+   * @param values   common attribute values in the order they were assigned IDs
+   * @param chunks   chunk files in the temp feature directory
+   * @param features number of features written
+   * @param sorted   whether chunks have already been sorted
+   */
+  public record Checkpoint(List<String> layers, List<String> keys, List<String> values, List<Chunk> chunks,
+    long features, boolean sorted) {
+
+    /**
+     * A chunk file in the temp feature directory with {@code items} features, and {@code sorted} if they are already in
+     * order.
+     */
+    public record Chunk(String name, int items, int bytesInMemory, boolean sorted) {}
+
+    /** Returns true if every chunk this checkpoint refers to is still present in {@code tempDir}. */
+    public boolean chunksExistIn(Path tempDir) {
+      return chunks.stream().allMatch(chunk -> Files.exists(tempDir.resolve(chunk.name())));
+    }
+  }
+
   /** Features contained in a single tile. */
   public class TileFeatures {
 
@@ -332,25 +497,18 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
     private final List<SortableFeature> entries = new ArrayList<>();
     private final AtomicLong numFeaturesProcessed = new AtomicLong(0);
     private LongLongHashMap counts = null;
-    private byte lastLayer = Byte.MAX_VALUE;
+    private int lastLayer = -1;
 
-    private TileFeatures(int lastTileId) {
+    private TileFeatures(long lastTileId) {
       this.tileCoord = tileOrder.decode(lastTileId);
     }
 
     private static void unscaleAndRemovePointsOutsideBuffer(List<VectorTile.Feature> features, double maxPointBuffer) {
-      boolean checkPoints = maxPointBuffer <= 256 && maxPointBuffer >= -128;
       for (int i = 0; i < features.size(); i++) {
         var feature = features.get(i);
         if (feature != null) {
-          VectorTile.VectorGeometry geometry = feature.geometry();
-          var orig = geometry;
-          if (geometry.scale() != 0) {
-            geometry = geometry.unscale();
-          }
-          if (checkPoints && geometry.geomType() == GeometryType.POINT && !geometry.isEmpty()) {
-            geometry = geometry.filterPointsOutsideBuffer(maxPointBuffer);
-          }
+          VectorTile.VectorGeometry orig = feature.geometry();
+          var geometry = unscaleAndRemovePointsOutsideBuffer(orig, maxPointBuffer);
           if (geometry.isEmpty()) {
             features.set(i, null);
           } else if (geometry != orig) {
@@ -360,6 +518,18 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
       }
     }
 
+    private static VectorTile.VectorGeometry unscaleAndRemovePointsOutsideBuffer(VectorTile.VectorGeometry geometry,
+      double maxPointBuffer) {
+      boolean checkPoints = maxPointBuffer <= 256 && maxPointBuffer >= -128;
+      if (geometry.scale() != 0) {
+        geometry = geometry.unscale();
+      }
+      if (checkPoints && geometry.geomType() == GeometryType.POINT && !geometry.isEmpty()) {
+        geometry = geometry.filterPointsOutsideBuffer(maxPointBuffer);
+      }
+      return geometry;
+    }
+
     /** Returns the number of features read including features discarded from being over the limit in a group. */
     public long getNumFeaturesProcessed() {
       return numFeaturesProcessed.get();
@@ -387,8 +557,8 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
       for (int i = 0; i < entries.size(); i++) {
         SortableFeature a = entries.get(i);
         SortableFeature b = other.entries.get(i);
-        long layerA = extractLayerIdFromKey(a.key());
-        long layerB = extractLayerIdFromKey(b.key());
+        int layerA = layerFromKey(a.key());
+        int layerB = layerFromKey(b.key());
         if (layerA != layerB || !Arrays.equals(a.value(), b.value())) {
           return false;
         }
@@ -398,9 +568,11 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
 
 
     private VectorTile.Feature decodeVectorTileFeature(SortableFeature entry) {
-      try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(entry.value())) {
+      byte[] value = entry.value();
+      int offset = valueOffset();
+      try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(value, offset, value.length - offset)) {
         long group;
-        if (extractHasGroupFromKey(entry.key())) {
+        if (hasGroup(entry)) {
           group = unpacker.unpackLong();
           unpacker.unpackInt(); // groupLimit - features over the limit were already discarded
         } else {
@@ -413,7 +585,12 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
         int mapSize = unpacker.unpackMapHeader();
         Map<String, Object> attrs = HashMap.newHashMap(mapSize);
         for (int i = 0; i < mapSize; i++) {
-          String key = commonValueStrings.decode(unpacker.unpackInt());
+          int encodedKey = unpacker.unpackInt();
+          String key = commonValueStrings.decode(encodedKey >>> 1);
+          if ((encodedKey & 1) == 1) {
+            attrs.put(key, commonAttrValues.decode(unpacker.unpackInt()));
+            continue;
+          }
           Value v = unpacker.unpackValue();
           if (v.isStringValue()) {
             attrs.put(key, v.asStringValue().asString());
@@ -430,7 +607,7 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
         for (int i = 0; i < commandSize; i++) {
           commands[i] = unpacker.unpackInt();
         }
-        String layer = commonLayerStrings.decode(extractLayerIdFromKey(entry.key()));
+        String layer = commonLayerStrings.decode(layerFromKey(entry.key()));
         return new VectorTile.Feature(
           layer,
           id,
@@ -452,6 +629,38 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
       if (layerStats != null) {
         tile.trackLayerStats(layerStats.forZoom(tileCoord.z()));
       }
+      if (profile.postProcessesTiles()) {
+        addPostProcessedTileFeatures(tile);
+        return tile;
+      }
+      // features are sorted by layer, so each layer is a contiguous range of entries
+      Map<String, int[]> layerRanges = new TreeMap<>();
+      int start = 0;
+      for (int i = 1; i <= entries.size(); i++) {
+        int layerId = layerFromKey(entries.get(start).key());
+        if (i == entries.size() || layerFromKey(entries.get(i).key()) != layerId) {
+          layerRanges.put(commonLayerStrings.decode(layerId), new int[]{start, i});
+          start = i;
+        }
+      }
+      for (var entry : layerRanges.entrySet()) {
+        String layer = entry.getKey();
+        int from = entry.getValue()[0];
+        int to = entry.getValue()[1];
+        if (profile.postProcessesLayer(layer, tileCoord.z())) {
+          List<VectorTile.Feature> features = new ArrayList<>(to - from);
+          for (int i = from; i < to; i++) {
+            features.add(decodeVectorTileFeature(entries.get(i)));
+          }
+          postProcessAndAddLayerFeatures(tile, layer, features);
+        } else {
+          writeEncodedFeatures(tile.layerWriter(layer), from, to);
+        }
+      }
+      return tile;
+    }
+
+    private void addPostProcessedTileFeatures(VectorTile tile) {
       List<VectorTile.Feature> items = new ArrayList<>();
       String currentLayer = null;
       Map<String, List<VectorTile.Feature>> layerFeatures = new TreeMap<>();
@@ -485,7 +694,68 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
       for (var entry : layerFeatures.entrySet()) {
         postProcessAndAddLayerFeatures(tile, entry.getKey(), entry.getValue());
       }
-      return tile;
+    }
+
+    /**
+     * Adds features in {@code entries[from..to)} to {@code writer} straight from their encoded form, without the
+     * attribute map or {@link VectorTile.Feature} that {@link #decodeVectorTileFeature(SortableFeature)} creates.
+     */
+    private void writeEncodedFeatures(VectorTile.LayerWriter writer, int from, int to) {
+      double maxPointBuffer = config.maxPointBuffer();
+      ArrayBufferInput input = new ArrayBufferInput(new byte[0]);
+      try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(input)) {
+        for (int i = from; i < to; i++) {
+          SortableFeature entry = entries.get(i);
+          byte[] value = entry.value();
+          int offset = valueOffset();
+          input.reset(value, offset, value.length - offset);
+          unpacker.reset(input);
+          if (hasGroup(entry)) {
+            unpacker.skipValue(); // group
+            unpacker.skipValue(); // groupLimit
+          }
+          long id = unpacker.unpackLong();
+          byte geomTypeAndScale = unpacker.unpackByte();
+          int mapSize = unpacker.unpackMapHeader();
+          // geometry comes after attributes, but features it empties out should not add their attributes to the layer,
+          // so skip over attributes to decode the geometry first and come back for them after
+          int attrsOffset = offset + (int) unpacker.getTotalReadBytes();
+          for (int j = 0; j < mapSize * 2; j++) {
+            unpacker.skipValue();
+          }
+          int commandSize = unpacker.unpackArrayHeader();
+          int[] commands = new int[commandSize];
+          for (int j = 0; j < commandSize; j++) {
+            commands[j] = unpacker.unpackInt();
+          }
+          var geometry = unscaleAndRemovePointsOutsideBuffer(new VectorTile.VectorGeometry(commands,
+            decodeGeomType(geomTypeAndScale), decodeScale(geomTypeAndScale)), maxPointBuffer);
+          if (geometry.isEmpty()) {
+            continue;
+          }
+          writer.startFeature(id, geometry);
+          input.reset(value, attrsOffset, value.length - attrsOffset);
+          unpacker.reset(input);
+          for (int j = 0; j < mapSize; j++) {
+            int encodedKey = unpacker.unpackInt();
+            String key = commonValueStrings.decode(encodedKey >>> 1);
+            if ((encodedKey & 1) == 1) {
+              int valueId = unpacker.unpackInt();
+              writer.addTag(key, commonAttrValues.decode(valueId), valueId);
+              continue;
+            }
+            switch (unpacker.getNextFormat().getValueType()) {
+              case STRING -> writer.addTag(key, unpacker.unpackString());
+              case INTEGER -> writer.addTag(key, unpacker.unpackLong());
+              case FLOAT -> writer.addTag(key, unpacker.unpackDouble());
+              case BOOLEAN -> writer.addTag(key, unpacker.unpackBoolean());
+              default -> unpacker.skipValue();
+            }
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
     }
 
     private void postProcessAndAddLayerFeatures(VectorTile encoder, String layer,
@@ -526,8 +796,8 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
     void add(SortableFeature entry) {
       numFeaturesProcessed.incrementAndGet();
       long key = entry.key();
-      if (extractHasGroupFromKey(key)) {
-        byte thisLayer = extractLayerIdFromKey(key);
+      if (hasGroup(entry)) {
+        int thisLayer = layerFromKey(key);
         if (counts == null) {
           counts = Hppc.newLongLongHashMap();
           lastLayer = thisLayer;
@@ -535,7 +805,7 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
           lastLayer = thisLayer;
           counts.clear();
         }
-        var groupInfo = peekAtGroupInfo(entry.value());
+        var groupInfo = peekAtGroupInfo(entry.value(), valueOffset());
         long old = counts.getOrDefault(groupInfo.group(), 0);
         if (groupInfo.limit() > 0 && old >= groupInfo.limit()) {
           // discard if there are to many features in this group already
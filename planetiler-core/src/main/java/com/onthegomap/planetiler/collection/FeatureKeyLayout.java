@@ -0,0 +1,124 @@
+package com.onthegomap.planetiler.collection;
+
+import static com.onthegomap.planetiler.collection.FeatureGroup.SORT_KEY_BITS;
+import static com.onthegomap.planetiler.collection.FeatureGroup.SORT_KEY_MIN;
+
+/**
+ * How {@link FeatureGroup} packs tile ID, layer ID, sort key, and whether a feature has group info into the 64-bit key
+ * that features get sorted by.
+ * <p>
+ * The tile ID goes in the highest bits (leaving the sign bit unset so keys sort the same as signed longs), then the
+ * layer ID, then the sort key and group bit. When tile IDs at the max zoom level and the number of layers leave too
+ * little room, the key only holds the high bits of the sort key and the low bits plus the group bit move to a prefix
+ * byte at the start of the value that breaks ties between features with the same key (see
+ * {@link #encodePrefix(int, boolean)}).
+ *
+ * @param tileBits       number of bits needed for the largest tile ID
+ * @param layerBits      number of bits for layer IDs
+ * @param keySortKeyBits number of high bits of the sort key in the key, the rest go in the value prefix
+ * @param hasPrefix      whether values start with a prefix byte that holds the low bits of the sort key and group bit
+ */
+record FeatureKeyLayout(int tileBits, int layerBits, int keySortKeyBits, boolean hasPrefix) {
+
+  /** Fewest bits to use for layer IDs, to support as many layers as the original single-byte layer IDs did. */
+  static final int MIN_LAYER_BITS = 8;
+  /** Most bits to use for layer IDs, even when there is room for more. */
+  static final int MAX_LAYER_BITS = 16;
+  // the prefix has to stay a single msgpack positive fixint byte so it also sorts correctly as raw bytes
+  private static final int MAX_PREFIX_BITS = 7;
+  private static final int SORT_KEY_MASK = (1 << SORT_KEY_BITS) - 1;
+
+  /** Returns the layout to use when tiles go up to {@code maxzoom} and there are {@code layers} layer IDs. */
+  static FeatureKeyLayout forMaxzoom(int maxzoom, int layers) {
+    long maxTileId = ((1L << (2 * (maxzoom + 1))) - 1) / 3 - 1;
+    int tileBits = Long.SIZE - Long.numberOfLeadingZeros(maxTileId);
+    int layerBits = Math.max(MIN_LAYER_BITS, Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(0, layers - 1)));
+    if (layerBits > MAX_LAYER_BITS) {
+      throw new IllegalArgumentException("Too many layers (" + layers + "), at most " + (1 << MAX_LAYER_BITS) +
+        " are supported");
+    }
+    // leave the sign bit unset
+    int available = Long.SIZE - 1 - tileBits;
+    if (available - SORT_KEY_BITS - 1 >= layerBits) {
+      // everything fits in the key, so give any leftover room to layers
+      return new FeatureKeyLayout(tileBits, Math.min(MAX_LAYER_BITS, available - SORT_KEY_BITS - 1), SORT_KEY_BITS,
+        false);
+    }
+    int keySortKeyBits = available - layerBits;
+    if (SORT_KEY_BITS - keySortKeyBits + 1 > MAX_PREFIX_BITS) {
+      throw new IllegalArgumentException(
+        "Too many layers (" + layers + ") to sort features at maxzoom=" + maxzoom + ", at most " +
+          (1 << (available - (SORT_KEY_BITS + 1 - MAX_PREFIX_BITS))) + " are supported");
+    }
+    return new FeatureKeyLayout(tileBits, layerBits, keySortKeyBits, true);
+  }
+
+  /** Returns the most layer IDs this layout can hold. */
+  int maxLayers() {
+    return 1 << layerBits;
+  }
+
+  private int prefixSortKeyBits() {
+    return SORT_KEY_BITS - keySortKeyBits;
+  }
+
+  private int layerShift() {
+    return hasPrefix ? keySortKeyBits : SORT_KEY_BITS + 1;
+  }
+
+  private int tileShift() {
+    return layerShift() + layerBits;
+  }
+
+  /**
+   * Encodes a key that sorts by {@code tile} asc, {@code layer} asc, then {@code sortKey} asc, with an extra bit to
+   * indicate whether the value contains grouping information unless this layout puts it in the value prefix.
+   */
+  long encodeKey(long tile, int layer, int sortKey, boolean hasGroup) {
+    long key = (tile << tileShift()) | ((long) layer << layerShift());
+    int sortKeyBits = (sortKey - SORT_KEY_MIN) & SORT_KEY_MASK;
+    if (hasPrefix) {
+      return key | (sortKeyBits >>> prefixSortKeyBits());
+    }
+    return key | ((long) sortKeyBits << 1) | (hasGroup ? 1 : 0);
+  }
+
+  /**
+   * Returns the first byte of the value for a feature when {@link #hasPrefix()}, which sorts by the low bits of
+   * {@code sortKey} then {@code hasGroup} when features have the same key.
+   * <p>
+   * The result is between 0 and 127 so msgpack packs it as a single positive fixint byte.
+   */
+  byte encodePrefix(int sortKey, boolean hasGroup) {
+    int lowMask = (1 << prefixSortKeyBits()) - 1;
+    return (byte) ((((sortKey - SORT_KEY_MIN) & lowMask) << 1) | (hasGroup ? 1 : 0));
+  }
+
+  /** Returns the lowest key of any feature in {@code tile}. */
+  long firstKey(long tile) {
+    return tile << tileShift();
+  }
+
+  long extractTile(long key) {
+    return key >>> tileShift();
+  }
+
+  int extractLayer(long key) {
+    return (int) ((key >>> layerShift()) & ((1L << layerBits) - 1));
+  }
+
+  /** Returns the sort key from {@code key} and, if this layout {@link #hasPrefix()}, the value {@code prefix}. */
+  int extractSortKey(long key, byte prefix) {
+    if (hasPrefix) {
+      int high = (int) (key & ((1L << keySortKeyBits) - 1));
+      int lowMask = (1 << prefixSortKeyBits()) - 1;
+      return ((high << prefixSortKeyBits()) | ((prefix >> 1) & lowMask)) + SORT_KEY_MIN;
+    }
+    return ((int) ((key >> 1) & SORT_KEY_MASK)) + SORT_KEY_MIN;
+  }
+
+  /** Returns whether a feature has group info from its key, or its value prefix if this layout {@link #hasPrefix()}. */
+  boolean extractHasGroup(long key, byte prefix) {
+    return ((hasPrefix ? prefix : key) & 1) == 1;
+  }
+}
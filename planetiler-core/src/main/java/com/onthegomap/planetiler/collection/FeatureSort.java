@@ -7,10 +7,12 @@ import com.onthegomap.planetiler.util.MemoryEstimator;
 import com.onthegomap.planetiler.worker.WeightedHandoffQueue;
 import com.onthegomap.planetiler.worker.Worker;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.stream.IntStream;
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -116,6 +118,69 @@ interface FeatureSort extends Iterable<SortableFeature>, DiskBacked, MemoryEstim
    */
   Iterator<SortableFeature> iterator(int shard, int shards);
 
+  /**
+   * Returns an iterator over features with keys from {@code fromKey} inclusive to {@code toKey} exclusive, or with no
+   * upper limit if {@code toKey} is {@link Long#MAX_VALUE}.
+   * <p>
+   * The default implementation reads and skips every feature before {@code fromKey}.
+   */
+  default Iterator<SortableFeature> keyRange(long fromKey, long toKey) {
+    Iterator<SortableFeature> entries = iterator();
+    return new Iterator<>() {
+      private SortableFeature next = advance();
+
+      private SortableFeature advance() {
+        while (entries.hasNext()) {
+          SortableFeature feature = entries.next();
+          if (toKey != Long.MAX_VALUE && feature.key() >= toKey) {
+            return null;
+          } else if (feature.key() >= fromKey) {
+            return feature;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public SortableFeature next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        SortableFeature result = next;
+        next = advance();
+        return result;
+      }
+    };
+  }
+
+  /**
+   * Returns {@code parts - 1} ascending keys that split features into {@code parts} ranges with about the same number
+   * of features each, using {@link Long#MAX_VALUE} for splits past the last feature.
+   * <p>
+   * The default implementation reads every feature key.
+   */
+  default long[] splitKeys(int parts) {
+    long[] result = new long[parts - 1];
+    Arrays.fill(result, Long.MAX_VALUE);
+    long total = numFeaturesWritten();
+    int part = 1;
+    long seen = 0;
+    var entries = iterator();
+    while (part < parts && entries.hasNext()) {
+      long key = entries.next().key();
+      if (seen >= total * part / parts) {
+        result[part++ - 1] = key;
+      }
+      seen++;
+    }
+    return result;
+  }
+
   /**
    * Reads temp features using {@code threads} parallel threads and merges into a sorted list.
    *
@@ -139,6 +204,21 @@ interface FeatureSort extends Iterable<SortableFeature>, DiskBacked, MemoryEstim
     return new ParallelIterator(reader, LongMerger.mergeSuppliers(queues, SortableFeature.COMPARE_BYTES));
   }
 
+  /**
+   * Reads temp features by splitting them into key ranges that {@code threads} threads merge independently, then
+   * returns the ranges in order.
+   * <p>
+   * Sorters that can't split features into ranges fall back to {@link #parallelIterator(Stats, int)}.
+   *
+   * @param stats   Stat tracker
+   * @param threads The number of parallel merge threads to spawn
+   * @return a {@link ParallelIterator} with a handle to the new merge threads that were spawned, and in
+   *         {@link Iterable} that can be used to iterate over the results.
+   */
+  default ParallelIterator partitionedIterator(Stats stats, int threads) {
+    return parallelIterator(stats, threads);
+  }
+
   int chunksToRead();
 
   record ParallelIterator(Worker reader, @Override Iterator<SortableFeature> iterator)
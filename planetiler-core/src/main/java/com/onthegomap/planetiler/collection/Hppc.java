@@ -1,5 +1,6 @@
 package com.onthegomap.planetiler.collection;
 
+import com.carrotsearch.hppc.IntIntHashMap;
 import com.carrotsearch.hppc.IntObjectHashMap;
 import com.carrotsearch.hppc.LongByteHashMap;
 import com.carrotsearch.hppc.LongByteMap;
@@ -14,6 +15,10 @@ import com.carrotsearch.hppc.SortedIterationLongObjectHashMap;
  */
 public class Hppc {
 
+  public static IntIntHashMap newIntIntHashMap() {
+    return new IntIntHashMap(10, 0.75);
+  }
+
   public static <T> IntObjectHashMap<T> newIntObjectHashMap() {
     return new IntObjectHashMap<>(10, 0.75);
   }
@@ -3,6 +3,7 @@ package com.onthegomap.planetiler.collection;
 import com.onthegomap.planetiler.util.DiskBacked;
 import com.onthegomap.planetiler.util.MemoryEstimator;
 import java.io.Closeable;
+import java.io.IOException;
 import java.nio.file.Path;
 
 /**
@@ -45,10 +46,13 @@ public interface LongLongMap extends Closeable, MemoryEstimator.HasEstimate, Dis
   static LongLongMap from(Type type, Storage storage, Storage.Params params) {
     return switch (type) {
       case NOOP -> noop();
-      case SPARSE_ARRAY -> new SparseArrayLongLongMap(AppendStore.Longs.create(storage, params));
+      case SPARSE_ARRAY -> new SparseArrayLongLongMap(AppendStore.Longs.create(storage, params),
+        indexPath(params.path()));
+      case COMPACT -> new CompactLongLongMap(AppendStore.Longs.create(storage, params), indexPath(params.path()));
       case SORTED_TABLE -> new SortedTableLongLongMap(
         new AppendStore.SmallLongs(i -> AppendStore.Ints.create(storage, params.resolve("keys-" + i))),
-        AppendStore.Longs.create(storage, params.resolve("values"))
+        AppendStore.Longs.create(storage, params.resolve("values")),
+        indexPath(params.path())
       );
       case ARRAY -> switch (storage) {
           case MMAP -> new ArrayLongLongMapMmap(params.path(), params.madvise());
@@ -58,6 +62,86 @@ public interface LongLongMap extends Closeable, MemoryEstimator.HasEstimate, Dis
     };
   }
 
+  /**
+   * Opens a map that was filled then {@link #save() saved} with {@link Storage#MMAP} storage in {@code path} by another
+   * process, so its values can be read without writing them again.
+   *
+   * @param name    name of the {@link Type} implementation the map was created with
+   * @param path    where the map stored its data
+   * @param madvise whether to use linux madvise random to improve read performance
+   * @return A longlong map instance to read values from
+   * @throws IllegalArgumentException if {@code name} is not valid
+   */
+  static LongLongMap open(String name, Path path, boolean madvise) {
+    return open(Type.from(name), new Storage.Params(path, madvise));
+  }
+
+  /**
+   * Opens a map that was filled then {@link #save() saved} with {@link Storage#MMAP} storage in {@code params} by
+   * another process.
+   */
+  static LongLongMap open(Type type, Storage.Params params) {
+    return switch (type) {
+      case NOOP -> noop();
+      case SPARSE_ARRAY -> SparseArrayLongLongMap.open(params);
+      case COMPACT -> CompactLongLongMap.open(params);
+      case SORTED_TABLE -> SortedTableLongLongMap.open(params);
+      case ARRAY -> ArrayLongLongMapMmap.open(params.path(), params.madvise());
+    };
+  }
+
+  /**
+   * Returns where a map stored in {@code path} keeps the index that it holds in memory once {@link #save() saved}, so
+   * callers can delete it along with {@code path}.
+   */
+  static Path indexPath(Path path) {
+    return path.resolveSibling(path.getFileName() + ".index");
+  }
+
+  /**
+   * Returns a view of {@code map} that reads from it and ignores writes, for running a pass that already filled
+   * {@code map} again to rebuild other state.
+   */
+  static LongLongMap withoutWrites(LongLongMap map) {
+    return new ParallelWrites() {
+      @Override
+      public Writer newWriter() {
+        return (key, value) -> {
+        };
+      }
+
+      @Override
+      public long get(long key) {
+        return map.get(key);
+      }
+
+      @Override
+      public long[] multiGet(long[] keys) {
+        return map.multiGet(keys);
+      }
+
+      @Override
+      public void prefetch(long[] sortedKeys) {
+        map.prefetch(sortedKeys);
+      }
+
+      @Override
+      public long diskUsageBytes() {
+        return map.diskUsageBytes();
+      }
+
+      @Override
+      public long estimateMemoryUsageBytes() {
+        return map.estimateMemoryUsageBytes();
+      }
+
+      @Override
+      public void close() throws IOException {
+        map.close();
+      }
+    };
+  }
+
   /** Returns a new long map using {@link Type#SORTED_TABLE} and {@link Storage#RAM}. */
   static LongLongMap newInMemorySortedTable() {
     return from(Type.SORTED_TABLE, Storage.RAM, new Storage.Params(Path.of("."), false));
@@ -82,6 +166,9 @@ public interface LongLongMap extends Closeable, MemoryEstimator.HasEstimate, Dis
         return 0;
       }
 
+      @Override
+      public void save() {}
+
       @Override
       public void close() {}
     };
@@ -106,6 +193,23 @@ public interface LongLongMap extends Closeable, MemoryEstimator.HasEstimate, Dis
     return 0;
   }
 
+  /**
+   * Hints that values for {@code sortedKeys}, in ascending order, will be read soon so that implementations backed by
+   * memory-mapped files can ask the OS to start loading them before they are read.
+   */
+  default void prefetch(long[] sortedKeys) {}
+
+  /**
+   * Writes values and anything this map keeps in memory to disk after all values have been written, so that
+   * {@link #open(Type, Storage.Params)} can read them from another process.
+   *
+   * @throws UnsupportedOperationException if this map does not use {@link Storage#MMAP} storage from
+   *                                       {@link #from(Type, Storage, Storage.Params)}
+   */
+  default void save() {
+    throw new UnsupportedOperationException("save");
+  }
+
   default long[] multiGet(long[] key) {
     long[] result = new long[key.length];
     for (int i = 0; i < key.length; i++) {
@@ -139,6 +243,16 @@ public interface LongLongMap extends Closeable, MemoryEstimator.HasEstimate, Dis
      */
     SPARSE_ARRAY("sparsearray"),
 
+    /**
+     * Stores values in compressed blocks of 256 keys, encoding each value as the difference from the previous one.
+     * <p>
+     * Node locations for nearby node IDs tend to be close together, so this uses around ~6 bytes per node location as
+     * the input approaches full planet size. Ideal for full-planet imports that should fit in RAM.
+     * <p>
+     * NOTE: Requires ordered writes from a single thread.
+     */
+    COMPACT("compact"),
+
     /**
      * Stores values in indexed by key, without compressing unused ranges from the key space so that writes can be done
      * from multiple threads in parallel.
@@ -1,6 +1,13 @@
 package com.onthegomap.planetiler.collection;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  * A longlong map that stores keys and values sorted by key and does a binary search to lookup values.
@@ -11,15 +18,37 @@ public class SortedTableLongLongMap implements LongLongMap, LongLongMap.Sequenti
    * It's not actually a binary search, it keeps track of the first index of each block of 256 keys, so it
    * can do an O(1) lookup to narrow down the search space to 256 values.
    */
-  private final AppendStore.Longs offsets = new AppendStoreRam.Longs(false);
+  private final AppendStoreRam.Longs offsets = new AppendStoreRam.Longs(false);
   private final AppendStore.Longs keys;
   private final AppendStore.Longs values;
+  private final Path indexPath;
   private long lastChunk = -1;
   private long lastKey = -1;
 
   public SortedTableLongLongMap(AppendStore.Longs keys, AppendStore.Longs values) {
+    this(keys, values, null);
+  }
+
+  /** Creates a map that {@link #save()} writes the in-memory parts of to {@code indexPath}. */
+  SortedTableLongLongMap(AppendStore.Longs keys, AppendStore.Longs values, Path indexPath) {
     this.keys = keys;
     this.values = values;
+    this.indexPath = indexPath;
+  }
+
+  /** Opens a map that {@link #save()} stored in {@code params} for reading. */
+  static SortedTableLongLongMap open(Storage.Params params) {
+    var result = new SortedTableLongLongMap(
+      new AppendStore.SmallLongs(i -> AppendStore.Ints.open(params.resolve("keys-" + i))),
+      AppendStore.Longs.open(params.resolve("values")),
+      LongLongMap.indexPath(params.path())
+    );
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(result.indexPath)))) {
+      result.offsets.readFrom(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return result;
   }
 
   @Override
@@ -66,6 +95,20 @@ public class SortedTableLongLongMap implements LongLongMap, LongLongMap.Sequenti
     return MISSING_VALUE;
   }
 
+  @Override
+  public void save() {
+    if (indexPath == null) {
+      throw new UnsupportedOperationException("Only maps from LongLongMap.from can be saved");
+    }
+    keys.save();
+    values.save();
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexPath)))) {
+      offsets.writeTo(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   @Override
   public long diskUsageBytes() {
     return keys.diskUsageBytes() + values.diskUsageBytes();
@@ -3,7 +3,14 @@ package com.onthegomap.planetiler.collection;
 import static com.onthegomap.planetiler.util.MemoryEstimator.estimateSize;
 
 import com.carrotsearch.hppc.ByteArrayList;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  * A longlong map that only stores values and uses the key as an index into the array, with some tweaks to avoid storing
@@ -13,17 +20,38 @@ public class SparseArrayLongLongMap implements LongLongMap, LongLongMap.Sequenti
 
   // The key space is broken into chunks of 256 and for each chunk, store:
   // 1) the index in the outputs array for the first key in the block
-  private final AppendStore.Longs offsets = new AppendStoreRam.Longs(false);
+  private final AppendStoreRam.Longs offsets = new AppendStoreRam.Longs(false);
   // 2) the number of leading 0's at the start of each block
   private final ByteArrayList offsetStartPad = new ByteArrayList();
 
   private final AppendStore.Longs values;
+  private final Path indexPath;
   private int lastChunk = -1;
   private int lastOffset = 0;
   private long lastKey = -1;
 
   public SparseArrayLongLongMap(AppendStore.Longs values) {
+    this(values, null);
+  }
+
+  /** Creates a map that {@link #save()} writes the in-memory parts of to {@code indexPath}. */
+  SparseArrayLongLongMap(AppendStore.Longs values, Path indexPath) {
     this.values = values;
+    this.indexPath = indexPath;
+  }
+
+  /** Opens a map that {@link #save()} stored in {@code params} for reading. */
+  static SparseArrayLongLongMap open(Storage.Params params) {
+    var result = new SparseArrayLongLongMap(AppendStore.Longs.open(params), LongLongMap.indexPath(params.path()));
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(result.indexPath)))) {
+      result.offsets.readFrom(in);
+      byte[] startPads = new byte[in.readInt()];
+      in.readFully(startPads);
+      result.offsetStartPad.add(startPads);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return result;
   }
 
   @Override
@@ -55,10 +83,29 @@ public class SparseArrayLongLongMap implements LongLongMap, LongLongMap.Sequenti
 
   @Override
   public long get(long key) {
+    long index = indexOf(key);
+    return index < 0 ? MISSING_VALUE : values.getLong(index);
+  }
+
+  @Override
+  public void prefetch(long[] sortedKeys) {
+    long[] indexes = new long[sortedKeys.length];
+    int count = 0;
+    for (long key : sortedKeys) {
+      long index = indexOf(key);
+      if (index >= 0) {
+        indexes[count++] = index;
+      }
+    }
+    values.prefetch(indexes, count);
+  }
+
+  /** Returns the index in {@code values} where the value for {@code key} is stored, or -1 if it is not present. */
+  private long indexOf(long key) {
     int chunk = (int) (key >>> 8);
     int offset = (int) (key & 255);
     if (chunk >= offsets.size()) {
-      return MISSING_VALUE;
+      return -1;
     }
 
     long lo = offsets.getLong(chunk);
@@ -68,10 +115,25 @@ public class SparseArrayLongLongMap implements LongLongMap, LongLongMap.Sequenti
     long index = lo + offset - startPad;
 
     if (index > hi || index < lo) {
-      return MISSING_VALUE;
+      return -1;
     }
 
-    return values.getLong(index);
+    return index;
+  }
+
+  @Override
+  public void save() {
+    if (indexPath == null) {
+      throw new UnsupportedOperationException("Only maps from LongLongMap.from can be saved");
+    }
+    values.save();
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexPath)))) {
+      offsets.writeTo(out);
+      out.writeInt(offsetStartPad.size());
+      out.write(offsetStartPad.buffer, 0, offsetStartPad.size());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   @Override
@@ -22,6 +22,7 @@ public record PlanetilerConfig(
   int featureWriteThreads,
   int featureProcessThreads,
   int featureReadThreads,
+  int featureMergeThreads,
   int tileWriteThreads,
   Duration logInterval,
   int minzoom,
@@ -29,10 +30,14 @@ public record PlanetilerConfig(
   int maxzoomForRendering,
   boolean force,
   boolean append,
+  boolean resume,
+  int archiveShards,
+  int archiveShard,
   boolean compressTempStorage,
   boolean mmapTempStorage,
   int sortMaxReaders,
   int sortMaxWriters,
+  boolean sortOnSpill,
   String nodeMapType,
   String nodeMapStorage,
   boolean nodeMapMadvise,
@@ -50,21 +55,24 @@ public record PlanetilerConfig(
   double simplifyToleranceAtMaxZoom,
   double simplifyToleranceBelowMaxZoom,
   boolean osmLazyReads,
+  boolean osmBatchNodeLookups,
   boolean skipFilledTiles,
   int tileWarningSizeBytes,
   Boolean color,
   boolean keepUnzippedSources,
   TileCompression tileCompression,
+  boolean tileCompressionDictionary,
   boolean outputLayerStats,
   String debugUrlPattern,
   Path tmpDir,
   Path tileWeights,
   double maxPointBuffer,
-  boolean logJtsExceptions
+  boolean logJtsExceptions,
+  boolean compileExpressions
 ) {
 
   public static final int MIN_MINZOOM = 0;
-  public static final int MAX_MAXZOOM = 15;
+  public static final int MAX_MAXZOOM = 18;
   private static final int DEFAULT_MAXZOOM = 14;
 
   public PlanetilerConfig {
@@ -77,6 +85,22 @@ public record PlanetilerConfig(
     if (maxzoom > MAX_MAXZOOM) {
       throw new IllegalArgumentException("Max zoom must be <= " + MAX_MAXZOOM + ", was " + maxzoom);
     }
+    if (tileCompressionDictionary && tileCompression != TileCompression.ZSTD) {
+      throw new IllegalArgumentException("Tile compression dictionaries are only supported with zstd compression");
+    }
+    if (archiveShards < 1 || archiveShard == 0 || archiveShard < -1 || archiveShard >= archiveShards) {
+      throw new IllegalArgumentException("Invalid archive shard " + archiveShard + " of " + archiveShards +
+        ", workers encode shards 1 to archive_shards - 1 and the coordinator encodes shard 0");
+    }
+    if (archiveShards > 1) {
+      if (!resume) {
+        throw new IllegalArgumentException("Archive shards share sorted features through a checkpoint, use --resume");
+      }
+      if (tileCompressionDictionary || outputLayerStats) {
+        throw new IllegalArgumentException(
+          "Archive shards do not support tile compression dictionaries or layer stats output");
+      }
+    }
     if (httpRetries < 0) {
       throw new IllegalArgumentException("HTTP Retries must be >= 0, was " + httpRetries);
     }
@@ -124,6 +148,10 @@ public record PlanetilerConfig(
       arguments.getInteger("render_maxzoom", "maximum rendering zoom level up to " + MAX_MAXZOOM,
         Math.max(maxzoom, DEFAULT_MAXZOOM));
     Path tmpDir = arguments.file("tmpdir", "temp directory", Path.of("data", "tmp"));
+    int archiveShards = arguments.getInteger("archive_shards",
+      "split encoding tiles across this many processes that share tmpdir, the coordinator encodes the first shard " +
+        "and merges the rest into the output",
+      1);
 
     return new PlanetilerConfig(
       arguments,
@@ -133,6 +161,10 @@ public record PlanetilerConfig(
       featureProcessThreads,
       arguments.getInteger("feature_read_threads", "number of threads to use when reading features at tile write time",
         threads < 32 ? 1 : 2),
+      arguments.getInteger("feature_merge_threads",
+        "number of threads to use when merging sorted features at tile write time by splitting them into key ranges, " +
+          "or 0 to merge in a single thread",
+        threads < 32 ? 0 : threads / 16),
       arguments.getInteger("tile_write_threads",
         "number of threads used to write tiles - only supported by " + Stream.of(TileArchiveConfig.Format.values())
           .filter(TileArchiveConfig.Format::supportsConcurrentWrites).map(TileArchiveConfig.Format::id).toList(),
@@ -146,13 +178,27 @@ public record PlanetilerConfig(
         "append to the output file - only supported by " + Stream.of(TileArchiveConfig.Format.values())
           .filter(TileArchiveConfig.Format::supportsAppend).map(TileArchiveConfig.Format::id).toList(),
         false),
+      arguments.getBoolean("resume",
+        "keep temp files and record a checkpoint after each stage, and pick up from the last checkpoint in tmpdir " +
+          "left by a previous run with the same arguments - encoded tiles get staged in tmpdir before being copied " +
+          "to the output so it needs extra disk space",
+        archiveShards > 1),
+      archiveShards,
+      arguments.getInteger("archive_shard",
+        "run as a worker that waits for the coordinator to sort features then encodes this shard (1 to " +
+          "archive_shards - 1) of tiles, or -1 to run as the coordinator",
+        -1),
       arguments.getBoolean("compress_temp|gzip_temp",
-        "compress temporary feature storage (uses more CPU, but less disk space)", false),
+        "compress temporary feature storage with zstd (uses more CPU, but less disk space)", false),
       arguments.getBoolean("mmap_temp", "use memory-mapped IO for temp feature files", true),
       arguments.getInteger("sort_max_readers", "maximum number of concurrent read threads to use when sorting chunks",
         6),
       arguments.getInteger("sort_max_writers", "maximum number of concurrent write threads to use when sorting chunks",
         6),
+      arguments.getBoolean("sort_on_spill",
+        "sort features in memory before writing each temp chunk to disk so the sort stage only has to merge small " +
+          "leftover chunks",
+        false),
       arguments
         .getString("nodemap_type", "type of node location map, one of " + Stream.of(LongLongMap.Type.values()).map(
           t -> t.id()).toList(), LongLongMap.Type.SPARSE_ARRAY.id()),
@@ -188,6 +234,9 @@ public record PlanetilerConfig(
       arguments.getBoolean("osm_lazy_reads",
         "Read OSM blocks from disk in worker threads",
         true),
+      arguments.getBoolean("osm_batch_node_lookups",
+        "Look up node locations for all ways in an OSM block at once in node ID order",
+        true),
       arguments.getBoolean("skip_filled_tiles",
         "Skip writing tiles containing only polygon fills to the output",
         false),
@@ -202,6 +251,10 @@ public record PlanetilerConfig(
           "the tile compression, one of " +
             TileCompression.availableValues().stream().map(TileCompression::id).toList(),
           "gzip")),
+      arguments.getBoolean("tile_compression_dictionary",
+        "train a zstd dictionary per band of zoom levels from a sample of tiles and compress each tile against it " +
+          "(requires --tile_compression=zstd, output can only be decoded by readers that understand the dictionary)",
+        false),
       arguments.getBoolean("output_layerstats", "output a tsv.gz file for each tile/layer size", false),
       arguments.getString("debug_url", "debug url to use for displaying tiles with {z} {lat} {lon} placeholders",
         "https://onthegomap.github.io/planetiler-demo/#{z}/{lat}/{lon}"),
@@ -213,7 +266,11 @@ public record PlanetilerConfig(
           "clients that handle label collisions across tiles (most web and native clients). NOTE: Do not reduce if you need to support " +
           "raster tile rendering",
         Double.POSITIVE_INFINITY),
-      arguments.getBoolean("log_jts_exceptions", "Emit verbose details to debug JTS geometry errors", false)
+      arguments.getBoolean("log_jts_exceptions", "Emit verbose details to debug JTS geometry errors", false),
+      arguments.getBoolean("compile_expressions",
+        "Compile profile filter expressions into specialized matchers up front instead of interpreting them on " +
+          "every feature",
+        false)
     );
   }
 
@@ -8,6 +8,7 @@ import com.onthegomap.planetiler.reader.SourceFeature;
 import com.onthegomap.planetiler.reader.WithGeometryType;
 import com.onthegomap.planetiler.reader.WithTags;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -19,6 +20,7 @@ import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +33,9 @@ import org.slf4j.LoggerFactory;
  * <p>
  * {@link Index#getMatches(WithTags)} )} returns the data value associated with the expressions that match an input
  * element.
+ * <p>
+ * {@link #compiledIndex()} returns an index that also compiles each expression into a tree of specialized matchers up
+ * front instead of interpreting it for every element, and finds the first match without allocating lists of results.
  *
  * @param <T> type of data value associated with each expression
  */
@@ -67,6 +72,19 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
     };
   }
 
+  /**
+   * Calls {@code acceptKey} for every tag key that an index should use to look up {@code exp}, including the parent
+   * keys of nested fields like {@code a.b}.
+   */
+  private static void getIndexKeys(Expression exp, Consumer<String> acceptKey) {
+    getRelevantKeys(exp, key -> {
+      while (!key.isBlank()) {
+        acceptKey.accept(key);
+        key = key.replaceAll("(^|(\\[])?\\.)[^.]*$", "");
+      }
+    });
+  }
+
   /** Calls {@code acceptKey} for every tag that could possibly cause {@code exp} to match an input element. */
   private static void getRelevantKeys(Expression exp, Consumer<String> acceptKey) {
     // if a sub-expression must always be evaluated, then either the whole expression must always be evaluated
@@ -89,7 +107,7 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
 
   /** Returns an optimized index for matching {@link #expressions()} against each input element. */
   public Index<T> index() {
-    return index(false);
+    return index(false, false);
   }
 
   /**
@@ -97,21 +115,31 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
    * input.
    */
   public Index<T> indexAndWarn() {
-    return index(true);
+    return index(true, false);
+  }
+
+  /**
+   * Same as {@link #index()} but compiles expressions ahead of time, which takes longer to build but is faster to match
+   * against each input element.
+   * <p>
+   * Use this for large indexes that get evaluated on every source feature, like a profile's layer mapping.
+   */
+  public Index<T> compiledIndex() {
+    return index(false, true);
   }
 
-  private Index<T> index(boolean warn) {
+  private Index<T> index(boolean warn, boolean compile) {
     if (expressions.isEmpty()) {
       return new EmptyIndex<>();
     }
     if (contains(Expression.MatchSource.class::isInstance)) {
-      return new SourceIndex<>(this, warn);
+      return new SourceIndex<>(this, warn, compile);
     } else if (contains(Expression.MatchSourceLayer.class::isInstance)) {
-      return new SourceLayerIndex<>(this, warn);
+      return new SourceLayerIndex<>(this, warn, compile);
     } else if (contains(Expression.MatchType.class::isInstance)) {
-      return new GeometryTypeIndex<>(this, warn);
+      return new GeometryTypeIndex<>(this, warn, compile);
     }
-    return new KeyIndex<>(simplify(), warn);
+    return compile ? new CompiledKeyIndex<>(simplify(), warn) : new KeyIndex<>(simplify(), warn);
   }
 
   private boolean contains(Predicate<Expression> test) {
@@ -214,6 +242,14 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
     int id();
   }
 
+  /** Logs a warning about expressions that must be evaluated on every input element. */
+  private static void warnAlwaysEvaluated(List<? extends EntryWithId<?>> always) {
+    LOGGER.warn("{} expressions will be evaluated for every element:", always.size());
+    for (var expression : always) {
+      LOGGER.warn("    {}: {}", expression.result, expression.expression);
+    }
+  }
+
   private static class EmptyIndex<T> implements Index<T> {
 
     @Override
@@ -252,21 +288,13 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
         if (mustAlwaysEvaluate(expression)) {
           always.add(expressionValue);
         } else {
-          getRelevantKeys(expression,
-            key -> {
-              while (!key.isBlank()) {
-                keyToExpressions.computeIfAbsent(key, k -> new HashSet<>()).add(expressionValue);
-                key = key.replaceAll("(^|(\\[])?\\.)[^.]*$", "");
-              }
-            });
+          getIndexKeys(expression,
+            key -> keyToExpressions.computeIfAbsent(key, k -> new HashSet<>()).add(expressionValue));
         }
       }
       // create immutable copies for fast iteration at matching time
       if (warn && !always.isEmpty()) {
-        LOGGER.warn("{} expressions will be evaluated for every element:", always.size());
-        for (var expression : always) {
-          LOGGER.warn("    {}: {}", expression.result, expression.expression);
-        }
+        warnAlwaysEvaluated(always);
       }
       alwaysEvaluateExpressionList = List.copyOf(always);
       keyToExpressionsMap = keyToExpressions.entrySet().stream().collect(Collectors.toUnmodifiableMap(
@@ -319,6 +347,271 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
     }
   }
 
+  /** A compiled {@link Expression} that tests whether it matches an input element without recording match keys. */
+  @FunctionalInterface
+  private interface Matcher {
+
+    boolean matches(WithTags input);
+  }
+
+  /**
+   * Returns a {@link Matcher} specialized for the structure of {@code expression}, falling back to
+   * {@link Expression#evaluate(WithTags)} for parts it does not know how to specialize.
+   */
+  private static Matcher compile(Expression expression) {
+    return switch (expression) {
+      case Expression.Constant(var value, var ignored) -> value ? input -> true : input -> false;
+      case Expression.Not(var child) -> {
+        Matcher matcher = compile(child);
+        yield input -> !matcher.matches(input);
+      }
+      case Expression.And(var children) when children.size() == 2 -> {
+        Matcher a = compile(children.get(0));
+        Matcher b = compile(children.get(1));
+        yield input -> a.matches(input) && b.matches(input);
+      }
+      case Expression.And(var children) -> {
+        Matcher[] matchers = children.stream().map(MultiExpression::compile).toArray(Matcher[]::new);
+        yield input -> {
+          for (Matcher matcher : matchers) {
+            if (!matcher.matches(input)) {
+              return false;
+            }
+          }
+          return true;
+        };
+      }
+      case Expression.Or(var children) when children.size() == 2 -> {
+        Matcher a = compile(children.get(0));
+        Matcher b = compile(children.get(1));
+        yield input -> a.matches(input) || b.matches(input);
+      }
+      case Expression.Or(var children) -> {
+        Matcher[] matchers = children.stream().map(MultiExpression::compile).toArray(Matcher[]::new);
+        yield input -> {
+          for (Matcher matcher : matchers) {
+            if (matcher.matches(input)) {
+              return true;
+            }
+          }
+          return false;
+        };
+      }
+      case Expression.MatchField(var field) -> input -> {
+        Object value = input.getTag(field);
+        return value != null && !"".equals(value) && !(value instanceof Collection<?> c && c.isEmpty());
+      };
+      case Expression.MatchAny any when any.valueGetter() == DataType.GET_TAG -> compileMatchAny(any);
+      case Expression.MatchType(var type) -> switch (type) {
+        case Expression.POINT_TYPE -> input -> input instanceof WithGeometryType g && g.isPoint();
+        case Expression.LINESTRING_TYPE -> input -> input instanceof WithGeometryType g && g.canBeLine();
+        case Expression.POLYGON_TYPE -> input -> input instanceof WithGeometryType g && g.canBePolygon();
+        default -> input -> false;
+      };
+      case Expression.MatchSource(var source) -> input -> input instanceof SourceFeature feature &&
+        source.equals(feature.getSource());
+      case Expression.MatchSourceLayer(var layer) -> input -> input instanceof SourceFeature feature &&
+        layer.equals(feature.getSourceLayer());
+      default -> expression::evaluate;
+    };
+  }
+
+  /**
+   * Returns a {@link Matcher} for the common case of a string tag value, falling back to the interpreted expression for
+   * lists and other types of values.
+   */
+  private static Matcher compileMatchAny(Expression.MatchAny any) {
+    String field = any.field();
+    boolean matchWhenMissing = any.matchWhenMissing();
+    Pattern pattern = any.pattern();
+    Set<String> exactMatches = any.exactMatches();
+    if (pattern == null && exactMatches.size() == 1) {
+      String only = exactMatches.iterator().next();
+      return input -> input.getTag(field) instanceof String string ?
+        (string.isEmpty() ? matchWhenMissing : only.equals(string)) :
+        any.evaluate(input);
+    } else if (pattern == null) {
+      return input -> input.getTag(field) instanceof String string ?
+        (string.isEmpty() ? matchWhenMissing : exactMatches.contains(string)) :
+        any.evaluate(input);
+    }
+    return input -> input.getTag(field) instanceof String string ?
+      (string.isEmpty() ? matchWhenMissing : (exactMatches.contains(string) || pattern.matcher(string).matches())) :
+      any.evaluate(input);
+  }
+
+  /**
+   * Same as {@link KeyIndex} but evaluates {@link Matcher Matchers} compiled from each expression, and only
+   * re-evaluates the original expression to record the keys that triggered a match when the caller asks for them.
+   */
+  private static class CompiledKeyIndex<T> implements Index<T> {
+
+    private final List<EntryWithId<T>> entries;
+    private final Matcher[] matchers;
+    // positions of expressions that must always be evaluated on each input element
+    private final int[] always;
+    // index from tag key to the ascending positions of expressions that include it
+    private final Map<String, int[]> keyToPositions;
+    // same as keyToPositions but as arrays for when there are more tags on an element than keys we care about
+    private final String[] keys;
+    private final int[][] positionsByKey;
+
+    private CompiledKeyIndex(MultiExpression<T> expressions, boolean warn) {
+      int size = expressions.expressions.size();
+      List<EntryWithId<T>> entryList = new ArrayList<>(size);
+      matchers = new Matcher[size];
+      List<Integer> alwaysList = new ArrayList<>();
+      List<EntryWithId<T>> alwaysEntries = new ArrayList<>();
+      Map<String, Set<Integer>> positions = new HashMap<>();
+      for (int i = 0; i < size; i++) {
+        var entry = expressions.expressions.get(i);
+        Expression expression = entry.expression;
+        EntryWithId<T> expressionValue = new EntryWithId<>(entry.result, expression, i + 1);
+        entryList.add(expressionValue);
+        matchers[i] = compile(expression);
+        if (mustAlwaysEvaluate(expression)) {
+          alwaysList.add(i);
+          alwaysEntries.add(expressionValue);
+        } else {
+          int position = i;
+          getIndexKeys(expression, key -> positions.computeIfAbsent(key, k -> new HashSet<>()).add(position));
+        }
+      }
+      if (warn && !alwaysEntries.isEmpty()) {
+        warnAlwaysEvaluated(alwaysEntries);
+      }
+      entries = List.copyOf(entryList);
+      always = alwaysList.stream().mapToInt(Integer::intValue).toArray();
+      keyToPositions = positions.entrySet().stream().collect(Collectors.toUnmodifiableMap(
+        Map.Entry::getKey,
+        entry -> entry.getValue().stream().mapToInt(Integer::intValue).sorted().toArray()
+      ));
+      keys = keyToPositions.keySet().toArray(String[]::new);
+      positionsByKey = new int[keys.length][];
+      for (int i = 0; i < keys.length; i++) {
+        positionsByKey[i] = keyToPositions.get(keys[i]);
+      }
+    }
+
+    /** Returns a bitset of the positions of expressions that could match {@code input}. */
+    private long[] candidates(WithTags input) {
+      long[] result = new long[(matchers.length + 63) >>> 6];
+      addCandidates(result, always);
+      Map<String, Object> tags = input.tags();
+      if (tags.size() < keys.length) {
+        for (String inputKey : tags.keySet()) {
+          int[] positions = keyToPositions.get(inputKey);
+          if (positions != null) {
+            addCandidates(result, positions);
+          }
+        }
+      } else {
+        for (int i = 0; i < keys.length; i++) {
+          if (tags.containsKey(keys[i])) {
+            addCandidates(result, positionsByKey[i]);
+          }
+        }
+      }
+      return result;
+    }
+
+    private static void addCandidates(long[] bits, int[] positions) {
+      for (int position : positions) {
+        bits[position >>> 6] |= 1L << position;
+      }
+    }
+
+    /**
+     * Returns the position of the first expression that matches {@code input}, or the number of expressions if none
+     * match.
+     * <p>
+     * Each list of candidates is already sorted, so this stops scanning a list as soon as it reaches the best match so
+     * far, and does not need to allocate anything to track which candidates it has visited.
+     */
+    private int firstMatch(WithTags input) {
+      int best = firstMatch(input, always, matchers.length);
+      Map<String, Object> tags = input.tags();
+      if (tags.size() < keys.length) {
+        for (String inputKey : tags.keySet()) {
+          int[] positions = keyToPositions.get(inputKey);
+          if (positions != null) {
+            best = firstMatch(input, positions, best);
+          }
+        }
+      } else {
+        for (int i = 0; i < keys.length; i++) {
+          if (tags.containsKey(keys[i])) {
+            best = firstMatch(input, positionsByKey[i], best);
+          }
+        }
+      }
+      return best;
+    }
+
+    private int firstMatch(WithTags input, int[] positions, int best) {
+      for (int position : positions) {
+        if (position >= best) {
+          break;
+        } else if (matchers[position].matches(input)) {
+          return position;
+        }
+      }
+      return best;
+    }
+
+    @Override
+    public List<Match<T>> getMatchesWithTriggers(WithTags input) {
+      List<Match<T>> result = new ArrayList<>();
+      long[] candidates = candidates(input);
+      for (int i = 0; i < candidates.length; i++) {
+        for (long word = candidates[i]; word != 0; word &= word - 1) {
+          int position = (i << 6) + Long.numberOfTrailingZeros(word);
+          if (matchers[position].matches(input)) {
+            var entry = entries.get(position);
+            List<String> matchKeys = new ArrayList<>();
+            entry.expression.evaluate(input, matchKeys);
+            result.add(new Match<>(entry.result, matchKeys, entry.id));
+          }
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public List<T> getMatches(WithTags input) {
+      List<T> result = null;
+      long[] candidates = candidates(input);
+      for (int i = 0; i < candidates.length; i++) {
+        for (long word = candidates[i]; word != 0; word &= word - 1) {
+          int position = (i << 6) + Long.numberOfTrailingZeros(word);
+          if (matchers[position].matches(input)) {
+            if (result == null) {
+              result = new ArrayList<>();
+            }
+            result.add(entries.get(position).result);
+          }
+        }
+      }
+      return result == null ? List.of() : result;
+    }
+
+    @Override
+    public T getOrElse(WithTags input, T defaultValue) {
+      int position = firstMatch(input);
+      return position < matchers.length ? entries.get(position).result : defaultValue;
+    }
+
+    @Override
+    public T getOrElse(Map<String, Object> tags, T defaultValue) {
+      return getOrElse(WithTags.from(tags), defaultValue);
+    }
+
+    @Override
+    public boolean matches(WithTags input) {
+      return firstMatch(input) < matchers.length;
+    }
+  }
+
   /** Index that limits the search space of expressions based on geometry type of an input element. */
   private static class GeometryTypeIndex<T> implements Index<T> {
 
@@ -327,21 +620,53 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
     private final Index<T> polygonIndex;
     private final Index<T> otherIndex;
 
-    private GeometryTypeIndex(MultiExpression<T> expressions, boolean warn) {
+    private GeometryTypeIndex(MultiExpression<T> expressions, boolean warn, boolean compile) {
       // build an index per type then search in each of those indexes based on the geometry type of each input element
       // this narrows the search space substantially, improving matching performance
-      pointIndex = indexForType(expressions, Expression.POINT_TYPE, warn);
-      lineIndex = indexForType(expressions, Expression.LINESTRING_TYPE, warn);
-      polygonIndex = indexForType(expressions, Expression.POLYGON_TYPE, warn);
-      otherIndex = indexForType(expressions, Expression.UNKNOWN_GEOMETRY_TYPE, warn);
+      pointIndex = indexForType(expressions, Expression.POINT_TYPE, warn, compile);
+      lineIndex = indexForType(expressions, Expression.LINESTRING_TYPE, warn, compile);
+      polygonIndex = indexForType(expressions, Expression.POLYGON_TYPE, warn, compile);
+      otherIndex = indexForType(expressions, Expression.UNKNOWN_GEOMETRY_TYPE, warn, compile);
     }
 
-    private Index<T> indexForType(MultiExpression<T> expressions, String type, boolean warn) {
+    private Index<T> indexForType(MultiExpression<T> expressions, String type, boolean warn, boolean compile) {
       return expressions
         .replace(matchType(type), TRUE)
         .replace(e -> e instanceof Expression.MatchType, FALSE)
         .simplify()
-        .index(warn);
+        .index(warn, compile);
+    }
+
+    /** Returns the only index to search for {@code input}, or null if it needs both the line and polygon indexes. */
+    private Index<T> singleIndexFor(WithTags input) {
+      if (input instanceof WithGeometryType withGeometryType) {
+        if (withGeometryType.isPoint()) {
+          return pointIndex;
+        } else if (withGeometryType.canBeLine()) {
+          return withGeometryType.canBePolygon() ? null : lineIndex;
+        } else if (withGeometryType.canBePolygon()) {
+          return polygonIndex;
+        }
+      }
+      return otherIndex;
+    }
+
+    @Override
+    public List<T> getMatches(WithTags input) {
+      Index<T> index = singleIndexFor(input);
+      return index != null ? index.getMatches(input) : Index.super.getMatches(input);
+    }
+
+    @Override
+    public T getOrElse(WithTags input, T defaultValue) {
+      Index<T> index = singleIndexFor(input);
+      return index != null ? index.getOrElse(input, defaultValue) : Index.super.getOrElse(input, defaultValue);
+    }
+
+    @Override
+    public boolean matches(WithTags input) {
+      Index<T> index = singleIndexFor(input);
+      return index != null ? index.matches(input) : Index.super.matches(input);
     }
 
     /**
@@ -377,8 +702,8 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
     private final Map<String, Index<T>> sourceIndex;
     private final Index<T> allSourcesIndex;
 
-    private StringFieldIndex(MultiExpression<T> expressions, boolean warn, Function<Expression, String> extract,
-      Function<String, Expression> make) {
+    private StringFieldIndex(MultiExpression<T> expressions, boolean warn, boolean compile,
+      Function<Expression, String> extract, Function<String, Expression> make) {
       Set<String> sources = new HashSet<>();
       for (var expression : expressions.expressions) {
         expression.expression.visit(e -> {
@@ -394,32 +719,43 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
           .replace(make.apply(source), TRUE)
           .replace(e -> extract.apply(e) != null, FALSE)
           .simplify()
-          .index(warn);
+          .index(warn, compile);
         if (!forThisSource.isEmpty()) {
           sourceIndex.put(source, forThisSource);
         }
       }
-      allSourcesIndex = expressions.replace(e -> extract.apply(e) != null, FALSE).simplify().index(warn);
+      allSourcesIndex = expressions.replace(e -> extract.apply(e) != null, FALSE).simplify().index(warn, compile);
     }
 
     abstract String extract(WithTags input);
 
+    private Index<T> indexFor(WithTags input) {
+      String key = extract(input);
+      Index<T> index = key == null ? null : sourceIndex.get(key);
+      return index != null ? index : allSourcesIndex;
+    }
+
+    @Override
+    public List<T> getMatches(WithTags input) {
+      return indexFor(input).getMatches(input);
+    }
+
+    @Override
+    public T getOrElse(WithTags input, T defaultValue) {
+      return indexFor(input).getOrElse(input, defaultValue);
+    }
+
+    @Override
+    public boolean matches(WithTags input) {
+      return indexFor(input).matches(input);
+    }
+
     /**
      * Returns all data values associated with expressions that match an input element, along with the tag keys that
      * caused the match.
      */
     public List<Match<T>> getMatchesWithTriggers(WithTags input) {
-      List<Match<T>> result = null;
-      String key = extract(input);
-      if (key != null) {
-        var index = sourceIndex.get(key);
-        if (index != null) {
-          result = index.getMatchesWithTriggers(input);
-        }
-      }
-      if (result == null) {
-        result = allSourcesIndex.getMatchesWithTriggers(input);
-      }
+      List<Match<T>> result = indexFor(input).getMatchesWithTriggers(input);
       result.sort(BY_ID);
       return result;
     }
@@ -428,8 +764,8 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
   /** Index that limits the search space of expressions based on geometry type of an input element. */
   private static class SourceLayerIndex<T> extends StringFieldIndex<T> {
 
-    private SourceLayerIndex(MultiExpression<T> expressions, boolean warn) {
-      super(expressions, warn,
+    private SourceLayerIndex(MultiExpression<T> expressions, boolean warn, boolean compile) {
+      super(expressions, warn, compile,
         e -> e instanceof Expression.MatchSourceLayer(var layer) ? layer : null,
         Expression::matchSourceLayer);
     }
@@ -443,8 +779,8 @@ public record MultiExpression<T>(List<Entry<T>> expressions) implements Simplifi
   /** Index that limits the search space of expressions based on geometry type of an input element. */
   private static class SourceIndex<T> extends StringFieldIndex<T> {
 
-    private SourceIndex(MultiExpression<T> expressions, boolean warn) {
-      super(expressions, warn,
+    private SourceIndex(MultiExpression<T> expressions, boolean warn, boolean compile) {
+      super(expressions, warn, compile,
         e -> e instanceof Expression.MatchSource(var source) ? source : null,
         Expression::matchSource);
     }
@@ -1,7 +1,6 @@
 package com.onthegomap.planetiler.mbtiles;
 
 import static com.onthegomap.planetiler.VectorTile.decode;
-import static com.onthegomap.planetiler.util.Gzip.gunzip;
 
 import com.google.common.collect.Sets;
 import com.onthegomap.planetiler.VectorTile;
@@ -44,6 +43,8 @@ public class Compare {
       var db0 = Mbtiles.newReadOnlyDatabase(Path.of(dbPath0));
       var db1 = Mbtiles.newReadOnlyDatabase(Path.of(dbPath1))
     ) {
+      var decompressor0 = db0.tileDecompressor();
+      var decompressor1 = db1.tileDecompressor();
       long tilesCount0 = getTilesCount(db0);
       long tilesCount1 = getTilesCount(db1);
       if (tilesCount0 != tilesCount1) {
@@ -70,11 +71,11 @@ public class Compare {
           }
           lastPercentage = currentPercentage;
 
-          var features0 = decode(gunzip(db0.getTile(coord)))
+          var features0 = decode(decompressor0.decompress(z, db0.getTile(coord)))
             .stream()
             .map(VectorTileFeatureForCmp::fromActualFeature)
             .collect(Collectors.toSet());
-          var features1 = decode(gunzip(db1.getTile(coord)))
+          var features1 = decode(decompressor1.decompress(z, db1.getTile(coord)))
             .stream()
             .map(VectorTileFeatureForCmp::fromActualFeature)
             .collect(Collectors.toSet());
@@ -6,6 +6,7 @@ import com.onthegomap.planetiler.archive.ReadableTileArchive;
 import com.onthegomap.planetiler.archive.Tile;
 import com.onthegomap.planetiler.archive.TileArchiveMetadata;
 import com.onthegomap.planetiler.archive.TileArchiveMetadataDeSer;
+import com.onthegomap.planetiler.archive.TileDecompressor;
 import com.onthegomap.planetiler.archive.TileEncodingResult;
 import com.onthegomap.planetiler.archive.WriteableTileArchive;
 import com.onthegomap.planetiler.config.Arguments;
@@ -97,6 +98,7 @@ public final class Mbtiles implements WriteableTileArchive, ReadableTileArchive
   private final boolean skipIndexCreation;
   private final boolean vacuumAnalyze;
   private PreparedStatement getTileStatement = null;
+  private TileDecompressor tileDecompressor = null;
 
   private final LongSupplier bytesWritten;
 
@@ -390,6 +392,14 @@ public final class Mbtiles implements WriteableTileArchive, ReadableTileArchive
     return new Metadata().get();
   }
 
+  @Override
+  public synchronized TileDecompressor tileDecompressor() {
+    if (tileDecompressor == null) {
+      tileDecompressor = ReadableTileArchive.super.tileDecompressor();
+    }
+    return tileDecompressor;
+  }
+
   /** Returns the contents of the metadata table. */
   public Metadata metadataTable() {
     return new Metadata();
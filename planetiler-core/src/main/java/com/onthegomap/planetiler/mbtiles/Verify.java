@@ -1,7 +1,5 @@
 package com.onthegomap.planetiler.mbtiles;
 
-import static com.onthegomap.planetiler.util.Gzip.gunzip;
-
 import com.onthegomap.planetiler.VectorTile;
 import com.onthegomap.planetiler.geo.GeometryException;
 import com.onthegomap.planetiler.geo.TileCoord;
@@ -67,7 +65,7 @@ public class Verify {
         tileEnv.expandToInclude(tileCoord.lngLatToTileCoords(envelope.getMaxX(), envelope.getMaxY()));
         if (tileCoord.z() == zoom) {
           byte[] data = db.getTile(tileCoord);
-          for (var feature : decode(data)) {
+          for (var feature : decode(db, tileCoord, data)) {
             if (layer.equals(feature.layer()) && feature.tags().entrySet().containsAll(attrs.entrySet())) {
               Geometry geometry = feature.geometry().decode();
               num += getGeometryCounts(geometry, clazz);
@@ -91,9 +89,9 @@ public class Verify {
     return count;
   }
 
-  private static List<VectorTile.Feature> decode(byte[] zipped) {
+  private static List<VectorTile.Feature> decode(Mbtiles db, TileCoord coord, byte[] compressed) {
     try {
-      return VectorTile.decode(gunzip(zipped));
+      return VectorTile.decode(db.tileDecompressor().decompress(coord.z(), compressed));
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
@@ -193,7 +191,7 @@ public class Verify {
     check("contains at least one tile", () -> mbtiles.getAllTileCoords().stream().findAny().isPresent());
     checkWithMessage("all tiles are valid", () -> {
       List<String> invalidTiles = mbtiles.getAllTileCoords().stream()
-        .flatMap(coord -> checkValidity(coord, decode(mbtiles.getTile(coord))).stream())
+        .flatMap(coord -> checkValidity(coord, decode(mbtiles, coord, mbtiles.getTile(coord))).stream())
         .toList();
       return invalidTiles.isEmpty() ? Optional.empty() :
         Optional.of(invalidTiles.size() + " invalid tiles: " + invalidTiles.stream().limit(5).toList());
@@ -4,43 +4,127 @@ import com.onthegomap.planetiler.archive.ReadableTileArchive;
 import com.onthegomap.planetiler.archive.Tile;
 import com.onthegomap.planetiler.archive.TileArchiveMetadata;
 import com.onthegomap.planetiler.archive.TileCompression;
+import com.onthegomap.planetiler.archive.TileDecompressor;
+import com.onthegomap.planetiler.config.Arguments;
 import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.util.ByteBufferUtil;
 import com.onthegomap.planetiler.util.CloseableIterator;
 import com.onthegomap.planetiler.util.Gzip;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.IntStream;
+import java.util.Map;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 import org.locationtech.jts.geom.Coordinate;
 
+/**
+ * Reads tiles from a <a href="https://github.com/protomaps/PMTiles">PMTiles</a> archive.
+ * <p>
+ * The root directory is decoded once when the archive is opened, and decoded leaf directories are kept in a
+ * least-recently-used cache bounded by the total number of entries they hold, so random tile lookups usually only need
+ * to read the tile data itself. When opened with {@code mmap=true} the archive is memory-mapped so that concurrent
+ * readers do not contend on a shared file position.
+ */
 public class ReadablePmtiles implements ReadableTileArchive {
+  /** Default limit on directory entries in cached leaf directories, roughly 50MB of heap. */
+  public static final long DEFAULT_LEAF_CACHE_ENTRIES = 1_000_000;
+  private static final long MMAP_SEGMENT_BYTES = 1L << 30;
+
   private final SeekableByteChannel channel;
+  private final MappedByteBuffer[] segments;
   private final Pmtiles.Header header;
+  private final List<Pmtiles.Entry> rootDir;
+  private final LeafCache leafCache;
+  private TileDecompressor tileDecompressor = null;
 
   public ReadablePmtiles(SeekableByteChannel channel) throws IOException {
+    this(channel, null, DEFAULT_LEAF_CACHE_ENTRIES);
+  }
+
+  /**
+   * Reads from {@code channel}, caching up to {@code leafCacheEntries} directory entries from decoded
+   * leaf directories, or none if {@code leafCacheEntries} is 0.
+   */
+  public ReadablePmtiles(SeekableByteChannel channel, long leafCacheEntries) throws IOException {
+    this(channel, null, leafCacheEntries);
+  }
+
+  private ReadablePmtiles(SeekableByteChannel channel, MappedByteBuffer[] segments, long leafCacheEntries)
+    throws IOException {
     this.channel = channel;
+    this.segments = segments;
+    this.leafCache = new LeafCache(leafCacheEntries);
 
     this.header = Pmtiles.Header.fromBytes(getBytes(0, Pmtiles.HEADER_LEN));
+    this.rootDir = readDir(header.rootDirOffset(), (int) header.rootDirLength());
   }
 
-  public static ReadableTileArchive newReadFromFile(Path path) throws IOException {
-    return new ReadablePmtiles(FileChannel.open(path, StandardOpenOption.READ));
+  public static ReadablePmtiles newReadFromFile(Path path) throws IOException {
+    return newReadFromFile(path, Arguments.of());
   }
 
-  private synchronized byte[] getBytes(long start, int length) throws IOException {
-    channel.position(start);
+  /**
+   * Returns a reader for the archive at {@code path} using {@code mmap} and {@code leaf_cache_entries} from
+   * {@code options}.
+   */
+  public static ReadablePmtiles newReadFromFile(Path path, Arguments options) throws IOException {
+    boolean mmap = options.getBoolean("mmap", "pmtiles reader: memory-map the archive for faster random reads", false);
+    long leafCacheEntries = options.getLong("leaf_cache_entries",
+      "pmtiles reader: max directory entries to keep in cached leaf directories", DEFAULT_LEAF_CACHE_ENTRIES);
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      MappedByteBuffer[] segments = mmap ? ByteBufferUtil.mapFile(channel, channel.size(), MMAP_SEGMENT_BYTES, true) :
+        null;
+      return new ReadablePmtiles(channel, segments, leafCacheEntries);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private byte[] getBytes(long start, int length) throws IOException {
+    if (segments != null) {
+      return getMappedBytes(start, length);
+    }
     var buf = ByteBuffer.allocate(length);
-    channel.read(buf);
+    if (channel instanceof FileChannel fileChannel) {
+      // positional reads don't move the shared channel position so concurrent tile reads don't need a lock
+      while (buf.hasRemaining() && fileChannel.read(buf, start + buf.position()) >= 0) {
+        // keep reading until the buffer is full or we hit the end of the file
+      }
+    } else {
+      synchronized (this) {
+        channel.position(start);
+        while (buf.hasRemaining() && channel.read(buf) >= 0) {
+          // keep reading until the buffer is full or we hit the end of the file
+        }
+      }
+    }
     return buf.array();
   }
 
+  private byte[] getMappedBytes(long start, int length) {
+    byte[] result = new byte[length];
+    int done = 0;
+    while (done < length) {
+      long position = start + done;
+      var segment = segments[(int) (position / MMAP_SEGMENT_BYTES)];
+      int offset = (int) (position % MMAP_SEGMENT_BYTES);
+      int toCopy = Math.min(length - done, segment.limit() - offset);
+      segment.get(offset, result, done, toCopy);
+      done += toCopy;
+    }
+    return result;
+  }
+
   /**
    * Finds the relevant entry for a tileId in a list of entries.
    * <p>
@@ -73,28 +157,18 @@ public class ReadablePmtiles implements ReadableTileArchive {
     try {
       var tileId = TileCoord.ofXYZ(x, y, z).hilbertEncoded();
 
-      long dirOffset = header.rootDirOffset();
-      int dirLength = (int) header.rootDirLength();
-
+      var dir = rootDir;
       for (int depth = 0; depth <= 3; depth++) {
-        byte[] dirBytes = getBytes(dirOffset, dirLength);
-        if (header.internalCompression() == Pmtiles.Compression.GZIP) {
-          dirBytes = Gzip.gunzip(dirBytes);
-        }
-
-        var dir = Pmtiles.directoryFromBytes(dirBytes);
         var entry = findTile(dir, tileId);
         if (entry != null) {
           if (entry.runLength() > 0) {
             return getBytes(header.tileDataOffset() + entry.offset(), entry.length());
           } else {
-            dirOffset = header.leafDirectoriesOffset() + entry.offset();
-            dirLength = entry.length();
+            dir = getLeafDir(header.leafDirectoriesOffset() + entry.offset(), entry.length());
           }
         } else {
           return null;
         }
-
       }
     } catch (IOException e) {
       throw new IllegalStateException("Could not get tile", e);
@@ -103,6 +177,20 @@ public class ReadablePmtiles implements ReadableTileArchive {
     return null;
   }
 
+  private List<Pmtiles.Entry> getLeafDir(long offset, int length) {
+    var dir = leafCache.get(offset);
+    if (dir == null) {
+      dir = readDir(offset, length);
+      leafCache.put(offset, dir);
+    }
+    return dir;
+  }
+
+  /** Returns hit and miss counts for the leaf directory cache since this archive was opened. */
+  public LeafCacheStats leafCacheStats() {
+    return leafCache.stats();
+  }
+
   public Pmtiles.Header getHeader() {
     return header;
   }
@@ -115,12 +203,22 @@ public class ReadablePmtiles implements ReadableTileArchive {
     return Pmtiles.JsonMetadata.fromBytes(buf);
   }
 
+  @Override
+  public synchronized TileDecompressor tileDecompressor() {
+    if (tileDecompressor == null) {
+      tileDecompressor = ReadableTileArchive.super.tileDecompressor();
+    }
+    return tileDecompressor;
+  }
+
   @Override
   public TileArchiveMetadata metadata() {
 
     TileCompression tileCompression = switch (header.tileCompression()) {
       case GZIP -> TileCompression.GZIP;
       case NONE -> TileCompression.NONE;
+      case BROTLI -> TileCompression.BROTLI;
+      case ZSTD -> TileCompression.ZSTD;
       case UNKNOWN -> TileCompression.UNKNOWN;
     };
 
@@ -168,11 +266,11 @@ public class ReadablePmtiles implements ReadableTileArchive {
     }
   }
 
-  // Warning: this will only work on z15 or less pmtiles which planetiler creates
+  // Warning: this will only work on z18 or less pmtiles which planetiler creates
   private Stream<TileCoord> getTileCoords(List<Pmtiles.Entry> dir) {
     return dir.stream().flatMap(entry -> entry.runLength() == 0 ?
-      getTileCoords(readDir(header.leafDirectoriesOffset() + entry.offset(), entry.length())) : IntStream
-        .range((int) entry.tileId(), (int) entry.tileId() + entry.runLength()).mapToObj(TileCoord::hilbertDecode));
+      getTileCoords(readDir(header.leafDirectoriesOffset() + entry.offset(), entry.length())) : LongStream
+        .range(entry.tileId(), entry.tileId() + entry.runLength()).mapToObj(TileCoord::hilbertDecode));
   }
 
   private Stream<Tile> getTiles(List<Pmtiles.Entry> dir) {
@@ -183,7 +281,7 @@ public class ReadablePmtiles implements ReadableTileArchive {
         } else {
           var data = getBytes(header.tileDataOffset() + entry.offset(), entry.length());
           for (int i = 0; i < entry.runLength(); i++) {
-            next.accept(new Tile(TileCoord.hilbertDecode((int) (entry.tileId() + i)), data));
+            next.accept(new Tile(TileCoord.hilbertDecode(entry.tileId() + i), data));
           }
         }
       } catch (IOException e) {
@@ -194,18 +292,70 @@ public class ReadablePmtiles implements ReadableTileArchive {
 
   @Override
   public CloseableIterator<TileCoord> getAllTileCoords() {
-    List<Pmtiles.Entry> rootDir = readDir(header.rootDirOffset(), (int) header.rootDirLength());
     return CloseableIterator.of(getTileCoords(rootDir));
   }
 
   @Override
   public CloseableIterator<Tile> getAllTiles() {
-    List<Pmtiles.Entry> rootDir = readDir(header.rootDirOffset(), (int) header.rootDirLength());
     return CloseableIterator.of(getTiles(rootDir));
   }
 
   @Override
   public void close() throws IOException {
+    if (segments != null) {
+      ByteBufferUtil.free(segments);
+    }
     channel.close();
   }
+
+  /**
+   * Leaf directory cache counters.
+   *
+   * @param hits        lookups that found a decoded leaf directory in the cache
+   * @param misses      lookups that had to read and decode a leaf directory
+   * @param directories leaf directories currently cached
+   * @param entries     directory entries across all cached leaf directories
+   */
+  public record LeafCacheStats(long hits, long misses, int directories, long entries) {}
+
+  /** Least-recently-used cache of decoded leaf directories by offset, bounded by the total number of entries. */
+  private static class LeafCache {
+
+    private final long maxEntries;
+    private final Map<Long, List<Pmtiles.Entry>> dirs = new LinkedHashMap<>(16, 0.75f, true);
+    private long entries = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    LeafCache(long maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+
+    synchronized List<Pmtiles.Entry> get(long offset) {
+      var dir = dirs.get(offset);
+      if (dir != null) {
+        hits++;
+      } else {
+        misses++;
+      }
+      return dir;
+    }
+
+    synchronized void put(long offset, List<Pmtiles.Entry> dir) {
+      if (dir.size() > maxEntries) {
+        return;
+      }
+      var old = dirs.put(offset, dir);
+      entries += dir.size() - (old == null ? 0 : old.size());
+      var iterator = dirs.values().iterator();
+      while (entries > maxEntries && iterator.hasNext()) {
+        entries -= iterator.next().size();
+        iterator.remove();
+      }
+    }
+
+    synchronized LeafCacheStats stats() {
+      return new LeafCacheStats(hits, misses, dirs.size(), entries);
+    }
+  }
 }
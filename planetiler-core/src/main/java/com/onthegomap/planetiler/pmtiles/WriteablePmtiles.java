@@ -180,6 +180,8 @@ public final class WriteablePmtiles implements WriteableTileArchive {
       Pmtiles.Compression tileCompression = switch (tileArchiveMetadata.tileCompression()) {
         case GZIP -> Pmtiles.Compression.GZIP;
         case NONE -> Pmtiles.Compression.NONE;
+        case BROTLI -> Pmtiles.Compression.BROTLI;
+        case ZSTD -> Pmtiles.Compression.ZSTD;
         default -> Pmtiles.Compression.UNKNOWN;
       };
 
@@ -0,0 +1,507 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongHashSet;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.onthegomap.planetiler.collection.Hppc;
+import com.onthegomap.planetiler.collection.LongLongMap;
+import com.onthegomap.planetiler.geo.GeoUtils;
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.geo.TileExtents;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Elements created, modified, or deleted by an OpenStreetMap replication diff in
+ * <a href="https://wiki.openstreetmap.org/wiki/OsmChange">OsmChange (.osc)</a> format.
+ * <p>
+ * Use {@link #dirtyTiles(PreviousState, int, int, double)} to find the tiles that need to be re-rendered after applying
+ * the change to data from a previous build.
+ * <p>
+ * This only finds dirty tiles, it does not update an archive. Builds do not keep node-to-way or way-to-relation indexes
+ * around, so {@link PreviousState#read(OsmBlockSource, LongLongMap, OsmChange)} rebuilds them from the data the change
+ * applies to. Re-rendering a dirty tile needs every feature in it, not just the changed ones, along with relation info
+ * that profiles build in pass 1, so callers re-render dirty tiles with a full build or use them to expire cached tiles.
+ */
+public record OsmChange(List<Change> changes) {
+
+  public enum Action {
+    CREATE,
+    MODIFY,
+    DELETE
+  }
+
+  /** The new version of {@code element}, or the last version of it if {@code action} is {@link Action#DELETE}. */
+  public record Change(Action action, OsmElement element) {}
+
+  /**
+   * Lookups into the state of OSM data before this change got applied, for example from the node location map and
+   * way node lists that a previous build kept around.
+   */
+  public interface PreviousState {
+
+    /** Returns the encoded location of node {@code id} or {@link LongLongMap#MISSING_VALUE} if it is not known. */
+    long nodeLocation(long id);
+
+    /** Returns the node IDs of way {@code id} or {@code null} if it is not known. */
+    LongArrayList wayNodes(long id);
+
+    /** Returns the IDs of ways that contain node {@code id} or {@code null} if they are not known. */
+    default LongArrayList nodeWays(long id) {
+      return null;
+    }
+
+    /** Returns the IDs of relations that have way {@code id} as a member or {@code null} if they are not known. */
+    default LongArrayList wayRelations(long id) {
+      return null;
+    }
+
+    /** Returns the members of relation {@code id} or {@code null} if it is not known. */
+    default List<OsmElement.Relation.Member> relationMembers(long id) {
+      return null;
+    }
+
+    /** Returns a previous state that only knows node locations from {@code nodeLocations}. */
+    static PreviousState of(LongLongMap nodeLocations) {
+      return new PreviousState() {
+        @Override
+        public long nodeLocation(long id) {
+          return nodeLocations.get(id);
+        }
+
+        @Override
+        public LongArrayList wayNodes(long id) {
+          return null;
+        }
+      };
+    }
+
+    /**
+     * Returns the previous state from reading every element in {@code source}, which should be the data that
+     * {@code change} gets applied to.
+     * <p>
+     * Node locations go into {@code nodeLocations}, but way node lists and relation members stay in memory so this is
+     * only suitable for extracts. Ways only get indexed by node for nodes that {@code change} touches.
+     */
+    static PreviousState read(OsmBlockSource source, LongLongMap nodeLocations, OsmChange change) {
+      LongHashSet changedNodes = new LongHashSet();
+      for (var item : change.changes()) {
+        if (item.element() instanceof OsmElement.Node node) {
+          changedNodes.add(node.id());
+        }
+      }
+      LongObjectHashMap<LongArrayList> wayNodes = Hppc.newLongObjectHashMap();
+      LongObjectHashMap<LongArrayList> nodeWays = Hppc.newLongObjectHashMap();
+      LongObjectHashMap<LongArrayList> wayRelations = Hppc.newLongObjectHashMap();
+      LongObjectHashMap<List<OsmElement.Relation.Member>> relationMembers = Hppc.newLongObjectHashMap();
+      try (var writer = nodeLocations.newWriter()) {
+        source.forEachBlock(block -> {
+          for (OsmElement element : block) {
+            switch (element) {
+              case OsmElement.Node node -> writer.put(node.id(), node.encodedLocation());
+              case OsmElement.Way way -> {
+                wayNodes.put(way.id(), way.nodes());
+                for (LongCursor cursor : way.nodes()) {
+                  if (changedNodes.contains(cursor.value)) {
+                    addTo(nodeWays, cursor.value, way.id());
+                  }
+                }
+              }
+              case OsmElement.Relation relation -> {
+                relationMembers.put(relation.id(), relation.members());
+                for (var member : relation.members()) {
+                  if (member.type() == OsmElement.Type.WAY) {
+                    addTo(wayRelations, member.ref(), relation.id());
+                  }
+                }
+              }
+              default -> {
+                // nothing to index
+              }
+            }
+          }
+        });
+      }
+      return new PreviousState() {
+        @Override
+        public long nodeLocation(long id) {
+          return nodeLocations.get(id);
+        }
+
+        @Override
+        public LongArrayList wayNodes(long id) {
+          return wayNodes.get(id);
+        }
+
+        @Override
+        public LongArrayList nodeWays(long id) {
+          return nodeWays.get(id);
+        }
+
+        @Override
+        public LongArrayList wayRelations(long id) {
+          return wayRelations.get(id);
+        }
+
+        @Override
+        public List<OsmElement.Relation.Member> relationMembers(long id) {
+          return relationMembers.get(id);
+        }
+      };
+    }
+
+    private static void addTo(LongObjectHashMap<LongArrayList> map, long key, long value) {
+      LongArrayList list = map.get(key);
+      if (list == null) {
+        list = new LongArrayList(1);
+        map.put(key, list);
+      }
+      list.add(value);
+    }
+  }
+
+  /** Reads an OsmChange file from {@code path}, decompressing it first if the name ends in {@code .gz}. */
+  public static OsmChange read(Path path) throws IOException {
+    try (InputStream is = new BufferedInputStream(Files.newInputStream(path))) {
+      return read(path.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(is) : is);
+    }
+  }
+
+  /** Reads OsmChange XML from {@code inputStream} without closing it. */
+  public static OsmChange read(InputStream inputStream) throws IOException {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    try {
+      XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
+      try {
+        return parse(reader);
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException | IllegalArgumentException e) {
+      throw new IOException("Invalid OsmChange file", e);
+    }
+  }
+
+  private static OsmChange parse(XMLStreamReader reader) throws XMLStreamException {
+    List<Change> changes = new ArrayList<>();
+    Action action = null;
+    // attributes and children of the element currently being parsed
+    String type = null;
+    Map<String, String> attrs = null;
+    Map<String, Object> tags = null;
+    LongArrayList nodes = null;
+    List<OsmElement.Relation.Member> members = null;
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = reader.getLocalName();
+        switch (name) {
+          case "create", "modify", "delete" -> action = Action.valueOf(name.toUpperCase(Locale.ROOT));
+          case "node", "way", "relation" -> {
+            type = name;
+            attrs = new HashMap<>();
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+              attrs.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+            tags = new HashMap<>();
+            nodes = new LongArrayList();
+            members = new ArrayList<>();
+          }
+          case "tag" -> {
+            if (tags != null) {
+              tags.put(reader.getAttributeValue(null, "k"), reader.getAttributeValue(null, "v"));
+            }
+          }
+          case "nd" -> {
+            if (nodes != null) {
+              nodes.add(Long.parseLong(reader.getAttributeValue(null, "ref")));
+            }
+          }
+          case "member" -> {
+            if (members != null) {
+              members.add(new OsmElement.Relation.Member(
+                OsmElement.Type.valueOf(reader.getAttributeValue(null, "type").toUpperCase(Locale.ROOT)),
+                Long.parseLong(reader.getAttributeValue(null, "ref")),
+                reader.getAttributeValue(null, "role")
+              ));
+            }
+          }
+          default -> {
+            // ignore osmChange root and unknown elements
+          }
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals(type)) {
+        if (action == null) {
+          throw new IllegalArgumentException(type + " outside of create/modify/delete");
+        }
+        long id = Long.parseLong(attrs.get("id"));
+        OsmElement.Info info = parseInfo(attrs);
+        OsmElement element = switch (type) {
+          case "node" -> new OsmElement.Node(id, tags, parseDouble(attrs.get("lat")), parseDouble(attrs.get("lon")),
+            info);
+          case "way" -> new OsmElement.Way(id, tags, nodes, info);
+          default -> new OsmElement.Relation(id, tags, members, info);
+        };
+        changes.add(new Change(action, element));
+        type = null;
+        attrs = null;
+        tags = null;
+        nodes = null;
+        members = null;
+      }
+    }
+    return new OsmChange(changes);
+  }
+
+  private static double parseDouble(String value) {
+    return value == null ? Double.NaN : Double.parseDouble(value);
+  }
+
+  private static long parseLong(String value) {
+    return value == null ? 0 : Long.parseLong(value);
+  }
+
+  private static OsmElement.Info parseInfo(Map<String, String> attrs) {
+    String timestamp = attrs.get("timestamp");
+    return new OsmElement.Info(
+      parseLong(attrs.get("changeset")),
+      timestamp == null ? 0 : Instant.parse(timestamp).getEpochSecond(),
+      (int) parseLong(attrs.get("uid")),
+      (int) parseLong(attrs.get("version")),
+      attrs.get("user")
+    );
+  }
+
+  /**
+   * Returns the tiles from {@code minzoom} to {@code maxzoom} that any element touched by this change intersects, either
+   * before or after the change.
+   * <p>
+   * Old locations come from {@code previous}, new locations from nodes in this change falling back to
+   * {@code previous} for nodes that did not move. When a node moves, the ways that {@code previous} says contain it get
+   * dirtied over their whole extent. When a way changes, so do the relations that {@code previous} says contain it, to
+   * cover the interiors of multipolygons. Relations cover their node, way, and nested relation members before and after
+   * the change.
+   *
+   * @param buffer fraction of a tile to expand each element's bounding box by, to account for features that render
+   *               outside of their geometry like labels or line widths
+   */
+  public DirtyTiles dirtyTiles(PreviousState previous, int minzoom, int maxzoom, double buffer) {
+    var lookup = new Lookup(previous);
+    for (var change : changes) {
+      switch (change.element()) {
+        case OsmElement.Node node -> lookup.changedNodes.put(node.id(), node);
+        case OsmElement.Way way -> lookup.changedWays.put(way.id(), way);
+        case OsmElement.Relation relation -> lookup.changedRelations.put(relation.id(), relation);
+        default -> {
+          // nothing to look up
+        }
+      }
+    }
+    List<Envelope> envelopes = new ArrayList<>();
+    LongHashSet dirtyWays = new LongHashSet();
+    LongHashSet dirtyRelations = new LongHashSet();
+    for (var change : changes) {
+      switch (change.element()) {
+        case OsmElement.Node node -> {
+          Envelope envelope = new Envelope();
+          lookup.expandToNode(envelope, node.id());
+          addIfNotNull(envelopes, envelope);
+          forEach(previous.nodeWays(node.id()),
+            wayId -> dirtyWay(wayId, lookup, dirtyWays, dirtyRelations, envelopes));
+        }
+        case OsmElement.Way way -> dirtyWay(way.id(), lookup, dirtyWays, dirtyRelations, envelopes);
+        case OsmElement.Relation relation -> dirtyRelation(relation.id(), lookup, dirtyRelations, envelopes);
+        default -> {
+          // nothing to invalidate
+        }
+      }
+    }
+
+    Set<TileExtents.ForZoom> ranges = new LinkedHashSet<>();
+    for (int z = minzoom; z <= maxzoom; z++) {
+      int max = 1 << z;
+      for (Envelope envelope : envelopes) {
+        ranges.add(new TileExtents.ForZoom(z,
+          Math.clamp((long) Math.floor(envelope.getMinX() * max - buffer), 0, max - 1),
+          Math.clamp((long) Math.floor(envelope.getMinY() * max - buffer), 0, max - 1),
+          Math.clamp((long) Math.floor(envelope.getMaxX() * max + buffer), 0, max - 1) + 1,
+          Math.clamp((long) Math.floor(envelope.getMaxY() * max + buffer), 0, max - 1) + 1,
+          null
+        ));
+      }
+    }
+    return new DirtyTiles(List.copyOf(ranges));
+  }
+
+  private static void dirtyWay(long id, Lookup lookup, LongHashSet dirtyWays, LongHashSet dirtyRelations,
+    List<Envelope> envelopes) {
+    if (dirtyWays.add(id)) {
+      Envelope envelope = new Envelope();
+      lookup.expandToWay(envelope, id);
+      addIfNotNull(envelopes, envelope);
+      forEach(lookup.previous.wayRelations(id),
+        relationId -> dirtyRelation(relationId, lookup, dirtyRelations, envelopes));
+    }
+  }
+
+  private static void dirtyRelation(long id, Lookup lookup, LongHashSet dirtyRelations, List<Envelope> envelopes) {
+    if (dirtyRelations.add(id)) {
+      Envelope envelope = new Envelope();
+      lookup.expandToRelation(envelope, id, new LongHashSet());
+      addIfNotNull(envelopes, envelope);
+    }
+  }
+
+  private static void addIfNotNull(List<Envelope> envelopes, Envelope envelope) {
+    if (!envelope.isNull()) {
+      envelopes.add(envelope);
+    }
+  }
+
+  private static void forEach(LongArrayList ids, LongConsumer consumer) {
+    if (ids != null) {
+      for (LongCursor cursor : ids) {
+        consumer.accept(cursor.value);
+      }
+    }
+  }
+
+  /** Resolves the geometry of elements before and after this change. */
+  private record Lookup(
+    PreviousState previous,
+    Map<Long, OsmElement.Node> changedNodes,
+    Map<Long, OsmElement.Way> changedWays,
+    Map<Long, OsmElement.Relation> changedRelations
+  ) {
+
+    Lookup(PreviousState previous) {
+      this(previous, new HashMap<>(), new HashMap<>(), new HashMap<>());
+    }
+
+    void expandToRelation(Envelope envelope, long id, LongHashSet visited) {
+      if (visited.add(id)) {
+        OsmElement.Relation relation = changedRelations.get(id);
+        if (relation != null) {
+          expandToMembers(envelope, relation.members(), visited);
+        }
+        expandToMembers(envelope, previous.relationMembers(id), visited);
+      }
+    }
+
+    private void expandToMembers(Envelope envelope, List<OsmElement.Relation.Member> members, LongHashSet visited) {
+      if (members != null) {
+        for (var member : members) {
+          switch (member.type()) {
+            case NODE -> expandToNode(envelope, member.ref());
+            case WAY -> expandToWay(envelope, member.ref());
+            case RELATION -> expandToRelation(envelope, member.ref(), visited);
+          }
+        }
+      }
+    }
+
+    void expandToWay(Envelope envelope, long id) {
+      OsmElement.Way way = changedWays.get(id);
+      if (way != null) {
+        forEach(way.nodes(), nodeId -> expandToNode(envelope, nodeId));
+      }
+      forEach(previous.wayNodes(id), nodeId -> expandToNode(envelope, nodeId));
+    }
+
+    void expandToNode(Envelope envelope, long id) {
+      long old = previous.nodeLocation(id);
+      if (old != LongLongMap.MISSING_VALUE) {
+        envelope.expandToInclude(GeoUtils.decodeWorldX(old), GeoUtils.decodeWorldY(old));
+      }
+      OsmElement.Node node = changedNodes.get(id);
+      if (node != null && !Double.isNaN(node.lat()) && !Double.isNaN(node.lon())) {
+        envelope.expandToInclude(GeoUtils.getWorldX(node.lon()), GeoUtils.getWorldY(node.lat()));
+      }
+    }
+  }
+
+  /**
+   * Rectangular ranges of tiles that need to be re-rendered, which can cover far more tiles at high zoom levels than it
+   * would take to list them.
+   *
+   * @param ranges tile ranges in order by zoom, which can overlap
+   */
+  public record DirtyTiles(List<TileExtents.ForZoom> ranges) implements Predicate<TileCoord> {
+
+    @Override
+    public boolean test(TileCoord tile) {
+      for (var range : ranges) {
+        if (range.z() == tile.z() && range.test(tile.x(), tile.y())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Calls {@code consumer} once for each dirty tile in order by zoom, then y, then x. */
+    public void forEachTile(Consumer<TileCoord> consumer) {
+      int from = 0;
+      while (from < ranges.size()) {
+        int z = ranges.get(from).z();
+        int to = from;
+        while (to < ranges.size() && ranges.get(to).z() == z) {
+          to++;
+        }
+        forEachTileInZoom(ranges.subList(from, to), consumer);
+        from = to;
+      }
+    }
+
+    private static void forEachTileInZoom(List<TileExtents.ForZoom> zoomRanges, Consumer<TileCoord> consumer) {
+      // sweep through rows, merging the x ranges of every range that covers the current row
+      List<TileExtents.ForZoom> pending = new ArrayList<>(zoomRanges);
+      pending.sort(Comparator.comparingInt(TileExtents.ForZoom::minY));
+      List<TileExtents.ForZoom> active = new ArrayList<>();
+      int next = 0;
+      int y = 0;
+      while (next < pending.size() || !active.isEmpty()) {
+        if (active.isEmpty()) {
+          y = Math.max(y, pending.get(next).minY());
+        }
+        while (next < pending.size() && pending.get(next).minY() <= y) {
+          active.add(pending.get(next++));
+        }
+        int row = y;
+        active.removeIf(range -> range.maxY() <= row);
+        active.sort(Comparator.comparingInt(TileExtents.ForZoom::minX));
+        int x = 0;
+        for (var range : active) {
+          for (int col = Math.max(x, range.minX()); col < range.maxX(); col++) {
+            consumer.accept(TileCoord.ofXYZ(col, row, range.z()));
+          }
+          x = Math.max(x, range.maxX());
+        }
+        y++;
+      }
+    }
+  }
+}
@@ -2,6 +2,7 @@ package com.onthegomap.planetiler.reader.osm;
 
 import static com.onthegomap.planetiler.util.MemoryEstimator.estimateSize;
 import static com.onthegomap.planetiler.worker.Worker.joinFutures;
+import static io.prometheus.client.Collector.NANOSECONDS_PER_SECOND;
 
 import com.carrotsearch.hppc.IntObjectHashMap;
 import com.carrotsearch.hppc.LongArrayList;
@@ -35,6 +36,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -124,6 +126,7 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
       "ways", pass1Phaser::ways,
       "relations", pass1Phaser::relations
     ));
+    stats.counter("osm_pbf_decompress_seconds", () -> PbfDecoder.decompressNanos() / NANOSECONDS_PER_SECOND);
     this.multipolygonWayGeometries = multipolygonGeometries;
   }
 
@@ -345,7 +348,10 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
             rels.inc();
           });
           for (var block : prev) {
-            for (var element : block.decodeElements()) {
+            var elements = config.osmBatchNodeLookups() ?
+              decodeAndPrefetchWayNodes(block, nodeLocations) :
+              block.decodeElements();
+            for (var element : elements) {
               SourceFeature feature = null;
               if (element instanceof OsmElement.Node node) {
                 phaser.arrive(OsmPhaser.Phase.NODES);
@@ -430,6 +436,8 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
       case NOOP -> check;
       case SPARSE_ARRAY -> check.addMemory(300_000_000L, "sparsearray node location in-memory index")
         .add(path, storage, 9 * nodes, "sparsearray node location cache");
+      case COMPACT -> check.addMemory(300_000_000L, "compact node location in-memory index")
+        .add(path, storage, 6 * nodes, "compact node location cache");
       case SORTED_TABLE -> check.addMemory(300_000_000L, "sortedtable node location in-memory index")
         .add(path, storage, 12 * nodes, "sortedtable node location cache");
       case ARRAY -> check.add(path, storage, 8 * maxNodeId,
@@ -571,12 +579,38 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
     osmBlockSource.close();
   }
 
+  /**
+   * Decodes all elements in {@code block} and looks up locations for nodes in its ways in a single batch, so that way
+   * geometries don't need to do a random lookup for each node.
+   */
+  private static List<OsmElement> decodeAndPrefetchWayNodes(OsmBlockSource.Block block,
+    NodeLocationProvider nodeLocations) {
+    List<OsmElement> elements = new ArrayList<>();
+    List<OsmElement.Way> ways = new ArrayList<>();
+    for (var element : block.decodeElements()) {
+      elements.add(element);
+      // untagged ways are only used through relations, which look up node locations separately
+      if (element instanceof OsmElement.Way way && !way.tags().isEmpty()) {
+        ways.add(way);
+      }
+    }
+    if (!ways.isEmpty()) {
+      nodeLocations.prefetchWays(ways);
+    }
+    return elements;
+  }
+
   NodeLocationProvider newNodeLocationProvider() {
     return new NodeDbLocationProvider();
   }
 
   public interface NodeLocationProvider {
 
+    /**
+     * Looks up locations of all the nodes in {@code ways} ahead of time, replacing the locations from the last call.
+     */
+    default void prefetchWays(List<OsmElement.Way> ways) {}
+
     default CoordinateSequence getWayGeometry(LongArrayList nodeIds) {
       CoordinateList coordList = new CoordinateList();
       for (var cursor : nodeIds) {
@@ -819,15 +853,47 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
 
   /**
    * A thin layer on top of {@link LongLongMap} that decodes node locations stored as {@code long} values.
+   * <p>
+   * Not thread safe, each thread should create its own instance.
    */
   private class NodeDbLocationProvider implements NodeLocationProvider {
 
+    // node IDs sorted ascending, and their locations, from the last call to prefetchWays
+    private long[] prefetchedIds = new long[0];
+    private long[] prefetchedLocations = new long[0];
+
     @Override
-    public Coordinate getCoordinate(long id) {
-      long encoded = nodeLocationDb.get(id);
+    public void prefetchWays(List<OsmElement.Way> ways) {
+      LongArrayList ids = new LongArrayList();
+      for (var way : ways) {
+        ids.addAll(way.nodes());
+      }
+      long[] sorted = ids.toArray();
+      Arrays.sort(sorted);
+      int unique = 0;
+      for (int i = 0; i < sorted.length; i++) {
+        if (i == 0 || sorted[i] != sorted[i - 1]) {
+          sorted[unique++] = sorted[i];
+        }
+      }
+      long[] keys = Arrays.copyOf(sorted, unique);
+      nodeLocationDb.prefetch(keys);
+      prefetchedLocations = nodeLocationDb.multiGet(keys);
+      prefetchedIds = keys;
+    }
+
+    private long getEncoded(long id) {
+      int index = Arrays.binarySearch(prefetchedIds, id);
+      long encoded = index >= 0 ? prefetchedLocations[index] : nodeLocationDb.get(id);
       if (encoded == LongLongMap.MISSING_VALUE) {
         throw new IllegalArgumentException("Missing location for node: " + id);
       }
+      return encoded;
+    }
+
+    @Override
+    public Coordinate getCoordinate(long id) {
+      long encoded = getEncoded(id);
       return new CoordinateXY(GeoUtils.decodeWorldX(encoded), GeoUtils.decodeWorldY(encoded));
     }
 
@@ -837,10 +903,7 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
       CoordinateSequence seq = new PackedCoordinateSequence.Double(nodeIds.size(), 2, 0);
 
       for (int i = 0; i < num; i++) {
-        long encoded = nodeLocationDb.get(nodeIds.get(i));
-        if (encoded == LongLongMap.MISSING_VALUE) {
-          throw new IllegalArgumentException("Missing location for node: " + nodeIds.get(i));
-        }
+        long encoded = getEncoded(nodeIds.get(i));
         seq.setOrdinate(i, 0, GeoUtils.decodeWorldX(encoded));
         seq.setOrdinate(i, 1, GeoUtils.decodeWorldY(encoded));
       }
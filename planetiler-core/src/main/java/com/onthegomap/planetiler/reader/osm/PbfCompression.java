@@ -0,0 +1,99 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdException;
+import com.onthegomap.planetiler.reader.FileFormatException;
+import io.airlift.compress.MalformedInputException;
+import io.airlift.compress.lz4.Lz4Decompressor;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Formats that the data in an OSM PBF {@code Blob} can be stored in, identified by the number of the {@code Blob} field
+ * that holds the data.
+ *
+ * @see <a href="https://wiki.openstreetmap.org/wiki/PBF_Format#File_format">PBF file format</a>
+ */
+enum PbfCompression {
+  RAW(1) {
+    @Override
+    void decompress(byte[] input, int offset, int length, byte[] output, int rawSize) {
+      System.arraycopy(input, offset, output, 0, length);
+    }
+  },
+  ZLIB(3) {
+    @Override
+    void decompress(byte[] input, int offset, int length, byte[] output, int rawSize) {
+      Inflater inflater = INFLATERS.get();
+      inflater.reset();
+      inflater.setInput(input, offset, length);
+      int inflated;
+      try {
+        inflated = inflater.inflate(output, 0, rawSize);
+      } catch (DataFormatException e) {
+        throw new FileFormatException("Unable to decompress PBF blob.", e);
+      }
+      if (!inflater.finished()) {
+        throw new FileFormatException("PBF blob contains incomplete compressed data.");
+      }
+      checkSize(inflated, rawSize);
+    }
+  },
+  LZ4(6) {
+    @Override
+    void decompress(byte[] input, int offset, int length, byte[] output, int rawSize) {
+      try {
+        checkSize(new Lz4Decompressor().decompress(input, offset, length, output, 0, rawSize), rawSize);
+      } catch (MalformedInputException e) {
+        throw new FileFormatException("Unable to decompress LZ4 PBF blob.", e);
+      }
+    }
+  },
+  ZSTD(7) {
+    @Override
+    void decompress(byte[] input, int offset, int length, byte[] output, int rawSize) {
+      long result;
+      try {
+        result = Zstd.decompressByteArray(output, 0, rawSize, input, offset, length);
+      } catch (ZstdException e) {
+        throw new FileFormatException("Unable to decompress zstd PBF blob.", e);
+      }
+      checkSize(result, rawSize);
+    }
+  };
+
+  // inflaters hold onto native memory so reuse one per thread instead of creating one for each blob
+  private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+  private static final PbfCompression[] BY_FIELD = new PbfCompression[8];
+
+  static {
+    for (var compression : values()) {
+      BY_FIELD[compression.fieldNumber] = compression;
+    }
+  }
+
+  private final int fieldNumber;
+
+  PbfCompression(int fieldNumber) {
+    this.fieldNumber = fieldNumber;
+  }
+
+  /** Returns the format of data stored in {@code Blob} field {@code fieldNumber}, or null if it's not supported. */
+  static PbfCompression forField(int fieldNumber) {
+    return fieldNumber >= 0 && fieldNumber < BY_FIELD.length ? BY_FIELD[fieldNumber] : null;
+  }
+
+  private static void checkSize(long actual, int expected) {
+    if (actual != expected) {
+      throw new FileFormatException("PBF blob decompressed to " + actual + " bytes but expected " + expected);
+    }
+  }
+
+  /**
+   * Writes the {@code rawSize} decompressed bytes of {@code input[offset..offset+length)} to the start of
+   * {@code output}.
+   *
+   * @throws FileFormatException if the data is invalid
+   */
+  abstract void decompress(byte[] input, int offset, int length, byte[] output, int rawSize);
+}
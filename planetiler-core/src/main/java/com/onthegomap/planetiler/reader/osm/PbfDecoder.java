@@ -2,107 +2,181 @@
 // See NOTICE.md here or copying.txt from https://github.com/openstreetmap/osmosis/blob/master/package/copying.txt for details.
 package com.onthegomap.planetiler.reader.osm;
 
+import com.carrotsearch.hppc.IntArrayList;
 import com.carrotsearch.hppc.LongArrayList;
-import com.google.common.collect.Iterators;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.onthegomap.planetiler.reader.FileFormatException;
-import crosby.binary.Fileformat;
+import com.onthegomap.planetiler.stats.Counter;
+import com.onthegomap.planetiler.util.VarInt;
 import crosby.binary.Osmformat;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.function.IntUnaryOperator;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 import org.locationtech.jts.geom.Envelope;
 
 /**
  * Converts PBF block data into decoded entities. This class was adapted from Osmosis to expose an iterator over blocks
  * to give more control over the parallelism.
+ * <p>
+ * Primitive blocks are read straight from the protobuf wire format instead of through the generated {@link Osmformat}
+ * classes, so decoding a block only allocates the string table and the elements it emits. Packed fields are read into
+ * buffers that get reused for every element in the block, and tags are returned as a {@link PbfTagMap} that holds
+ * string table indexes until something needs a real map.
+ * <p>
+ * Blobs can be raw or compressed with any {@link PbfCompression}. Each thread reuses the buffer it decompresses blocks
+ * into once it has iterated through all the elements in the previous block, so each block can only be iterated through
+ * once.
  *
  * @author Brett Henderson
  */
 public class PbfDecoder implements Iterable<OsmElement> {
 
-  private final Osmformat.PrimitiveBlock block;
-  private final PbfFieldDecoder fieldDecoder;
-
-  private PbfDecoder(byte[] rawBlob) throws IOException {
-    byte[] data = readBlobContent(rawBlob);
-    block = Osmformat.PrimitiveBlock.parseFrom(data);
-    fieldDecoder = new PbfFieldDecoder(block);
-  }
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_FIXED64 = 1;
+  private static final int WIRE_LENGTH_DELIMITED = 2;
+  private static final int WIRE_FIXED32 = 5;
+  private static final Counter.MultiThreadCounter DECOMPRESS_NANOS = Counter.newMultiThreadCounter();
+  private static final ThreadLocal<byte[]> INPUT_BUFFERS = ThreadLocal.withInitial(() -> new byte[0]);
+  private static final ThreadLocal<byte[]> OUTPUT_BUFFERS = new ThreadLocal<>();
 
-  private PbfDecoder(ByteBuffer rawBlob) throws IOException {
-    byte[] data = readBlobContent(rawBlob);
-    block = Osmformat.PrimitiveBlock.parseFrom(data);
-    fieldDecoder = new PbfFieldDecoder(block);
+  private final ByteBuffer data;
+  private final String[] strings;
+  private final PbfFieldDecoder fieldDecoder;
+  private final IntArrayList groupStarts = new IntArrayList();
+  private final IntArrayList groupEnds = new IntArrayList();
+  private boolean released = false;
+
+  private PbfDecoder(byte[] data, int length) {
+    this.data = ByteBuffer.wrap(data, 0, length);
+    List<String> stringTable = List.of();
+    int granularity = 100;
+    int dateGranularity = 1000;
+    long latOffset = 0;
+    long lonOffset = 0;
+    try {
+      while (this.data.hasRemaining()) {
+        int tag = readTag(this.data);
+        switch (tag >>> 3) {
+          case 1 -> stringTable = readStringTable(this.data, readEnd(this.data, tag));
+          case 2 -> {
+            int end = readEnd(this.data, tag);
+            groupStarts.add(this.data.position());
+            groupEnds.add(end);
+            this.data.position(end);
+          }
+          case 17 -> granularity = (int) readVarint(this.data, tag);
+          case 18 -> dateGranularity = (int) readVarint(this.data, tag);
+          case 19 -> latOffset = readVarint(this.data, tag);
+          case 20 -> lonOffset = readVarint(this.data, tag);
+          default -> skipField(this.data, tag);
+        }
+      }
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new FileFormatException("Unable to parse primitive block", e);
+    }
+    strings = stringTable.toArray(String[]::new);
+    fieldDecoder = new PbfFieldDecoder(strings, granularity, latOffset, lonOffset, dateGranularity);
   }
 
-  private static byte[] readBlobContent(ByteBuffer input) throws IOException {
-    return readBlobContent(Fileformat.Blob.parseFrom(input));
-
+  /** Returns the total time that all threads have spent decompressing PBF blobs. */
+  public static long decompressNanos() {
+    return DECOMPRESS_NANOS.get();
   }
 
-  private static byte[] readBlobContent(byte[] input) throws IOException {
-    return readBlobContent(Fileformat.Blob.parseFrom(input));
-  }
+  /** The location and format of the data in a {@code Blob} message. */
+  private record Blob(PbfCompression compression, byte[] input, int offset, int length, int rawSize) {}
 
-  private static byte[] readBlobContent(Fileformat.Blob blob) {
-    byte[] blobData;
-
-    if (blob.hasRaw()) {
-      blobData = blob.getRaw().toByteArray();
-    } else if (blob.hasZlibData()) {
-      Inflater inflater = new Inflater();
-      inflater.setInput(blob.getZlibData().toByteArray());
-      blobData = new byte[blob.getRawSize()];
-      try {
-        inflater.inflate(blobData);
-      } catch (DataFormatException e) {
-        throw new FileFormatException("Unable to decompress PBF blob.", e);
-      }
-      if (!inflater.finished()) {
-        throw new FileFormatException("PBF blob contains incomplete compressed data.");
+  private static Blob readBlob(ByteBuffer raw) {
+    ByteBuffer buf = raw.slice();
+    PbfCompression compression = null;
+    int dataField = -1;
+    int start = 0;
+    int end = 0;
+    int rawSize = -1;
+    try {
+      while (buf.hasRemaining()) {
+        int tag = readTag(buf);
+        int field = tag >>> 3;
+        if (field == 2) {
+          rawSize = (int) readVarint(buf, tag);
+        } else if ((tag & 7) == WIRE_LENGTH_DELIMITED) {
+          end = readEnd(buf, tag);
+          start = buf.position();
+          dataField = field;
+          compression = PbfCompression.forField(field);
+          buf.position(end);
+        } else {
+          skipField(buf, tag);
+        }
       }
-      inflater.end();
-    } else {
-      throw new FileFormatException("PBF blob uses unsupported compression, only raw or zlib may be used.");
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new FileFormatException("Unable to parse PBF blob", e);
+    }
+    if (compression == null) {
+      throw new FileFormatException("PBF blob uses unsupported compression in field " + dataField +
+        ", only raw, zlib, lz4, or zstd may be used.");
     }
+    int length = end - start;
+    if (compression == PbfCompression.RAW) {
+      rawSize = length;
+    } else if (rawSize < 0) {
+      throw new FileFormatException("Compressed PBF blob is missing its raw size");
+    }
+    if (buf.hasArray()) {
+      return new Blob(compression, buf.array(), buf.arrayOffset() + start, length, rawSize);
+    }
+    // memory-mapped blobs get copied to a heap buffer that is reused for each blob on this thread
+    byte[] input = INPUT_BUFFERS.get();
+    if (input.length < length) {
+      input = new byte[length];
+      INPUT_BUFFERS.set(input);
+    }
+    buf.get(start, input, 0, length);
+    return new Blob(compression, input, 0, length, rawSize);
+  }
 
-    return blobData;
+  private static void decompress(Blob blob, byte[] output) {
+    long start = System.nanoTime();
+    try {
+      blob.compression().decompress(blob.input(), blob.offset(), blob.length(), output, blob.rawSize());
+    } finally {
+      DECOMPRESS_NANOS.incBy(System.nanoTime() - start);
+    }
   }
 
   /** Decompresses and parses a block of primitive OSM elements. */
   public static Iterable<OsmElement> decode(byte[] raw) {
-    try {
-      return new PbfDecoder(raw);
-    } catch (IOException e) {
-      throw new UncheckedIOException("Unable to process PBF blob", e);
-    }
+    return decode(ByteBuffer.wrap(raw));
   }
 
   /** Decompresses and parses a block of primitive OSM elements. */
   public static Iterable<OsmElement> decode(ByteBuffer raw) {
-    try {
-      return new PbfDecoder(raw);
-    } catch (IOException e) {
-      throw new UncheckedIOException("Unable to process PBF blob", e);
+    Blob blob = readBlob(raw);
+    // take the output buffer from this thread's pool so nothing else uses it until the block has been iterated through
+    byte[] output = OUTPUT_BUFFERS.get();
+    if (output != null && output.length >= blob.rawSize()) {
+      OUTPUT_BUFFERS.remove();
+    } else {
+      output = new byte[blob.rawSize()];
     }
+    decompress(blob, output);
+    return new PbfDecoder(output, blob.rawSize());
   }
 
   /** Decompresses and parses a header block of an OSM input file. */
   public static OsmHeader decodeHeader(byte[] raw) {
     try {
-      byte[] data = readBlobContent(raw);
+      Blob blob = readBlob(ByteBuffer.wrap(raw));
+      byte[] data = new byte[blob.rawSize()];
+      decompress(blob, data);
       Osmformat.HeaderBlock header = Osmformat.HeaderBlock.parseFrom(data);
       Osmformat.HeaderBBox bbox = header.getBbox();
       Envelope bounds = new Envelope(
@@ -128,263 +202,451 @@ public class PbfDecoder implements Iterable<OsmElement> {
 
   @Override
   public Iterator<OsmElement> iterator() {
-    return Iterators.concat(new PrimitiveGroupIterator());
+    if (released) {
+      throw new IllegalStateException("PBF block buffer was already reused after iterating through it once");
+    }
+    return new ElementIterator();
   }
 
-  private Map<String, Object> buildTags(int num, IntUnaryOperator key, IntUnaryOperator value) {
-    if (num > 0) {
-      Map<String, Object> tags = HashMap.newHashMap(num);
-      for (int i = 0; i < num; i++) {
-        String k = fieldDecoder.decodeString(key.applyAsInt(i));
-        String v = fieldDecoder.decodeString(value.applyAsInt(i));
-        tags.put(k, v);
-      }
-      return tags;
+  /** Returns the decompressed block to this thread's pool once nothing needs to read from it anymore. */
+  private void release() {
+    if (!released) {
+      released = true;
+      OUTPUT_BUFFERS.set(data.array());
     }
-    return Collections.emptyMap();
   }
 
-  private OsmElement.Info parseInfo(Osmformat.Info info) {
-    return info == null ? null : new OsmElement.Info(
-      info.getChangeset(),
-      info.getTimestamp(),
-      info.getUid(),
-      info.getVersion(),
-      fieldDecoder.decodeString(info.getUserSid())
-    );
+  private static List<String> readStringTable(ByteBuffer buf, int end) {
+    List<String> result = new ArrayList<>();
+    while (buf.position() < end) {
+      int tag = readTag(buf);
+      if (tag >>> 3 == 1) {
+        int stringEnd = readEnd(buf, tag);
+        int start = buf.position();
+        result.add(new String(buf.array(), buf.arrayOffset() + start, stringEnd - start, StandardCharsets.UTF_8));
+        buf.position(stringEnd);
+      } else {
+        skipField(buf, tag);
+      }
+    }
+    return result;
   }
 
-  private class PrimitiveGroupIterator implements Iterator<Iterator<OsmElement>> {
-    private int i = 0;
-
-    @Override
-    public boolean hasNext() {
-      return i < block.getPrimitivegroupCount();
-    }
+  private static int readTag(ByteBuffer buf) {
+    return (int) VarInt.getVarLong(buf);
+  }
 
-    @Override
-    public Iterator<OsmElement> next() {
-      if (!hasNext()) {
-        throw new NoSuchElementException();
-      }
-      try {
-        var primitiveGroup = Osmformat.PrimitiveGroup.parseFrom(block.getPrimitivegroup(i++));
-        return Iterators.concat(
-          new DenseNodeIterator(primitiveGroup.getDense()),
-          new NodeIterator(primitiveGroup.getNodesList()),
-          new WayIterator(primitiveGroup.getWaysList()),
-          new RelationIterator(primitiveGroup.getRelationsList())
-        );
-      } catch (InvalidProtocolBufferException e) {
-        throw new FileFormatException("Unable to parse primitive group", e);
-      }
+  private static long readVarint(ByteBuffer buf, int tag) {
+    if ((tag & 7) != WIRE_VARINT) {
+      throw new FileFormatException("Expected varint for field " + (tag >>> 3) + " but got wire type " + (tag & 7));
     }
+    return VarInt.getVarLong(buf);
   }
 
-  private class NodeIterator implements Iterator<OsmElement.Node> {
+  private static long readSignedVarint(ByteBuffer buf, int tag) {
+    return unzigzag(readVarint(buf, tag));
+  }
 
-    private final List<Osmformat.Node> nodes;
-    int i;
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
 
-    public NodeIterator(List<Osmformat.Node> nodes) {
-      this.nodes = nodes;
-      i = 0;
+  /** Reads the length of a length-delimited field and returns the position where it ends. */
+  private static int readEnd(ByteBuffer buf, int tag) {
+    if ((tag & 7) != WIRE_LENGTH_DELIMITED) {
+      throw new FileFormatException("Expected length-delimited field " + (tag >>> 3) + " but got wire type " + (tag & 7));
     }
+    long length = VarInt.getVarLong(buf);
+    if (length < 0 || length > buf.limit() - buf.position()) {
+      throw new FileFormatException("Field " + (tag >>> 3) + " length " + length + " is past the end of its message");
+    }
+    return buf.position() + (int) length;
+  }
 
-    @Override
-    public boolean hasNext() {
-      return i < nodes.size();
+  private static void skipField(ByteBuffer buf, int tag) {
+    switch (tag & 7) {
+      case WIRE_VARINT -> VarInt.getVarLong(buf);
+      case WIRE_FIXED64 -> buf.position(buf.position() + Long.BYTES);
+      case WIRE_LENGTH_DELIMITED -> buf.position(readEnd(buf, tag));
+      case WIRE_FIXED32 -> buf.position(buf.position() + Integer.BYTES);
+      default -> throw new FileFormatException("Unsupported wire type " + (tag & 7) + " for field " + (tag >>> 3));
     }
+  }
 
-    @Override
-    public OsmElement.Node next() {
-      if (!hasNext()) {
-        throw new NoSuchElementException();
+  /** Appends a repeated unsigned or int32 field that may or may not be packed to {@code dest}. */
+  private static void readInts(ByteBuffer buf, int tag, IntArrayList dest) {
+    if ((tag & 7) == WIRE_LENGTH_DELIMITED) {
+      int end = readEnd(buf, tag);
+      while (buf.position() < end) {
+        dest.add((int) VarInt.getVarLong(buf));
       }
-      var node = nodes.get(i++);
-      return new OsmElement.Node(
-        node.getId(),
-        buildTags(node.getKeysCount(), node::getKeys, node::getVals),
-        fieldDecoder.decodeLatitude(node.getLat()),
-        fieldDecoder.decodeLongitude(node.getLon()),
-        parseInfo(node.getInfo())
-      );
+    } else {
+      dest.add((int) readVarint(buf, tag));
     }
   }
 
-  private class RelationIterator implements Iterator<OsmElement.Relation> {
+  /** Appends a repeated zigzag-encoded sint32 or sint64 field that may or may not be packed to {@code dest}. */
+  private static void readSignedLongs(ByteBuffer buf, int tag, LongArrayList dest) {
+    if ((tag & 7) == WIRE_LENGTH_DELIMITED) {
+      int end = readEnd(buf, tag);
+      while (buf.position() < end) {
+        dest.add(unzigzag(VarInt.getVarLong(buf)));
+      }
+    } else {
+      dest.add(readSignedVarint(buf, tag));
+    }
+  }
 
-    private final List<Osmformat.Relation> relations;
-    int i;
+  private Map<String, Object> buildTags(IntArrayList keys, IntArrayList values) {
+    int num = Math.min(keys.size(), values.size());
+    if (num > 0) {
+      int[] keysVals = new int[num * 2];
+      for (int i = 0; i < num; i++) {
+        keysVals[i * 2] = keys.get(i);
+        keysVals[i * 2 + 1] = values.get(i);
+      }
+      return new PbfTagMap(strings, keysVals, 0, keysVals.length);
+    }
+    return Collections.emptyMap();
+  }
 
-    public RelationIterator(List<Osmformat.Relation> relations) {
-      this.relations = relations;
-      i = 0;
+  private OsmElement.Info readInfo(ByteBuffer buf, int end) {
+    int version = -1;
+    long timestamp = 0;
+    long changeset = 0;
+    int uid = 0;
+    int userSid = 0;
+    while (buf.position() < end) {
+      int tag = readTag(buf);
+      switch (tag >>> 3) {
+        case 1 -> version = (int) readVarint(buf, tag);
+        case 2 -> timestamp = readVarint(buf, tag);
+        case 3 -> changeset = readVarint(buf, tag);
+        case 4 -> uid = (int) readVarint(buf, tag);
+        case 5 -> userSid = (int) readVarint(buf, tag);
+        default -> skipField(buf, tag);
+      }
     }
+    return newInfo(changeset, timestamp, uid, version, userSid);
+  }
+
+  private OsmElement.Info newInfo(long changeset, long timestamp, int uid, int version, int userSid) {
+    return new OsmElement.Info(changeset, timestamp, uid, version, fieldDecoder.decodeString(userSid));
+  }
+
+  /** Iterates through the elements in each primitive group in the order they appear in the block. */
+  private class ElementIterator implements Iterator<OsmElement> {
+
+    // buffers that get reused for each element
+    private final IntArrayList keys = new IntArrayList();
+    private final IntArrayList values = new IntArrayList();
+    private final IntArrayList ints = new IntArrayList();
+    private final IntArrayList moreInts = new IntArrayList();
+    private final LongArrayList longs = new LongArrayList();
+    private final DenseNodes denseNodes = new DenseNodes();
+    private final ByteBuffer buf = data.duplicate();
+    private int group = 0;
+    private int groupEnd = 0;
+    private OsmElement next = null;
 
     @Override
     public boolean hasNext() {
-      return i < relations.size();
+      if (next == null) {
+        try {
+          next = advance();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+          throw new FileFormatException("Unable to parse primitive group", e);
+        }
+      }
+      return next != null;
     }
 
     @Override
-    public OsmElement.Relation next() {
+    public OsmElement next() {
       if (!hasNext()) {
         throw new NoSuchElementException();
       }
-      var relation = relations.get(i++);
-      int num = relation.getMemidsCount();
-
-      List<OsmElement.Relation.Member> members = new ArrayList<>(num);
+      OsmElement result = next;
+      next = null;
+      return result;
+    }
 
-      long memberId = 0;
-      for (int j = 0; j < num; j++) {
-        memberId += relation.getMemids(j);
-        var memberType = switch (relation.getTypes(j)) {
-          case WAY -> OsmElement.Type.WAY;
-          case NODE -> OsmElement.Type.NODE;
-          case RELATION -> OsmElement.Type.RELATION;
-        };
-        members.add(new OsmElement.Relation.Member(
-          memberType,
-          memberId,
-          fieldDecoder.decodeString(relation.getRolesSid(j))
-        ));
+    private OsmElement advance() {
+      while (true) {
+        if (denseNodes.hasNext()) {
+          return denseNodes.next();
+        } else if (buf.position() < groupEnd) {
+          int tag = readTag(buf);
+          switch (tag >>> 3) {
+            case 1 -> {
+              return readNode(readEnd(buf, tag));
+            }
+            case 2 -> denseNodes.read(readEnd(buf, tag));
+            case 3 -> {
+              return readWay(readEnd(buf, tag));
+            }
+            case 4 -> {
+              return readRelation(readEnd(buf, tag));
+            }
+            default -> skipField(buf, tag);
+          }
+        } else if (group < groupStarts.size()) {
+          buf.limit(groupEnds.get(group)).position(groupStarts.get(group));
+          groupEnd = groupEnds.get(group);
+          group++;
+        } else {
+          release();
+          return null;
+        }
       }
-
-      // Add the bound object to the results.
-      return new OsmElement.Relation(
-        relation.getId(),
-        buildTags(relation.getKeysCount(), relation::getKeys, relation::getVals),
-        members,
-        parseInfo(relation.getInfo())
-      );
     }
-  }
-
-  private class WayIterator implements Iterator<OsmElement.Way> {
-
-    private final List<Osmformat.Way> ways;
-    int i;
 
-    public WayIterator(List<Osmformat.Way> ways) {
-      this.ways = ways;
-      i = 0;
+    private OsmElement.Info readInfo(int end) {
+      OsmElement.Info info = PbfDecoder.this.readInfo(buf, end);
+      buf.position(end);
+      return info;
     }
 
-    @Override
-    public boolean hasNext() {
-      return i < ways.size();
+    private OsmElement.Node readNode(int end) {
+      long id = 0;
+      long lat = 0;
+      long lon = 0;
+      OsmElement.Info info = null;
+      keys.clear();
+      values.clear();
+      while (buf.position() < end) {
+        int tag = readTag(buf);
+        switch (tag >>> 3) {
+          case 1 -> id = readSignedVarint(buf, tag);
+          case 2 -> readInts(buf, tag, keys);
+          case 3 -> readInts(buf, tag, values);
+          case 4 -> info = readInfo(readEnd(buf, tag));
+          case 8 -> lat = readSignedVarint(buf, tag);
+          case 9 -> lon = readSignedVarint(buf, tag);
+          default -> skipField(buf, tag);
+        }
+      }
+      return new OsmElement.Node(
+        id,
+        buildTags(keys, values),
+        fieldDecoder.decodeLatitude(lat),
+        fieldDecoder.decodeLongitude(lon),
+        info == null ? newInfo(0, 0, 0, -1, 0) : info
+      );
     }
 
-    @Override
-    public OsmElement.Way next() {
-      if (!hasNext()) {
-        throw new NoSuchElementException();
+    private OsmElement.Way readWay(int end) {
+      long id = 0;
+      OsmElement.Info info = null;
+      keys.clear();
+      values.clear();
+      longs.clear();
+      while (buf.position() < end) {
+        int tag = readTag(buf);
+        switch (tag >>> 3) {
+          case 1 -> id = readVarint(buf, tag);
+          case 2 -> readInts(buf, tag, keys);
+          case 3 -> readInts(buf, tag, values);
+          case 4 -> info = readInfo(readEnd(buf, tag));
+          case 8 -> readSignedLongs(buf, tag, longs);
+          default -> skipField(buf, tag);
+        }
       }
-      var way = ways.get(i++);
       // Build up the list of way nodes for the way. The node ids are
       // delta encoded meaning that each id is stored as a delta against
       // the previous one.
       long nodeId = 0;
-      int numNodes = way.getRefsCount();
+      int numNodes = longs.size();
       LongArrayList wayNodesList = new LongArrayList(numNodes);
       wayNodesList.elementsCount = numNodes;
       long[] wayNodes = wayNodesList.buffer;
+      long[] deltas = longs.buffer;
       for (int j = 0; j < numNodes; j++) {
-        long nodeIdOffset = way.getRefs(j);
-        nodeId += nodeIdOffset;
+        nodeId += deltas[j];
         wayNodes[j] = nodeId;
       }
 
       return new OsmElement.Way(
-        way.getId(),
-        buildTags(way.getKeysCount(), way::getKeys, way::getVals),
+        id,
+        buildTags(keys, values),
         wayNodesList,
-        parseInfo(way.getInfo())
+        info == null ? newInfo(0, 0, 0, -1, 0) : info
       );
     }
-  }
 
-  private class DenseNodeIterator implements Iterator<OsmElement.Node> {
-
-    final Osmformat.DenseNodes nodes;
-    final Osmformat.DenseInfo denseInfo;
-    long nodeId = 0;
-    long latitude = 0;
-    long longitude = 0;
-    int i = 0;
-    int kvIndex = 0;
-    // info
-    long timestamp = 0;
-    long changeset = 0;
-    int uid = 0;
-    int userSid = 0;
+    private OsmElement.Relation readRelation(int end) {
+      long id = 0;
+      OsmElement.Info info = null;
+      keys.clear();
+      values.clear();
+      IntArrayList roles = ints;
+      IntArrayList types = moreInts;
+      roles.clear();
+      types.clear();
+      longs.clear();
+      while (buf.position() < end) {
+        int tag = readTag(buf);
+        switch (tag >>> 3) {
+          case 1 -> id = readVarint(buf, tag);
+          case 2 -> readInts(buf, tag, keys);
+          case 3 -> readInts(buf, tag, values);
+          case 4 -> info = readInfo(readEnd(buf, tag));
+          case 8 -> readInts(buf, tag, roles);
+          case 9 -> readSignedLongs(buf, tag, longs);
+          case 10 -> readInts(buf, tag, types);
+          default -> skipField(buf, tag);
+        }
+      }
 
-    public DenseNodeIterator(Osmformat.DenseNodes nodes) {
-      this.nodes = nodes;
-      this.denseInfo = nodes.getDenseinfo();
-    }
+      int num = longs.size();
+      if (roles.size() != num || types.size() != num) {
+        throw new FileFormatException("Relation " + id + " has " + num + " member IDs but " + roles.size() +
+          " roles and " + types.size() + " types");
+      }
+      List<OsmElement.Relation.Member> members = new ArrayList<>(num);
 
+      long memberId = 0;
+      for (int j = 0; j < num; j++) {
+        memberId += longs.get(j);
+        var memberType = switch (types.get(j)) {
+          case 0 -> OsmElement.Type.NODE;
+          case 1 -> OsmElement.Type.WAY;
+          case 2 -> OsmElement.Type.RELATION;
+          default -> throw new FileFormatException("Relation " + id + " has unknown member type " + types.get(j));
+        };
+        members.add(new OsmElement.Relation.Member(
+          memberType,
+          memberId,
+          fieldDecoder.decodeString(roles.get(j))
+        ));
+      }
 
-    @Override
-    public boolean hasNext() {
-      return i < nodes.getIdCount();
+      // Add the bound object to the results.
+      return new OsmElement.Relation(
+        id,
+        buildTags(keys, values),
+        members,
+        info == null ? newInfo(0, 0, 0, -1, 0) : info
+      );
     }
 
-    @Override
-    public OsmElement.Node next() {
-      if (!hasNext()) {
-        throw new NoSuchElementException();
+    /** Columns of a dense nodes message that get emitted one node at a time. */
+    private class DenseNodes {
+
+      final LongArrayList ids = new LongArrayList();
+      final LongArrayList lats = new LongArrayList();
+      final LongArrayList lons = new LongArrayList();
+      // info
+      final IntArrayList versions = new IntArrayList();
+      final LongArrayList timestamps = new LongArrayList();
+      final LongArrayList changesets = new LongArrayList();
+      final LongArrayList uids = new LongArrayList();
+      final LongArrayList userSids = new LongArrayList();
+      // node tags hold onto this array so it can't be reused
+      IntArrayList keysVals = new IntArrayList();
+      long nodeId = 0;
+      long latitude = 0;
+      long longitude = 0;
+      int i = 0;
+      int kvIndex = 0;
+      long timestamp = 0;
+      long changeset = 0;
+      int uid = 0;
+      int userSid = 0;
+
+      void read(int end) {
+        ids.clear();
+        lats.clear();
+        lons.clear();
+        versions.clear();
+        timestamps.clear();
+        changesets.clear();
+        uids.clear();
+        userSids.clear();
+        keysVals = new IntArrayList();
+        while (buf.position() < end) {
+          int tag = readTag(buf);
+          switch (tag >>> 3) {
+            case 1 -> readSignedLongs(buf, tag, ids);
+            case 5 -> readDenseInfo(readEnd(buf, tag));
+            case 8 -> readSignedLongs(buf, tag, lats);
+            case 9 -> readSignedLongs(buf, tag, lons);
+            case 10 -> readInts(buf, tag, keysVals);
+            default -> skipField(buf, tag);
+          }
+        }
+        if (lats.size() != ids.size() || lons.size() != ids.size()) {
+          throw new FileFormatException("Dense nodes have " + ids.size() + " IDs but " + lats.size() +
+            " latitudes and " + lons.size() + " longitudes");
+        }
+        nodeId = 0;
+        latitude = 0;
+        longitude = 0;
+        timestamp = 0;
+        changeset = 0;
+        uid = 0;
+        userSid = 0;
+        i = 0;
+        kvIndex = 0;
       }
-      // Delta decode node fields.
-      nodeId += nodes.getId(i);
-      latitude += nodes.getLat(i);
-      longitude += nodes.getLon(i);
-      int version = 0;
-
-      if (denseInfo != null) {
-        version = denseInfo.getVersionCount() > i ? denseInfo.getVersion(i) : 0;
-        timestamp += denseInfo.getTimestampCount() > i ? denseInfo.getTimestamp(i) : 0;
-        changeset += denseInfo.getChangesetCount() > i ? denseInfo.getChangeset(i) : 0;
-        uid += denseInfo.getUidCount() > i ? denseInfo.getUid(i) : 0;
-        userSid += denseInfo.getUserSidCount() > i ? denseInfo.getUserSid(i) : 0;
+
+      private void readDenseInfo(int end) {
+        while (buf.position() < end) {
+          int tag = readTag(buf);
+          switch (tag >>> 3) {
+            case 1 -> readInts(buf, tag, versions);
+            case 2 -> readSignedLongs(buf, tag, timestamps);
+            case 3 -> readSignedLongs(buf, tag, changesets);
+            case 4 -> readSignedLongs(buf, tag, uids);
+            case 5 -> readSignedLongs(buf, tag, userSids);
+            default -> skipField(buf, tag);
+          }
+        }
       }
 
-      i++;
+      boolean hasNext() {
+        return i < ids.size();
+      }
 
-      // Build the tags. The key and value string indexes are sequential
-      // in the same PBF array. Each set of tags is delimited by an index
-      // with a value of 0.
-      Map<String, Object> tags = null;
-      while (kvIndex < nodes.getKeysValsCount()) {
-        int keyIndex = nodes.getKeysVals(kvIndex++);
-        if (keyIndex == 0) {
-          break;
+      OsmElement.Node next() {
+        // Delta decode node fields.
+        nodeId += ids.get(i);
+        latitude += lats.get(i);
+        longitude += lons.get(i);
+        int version = versions.size() > i ? versions.get(i) : 0;
+        timestamp += timestamps.size() > i ? timestamps.get(i) : 0;
+        changeset += changesets.size() > i ? changesets.get(i) : 0;
+        uid += uids.size() > i ? (int) uids.get(i) : 0;
+        userSid += userSids.size() > i ? (int) userSids.get(i) : 0;
+
+        i++;
+
+        // Build the tags. The key and value string indexes are sequential
+        // in the same PBF array. Each set of tags is delimited by an index
+        // with a value of 0.
+        int[] kv = keysVals.buffer;
+        int kvCount = keysVals.size();
+        int tagsStart = kvIndex;
+        int tagsEnd = kvIndex;
+        while (kvIndex < kvCount) {
+          if (kv[kvIndex++] == 0) {
+            break;
+          }
+          kvIndex++;
+          tagsEnd = kvIndex;
         }
-        int valueIndex = nodes.getKeysVals(kvIndex++);
-
-        if (tags == null) {
-          // divide by 2 as key&value, multiply by 2 because of the better approximation
-          tags = HashMap.newHashMap(Math.max(3, 2 * (nodes.getKeysValsCount() / 2) / nodes.getKeysValsCount()));
+        if (tagsEnd > kvCount) {
+          throw new FileFormatException("Dense node " + nodeId + " has a key without a value");
         }
 
-        tags.put(fieldDecoder.decodeString(keyIndex), fieldDecoder.decodeString(valueIndex));
+        return new OsmElement.Node(
+          nodeId,
+          tagsEnd == tagsStart ? Collections.emptyMap() : new PbfTagMap(strings, kv, tagsStart, tagsEnd),
+          ((double) latitude) / 10000000,
+          ((double) longitude) / 10000000,
+          newInfo(changeset, timestamp, uid, version, userSid)
+        );
       }
-
-      return new OsmElement.Node(
-        nodeId,
-        tags == null ? Collections.emptyMap() : tags,
-        ((double) latitude) / 10000000,
-        ((double) longitude) / 10000000,
-        denseInfo == null ? null : new OsmElement.Info(
-          changeset,
-          timestamp,
-          uid,
-          version,
-          fieldDecoder.decodeString(userSid)
-        )
-      );
     }
   }
 }
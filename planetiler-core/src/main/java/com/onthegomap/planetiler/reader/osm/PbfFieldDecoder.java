@@ -41,6 +41,24 @@ public class PbfFieldDecoder {
     }
   }
 
+  /**
+   * Creates a new instance from fields that were already read from a primitive block.
+   *
+   * @param strings              The decoded string table.
+   * @param coordGranularity     The granularity of coordinates in nanodegrees.
+   * @param coordLatitudeOffset  The offset of latitudes in nanodegrees.
+   * @param coordLongitudeOffset The offset of longitudes in nanodegrees.
+   * @param dateGranularity      The granularity of timestamps in milliseconds.
+   */
+  public PbfFieldDecoder(String[] strings, int coordGranularity, long coordLatitudeOffset, long coordLongitudeOffset,
+    int dateGranularity) {
+    this.strings = strings;
+    this.coordGranularity = coordGranularity;
+    this.coordLatitudeOffset = coordLatitudeOffset;
+    this.coordLongitudeOffset = coordLongitudeOffset;
+    this.dateGranularity = dateGranularity;
+  }
+
   /**
    * Decodes a raw latitude value into degrees.
    * <p>
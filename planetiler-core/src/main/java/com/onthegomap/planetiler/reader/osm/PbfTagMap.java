@@ -0,0 +1,117 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tags of an element read from a PBF block, stored as key/value indexes into the block's string table until something
+ * needs a real map.
+ * <p>
+ * Most elements only get a handful of {@link #get(Object)} or {@link #containsKey(Object)} calls while profiles decide
+ * whether to emit them, so those scan the indexes directly without allocating. Iterating over or modifying the tags
+ * copies them into a {@link HashMap} that all later calls use instead.
+ */
+final class PbfTagMap extends AbstractMap<String, Object> {
+
+  private final String[] strings;
+  private final int[] keysVals;
+  private final int start;
+  private final int end;
+  private Map<String, Object> materialized = null;
+  private int size = -1;
+
+  /**
+   * Creates a tag map from {@code keysVals[start..end)} which holds alternating key and value indexes into
+   * {@code strings}.
+   */
+  PbfTagMap(String[] strings, int[] keysVals, int start, int end) {
+    this.strings = strings;
+    this.keysVals = keysVals;
+    this.start = start;
+    this.end = end;
+  }
+
+  @Override
+  public Object get(Object key) {
+    if (materialized != null) {
+      return materialized.get(key);
+    }
+    // search from the end so a duplicate key returns the last value, like putting them all into a hash map would
+    for (int i = end - 2; i >= start; i -= 2) {
+      if (strings[keysVals[i]].equals(key)) {
+        return strings[keysVals[i + 1]];
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public int size() {
+    if (materialized != null) {
+      return materialized.size();
+    }
+    if (size < 0) {
+      int distinct = 0;
+      for (int i = start; i < end; i += 2) {
+        if (!hasKeyBefore(i)) {
+          distinct++;
+        }
+      }
+      size = distinct;
+    }
+    return size;
+  }
+
+  private boolean hasKeyBefore(int index) {
+    String key = strings[keysVals[index]];
+    for (int i = start; i < index; i += 2) {
+      if (keysVals[i] == keysVals[index] || strings[keysVals[i]].equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return materialized != null ? materialized.isEmpty() : end <= start;
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    return materialize().put(key, value);
+  }
+
+  @Override
+  public Object remove(Object key) {
+    return materialize().remove(key);
+  }
+
+  @Override
+  public void clear() {
+    materialize().clear();
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return materialize().entrySet();
+  }
+
+  private Map<String, Object> materialize() {
+    if (materialized == null) {
+      Map<String, Object> result = HashMap.newHashMap((end - start) / 2);
+      for (int i = start; i < end; i += 2) {
+        result.put(strings[keysVals[i]], strings[keysVals[i + 1]]);
+      }
+      materialized = result;
+    }
+    return materialized;
+  }
+}
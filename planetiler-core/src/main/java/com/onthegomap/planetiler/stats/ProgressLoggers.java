@@ -175,6 +175,28 @@ public class ProgressLoggers {
     return this;
   }
 
+  /**
+   * Adds the percent of time that {@code threads} worker threads spent doing work since the last log to the output,
+   * where {@code busyNanos} is the total time they have spent doing work so far.
+   * <p>
+   * Unlike CPU usage from {@link #addThreadPoolStats(String, Worker)}, this leaves out time that threads spend waiting
+   * on input.
+   */
+  public ProgressLoggers addUtilization(LongSupplier busyNanos, int threads) {
+    AtomicLong last = new AtomicLong(busyNanos.getAsLong());
+    AtomicLong lastTime = new AtomicLong(System.nanoTime());
+    loggers.add(new WorkerPipelineLogger(() -> {
+      long now = System.nanoTime();
+      long busyNow = busyNanos.getAsLong();
+      double timeDiff = 1d * (now - lastTime.get()) * threads;
+      double utilization = timeDiff <= 0 ? 0 : Math.min(1, (busyNow - last.get()) / timeDiff);
+      last.set(busyNow);
+      lastTime.set(now);
+      return " busy: " + padLeft(format.percent(utilization), 4);
+    }));
+    return this;
+  }
+
   public ProgressLoggers add(String obj) {
     loggers.add(obj);
     return this;
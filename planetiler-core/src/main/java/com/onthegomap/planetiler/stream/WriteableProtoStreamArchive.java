@@ -88,6 +88,8 @@ public final class WriteableProtoStreamArchive extends WriteableStreamArchive {
     final StreamArchiveProto.TileCompression tileCompression = switch (metadata.tileCompression()) {
       case GZIP -> StreamArchiveProto.TileCompression.TILE_COMPRESSION_GZIP;
       case NONE -> StreamArchiveProto.TileCompression.TILE_COMPRESSION_NONE;
+      case BROTLI -> StreamArchiveProto.TileCompression.TILE_COMPRESSION_BROTLI;
+      case ZSTD -> StreamArchiveProto.TileCompression.TILE_COMPRESSION_ZSTD;
       case UNKNOWN -> throw new IllegalArgumentException("should not produce \"UNKNOWN\" compression");
     };
     metaDataBuilder.setTileCompression(tileCompression);
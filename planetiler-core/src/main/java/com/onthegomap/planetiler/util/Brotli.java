@@ -0,0 +1,45 @@
+package com.onthegomap.planetiler.util;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.decoder.Decoder;
+import com.aayushatharva.brotli4j.decoder.DecoderJNI;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+import java.io.IOException;
+
+/**
+ * Utilities for compressing and decompressing byte arrays with <a href="https://github.com/google/brotli">Brotli</a>
+ * using the native brotli library.
+ */
+public class Brotli {
+
+  /** Default quality, the highest levels (10-11) are an order of magnitude slower for small gains on vector tiles. */
+  public static final int DEFAULT_QUALITY = 6;
+
+  private Brotli() {}
+
+  private static void ensureAvailable() throws IOException {
+    try {
+      Brotli4jLoader.ensureAvailability();
+    } catch (UnsatisfiedLinkError e) {
+      throw new IOException("Native brotli library is not available on this platform", e);
+    }
+  }
+
+  public static byte[] brotli(byte[] in) throws IOException {
+    return brotli(in, DEFAULT_QUALITY);
+  }
+
+  public static byte[] brotli(byte[] in, int quality) throws IOException {
+    ensureAvailable();
+    return Encoder.compress(in, new Encoder.Parameters().setQuality(quality));
+  }
+
+  public static byte[] unbrotli(byte[] zipped) throws IOException {
+    ensureAvailable();
+    var result = Decoder.decompress(zipped);
+    if (result.getResultStatus() != DecoderJNI.Status.DONE) {
+      throw new IOException("Brotli decompression failed: " + result.getResultStatus());
+    }
+    return result.getDecompressedData();
+  }
+}
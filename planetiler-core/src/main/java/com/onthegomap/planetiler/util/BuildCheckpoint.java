@@ -0,0 +1,120 @@
+package com.onthegomap.planetiler.util;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.onthegomap.planetiler.collection.FeatureGroup;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A manifest file in the temp directory that records how far a build got, so that a run with {@code --resume} can pick
+ * up where a previous run crashed instead of starting over.
+ * <p>
+ * Records the OSM source whose node locations have been saved to the node map, the temp feature chunks once all sources
+ * have been read, each time the sort replaces some of them, and again once they are all sorted. Tile ranges already
+ * written to the archive get tracked separately by {@link com.onthegomap.planetiler.archive.TileArchiveShards}. Each
+ * update replaces the manifest atomically, and a manifest left by a run with a different fingerprint (arguments or
+ * profile) gets ignored.
+ */
+@ThreadSafe
+public class BuildCheckpoint {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BuildCheckpoint.class);
+  private static final String FILE_NAME = "checkpoint.json";
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+    .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  private final Path path;
+  private final String fingerprint;
+  private Manifest manifest;
+
+  record Manifest(String fingerprint, String nodes, FeatureGroup.Checkpoint features) {}
+
+  private BuildCheckpoint(Path path, String fingerprint, Manifest manifest) {
+    this.path = path;
+    this.fingerprint = fingerprint;
+    this.manifest = manifest;
+  }
+
+  /**
+   * Returns the checkpoint stored in {@code dir} if it was written by a run with the same {@code fingerprint}, or an
+   * empty checkpoint otherwise.
+   */
+  public static BuildCheckpoint load(Path dir, String fingerprint) {
+    Path path = dir.resolve(FILE_NAME);
+    Manifest manifest = new Manifest(fingerprint, null, null);
+    if (Files.exists(path)) {
+      try {
+        Manifest existing = MAPPER.readValue(path.toFile(), Manifest.class);
+        if (fingerprint.equals(existing.fingerprint())) {
+          manifest = existing;
+        } else {
+          LOGGER.warn("Ignoring checkpoint in {} from a run with different arguments or inputs", path);
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Ignoring unreadable checkpoint in {}: {}", path, e.toString());
+      }
+    }
+    return new BuildCheckpoint(path, fingerprint, manifest);
+  }
+
+  /** Returns a fingerprint that changes whenever {@code parts} would lead a build to produce different output. */
+  public static String fingerprint(Object... parts) {
+    StringBuilder builder = new StringBuilder();
+    for (Object part : parts) {
+      builder.append(part).append('\n');
+    }
+    return Long.toHexString(Hashing.fnv1a64(builder.toString().getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /** Returns the name of the OSM source whose node locations a previous run saved, or {@code null} if none. */
+  public synchronized String nodes() {
+    return manifest.nodes();
+  }
+
+  /**
+   * Records that the node map holds every node location from the OSM source named {@code source}, or that it no longer
+   * holds anything reusable if {@code source} is {@code null}.
+   */
+  public synchronized void saveNodes(String source) {
+    save(new Manifest(fingerprint, source, manifest.features()));
+  }
+
+  /** Returns the feature chunks from a previous run that finished reading all sources, or {@code null} if none. */
+  public synchronized FeatureGroup.Checkpoint features() {
+    return manifest.features();
+  }
+
+  /**
+   * Records that every source has been read (and possibly sorted) into {@code features}, after which the node map is no
+   * longer needed.
+   */
+  public synchronized void saveFeatures(FeatureGroup.Checkpoint features) {
+    save(new Manifest(fingerprint, null, features));
+  }
+
+  /** Removes the manifest so that the next run starts over. */
+  public synchronized void clear() {
+    manifest = new Manifest(fingerprint, null, null);
+    FileUtils.delete(path);
+  }
+
+  private void save(Manifest newManifest) {
+    Path tmp = path.resolveSibling(FILE_NAME + ".tmp");
+    try {
+      FileUtils.createParentDirectories(path);
+      MAPPER.writeValue(tmp.toFile(), newManifest);
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    manifest = newManifest;
+  }
+}
@@ -16,7 +16,8 @@ import org.slf4j.LoggerFactory;
 public class ByteBufferUtil {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ByteBufferUtil.class);
-
+  // merge requests for nearby pages to limit the number of system calls, at the cost of loading a few extra pages
+  private static final long MAX_PREFETCH_GAP_BYTES = 1 << 15;
 
   /** Attempts to invoke native utility and logs an error message if not available. */
   public static void init() {
@@ -41,6 +42,42 @@ public class ByteBufferUtil {
     Madvise.posixMadvise(buffer, value.value);
   }
 
+  /**
+   * Hint to the system that the {@code length} bytes starting at each of {@code sortedOffsets} in a file mapped into
+   * segments of {@code 1 << segmentBits} bytes will be read soon, so the OS can start loading them in the background.
+   * <p>
+   * Nearby offsets are grouped into a single {@link Madvice#WILLNEED} request.
+   *
+   * @param segments      The mapped segments of the file, or {@code null} for segments that were not mapped
+   * @param segmentBits   Log base 2 of the number of bytes in each segment
+   * @param sortedOffsets Offsets in the file, in ascending order
+   * @param count         The number of offsets to use from {@code sortedOffsets}
+   * @param length        The number of bytes that will be read from each offset
+   * @throws IOException If an error occurs or madvise not available on this system
+   */
+  public static void madviseWillNeed(ByteBuffer[] segments, int segmentBits, long[] sortedOffsets, int count,
+    int length) throws IOException {
+    int i = 0;
+    while (i < count) {
+      long start = sortedOffsets[i];
+      long end = start + length;
+      long segment = start >>> segmentBits;
+      while (++i < count && sortedOffsets[i] - end <= MAX_PREFETCH_GAP_BYTES &&
+        (sortedOffsets[i] >>> segmentBits) == segment) {
+        end = sortedOffsets[i] + length;
+      }
+      if (segment < segments.length && segments[(int) segment] != null) {
+        ByteBuffer buffer = segments[(int) segment];
+        long segmentStart = segment << segmentBits;
+        int from = (int) (start - segmentStart);
+        int to = (int) Math.min(buffer.capacity(), end - segmentStart);
+        if (to > from) {
+          posixMadvise(buffer.slice(from, to - from), Madvice.WILLNEED);
+        }
+      }
+    }
+  }
+
   /**
    * Attempt to force-unmap a list of memory-mapped file segments, so it can safely be deleted.
    * <p>
@@ -1,26 +1,74 @@
 package com.onthegomap.planetiler.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * A utility for compressing commonly-used strings (i.e. layer name, tag attributes).
+ * <p>
+ * Strings passed to {@link #CommonStringEncoder(int, Collection)} up front get the first IDs and live in an immutable
+ * map, so encoding them never touches shared mutable state. Other strings get the next free ID the first time they
+ * are seen. IDs map back to strings through pages that only get allocated once they are used, so a large
+ * {@code maxStrings} does not cost memory up front.
  */
 @ThreadSafe
 public class CommonStringEncoder {
 
+  private static final int PAGE_BITS = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
   private final int maxStrings;
 
-  private final Map<String, Integer> stringToId;
-  private final String[] idToString;
-  private final AtomicInteger stringId = new AtomicInteger(0);
+  private final Map<String, Integer> preRegistered;
+  private final Map<String, Integer> stringToId = new ConcurrentHashMap<>();
+  private final AtomicReferenceArray<String[]> idToString;
+  private final AtomicInteger stringId;
 
   public CommonStringEncoder(int maxStrings) {
+    this(maxStrings, List.of());
+  }
+
+  /**
+   * Returns an encoder that assigns IDs starting at 0 to each distinct string in {@code preRegistered} in order,
+   * before any calls to {@link #encode(String)}.
+   *
+   * @throws IllegalArgumentException if there are more than {@code maxStrings} distinct strings in
+   *                                  {@code preRegistered}
+   */
+  public CommonStringEncoder(int maxStrings, Collection<String> preRegistered) {
     this.maxStrings = maxStrings;
-    stringToId = new ConcurrentHashMap<>(maxStrings);
-    idToString = new String[maxStrings];
+    idToString = new AtomicReferenceArray<>((maxStrings + PAGE_SIZE - 1) >>> PAGE_BITS);
+    Map<String, Integer> ids = HashMap.newHashMap(preRegistered.size());
+    for (String string : preRegistered) {
+      if (!ids.containsKey(string)) {
+        int id = ids.size();
+        if (id >= maxStrings) {
+          throw new IllegalArgumentException("Too many strings");
+        }
+        ids.put(string, id);
+        store(id, string);
+      }
+    }
+    this.preRegistered = Map.copyOf(ids);
+    this.stringId = new AtomicInteger(ids.size());
+  }
+
+  private void store(int id, String string) {
+    int pageNum = id >>> PAGE_BITS;
+    String[] page = idToString.get(pageNum);
+    if (page == null) {
+      idToString.compareAndSet(pageNum, null, new String[PAGE_SIZE]);
+      page = idToString.get(pageNum);
+    }
+    page[id & PAGE_MASK] = string;
   }
 
   /**
@@ -29,7 +77,8 @@ public class CommonStringEncoder {
    * @throws IllegalArgumentException if there is no value for {@code id}.
    */
   public String decode(int id) {
-    String str = idToString[id];
+    String[] page = id < 0 || id >= maxStrings ? null : idToString.get(id >>> PAGE_BITS);
+    String str = page == null ? null : page[id & PAGE_MASK];
     if (str == null) {
       throw new IllegalArgumentException("No string for " + id);
     }
@@ -44,22 +93,157 @@ public class CommonStringEncoder {
    * @throws IllegalArgumentException if called for too many values
    */
   public int encode(String string) {
-    // optimization to avoid more expensive computeIfAbsent call for the majority case when concurrent hash map already
-    // contains the value.
-    Integer result = stringToId.get(string);
+    int result = tryEncode(string);
+    if (result < 0) {
+      throw new IllegalArgumentException("Too many strings");
+    }
+    return result;
+  }
+
+  /** Returns the int value already assigned to {@code string}, or {@code null} if it does not have one yet. */
+  private Integer lookup(String string) {
+    Integer result = preRegistered.get(string);
+    return result != null ? result : stringToId.get(string);
+  }
+
+  /** Returns the int value for {@code string}, adding it if there is room, or -1 if there are already too many. */
+  private int tryEncode(String string) {
+    // optimization to avoid more expensive computeIfAbsent call for the majority case when the string already has an ID
+    Integer result = lookup(string);
     if (result == null) {
+      if (isFull()) {
+        return -1;
+      }
       result = stringToId.computeIfAbsent(string, s -> {
         int id = stringId.getAndIncrement();
         if (id >= maxStrings) {
-          throw new IllegalArgumentException("Too many strings");
+          return null;
         }
-        idToString[id] = string;
+        store(id, string);
         return id;
       });
+      if (result == null) {
+        return -1;
+      }
     }
     return result;
   }
 
+  private boolean isFull() {
+    return stringId.get() >= maxStrings;
+  }
+
+  /** Returns every string encoded so far ordered by ID, starting with the pre-registered ones. */
+  public List<String> strings() {
+    int count = Math.min(maxStrings, stringId.get());
+    List<String> result = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String[] page = idToString.get(i >>> PAGE_BITS);
+      String string = page == null ? null : page[i & PAGE_MASK];
+      if (string == null) {
+        break;
+      }
+      result.add(string);
+    }
+    return result;
+  }
+
+  /**
+   * Variant of CommonStringEncoder that only assigns IDs to strings once they have been seen {@code minOccurrences}
+   * times, so that callers can store frequent strings (i.e. tag values like {@code class=residential}) as an ID and
+   * everything else inline.
+   * <p>
+   * To bound memory usage, it tracks at most {@code maxCandidates} strings that have not been seen often enough yet.
+   * When a new string shows up and there is no room for it, the count of every candidate gets halved and candidates that
+   * drop to zero get evicted, so strings that only become common later in the input can still get an ID. It stops
+   * counting once {@code maxStrings} IDs have been handed out.
+   */
+  @ThreadSafe
+  public static class Adaptive {
+
+    /** Returned by {@link #encodeIfCommon(String)} for strings without an ID. */
+    public static final int NONE = -1;
+
+    private final CommonStringEncoder encoder;
+    private final int minOccurrences;
+    private final int maxCandidates;
+    private final Map<String, AtomicInteger> candidates = new ConcurrentHashMap<>();
+
+    public Adaptive(int maxStrings, int minOccurrences, int maxCandidates) {
+      this.encoder = new CommonStringEncoder(maxStrings);
+      this.minOccurrences = minOccurrences;
+      this.maxCandidates = maxCandidates;
+    }
+
+    /**
+     * Returns the ID for {@code string} if it has been seen enough times to get one, or {@link #NONE} if the caller
+     * should store it inline.
+     */
+    public int encodeIfCommon(String string) {
+      Integer result = encoder.lookup(string);
+      if (result != null) {
+        return result;
+      } else if (encoder.isFull()) {
+        if (!candidates.isEmpty()) {
+          candidates.clear();
+        }
+        return NONE;
+      }
+      AtomicInteger count = candidates.get(string);
+      if (count == null) {
+        if (candidates.size() >= maxCandidates && !decayCandidates()) {
+          return NONE;
+        }
+        count = candidates.computeIfAbsent(string, s -> new AtomicInteger());
+      }
+      if (count.incrementAndGet() < minOccurrences) {
+        return NONE;
+      }
+      int id = encoder.tryEncode(string);
+      candidates.remove(string);
+      return id < 0 ? NONE : id;
+    }
+
+    /**
+     * Halves the count of every candidate and evicts the ones that reach zero, returning true if that left room for a
+     * new candidate.
+     * <p>
+     * Counts from other threads may get lost while this runs, which only delays when those strings get an ID.
+     */
+    private boolean decayCandidates() {
+      synchronized (candidates) {
+        if (candidates.size() >= maxCandidates) {
+          candidates.values().removeIf(count -> count.updateAndGet(c -> c >> 1) == 0);
+        }
+        return candidates.size() < maxCandidates;
+      }
+    }
+
+    /**
+     * Assigns the next ID to {@code string} regardless of how often it has been seen, for example to restore IDs
+     * handed out in a previous run.
+     *
+     * @throws IllegalArgumentException if called for too many values
+     */
+    public int encode(String string) {
+      return encoder.encode(string);
+    }
+
+    /**
+     * Returns the string for {@code id}.
+     *
+     * @throws IllegalArgumentException if there is no value for {@code id}.
+     */
+    public String decode(int id) {
+      return encoder.decode(id);
+    }
+
+    /** Returns every string that has an ID so far ordered by ID. */
+    public List<String> strings() {
+      return encoder.strings();
+    }
+  }
+
   /**
    * Variant of CommonStringEncoder based on byte rather than int for string indexing.
    */
@@ -73,5 +257,10 @@ public class CommonStringEncoder {
     public byte encode(String string) {
       return (byte) encoder.encode(string);
     }
+
+    /** Returns every string encoded so far ordered by ID. */
+    public List<String> strings() {
+      return encoder.strings();
+    }
   }
 }
@@ -6,6 +6,7 @@ import com.onthegomap.planetiler.archive.Tile;
 import com.onthegomap.planetiler.archive.TileArchiveConfig;
 import com.onthegomap.planetiler.archive.TileArchives;
 import com.onthegomap.planetiler.archive.TileCompression;
+import com.onthegomap.planetiler.archive.TileDecompressor;
 import com.onthegomap.planetiler.config.Arguments;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.geo.GeometryException;
@@ -123,6 +124,8 @@ public class CompareArchives {
   private Result getResult(PlanetilerConfig config) {
     final TileCompression compression2;
     final TileCompression compression1;
+    final TileDecompressor decompressor1;
+    final TileDecompressor decompressor2;
     compareArchive("format", input1.format(), input2.format());
     try (
       var reader1 = TileArchives.newReader(input1, config);
@@ -141,6 +144,8 @@ public class CompareArchives {
       if (!compareArchive("tile compression", compression1, compression2)) {
         LOGGER.warn("Will compare decompressed tile contents instead");
       }
+      decompressor1 = reader1.tileDecompressor();
+      decompressor2 = reader2.tileDecompressor();
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
@@ -209,13 +214,13 @@ public class CompareArchives {
               diffs.incrementAndGet();
               compareTiles(
                 a.coord(),
-                decode(decompress(a.bytes(), compression1)),
-                decode(decompress(b.bytes(), compression2))
+                decode(decompress(a, compression1, decompressor1)),
+                decode(decompress(b, compression2, decompressor2))
               );
             }
           } else { // different compression
-            var decompressed1 = decompress(a.bytes(), compression1);
-            var decompressed2 = decompress(b.bytes(), compression2);
+            var decompressed1 = decompress(a, compression1, decompressor1);
+            var decompressed2 = decompress(b, compression2, decompressor2);
             if (!Arrays.equals(decompressed1, decompressed2)) {
               recordTileDiff(a.coord(), "different decompressed contents");
               diffs.incrementAndGet();
@@ -425,12 +430,12 @@ public class CompareArchives {
     return true;
   }
 
-  private byte[] decompress(byte[] bytes, TileCompression tileCompression) throws IOException {
-    return switch (tileCompression) {
-      case GZIP -> Gzip.gunzip(bytes);
-      case NONE -> bytes;
-      case UNKNOWN -> throw new FatalComparisonFailure("Unknown compression");
-    };
+  private byte[] decompress(Tile tile, TileCompression tileCompression, TileDecompressor decompressor)
+    throws IOException {
+    if (tileCompression == TileCompression.UNKNOWN) {
+      throw new FatalComparisonFailure("Unknown compression");
+    }
+    return decompressor.decompress(tile.coord().z(), tile.bytes());
   }
 
   private VectorTileProto.Tile decode(byte[] decompressedTile) throws IOException {
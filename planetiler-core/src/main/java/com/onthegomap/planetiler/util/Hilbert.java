@@ -125,4 +125,61 @@ public class Hilbert {
 
     return ((interleave(i1) << 1) | interleave(i0)) >>> (32 - 2 * level);
   }
+
+  /**
+   * Same as {@link #hilbertXYToIndex(int, int, int)} but returns a {@code long} to support levels above 16 where the
+   * index does not fit in 32 bits.
+   */
+  public static long hilbertXYToLongIndex(int level, int x, int y) {
+    if (level <= 16) {
+      return Integer.toUnsignedLong(hilbertXYToIndex(level, x, y));
+    }
+    // the fast path above only handles 16 levels, fall back to the iterative algorithm that produces the same curve
+    long index = 0;
+    long lx = x, ly = y;
+    for (long s = 1L << (level - 1); s > 0; s >>>= 1) {
+      long rx = (lx & s) > 0 ? 1 : 0;
+      long ry = (ly & s) > 0 ? 1 : 0;
+      index += s * s * ((3 * rx) ^ ry);
+      if (ry == 0) {
+        if (rx == 1) {
+          lx = s - 1 - lx;
+          ly = s - 1 - ly;
+        }
+        long tmp = lx;
+        lx = ly;
+        ly = tmp;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Same as {@link #hilbertPositionToXY(int, int)} but accepts a {@code long} index to support levels above 16.
+   * <p>
+   * Use {@link #extractX(long)} and {@link #extractY(long)} to extract x and y from the result.
+   */
+  public static long hilbertLongPositionToXY(int level, long pos) {
+    if (level <= 16) {
+      return hilbertPositionToXY(level, (int) pos);
+    }
+    long x = 0, y = 0;
+    for (long s = 1; s < (1L << level); s <<= 1) {
+      long rx = 1 & (pos >>> 1);
+      long ry = 1 & (pos ^ rx);
+      if (ry == 0) {
+        if (rx == 1) {
+          x = s - 1 - x;
+          y = s - 1 - y;
+        }
+        long tmp = x;
+        x = y;
+        y = tmp;
+      }
+      x += s * rx;
+      y += s * ry;
+      pos >>>= 2;
+    }
+    return (x << 32) | y;
+  }
 }
@@ -7,6 +7,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.annotation.concurrent.ThreadSafe;
@@ -37,25 +38,35 @@ public class LayerAttrStats {
   private final ThreadLocal<ThreadLocalHandler> layerStats = ThreadLocal
     .withInitial(ThreadLocalHandler::new);
 
-  /** Returns stats on all features that have been emitted as a list of {@link VectorLayer} objects. */
+  /**
+   * Returns stats on all features that have been emitted as a list of {@link VectorLayer} objects.
+   * <p>
+   * Can be called while other threads are still emitting features, for example to record the layers in tiles that have
+   * been written so far.
+   */
   public List<VectorLayer> getTileStats() {
     Map<String, StatsForLayer> layers = new TreeMap<>();
     for (var threadLocal : threadLocals) {
       for (StatsForLayer stats : threadLocal.layers.values()) {
-        layers.merge(stats.layer, stats, (prev, next) -> {
-          prev.expandZoomRangeToInclude(next.maxzoom);
-          prev.expandZoomRangeToInclude(next.minzoom);
-          for (var entry : next.fields.entrySet()) {
-            // keep track of field type as a number/boolean/string but widen to string if multiple different
-            // types are encountered
-            prev.fields.merge(entry.getKey(), entry.getValue(), FieldType::merge);
-          }
-          return prev;
-        });
+        int minzoom = stats.minzoom;
+        int maxzoom = stats.maxzoom;
+        if (minzoom > maxzoom) {
+          // its thread just added this layer and hasn't recorded a zoom yet
+          continue;
+        }
+        // copy instead of merging into thread-local stats that their thread may still be updating
+        var merged = layers.computeIfAbsent(stats.layer, StatsForLayer::new);
+        merged.expandZoomRangeToInclude(maxzoom);
+        merged.expandZoomRangeToInclude(minzoom);
+        for (var entry : stats.fields.entrySet()) {
+          // keep track of field type as a number/boolean/string but widen to string if multiple different
+          // types are encountered
+          merged.fields.merge(entry.getKey(), entry.getValue(), FieldType::merge);
+        }
       }
     }
     return layers.values().stream()
-      .map(stats -> new VectorLayer(stats.layer, stats.fields, stats.minzoom, stats.maxzoom))
+      .map(stats -> new VectorLayer(stats.layer, new TreeMap<>(stats.fields), stats.minzoom, stats.maxzoom))
       .toList();
   }
 
@@ -113,7 +124,8 @@ public class LayerAttrStats {
   @NotThreadSafe
   private class ThreadLocalHandler implements Updater {
 
-    private final Map<String, StatsForLayer> layers = new TreeMap<>();
+    // concurrent maps so getTileStats can read them while this thread updates them
+    private final Map<String, StatsForLayer> layers = new ConcurrentHashMap<>();
 
     ThreadLocalHandler() {
       threadLocals.add(this);
@@ -133,7 +145,8 @@ public class LayerAttrStats {
           } else if (value != null) {
             fieldType = FieldType.STRING;
           }
-          if (fieldType != null) {
+          // most features repeat the type they have seen before, so skip the update in that case
+          if (fieldType != null && stats.fields.get(key) != fieldType) {
             // widen different types to string
             stats.fields.merge(key, fieldType, FieldType::merge);
           }
@@ -169,18 +182,23 @@ public class LayerAttrStats {
   private static class StatsForLayer {
 
     private final String layer;
-    // use TreeMap to ensure the same output always appears the same in an archive
-    private final Map<String, FieldType> fields = new TreeMap<>();
-    private int minzoom = Integer.MAX_VALUE;
-    private int maxzoom = Integer.MIN_VALUE;
+    // copied to a TreeMap on read to ensure the same output always appears the same in an archive
+    private final Map<String, FieldType> fields = new ConcurrentHashMap<>();
+    private volatile int minzoom = Integer.MAX_VALUE;
+    private volatile int maxzoom = Integer.MIN_VALUE;
 
     private StatsForLayer(String layer) {
       this.layer = layer;
     }
 
     private void expandZoomRangeToInclude(int zoom) {
-      minzoom = Math.min(zoom, minzoom);
-      maxzoom = Math.max(zoom, maxzoom);
+      // only the owning thread writes, so avoid volatile writes when the range already includes zoom
+      if (zoom < minzoom) {
+        minzoom = zoom;
+      }
+      if (zoom > maxzoom) {
+        maxzoom = zoom;
+      }
     }
   }
 }
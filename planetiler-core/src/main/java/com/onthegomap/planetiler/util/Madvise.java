@@ -77,7 +77,7 @@ class Madvise {
     final int capacity = buffer.capacity();
 
     long alignedAddress = alignedAddress(address);
-    long alignedSize = alignedSize(alignedAddress, capacity);
+    long alignedSize = alignedSize(address, capacity);
     try {
       int val = nativeC.posix_madvise(alignedAddress, alignedSize, value);
       if (val != 0) {
@@ -0,0 +1,72 @@
+package com.onthegomap.planetiler.util;
+
+import com.onthegomap.planetiler.collection.LongLongMap;
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import com.onthegomap.planetiler.reader.osm.OsmChange;
+import com.onthegomap.planetiler.reader.osm.OsmInputFile;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lists the tiles that need to be re-rendered after applying an OSM replication diff to the data from a previous build.
+ * <p>
+ * To run:
+ *
+ * <pre>{@code
+ * java -cp planetiler.jar com.onthegomap.planetiler.util.OsmChangeTiles \
+ *   --osm_path=previous.osm.pbf --changes=change.osc.gz --output=dirty_tiles.txt
+ * }</pre>
+ * <p>
+ * Writes one {@code z/x/y} line per tile from {@code --minzoom} to {@code --maxzoom}. Way node lists and relation
+ * members from {@code --osm_path} get held in memory, so this is only suitable for extracts.
+ * <p>
+ * The output is a list of tiles to expire or re-render, this does not modify an existing MBTiles or PMTiles archive.
+ */
+public class OsmChangeTiles {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OsmChangeTiles.class);
+
+  public static void main(String... args) throws IOException {
+    var arguments = Arguments.fromArgsOrConfigFile(args);
+    var config = PlanetilerConfig.from(arguments);
+    Path input = arguments.inputFile("osm_path", "OSM data that the change applies to");
+    Path changes = arguments.inputFile("changes", "OsmChange file (.osc or .osc.gz) to apply");
+    Path output = arguments.file("output", "file to write dirty tiles to", Path.of("dirty_tiles.txt"));
+    double buffer = arguments.getDouble("buffer", "fraction of a tile to expand changed elements by", 4d / 256);
+    Path nodeDbPath = arguments.file("temp_nodes", "temp node db location", config.tmpDir().resolve("node.db"));
+
+    var change = OsmChange.read(changes);
+    LOGGER.info("Read {} changes from {}", change.changes().size(), changes);
+    OsmChange.DirtyTiles dirtyTiles;
+    FileUtils.createParentDirectories(nodeDbPath, output);
+    try (
+      var nodeLocations =
+        LongLongMap.from(config.nodeMapType(), config.nodeMapStorage(), nodeDbPath, config.nodeMapMadvise());
+      var source = new OsmInputFile(input, config.osmLazyReads()).get()
+    ) {
+      var previous = OsmChange.PreviousState.read(source, nodeLocations, change);
+      dirtyTiles = change.dirtyTiles(previous, config.minzoom(), config.maxzoom(), buffer);
+    } finally {
+      FileUtils.delete(nodeDbPath);
+    }
+
+    var count = new AtomicLong(0);
+    try (var writer = Files.newBufferedWriter(output)) {
+      dirtyTiles.forEachTile(tile -> {
+        try {
+          writer.write(tile.z() + "/" + tile.x() + "/" + tile.y() + "\n");
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        count.incrementAndGet();
+      });
+    }
+    LOGGER.info("Wrote {} dirty tiles to {}", count.get(), output);
+  }
+}
@@ -0,0 +1,431 @@
+package com.onthegomap.planetiler.util;
+
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.onthegomap.planetiler.archive.ReadableTileArchive;
+import com.onthegomap.planetiler.archive.TileArchiveConfig;
+import com.onthegomap.planetiler.archive.TileArchiveMetadata;
+import com.onthegomap.planetiler.archive.TileArchiveMetadataDeSer;
+import com.onthegomap.planetiler.archive.TileArchives;
+import com.onthegomap.planetiler.archive.TileCompression;
+import com.onthegomap.planetiler.archive.TileDecompressor;
+import com.onthegomap.planetiler.archive.ZstdDictionaries;
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves tiles from a {@link ReadableTileArchive} over HTTP at {@code /{z}/{x}/{y}} along with a
+ * <a href="https://github.com/mapbox/tilejson-spec/tree/master/3.0.0">TileJSON</a> document at {@code /tiles.json}.
+ * <p>
+ * Each request runs on its own virtual thread. Tiles are returned in the compression they were stored in when the
+ * client accepts that encoding and only decompressed for clients that don't, and recently requested tiles are kept in
+ * an LRU cache bounded by total bytes along with their ETag so repeat and conditional requests don't touch the
+ * archive. Archives that are not safe to share between threads, like MBTiles, get a pool of readers with their own
+ * SQLite connection.
+ * <p>
+ * To run:
+ *
+ * <pre>{@code
+ * java -jar planetiler.jar serve --input=path/to/archive.pmtiles --port=8080
+ * }</pre>
+ */
+public class TileServer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileServer.class);
+  private static final JsonMapper MAPPER = TileArchiveMetadataDeSer.newBaseBuilder().build();
+  private static final Pattern TILE_PATH = Pattern.compile("^/(\\d{1,2})/(\\d{1,9})/(\\d{1,9})(\\.[a-z]+)?$");
+  private static final String MVT_CONTENT_TYPE = "application/vnd.mapbox-vector-tile";
+  private static final byte[] MISSING = new byte[0];
+
+  private final BlockingQueue<ReadableTileArchive> readers;
+  private final List<ReadableTileArchive> allReaders;
+  private final boolean shared;
+  private final TileArchiveMetadata metadata;
+  private final TileDecompressor decompressor;
+  private final TileCompression compression;
+  private final String contentEncoding;
+  private final TileCache cache;
+  private final LongAdder requests = new LongAdder();
+  private HttpServer server;
+  private ExecutorService executor;
+
+  /**
+   * Creates a server for tiles from {@code readers}.
+   *
+   * @param readers    readers open on the same archive
+   * @param shared     {@code true} if the first reader is safe to use from many threads at once, otherwise each request
+   *                   borrows one reader from the pool
+   * @param cacheBytes max total size of tiles to keep in memory
+   */
+  public TileServer(List<? extends ReadableTileArchive> readers, boolean shared, long cacheBytes) {
+    if (readers.isEmpty()) {
+      throw new IllegalArgumentException("Need at least one reader");
+    }
+    this.allReaders = List.copyOf(readers);
+    this.shared = shared;
+    this.readers = new ArrayBlockingQueue<>(allReaders.size(), false, allReaders);
+    ReadableTileArchive first = allReaders.getFirst();
+    this.metadata = first.metadata();
+    this.decompressor = first.tileDecompressor();
+    this.compression = metadata == null || metadata.tileCompression() == null ? TileCompression.UNKNOWN :
+      metadata.tileCompression();
+    this.contentEncoding = contentEncoding(compression, metadata);
+    this.cache = new TileCache(cacheBytes);
+  }
+
+  /**
+   * Returns a server for the archive described by {@code archive} with a pool of {@code connections} readers if it is
+   * an MBTiles file, or a single shared reader otherwise.
+   */
+  public static TileServer open(TileArchiveConfig archive, PlanetilerConfig config, int connections, long cacheBytes)
+    throws IOException {
+    int count = archive.format() == TileArchiveConfig.Format.MBTILES ? Math.max(1, connections) : 1;
+    List<ReadableTileArchive> readers = new ArrayList<>(count);
+    try {
+      for (int i = 0; i < count; i++) {
+        readers.add(TileArchives.newReader(archive, config));
+      }
+    } catch (IOException | RuntimeException e) {
+      for (var reader : readers) {
+        reader.close();
+      }
+      throw e;
+    }
+    return new TileServer(readers, archive.format() != TileArchiveConfig.Format.MBTILES, cacheBytes);
+  }
+
+  public static void main(String... args) throws Exception {
+    var arguments = Arguments.fromArgsOrConfigFile(args);
+    var input = arguments.getString("input", "path to the archive to serve");
+    String bind = arguments.getString("bind", "address to listen on", "0.0.0.0");
+    int port = arguments.getInteger("port", "port to listen on", 8080);
+    int connections = arguments.getInteger("connections", "number of sqlite connections for mbtiles archives",
+      Runtime.getRuntime().availableProcessors());
+    long cacheBytes = Parse.jvmMemoryStringToBytes(arguments.getString("tile_cache_size",
+      "max memory to use for cached tiles", "256m"));
+    var config = PlanetilerConfig.from(arguments);
+    var server = open(TileArchiveConfig.from(input), config, connections, cacheBytes);
+    Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+    server.start(new InetSocketAddress(bind, port));
+    LOGGER.info("Serving {} at http://{}:{}/tiles.json", input, bind, server.port());
+  }
+
+  /** Starts listening for requests on {@code address}, use port 0 to pick any free port. */
+  public TileServer start(InetSocketAddress address) throws IOException {
+    executor = Executors.newVirtualThreadPerTaskExecutor();
+    server = HttpServer.create(address, 0);
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+    return this;
+  }
+
+  /** Returns the port this server is listening on. */
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  /** Returns hit and miss counts for the tile cache since this server started. */
+  public CacheStats cacheStats() {
+    return cache.stats(requests.sum());
+  }
+
+  @Override
+  public void close() {
+    if (server != null) {
+      server.stop(0);
+      executor.close();
+      server = null;
+    }
+    for (var reader : allReaders) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        LOGGER.warn("Error closing {}", reader, e);
+      }
+    }
+  }
+
+  private static String contentEncoding(TileCompression compression, TileArchiveMetadata metadata) {
+    return switch (compression) {
+      case GZIP -> "gzip";
+      case BROTLI -> "br";
+      // browsers can't decode tiles compressed against a custom dictionary
+      case ZSTD -> ZstdDictionaries.fromMetadata(metadata) == null ? "zstd" : null;
+      case NONE, UNKNOWN -> null;
+    };
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.increment();
+    try {
+      String method = exchange.getRequestMethod();
+      if (!"GET".equals(method) && !"HEAD".equals(method)) {
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+      String path = exchange.getRequestURI().getPath();
+      Matcher matcher = TILE_PATH.matcher(path);
+      if (matcher.matches()) {
+        serveTile(exchange, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+          Integer.parseInt(matcher.group(3)));
+      } else if ("/".equals(path) || "/tiles.json".equals(path)) {
+        serveTileJson(exchange);
+      } else {
+        exchange.sendResponseHeaders(404, -1);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Error handling {}", exchange.getRequestURI(), e);
+      if (exchange.getResponseCode() == -1) {
+        exchange.sendResponseHeaders(500, -1);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void serveTile(HttpExchange exchange, int z, int x, int y) throws IOException {
+    if (z > PlanetilerConfig.MAX_MAXZOOM || x >= (1 << z) || y >= (1 << z)) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+    CachedTile tile = getTile(TileCoord.ofXYZ(x, y, z));
+    if (tile.data == MISSING) {
+      exchange.sendResponseHeaders(204, -1);
+      return;
+    }
+    var headers = exchange.getResponseHeaders();
+    // 304 responses need Vary too so caches know the ETag only applies to one encoding
+    headers.set("Vary", "Accept-Encoding");
+    boolean encoded = contentEncoding != null && accepts(exchange, contentEncoding);
+    boolean decompress = !encoded && compression != TileCompression.NONE && compression != TileCompression.UNKNOWN;
+    // the encoded and decompressed bodies are different representations so they need different strong ETags
+    String etag = decompress ? tile.etag.replaceFirst("\"$", "-identity\"") : tile.etag;
+    headers.set("ETag", etag);
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+    if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || "*".equals(ifNoneMatch.strip()))) {
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+    headers.set("Content-Type", metadata != null && TileArchiveMetadata.MVT_FORMAT.equals(metadata.format()) ?
+      MVT_CONTENT_TYPE : "application/octet-stream");
+    byte[] body = tile.data;
+    if (encoded) {
+      headers.set("Content-Encoding", contentEncoding);
+    } else if (decompress) {
+      body = decompressor.decompress(z, body);
+    }
+    send(exchange, body);
+  }
+
+  private static boolean accepts(HttpExchange exchange, String encoding) {
+    for (String header : exchange.getRequestHeaders().getOrDefault("Accept-Encoding", List.of())) {
+      for (String part : header.split(",")) {
+        String[] params = part.split(";");
+        String value = params[0].strip();
+        if (value.equalsIgnoreCase(encoding) || "*".equals(value)) {
+          return params.length < 2 || !isZeroQuality(params[1].strip());
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isZeroQuality(String param) {
+    if (!param.startsWith("q=")) {
+      return false;
+    }
+    Double quality = Parse.parseDoubleOrNull(param.substring(2));
+    return quality != null && quality <= 0;
+  }
+
+  private CachedTile getTile(TileCoord coord) {
+    long key = coord.encoded();
+    CachedTile tile = cache.get(key);
+    if (tile == null) {
+      byte[] data = readTile(coord);
+      tile = data == null || data.length == 0 ? new CachedTile(MISSING, null) :
+        new CachedTile(data, "\"" + Long.toHexString(Hashing.fnv1a64(data)) + "\"");
+      cache.put(key, tile);
+    }
+    return tile;
+  }
+
+  private byte[] readTile(TileCoord coord) {
+    if (shared) {
+      return allReaders.getFirst().getTile(coord);
+    }
+    ReadableTileArchive reader;
+    try {
+      reader = readers.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+    try {
+      return reader.getTile(coord);
+    } finally {
+      readers.add(reader);
+    }
+  }
+
+  private void serveTileJson(HttpExchange exchange) throws IOException {
+    String host = exchange.getRequestHeaders().getFirst("Host");
+    if (host == null) {
+      host = exchange.getLocalAddress().getHostString() + ":" + exchange.getLocalAddress().getPort();
+    }
+    String extension = metadata != null && TileArchiveMetadata.MVT_FORMAT.equals(metadata.format()) ? ".pbf" : "";
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    send(exchange, tileJson("http://" + host + "/{z}/{x}/{y}" + extension));
+  }
+
+  /** Returns a TileJSON document describing this archive with tiles served from {@code url}. */
+  byte[] tileJson(String url) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("tilejson", "3.0.0");
+    result.put("tiles", List.of(url));
+    if (metadata != null) {
+      putIfNotNull(result, "name", metadata.name());
+      putIfNotNull(result, "description", metadata.description());
+      putIfNotNull(result, "attribution", metadata.attribution());
+      putIfNotNull(result, "version", metadata.version());
+      putIfNotNull(result, "minzoom", metadata.minzoom());
+      putIfNotNull(result, "maxzoom", metadata.maxzoom());
+      var bounds = metadata.bounds();
+      if (bounds != null) {
+        result.put("bounds", List.of(bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY()));
+      }
+      var center = metadata.center();
+      if (center != null) {
+        result.put("center", Double.isNaN(center.getZ()) ? List.of(center.getX(), center.getY()) :
+          List.of(center.getX(), center.getY(), center.getZ()));
+      }
+      putIfNotNull(result, "vector_layers", metadata.vectorLayers());
+    }
+    try {
+      return MAPPER.writeValueAsBytes(result);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void putIfNotNull(Map<String, Object> map, String key, Object value) {
+    if (value != null) {
+      map.put(key, value);
+    }
+  }
+
+  private static void send(HttpExchange exchange, byte[] body) throws IOException {
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+      exchange.sendResponseHeaders(200, -1);
+    } else {
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+    }
+  }
+
+  /**
+   * Tile cache counters.
+   *
+   * @param requests HTTP requests handled
+   * @param hits     tile lookups served from the cache
+   * @param misses   tile lookups that had to read from the archive
+   * @param bytes    total size of cached tiles
+   */
+  public record CacheStats(long requests, long hits, long misses, long bytes) {
+
+    @Override
+    public String toString() {
+      return "requests=%d hits=%d misses=%d bytes=%d".formatted(requests, hits, misses, bytes);
+    }
+  }
+
+  private record CachedTile(byte[] data, String etag) {}
+
+  /** Least-recently-used cache of tiles by {@link TileCoord#encoded()}, bounded by total tile bytes. */
+  private static class TileCache {
+
+    // only guards the map, tiles get read from the archive outside of the lock so misses don't block cache hits
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long maxBytes;
+    private final Map<Long, CachedTile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    TileCache(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    private static long size(CachedTile tile) {
+      // account for the key, map entry and etag too so empty tiles still count towards the limit
+      return tile.data.length + 64L;
+    }
+
+    CachedTile get(long key) {
+      lock.lock();
+      try {
+        var tile = tiles.get(key);
+        if (tile != null) {
+          hits++;
+        } else {
+          misses++;
+        }
+        return tile;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void put(long key, CachedTile tile) {
+      long size = size(tile);
+      if (size > maxBytes) {
+        return;
+      }
+      lock.lock();
+      try {
+        var old = tiles.put(key, tile);
+        bytes += size - (old == null ? 0 : size(old));
+        var iterator = tiles.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+          bytes -= size(iterator.next());
+          iterator.remove();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    CacheStats stats(long requests) {
+      lock.lock();
+      try {
+        return new CacheStats(requests, hits, misses, bytes);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
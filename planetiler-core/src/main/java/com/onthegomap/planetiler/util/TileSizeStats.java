@@ -12,6 +12,7 @@ import com.onthegomap.planetiler.VectorTile;
 import com.onthegomap.planetiler.archive.Tile;
 import com.onthegomap.planetiler.archive.TileArchiveConfig;
 import com.onthegomap.planetiler.archive.TileArchives;
+import com.onthegomap.planetiler.archive.TileDecompressor;
 import com.onthegomap.planetiler.config.Arguments;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.geo.TileCoord;
@@ -63,7 +64,7 @@ public class TileSizeStats {
     return archive.resolveSibling(archive.getFileName() + ".layerstats.tsv.gz");
   }
 
-  public static void main(String... args) {
+  public static void main(String... args) throws IOException {
     var arguments = Arguments.fromArgsOrConfigFile(args);
     var config = PlanetilerConfig.from(arguments);
     var stats = Stats.inMemory();
@@ -78,6 +79,10 @@ public class TileSizeStats {
     var output = localPath == null ?
       arguments.file("output", "output file") :
       arguments.file("output", "output file", getDefaultLayerstatsPath(localPath));
+    TileDecompressor decompressor;
+    try (var reader = TileArchives.newReader(input, config)) {
+      decompressor = reader.tileDecompressor();
+    }
     var counter = new AtomicLong(0);
     var timer = stats.startStage("tilestats");
     record Batch(List<Tile> tiles, CompletableFuture<List<String>> stats) {}
@@ -124,7 +129,7 @@ public class TileSizeStats {
           for (var tile : batch.tiles) {
             if (!Arrays.equals(zipped, tile.bytes())) {
               zipped = tile.bytes();
-              unzipped = Gzip.gunzip(tile.bytes());
+              unzipped = decompressor.decompress(tile.coord().z(), tile.bytes());
               decoded = VectorTileProto.Tile.parseFrom(unzipped);
               layerStats = computeTileStats(decoded);
             }
@@ -166,7 +171,7 @@ public class TileSizeStats {
     // is called billions of times from multiple threads, so we generate a new instance per serializing thread
     ObjectWriter writer = new CsvMapper().writer(SCHEMA);
     return (tileCoord, archivedBytes, layerStats) -> {
-      int hilbert = tileCoord.hilbertEncoded();
+      long hilbert = tileCoord.hilbertEncoded();
       List<String> result = new ArrayList<>(layerStats.size());
       for (var layer : layerStats) {
         result.add(writer.writeValueAsString(new OutputRow(
@@ -266,7 +271,7 @@ public class TileSizeStats {
     int z,
     int x,
     int y,
-    int hilbert,
+    long hilbert,
     int archivedTileBytes,
     String layer,
     int layerBytes,
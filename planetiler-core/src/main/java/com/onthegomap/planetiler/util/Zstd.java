@@ -0,0 +1,40 @@
+package com.onthegomap.planetiler.util;
+
+import com.github.luben.zstd.ZstdException;
+import java.io.IOException;
+
+/**
+ * Utilities for compressing and decompressing byte arrays with
+ * <a href="https://facebook.github.io/zstd/">Zstandard</a>.
+ */
+public class Zstd {
+
+  /** Default compression level, favors encode throughput while still beating gzip on output size. */
+  public static final int DEFAULT_LEVEL = 3;
+
+  private Zstd() {}
+
+  public static byte[] zstd(byte[] in) throws IOException {
+    return zstd(in, DEFAULT_LEVEL);
+  }
+
+  public static byte[] zstd(byte[] in, int level) throws IOException {
+    try {
+      return com.github.luben.zstd.Zstd.compress(in, level);
+    } catch (ZstdException e) {
+      throw new IOException(e);
+    }
+  }
+
+  public static byte[] unzstd(byte[] zipped) throws IOException {
+    try {
+      long size = com.github.luben.zstd.Zstd.getFrameContentSize(zipped);
+      if (size < 0 || size > Integer.MAX_VALUE) {
+        throw new IOException("Unable to determine decompressed size of zstd frame: " + size);
+      }
+      return com.github.luben.zstd.Zstd.decompress(zipped, (int) size);
+    } catch (ZstdException e) {
+      throw new IOException(e);
+    }
+  }
+}
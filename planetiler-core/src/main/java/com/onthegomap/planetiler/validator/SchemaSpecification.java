@@ -1,7 +1,5 @@
 package com.onthegomap.planetiler.validator;
 
-import static com.onthegomap.planetiler.config.PlanetilerConfig.MAX_MAXZOOM;
-
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -19,6 +17,9 @@ import java.util.Map;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public record SchemaSpecification(List<Example> examples) {
 
+  /** Zoom level to check output features at when they don't specify {@code at_zoom}. */
+  private static final int DEFAULT_ZOOM = 15;
+
   public static SchemaSpecification load(Path path) {
     return YAML.load(path, SchemaSpecification.class);
   }
@@ -77,7 +78,7 @@ public record SchemaSpecification(List<Example> examples) {
 
     @Override
     public Integer atZoom() {
-      return atZoom == null ? MAX_MAXZOOM : atZoom;
+      return atZoom == null ? DEFAULT_ZOOM : atZoom;
     }
   }
 }
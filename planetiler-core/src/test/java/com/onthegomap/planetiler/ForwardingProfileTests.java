@@ -114,8 +114,10 @@ class ForwardingProfileTests {
     )), b);
   }
 
-  @Test
-  void testProcessFeatureWithFilter() {
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void testProcessFeatureWithFilter(boolean compile) {
+    profile = new ForwardingProfile(PlanetilerConfig.from(Arguments.of("compile_expressions", compile))) {};
     SourceFeature a = SimpleFeature.create(GeoUtils.EMPTY_POINT, Map.of("key", "value"), "srca", null, 1);
     SourceFeature b = SimpleFeature.create(GeoUtils.EMPTY_POINT, Map.of(), "srcb", null, 1);
 
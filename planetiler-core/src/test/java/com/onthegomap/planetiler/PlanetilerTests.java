@@ -10,6 +10,7 @@ import com.onthegomap.planetiler.archive.TileArchiveConfig;
 import com.onthegomap.planetiler.archive.TileArchiveMetadata;
 import com.onthegomap.planetiler.archive.TileArchiveWriter;
 import com.onthegomap.planetiler.archive.TileCompression;
+import com.onthegomap.planetiler.archive.ZstdDictionaries;
 import com.onthegomap.planetiler.collection.FeatureGroup;
 import com.onthegomap.planetiler.collection.LongLongMap;
 import com.onthegomap.planetiler.collection.LongLongMultimap;
@@ -28,6 +29,7 @@ import com.onthegomap.planetiler.reader.SourceFeature;
 import com.onthegomap.planetiler.reader.SourceFeatureProcessor;
 import com.onthegomap.planetiler.reader.osm.OsmBlockSource;
 import com.onthegomap.planetiler.reader.osm.OsmElement;
+import com.onthegomap.planetiler.reader.osm.OsmSourceFeature;
 import com.onthegomap.planetiler.reader.osm.OsmReader;
 import com.onthegomap.planetiler.reader.osm.OsmRelationInfo;
 import com.onthegomap.planetiler.stats.Stats;
@@ -49,6 +51,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -289,6 +292,31 @@ class PlanetilerTests {
     ), results.metadata);
   }
 
+  @Test
+  void testDictionaryCompressedTiles() throws Exception {
+    List<SimpleFeature> points = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      double x = 0.5 + Z14_WIDTH * (i * 37 % 100);
+      double y = 0.5 + Z14_WIDTH * (i * 11 % 100);
+      points.add(newReaderFeature(newPoint(GeoUtils.getWorldLon(x), GeoUtils.getWorldLat(y)), Map.of("i", i)));
+    }
+    BiConsumer<SourceFeature, FeatureCollector> profile = (in, features) -> features.point("layer")
+      .setZoomRange(0, 14)
+      .inheritAttrFromSource("i");
+
+    var plain = runWithReaderFeatures(Map.of("threads", "1", "tile_compression", "zstd"), points, profile);
+    var dictionary = runWithReaderFeatures(Map.of(
+      "threads", "1",
+      "tile_compression", "zstd",
+      "tile_compression_dictionary", "true"
+    ), points, profile);
+
+    assertEquals(plain.tiles, dictionary.tiles);
+    assertTrue(
+      dictionary.metadata.keySet().stream().anyMatch(key -> key.startsWith(ZstdDictionaries.METADATA_KEY_PREFIX)),
+      dictionary.metadata::toString);
+  }
+
   @ParameterizedTest
   @ValueSource(booleans = {false, true})
   void testSinglePoint(boolean anyGeom) throws Exception {
@@ -2208,7 +2236,7 @@ class PlanetilerTests {
           int z = Integer.parseInt(next.get("z"));
           int x = Integer.parseInt(next.get("x"));
           int y = Integer.parseInt(next.get("y"));
-          int hilbert = Integer.parseInt(next.get("hilbert"));
+          long hilbert = Long.parseLong(next.get("hilbert"));
           assertEquals(hilbert, TileCoord.ofXYZ(x, y, z).hilbertEncoded());
           assertTrue(Integer.parseInt(next.get("z")) <= 14, "bad z: " + next);
         }
@@ -2228,6 +2256,144 @@ class PlanetilerTests {
     }
   }
 
+  @Test
+  void testArchiveShardsInSeparateProcesses() throws Exception {
+    Path osm = TestUtils.pathToResource("monaco-latest.osm.pbf");
+    Path sharded = tempDir.resolve("sharded.mbtiles");
+    Path unsharded = tempDir.resolve("unsharded.mbtiles");
+
+    ShardedBuild.run(Arguments.fromArgs("--tmpdir=" + tempDir.resolve("unsharded"), "--osm_path=" + osm,
+      "--output=" + unsharded));
+
+    String[] shardedArgs = {"--tmpdir=" + tempDir.resolve("sharded"), "--osm_path=" + osm, "--output=" + sharded,
+      "--archive_shards=2"};
+    List<String> workerCommand = new ArrayList<>(List.of(
+      Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+      "-cp", System.getProperty("java.class.path"),
+      ShardedBuild.class.getName()
+    ));
+    workerCommand.addAll(List.of(shardedArgs));
+    workerCommand.add("--archive_shard=1");
+    Process worker = new ProcessBuilder(workerCommand).inheritIO().start();
+    try {
+      ShardedBuild.run(Arguments.fromArgs(shardedArgs));
+      assertTrue(worker.waitFor(2, TimeUnit.MINUTES), "worker timed out");
+      assertEquals(0, worker.exitValue(), "worker exit code");
+    } finally {
+      worker.destroyForcibly();
+    }
+
+    try (
+      var expected = Mbtiles.newReadOnlyDatabase(unsharded);
+      var actual = Mbtiles.newReadOnlyDatabase(sharded)
+    ) {
+      var expectedTiles = TestUtils.getTiles(expected);
+      assertFalse(expectedTiles.isEmpty());
+      assertEquals(expectedTiles, TestUtils.getTiles(actual));
+      assertEquals(expected.metadata().json(), actual.metadata().json());
+    }
+  }
+
+  @Test
+  void testResumeAfterCrashes() throws Exception {
+    Path osm = TestUtils.pathToResource("monaco-latest.osm.pbf");
+    Path expectedOutput = tempDir.resolve("expected.mbtiles");
+    Path output = tempDir.resolve("resumed.mbtiles");
+    Path tmp = tempDir.resolve("resumed");
+    ShardedBuild.run(Arguments.fromArgs("--tmpdir=" + tempDir.resolve("expected"), "--osm_path=" + osm,
+      "--output=" + expectedOutput));
+    Arguments arguments = Arguments.fromArgs("--tmpdir=" + tmp, "--osm_path=" + osm, "--output=" + output,
+      "--resume", "--force");
+
+    // crash processing ways, after node locations are saved
+    assertThrows(Exception.class, () -> runResumable(arguments, new CrashingProfile(true, false)));
+    assertTrue(Files.readString(tmp.resolve("checkpoint.json")).contains("\"nodes\":\"osm\""));
+
+    // crash encoding the last zoom level, after earlier tile ranges are written
+    assertThrows(Exception.class, () -> runResumable(arguments, new CrashingProfile(false, true)));
+    assertTrue(Files.exists(tmp.resolve("archive-shards").resolve("shard-0.json")));
+    assertFalse(Files.exists(tmp.resolve("archive-shards").resolve("shard-63.json")));
+
+    runResumable(arguments, new CrashingProfile(false, false));
+    assertFalse(Files.exists(tmp.resolve("checkpoint.json")));
+
+    try (
+      var expected = Mbtiles.newReadOnlyDatabase(expectedOutput);
+      var actual = Mbtiles.newReadOnlyDatabase(output)
+    ) {
+      var expectedTiles = TestUtils.getTiles(expected);
+      assertFalse(expectedTiles.isEmpty());
+      assertEquals(expectedTiles, TestUtils.getTiles(actual));
+      assertEquals(expected.metadata().json(), actual.metadata().json());
+    }
+  }
+
+  private static void runResumable(Arguments arguments, Profile profile) throws Exception {
+    Planetiler.create(arguments)
+      .setProfile(profile)
+      .addOsmSource("osm", Path.of("monaco-latest.osm.pbf"))
+      .setOutput("output.mbtiles")
+      .run();
+  }
+
+  /** Same features as {@link ShardedBuildProfile} but can crash while reading ways or encoding z14 tiles. */
+  private static class CrashingProfile extends ShardedBuildProfile {
+
+    private final boolean crashOnWays;
+    private final boolean crashOnZ14;
+
+    CrashingProfile(boolean crashOnWays, boolean crashOnZ14) {
+      this.crashOnWays = crashOnWays;
+      this.crashOnZ14 = crashOnZ14;
+    }
+
+    @Override
+    public void processFeature(SourceFeature source, FeatureCollector features) {
+      if (crashOnWays && source instanceof OsmSourceFeature osm && osm.originalElement() instanceof OsmElement.Way) {
+        throw new ExpectedError();
+      }
+      super.processFeature(source, features);
+    }
+
+    @Override
+    public List<VectorTile.Feature> postProcessLayerFeatures(String layer, int zoom,
+      List<VectorTile.Feature> items) {
+      if (crashOnZ14 && zoom == 14) {
+        throw new ExpectedError();
+      }
+      return items;
+    }
+  }
+
+  /** Builds Monaco from the command line so archive shard workers can run in their own process. */
+  static class ShardedBuild {
+
+    public static void main(String[] args) throws Exception {
+      run(Arguments.fromArgs(args));
+    }
+
+    static void run(Arguments arguments) throws Exception {
+      Planetiler.create(arguments)
+        .setProfile(new ShardedBuildProfile())
+        .addOsmSource("osm", Path.of("monaco-latest.osm.pbf"))
+        .setOutput("output.mbtiles")
+        .run();
+    }
+  }
+
+  /** Emits enough features at every zoom level for sorted features to get split into more than one shard. */
+  static class ShardedBuildProfile extends Profile.NullProfile {
+
+    @Override
+    public void processFeature(SourceFeature source, FeatureCollector features) {
+      if (source.canBePolygon() && source.hasTag("building")) {
+        features.polygon("building").setZoomRange(0, 14).setMinPixelSize(0).setAttr("id", source.id());
+      } else if (source.isPoint() && !source.tags().isEmpty()) {
+        features.point("poi").setZoomRange(0, 14).setAttr("id", source.id());
+      }
+    }
+  }
+
   @Test
   void testPlanetilerRunnerShapefile() throws Exception {
     Path mbtiles = tempDir.resolve("output.mbtiles");
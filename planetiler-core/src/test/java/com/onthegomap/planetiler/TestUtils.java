@@ -21,6 +21,7 @@ import com.onthegomap.planetiler.archive.ReadableTileArchive;
 import com.onthegomap.planetiler.archive.Tile;
 import com.onthegomap.planetiler.archive.TileArchiveMetadata;
 import com.onthegomap.planetiler.archive.TileCompression;
+import com.onthegomap.planetiler.archive.TileDecompressor;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.geo.GeoUtils;
 import com.onthegomap.planetiler.geo.GeometryException;
@@ -270,19 +271,21 @@ public class TestUtils {
 
   public static Map<TileCoord, List<ComparableFeature>> getTileMap(ReadableTileArchive db)
     throws IOException {
-    return getTileMap(db, TileCompression.GZIP);
+    return getTileMap(db, db.tileDecompressor());
   }
 
   public static Map<TileCoord, List<ComparableFeature>> getTileMap(ReadableTileArchive db,
     TileCompression tileCompression)
     throws IOException {
+    return getTileMap(db, (z, bytes) -> tileCompression.decompress(bytes));
+  }
+
+  private static Map<TileCoord, List<ComparableFeature>> getTileMap(ReadableTileArchive db,
+    TileDecompressor decompressor)
+    throws IOException {
     Map<TileCoord, List<ComparableFeature>> tiles = new TreeMap<>();
     for (var tile : getTiles(db)) {
-      var bytes = switch (tileCompression) {
-        case GZIP -> gunzip(tile.bytes());
-        case NONE -> tile.bytes();
-        case UNKNOWN -> throw new IllegalArgumentException("cannot decompress \"UNKNOWN\"");
-      };
+      var bytes = decompressor.decompress(tile.coord().z(), tile.bytes());
       var decoded = VectorTile.decode(bytes).stream()
         .map(feature -> feature(decodeSilently(feature.geometry()), feature.layer(), feature.tags())).toList();
       tiles.put(tile.coord(), decoded);
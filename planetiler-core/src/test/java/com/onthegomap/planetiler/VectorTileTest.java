@@ -30,11 +30,14 @@ import static org.junit.jupiter.api.DynamicTest.dynamicTest;
 import com.google.common.primitives.Ints;
 import com.onthegomap.planetiler.geo.GeoUtils;
 import com.onthegomap.planetiler.geo.GeometryException;
+import com.onthegomap.planetiler.util.TileSizeStats;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DynamicTest;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
@@ -340,6 +343,30 @@ class VectorTileTest {
     assertEquals("layer2", decoded.get(2).layer());
   }
 
+  @Test
+  void testEncodeMatchesProtobufBuilders() {
+    Point point = JTS_FACTORY.createPoint(new CoordinateXY(0, 0));
+    String longKey = "k\u00e9y\uD83D\uDE00".repeat(30);
+    var tile = new VectorTile().addLayerFeatures("layer2", List.of(
+      new VectorTile.Feature("layer2", VectorTile.NO_FEATURE_ID, VectorTile.encodeGeometry(point), Map.of()),
+      new VectorTile.Feature("layer2", -5L, VectorTile.encodeGeometry(newPolygon(0, 0, 10, 0, 10, 10, 0, 0)),
+        Map.of(longKey, "v\u00e9".repeat(100), "int", Integer.MIN_VALUE, "long", Long.MAX_VALUE))
+    )).addLayerFeatures("layer1", List.of(
+      new VectorTile.Feature("layer1", Long.MAX_VALUE, VectorTile.encodeGeometry(newLineString(0, 0, -10, 300)),
+        Map.of("float", 1.5f, "double", -2.5d, "bool", true, "other", new StringBuilder("sb"), "null", "")),
+      new VectorTile.Feature("layer1", 1L, VectorTile.encodeGeometry(newMultiPoint(point, newPoint(1, 2))),
+        Map.of("float", 1.5f, "bool", false))
+    ));
+
+    List<TileSizeStats.LayerStats> stats = new ArrayList<>();
+    byte[] encoded = tile.encode(stats);
+    VectorTileProto.Tile proto = tile.toProto();
+    Assertions.assertArrayEquals(proto.toByteArray(), encoded);
+    assertEquals(TileSizeStats.computeTileStats(proto), stats);
+    Assertions.assertArrayEquals(encoded, tile.encode());
+    Assertions.assertArrayEquals(new byte[0], new VectorTile().encode());
+  }
+
   @ParameterizedTest
   @CsvSource({
     "true,true,-1,-1,257,257",
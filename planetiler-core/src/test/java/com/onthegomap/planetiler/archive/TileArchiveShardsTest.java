@@ -0,0 +1,162 @@
+package com.onthegomap.planetiler.archive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.geo.TileOrder;
+import com.onthegomap.planetiler.stats.Stats;
+import com.onthegomap.planetiler.util.LayerAttrStats;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TileArchiveShardsTest {
+
+  @TempDir
+  Path tmpDir;
+
+  private static final TileArchiveMetadata METADATA = new TileArchiveMetadata(null, null, null, null, null, null,
+    null, null, null, null, null, Map.of(), TileCompression.GZIP);
+
+  private static void writeShard(TileArchiveShards shards, TileArchiveShards.Plan plan, int shard,
+    List<TileEncodingResult> tiles, List<LayerAttrStats.VectorLayer> layers) throws Exception {
+    try (var archive = shards.newShardWriter(plan, shard)) {
+      archive.initialize();
+      try (var writer = archive.newTileWriter()) {
+        tiles.forEach(writer::write);
+      }
+      archive.finish(METADATA.withLayerStats(layers));
+    }
+  }
+
+  private static WriteableTileArchive collectingArchive(List<TileEncodingResult> written,
+    List<TileArchiveMetadata> finished) {
+    return new WriteableTileArchive() {
+      @Override
+      public boolean deduplicates() {
+        return true;
+      }
+
+      @Override
+      public TileOrder tileOrder() {
+        return TileOrder.TMS;
+      }
+
+      @Override
+      public TileWriter newTileWriter() {
+        return new TileWriter() {
+          @Override
+          public void write(TileEncodingResult encodingResult) {
+            written.add(encodingResult);
+          }
+
+          @Override
+          public void close() {}
+        };
+      }
+
+      @Override
+      public void finish(TileArchiveMetadata tileArchiveMetadata) {
+        finished.add(tileArchiveMetadata);
+      }
+
+      @Override
+      public long bytesWritten() {
+        return 0;
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  private static TileEncodingResult tile(long id) {
+    return new TileEncodingResult(TileOrder.TMS.decode(id), new byte[]{(byte) id}, 1, OptionalLong.empty(),
+      List.of());
+  }
+
+  @Test
+  void testWriteAndMergeShards() throws Exception {
+    var shards = TileArchiveShards.in(tmpDir.resolve("shards"));
+    var plan = new TileArchiveShards.Plan("fingerprint", TileOrder.TMS, true, new long[]{0, 2, Long.MAX_VALUE});
+    shards.savePlan(plan);
+    assertEquals(plan.shards(), shards.awaitPlan("fingerprint").shards());
+
+    var tile0 = new TileEncodingResult(TileCoord.decode(0), new byte[]{1}, 10, OptionalLong.of(5), List.of());
+    var tile1 = new TileEncodingResult(TileCoord.decode(1), new byte[]{2, 3}, 20, OptionalLong.empty(), List.of());
+    var tile2 = new TileEncodingResult(TileCoord.decode(2), new byte[]{4}, 30, OptionalLong.empty(), List.of());
+    writeShard(shards, plan, 1, List.of(tile2), List.of(
+      new LayerAttrStats.VectorLayer("a", Map.of("x", LayerAttrStats.FieldType.STRING), 3, 5),
+      new LayerAttrStats.VectorLayer("b", Map.of(), 1, 1)
+    ));
+    assertFalse(shards.isComplete(plan));
+    writeShard(shards, plan, 0, List.of(tile0, tile1), List.of(
+      new LayerAttrStats.VectorLayer("a", Map.of("x", LayerAttrStats.FieldType.NUMBER), 0, 4)
+    ));
+    assertTrue(shards.isComplete(plan));
+
+    List<TileEncodingResult> written = new ArrayList<>();
+    List<TileArchiveMetadata> finished = new ArrayList<>();
+    shards.merge(plan, collectingArchive(written, finished), METADATA, Stats.inMemory(), shard -> shard >= 1);
+
+    assertEquals(List.of(tile0, tile1, tile2), written);
+    assertEquals(List.of(10, 20, 30), written.stream().map(TileEncodingResult::rawTileSize).toList());
+    assertEquals(List.of(
+      new LayerAttrStats.VectorLayer("a", Map.of("x", LayerAttrStats.FieldType.STRING), 0, 5),
+      new LayerAttrStats.VectorLayer("b", Map.of(), 1, 1)
+    ), finished.getFirst().json().vectorLayers());
+  }
+
+  @Test
+  void testResumeWritingRanges() throws Exception {
+    var shards = TileArchiveShards.in(tmpDir.resolve("ranges"));
+    var plan = new TileArchiveShards.Plan("fingerprint", TileOrder.TMS, true, new long[]{0, 2, 4, 6, Long.MAX_VALUE});
+    shards.savePlan(plan);
+    assertEquals(0, shards.firstIncomplete(plan));
+
+    // first run crashes after writing a tile in the third range
+    var crashedStats = new LayerAttrStats();
+    crashedStats.handlerForThread().forZoom(1).forLayer("a").accept("x", 1);
+    try (var archive = shards.newRangeWriter(plan, 0, crashedStats)) {
+      archive.initialize();
+      try (var writer = archive.newTileWriter()) {
+        writer.write(tile(0));
+        writer.write(tile(1));
+        writer.write(tile(4));
+      }
+    }
+    assertTrue(shards.isComplete(0));
+    assertTrue(shards.isComplete(1));
+    assertFalse(shards.isComplete(2));
+    assertEquals(2, shards.firstIncomplete(plan));
+
+    var resumedStats = new LayerAttrStats();
+    resumedStats.handlerForThread().forZoom(2).forLayer("b").accept("y", "value");
+    try (var archive = shards.newRangeWriter(plan, 2, resumedStats)) {
+      archive.initialize();
+      try (var writer = archive.newTileWriter()) {
+        writer.write(tile(4));
+        writer.write(tile(5));
+      }
+      archive.finish(METADATA.withLayerStats(resumedStats.getTileStats()));
+    }
+    assertTrue(shards.isComplete(plan));
+    assertEquals(plan.shards(), shards.firstIncomplete(plan));
+
+    List<TileEncodingResult> written = new ArrayList<>();
+    List<TileArchiveMetadata> finished = new ArrayList<>();
+    shards.merge(plan, collectingArchive(written, finished), METADATA, Stats.inMemory(), shard -> shard < 2);
+
+    assertEquals(List.of(0L, 1L, 4L, 5L), written.stream().map(t -> TileOrder.TMS.encode(t.coord())).toList());
+    assertEquals(List.of(
+      new LayerAttrStats.VectorLayer("a", Map.of("x", LayerAttrStats.FieldType.NUMBER), 1, 1),
+      new LayerAttrStats.VectorLayer("b", Map.of("y", LayerAttrStats.FieldType.STRING), 2, 2)
+    ), finished.getFirst().json().vectorLayers());
+  }
+}
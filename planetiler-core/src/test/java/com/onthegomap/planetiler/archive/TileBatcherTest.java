@@ -0,0 +1,44 @@
+package com.onthegomap.planetiler.archive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TileBatcherTest {
+
+  private final TileEncodeCosts costs = new TileEncodeCosts(14);
+  private final TileBatcher batcher = new TileBatcher(costs, 100, 1_000, 1_000);
+
+  private List<Integer> batchSizes(long... tileFeatures) {
+    List<Integer> result = new ArrayList<>();
+    for (long features : tileFeatures) {
+      if (batcher.add(14, features) || result.isEmpty()) {
+        result.add(0);
+      }
+      result.set(result.size() - 1, result.getLast() + 1);
+    }
+    return result;
+  }
+
+  @Test
+  void testLimitsTilesAndFeaturesUntilCostsAreKnown() {
+    assertEquals(List.of(100, 100, 50), batchSizes(new long[250]));
+    assertFalse(batcher.add(14, 400));
+    assertFalse(batcher.add(14, 400));
+    assertTrue(batcher.add(14, 400));
+  }
+
+  @Test
+  void testIsolatesExpensiveTile() {
+    for (int i = 0; i < TileEncodeCosts.MIN_TILES_PER_ZOOM; i++) {
+      costs.record(14, 9, 10);
+    }
+    // 1ns per feature, so 1 feature tiles take 2ns and the 999 feature tile takes 1,000ns
+    assertEquals(List.of(10, 1, 10), batchSizes(1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 999, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+    assertEquals(List.of(1, 1, 1), batchSizes(999, 999, 999));
+  }
+}
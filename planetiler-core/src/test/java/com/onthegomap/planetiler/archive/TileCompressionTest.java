@@ -0,0 +1,44 @@
+package com.onthegomap.planetiler.archive;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class TileCompressionTest {
+
+  private static final byte[] INPUT = "layer_name class=residential ".repeat(100).getBytes(UTF_8);
+
+  @ParameterizedTest
+  @EnumSource(value = TileCompression.class, names = {"GZIP", "BROTLI", "ZSTD"})
+  void testRoundTrip(TileCompression compression) throws IOException {
+    byte[] compressed = compression.compress(INPUT);
+    assertFalse(Arrays.equals(INPUT, compressed));
+    assertArrayEquals(INPUT, compression.decompress(compressed));
+  }
+
+  @Test
+  void testNoneIsIdentity() throws IOException {
+    assertArrayEquals(INPUT, TileCompression.NONE.compress(INPUT));
+    assertArrayEquals(INPUT, TileCompression.NONE.decompress(INPUT));
+  }
+
+  @Test
+  void testUnknownThrows() {
+    assertThrows(IllegalArgumentException.class, () -> TileCompression.UNKNOWN.compress(INPUT));
+    assertThrows(IllegalArgumentException.class, () -> TileCompression.UNKNOWN.decompress(INPUT));
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = TileCompression.class, names = {"NONE", "GZIP", "BROTLI", "ZSTD"})
+  void testFromId(TileCompression compression) {
+    assertEquals(compression, TileCompression.fromId(compression.id()));
+  }
+}
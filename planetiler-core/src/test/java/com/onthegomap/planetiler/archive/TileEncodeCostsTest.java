@@ -0,0 +1,37 @@
+package com.onthegomap.planetiler.archive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class TileEncodeCostsTest {
+
+  private final TileEncodeCosts costs = new TileEncodeCosts(14);
+
+  @Test
+  void testUnknownUntilEnoughTilesMeasured() {
+    for (int i = 0; i < TileEncodeCosts.MIN_TILES_PER_ZOOM - 1; i++) {
+      costs.record(14, 9, 100);
+    }
+    assertEquals(-1, costs.nanosPerFeature(14));
+    costs.record(14, 9, 100);
+    assertEquals(10, costs.nanosPerFeature(14), 1e-9);
+  }
+
+  @Test
+  void testFallsBackToAllZoomsUntilEnoughTilesMeasuredAtZoom() {
+    for (int i = 0; i < TileEncodeCosts.MIN_TILES_PER_ZOOM; i++) {
+      costs.record(14, 0, 10);
+    }
+    costs.record(2, 999, 1_000_000);
+    // not enough z2 tiles yet, so use the average over all tiles
+    assertEquals((16 * 10 + 1_000_000) / (16d + 1_000), costs.nanosPerFeature(2), 1e-9);
+    assertEquals(costs.nanosPerFeature(2), costs.nanosPerFeature(0), 1e-9);
+
+    for (int i = 1; i < TileEncodeCosts.MIN_TILES_PER_ZOOM; i++) {
+      costs.record(2, 999, 1_000_000);
+    }
+    assertEquals(1_000, costs.nanosPerFeature(2), 1e-9);
+    assertEquals(10, costs.nanosPerFeature(14), 1e-9);
+  }
+}
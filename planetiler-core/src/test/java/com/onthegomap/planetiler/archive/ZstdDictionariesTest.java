@@ -0,0 +1,142 @@
+package com.onthegomap.planetiler.archive;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.mbtiles.Mbtiles;
+import com.onthegomap.planetiler.pmtiles.ReadablePmtiles;
+import com.onthegomap.planetiler.pmtiles.WriteablePmtiles;
+import com.onthegomap.planetiler.util.SeekableInMemoryByteChannel;
+import java.io.IOException;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class ZstdDictionariesTest {
+
+  private static byte[] fakeTile(int i) {
+    return ("layer=landuse class=residential name=Street %d kind=building height=%d layer=water class=ocean"
+      .formatted(i, i % 37)).repeat(1 + i % 5).getBytes(UTF_8);
+  }
+
+  private static ZstdDictionaries train() {
+    var sampler = ZstdDictionaries.sampler(0, 14, 500);
+    for (int i = 0; i < 5_000; i++) {
+      int tile = i;
+      sampler.offer(i % 15, () -> fakeTile(tile));
+    }
+    return sampler.train(4_096);
+  }
+
+  @Test
+  void testSamplerOnlyEncodesSampledTiles() {
+    var sampler = ZstdDictionaries.sampler(0, 0, 10);
+    AtomicInteger encoded = new AtomicInteger(0);
+    for (int i = 0; i < 10_000; i++) {
+      int tile = i;
+      sampler.offer(0, () -> {
+        encoded.incrementAndGet();
+        return fakeTile(tile);
+      });
+    }
+    assertTrue(encoded.get() >= 10);
+    assertTrue(encoded.get() < 1_000, "encoded " + encoded.get());
+  }
+
+  @Test
+  void testBandsClippedToZoomRange() {
+    var sampler = ZstdDictionaries.sampler(2, 10, 1);
+    var result = sampler.train(4_096);
+    assertEquals(2, result.bands().size());
+    assertEquals(2, result.bands().getFirst().minzoom());
+    assertEquals(7, result.bands().getFirst().maxzoom());
+    assertEquals(8, result.bands().get(1).minzoom());
+    assertEquals(10, result.bands().get(1).maxzoom());
+    assertNull(result.bands().getFirst().dictionary());
+  }
+
+  @Test
+  void testRoundTrip() throws IOException {
+    var dictionaries = train();
+    for (var band : dictionaries.bands()) {
+      assertNotNull(band.dictionary());
+    }
+    for (int z = 0; z <= 14; z++) {
+      byte[] input = fakeTile(12_345 + z);
+      byte[] compressed = dictionaries.compress(z, input);
+      assertTrue(compressed.length < TileCompression.ZSTD.compress(input).length);
+      assertArrayEquals(input, dictionaries.decompress(z, compressed));
+    }
+  }
+
+  @Test
+  void testRoundTripThroughMetadata() throws IOException {
+    var dictionaries = train();
+    var metadata = new TileArchiveMetadata(null, null, null, null, null, null, null, null, null, null, null,
+      Map.of("other", "value"), TileCompression.ZSTD);
+    var withDictionaries = dictionaries.addToMetadata(metadata);
+    assertEquals("value", withDictionaries.others().get("other"));
+    assertNull(ZstdDictionaries.fromMetadata(metadata));
+
+    var decompressor = TileDecompressor.fromMetadata(withDictionaries);
+    byte[] input = fakeTile(999);
+    assertArrayEquals(input, decompressor.decompress(14, dictionaries.compress(14, input)));
+  }
+
+  @Test
+  void testDecompressorWithoutDictionaries() throws IOException {
+    byte[] input = fakeTile(1);
+    assertArrayEquals(input, TileDecompressor.fromMetadata(null).decompress(0, TileCompression.GZIP.compress(input)));
+    var metadata = new TileArchiveMetadata(null, null, null, null, null, null, null, null, null, null, null,
+      Map.of(), TileCompression.ZSTD);
+    assertArrayEquals(input, TileDecompressor.fromMetadata(metadata).decompress(0, TileCompression.ZSTD.compress(input)));
+  }
+
+  private static void writeDictionaryCompressedTiles(WriteableTileArchive archive, ZstdDictionaries dictionaries)
+    throws IOException {
+    var metadata = dictionaries.addToMetadata(new TileArchiveMetadata(null, null, null, null, null, null, null, null,
+      null, null, null, Map.of(), TileCompression.ZSTD));
+    archive.initialize();
+    try (var writer = archive.newTileWriter()) {
+      for (int z = 0; z <= 14; z++) {
+        writer.write(new TileEncodingResult(TileCoord.ofXYZ(0, 0, z), dictionaries.compress(z, fakeTile(z)),
+          OptionalLong.empty()));
+      }
+    }
+    archive.finish(metadata);
+  }
+
+  private static void assertDecompressesDictionaryTiles(ReadableTileArchive archive) throws IOException {
+    for (int z = 0; z <= 14; z++) {
+      assertArrayEquals(fakeTile(z), archive.getDecompressedTile(TileCoord.ofXYZ(0, 0, z)), "z" + z);
+    }
+    assertNull(archive.getDecompressedTile(TileCoord.ofXYZ(1, 0, 14)));
+  }
+
+  @Test
+  void testReadDictionaryCompressedMbtiles() throws IOException {
+    var dictionaries = train();
+    try (var db = Mbtiles.newInMemoryDatabase()) {
+      writeDictionaryCompressedTiles(db, dictionaries);
+      assertDecompressesDictionaryTiles(db);
+    }
+  }
+
+  @Test
+  void testReadDictionaryCompressedPmtiles() throws IOException {
+    var dictionaries = train();
+    var bytes = new SeekableInMemoryByteChannel(0);
+    try (var out = WriteablePmtiles.newWriteToMemory(bytes)) {
+      writeDictionaryCompressedTiles(out, dictionaries);
+    }
+    try (var reader = new ReadablePmtiles(new SeekableInMemoryByteChannel(bytes.array()))) {
+      assertDecompressesDictionaryTiles(reader);
+    }
+  }
+}
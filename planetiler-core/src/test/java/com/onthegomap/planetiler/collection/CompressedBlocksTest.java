@@ -0,0 +1,102 @@
+package com.onthegomap.planetiler.collection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class CompressedBlocksTest {
+
+  private static List<SortableFeature> features() {
+    var random = new Random(0);
+    List<SortableFeature> result = new ArrayList<>();
+    for (int i = 0; i < 50_000; i++) {
+      // mix of compressible and random values so some blocks get stored as-is
+      byte[] value = new byte[i % 20];
+      if (i > 25_000) {
+        random.nextBytes(value);
+      }
+      result.add(new SortableFeature(i, value));
+    }
+    // bigger than a block
+    byte[] large = new byte[CompressedBlocks.BLOCK_SIZE * 2];
+    random.nextBytes(large);
+    result.add(new SortableFeature(50_000, large));
+    result.add(new SortableFeature(50_001, new byte[]{1}));
+    return result;
+  }
+
+  private static byte[] write(List<SortableFeature> features, boolean raw) throws IOException {
+    var out = new ByteArrayOutputStream();
+    try (var writer = new CompressedBlocks.Writer(out::write)) {
+      for (var feature : features) {
+        if (raw) {
+          byte[] record = ByteBuffer.allocate(FeatureArena.HEADER_BYTES + feature.value().length)
+            .putLong(feature.key()).putInt(feature.value().length).put(feature.value()).array();
+          writer.writeRaw(record, 0, record.length);
+        } else {
+          writer.write(feature);
+        }
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static List<SortableFeature> read(InputStream input, int count) throws IOException {
+    List<SortableFeature> result = new ArrayList<>();
+    try (var in = new DataInputStream(input)) {
+      for (int i = 0; i < count; i++) {
+        long key = in.readLong();
+        result.add(new SortableFeature(key, in.readNBytes(in.readInt())));
+      }
+    }
+    return result;
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void testRoundTrip(boolean raw) throws IOException {
+    var features = features();
+    byte[] bytes = write(features, raw);
+    assertEquals(features, read(CompressedBlocks.newInputStream(new ByteArrayInputStream(bytes)), features.size()));
+    assertEquals(features, read(CompressedBlocks.newInputStream(ByteBuffer.wrap(bytes)), features.size()));
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void testIndex(boolean raw) throws IOException {
+    var features = features();
+    var index = CompressedBlocks.readIndex(ByteBuffer.wrap(write(features, raw)));
+    int item = 0;
+    for (var block : index) {
+      assertEquals(features.get(item).key(), block.firstKey());
+      item += block.items();
+    }
+    assertEquals(features.size(), item);
+    assertEquals(0, index.getFirst().offset());
+  }
+
+  @Test
+  void testCorruptBlockThrowsIOException() throws IOException {
+    var features = features();
+    byte[] bytes = write(features, false);
+    // overwrite the start of the first compressed block after its header
+    Arrays.fill(bytes, 8, 40, (byte) 0xff);
+    assertThrows(IOException.class,
+      () -> read(CompressedBlocks.newInputStream(new ByteArrayInputStream(bytes)), features.size()));
+    assertThrows(IOException.class,
+      () -> read(CompressedBlocks.newInputStream(ByteBuffer.wrap(bytes)), features.size()));
+  }
+}
@@ -0,0 +1,68 @@
+package com.onthegomap.planetiler.collection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class DeltaEncodingTest {
+
+  private static List<SortableFeature> sortedFeatures() {
+    var random = new Random(0);
+    List<SortableFeature> result = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      byte[] value = new byte[random.nextInt(30)];
+      for (int j = 0; j < value.length; j++) {
+        // shared prefix then a few distinct suffixes
+        value[j] = (byte) (j < 10 ? 1 : random.nextInt(3));
+      }
+      result.add(new SortableFeature(random.nextLong(), value));
+    }
+    result.add(new SortableFeature(Long.MIN_VALUE, new byte[0]));
+    result.add(new SortableFeature(Long.MAX_VALUE, new byte[]{1, 2}));
+    result.add(new SortableFeature(Long.MAX_VALUE, new byte[]{1, 2}));
+    return result.stream().sorted().toList();
+  }
+
+  @Test
+  void testRoundTrip() throws IOException {
+    var features = sortedFeatures();
+    var encoder = new DeltaEncoding.Encoder();
+    var out = new ByteArrayOutputStream();
+    int rawBytes = 0;
+    for (int i = 0; i < features.size(); i++) {
+      var feature = features.get(i);
+      byte[] record = ByteBuffer.allocate(FeatureArena.HEADER_BYTES + feature.value().length)
+        .putLong(feature.key()).putInt(feature.value().length).put(feature.value()).array();
+      int length = i % 2 == 0 ? encoder.encode(feature) : encoder.encodeRaw(record, 0, record.length);
+      assertEquals(feature.key(), encoder.lastKey());
+      out.write(encoder.buffer(), 0, length);
+      rawBytes += record.length;
+    }
+    byte[] encoded = out.toByteArray();
+    assertTrue(encoded.length < rawBytes * 0.7, encoded.length + " " + rawBytes);
+
+    var streamDecoder = new DeltaEncoding.Decoder();
+    var bufferDecoder = new DeltaEncoding.Decoder();
+    var input = new DataInputStream(new ByteArrayInputStream(encoded));
+    var buffer = ByteBuffer.wrap(encoded);
+    List<SortableFeature> fromStream = new ArrayList<>();
+    List<SortableFeature> fromBuffer = new ArrayList<>();
+    for (int i = 0; i < features.size(); i++) {
+      fromStream.add(streamDecoder.read(input));
+      fromBuffer.add(bufferDecoder.read(buffer));
+    }
+    assertEquals(features, fromStream);
+    assertEquals(features, fromBuffer);
+    assertEquals(0, input.available());
+    assertEquals(0, buffer.remaining());
+  }
+}
@@ -0,0 +1,103 @@
+package com.onthegomap.planetiler.collection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class FeatureArenaTest {
+
+  private static byte[] encode(List<SortableFeature> features) throws IOException {
+    var bytes = new ByteArrayOutputStream();
+    var out = new DataOutputStream(bytes);
+    for (var feature : features) {
+      out.writeLong(feature.key());
+      out.writeInt(feature.value().length);
+      out.write(feature.value());
+    }
+    return bytes.toByteArray();
+  }
+
+  private static List<SortableFeature> decode(byte[] bytes, int count) throws IOException {
+    var in = new DataInputStream(new ByteArrayInputStream(bytes));
+    List<SortableFeature> result = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      long key = in.readLong();
+      result.add(new SortableFeature(key, in.readNBytes(in.readInt())));
+    }
+    assertEquals(0, in.available());
+    return result;
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "0, false",
+    "1, false",
+    "10, false",
+    "100, true",
+    "100000, false",
+    "100000, true",
+  })
+  void testSortMatchesSortableFeatureOrder(int count, boolean parallel) throws IOException {
+    var random = new Random(count);
+    List<SortableFeature> features = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      byte[] value = new byte[random.nextInt(4)];
+      random.nextBytes(value);
+      // few distinct keys so that most comparisons fall through to the value bytes
+      features.add(new SortableFeature(random.nextInt(20) - 10L, value));
+    }
+    byte[] encoded = encode(features);
+    int half = count / 2;
+    byte[] secondHalf = encode(features.subList(half, count));
+    var arena = new FeatureArena(encoded.length, count);
+    features.subList(0, half).forEach(arena::add);
+    arena.readFrom(new ByteArrayInputStream(secondHalf), secondHalf.length, count - half);
+    assertEquals(count, arena.size());
+
+    arena.sort(parallel);
+    var out = new ByteArrayOutputStream();
+    arena.writeTo(out::write);
+
+    assertEquals(features.stream().sorted().toList(), decode(out.toByteArray(), count));
+  }
+
+  @Test
+  void testReadFromRejectsWrongCount() throws IOException {
+    byte[] encoded = encode(List.of(new SortableFeature(1, new byte[]{1}), new SortableFeature(2, new byte[]{2})));
+    var arena = new FeatureArena(encoded.length, 3);
+    assertThrows(IOException.class, () -> arena.readFrom(new ByteArrayInputStream(encoded), encoded.length, 3));
+  }
+
+  @Test
+  void testGrowsAndClears() throws IOException {
+    var arena = new FeatureArena(0, 0);
+    List<SortableFeature> features = new ArrayList<>();
+    for (int i = 100; i > 0; i--) {
+      var feature = new SortableFeature(i, new byte[]{(byte) i});
+      features.add(feature);
+      arena.add(feature);
+    }
+    arena.sort(false);
+    var out = new ByteArrayOutputStream();
+    arena.writeTo(out::write);
+    assertEquals(features.reversed(), decode(out.toByteArray(), 100));
+
+    arena.clear();
+    assertEquals(0, arena.size());
+    arena.add(features.getFirst());
+    out.reset();
+    arena.writeTo(out::write);
+    assertEquals(List.of(features.getFirst()), decode(out.toByteArray(), 1));
+  }
+}
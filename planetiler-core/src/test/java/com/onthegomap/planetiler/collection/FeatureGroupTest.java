@@ -1,12 +1,13 @@
 package com.onthegomap.planetiler.collection;
 
 import static com.onthegomap.planetiler.TestUtils.decodeSilently;
+import static com.onthegomap.planetiler.TestUtils.newLineString;
+import static com.onthegomap.planetiler.TestUtils.newMultiPoint;
 import static com.onthegomap.planetiler.TestUtils.newPoint;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.junit.jupiter.api.DynamicTest.dynamicTest;
 
 import com.onthegomap.planetiler.Profile;
 import com.onthegomap.planetiler.VectorTile;
@@ -19,18 +20,20 @@ import com.onthegomap.planetiler.render.RenderedFeature;
 import com.onthegomap.planetiler.stats.Stats;
 import com.onthegomap.planetiler.util.CloseableConsumer;
 import com.onthegomap.planetiler.util.Gzip;
+import com.onthegomap.planetiler.util.LayerAttrStats;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.TreeMap;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import org.junit.jupiter.api.DynamicTest;
 import org.junit.jupiter.api.Test;
-import org.junit.jupiter.api.TestFactory;
 import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.ArgumentsProvider;
@@ -47,6 +50,10 @@ class FeatureGroupTest {
     new FeatureGroup(sorter, TileOrder.TMS, new Profile.NullProfile(), config, Stats.inMemory());
   private CloseableConsumer<SortableFeature> featureWriter = features.writerForThread();
 
+  private static PlanetilerConfig configWith(Object... args) {
+    return PlanetilerConfig.from(com.onthegomap.planetiler.config.Arguments.of(args));
+  }
+
   @Test
   void testEmpty() {
     sorter.sort();
@@ -55,25 +62,25 @@ class FeatureGroupTest {
 
   long id = 0;
 
-  private void put(int tile, String layer, Map<String, Object> attrs, Geometry geom) {
+  private void put(long tile, String layer, Map<String, Object> attrs, Geometry geom) {
     putWithSortKey(tile, layer, attrs, geom, 0);
   }
 
-  private void putWithSortKey(int tile, String layer, Map<String, Object> attrs, Geometry geom, int sortKey) {
+  private void putWithSortKey(long tile, String layer, Map<String, Object> attrs, Geometry geom, int sortKey) {
     putWithGroupAndSortKey(tile, layer, attrs, geom, sortKey, false, 0, 0);
   }
 
-  private void putWithGroup(int tile, String layer, Map<String, Object> attrs, Geometry geom, int sortKey, long group,
+  private void putWithGroup(long tile, String layer, Map<String, Object> attrs, Geometry geom, int sortKey, long group,
     int limit) {
     putWithGroupAndSortKey(tile, layer, attrs, geom, sortKey, true, group, limit);
   }
 
-  private void putWithGroupAndSortKey(int tile, String layer, Map<String, Object> attrs, Geometry geom, int sortKey,
+  private void putWithGroupAndSortKey(long tile, String layer, Map<String, Object> attrs, Geometry geom, int sortKey,
     boolean hasGroup, long group, int limit) {
     putWithIdGroupAndSortKey(id++, tile, layer, attrs, geom, sortKey, hasGroup, group, limit);
   }
 
-  private void putWithIdGroupAndSortKey(long id, int tile, String layer, Map<String, Object> attrs, Geometry geom,
+  private void putWithIdGroupAndSortKey(long id, long tile, String layer, Map<String, Object> attrs, Geometry geom,
     int sortKey, boolean hasGroup, long group, int limit) {
     RenderedFeature feature = new RenderedFeature(
       TileCoord.decode(tile),
@@ -93,7 +100,7 @@ class FeatureGroupTest {
     Map<Integer, Map<String, List<Feature>>> map = new TreeMap<>();
     for (FeatureGroup.TileFeatures tile : features) {
       for (var feature : VectorTile.decode(tile.getVectorTile().encode())) {
-        map.computeIfAbsent(tile.tileCoord().encoded(), (i) -> new TreeMap<>())
+        map.computeIfAbsent((int) tile.tileCoord().encoded(), (i) -> new TreeMap<>())
           .computeIfAbsent(feature.layer(), l -> new ArrayList<>())
           .add(new Feature(feature.tags(), decodeSilently(feature.geometry())));
       }
@@ -107,7 +114,7 @@ class FeatureGroupTest {
     var reader = features.parallelIterator(2);
     for (FeatureGroup.TileFeatures tile : reader.result()) {
       for (var feature : VectorTile.decode(tile.getVectorTile().encode())) {
-        map.computeIfAbsent(tile.tileCoord().encoded(), (i) -> new TreeMap<>())
+        map.computeIfAbsent((int) tile.tileCoord().encoded(), (i) -> new TreeMap<>())
           .computeIfAbsent(feature.layer(), l -> new ArrayList<>())
           .add(new Feature(feature.tags(), decodeSilently(feature.geometry())));
       }
@@ -298,6 +305,116 @@ class FeatureGroupTest {
       )), getFeatures());
   }
 
+  @ParameterizedTest
+  @CsvSource({"false", "true"})
+  void testLayersWithoutPostProcessingSkipDecodingFeatures(boolean postProcess) {
+    var pointBufferConfig = configWith("max_point_buffer", "4");
+    features = new FeatureGroup(sorter, TileOrder.TMS, new Profile.NullProfile() {
+      @Override
+      public boolean postProcessesLayer(String layer, int zoom) {
+        return postProcess;
+      }
+    }, pointBufferConfig, Stats.inMemory());
+    featureWriter = features.writerForThread();
+    put(1, "points", Map.of("a", 1, "b", "string", "c", 1.5, "d", true), newPoint(1, 2));
+    // outside the point buffer
+    put(1, "points", Map.of("a", 2L, "e", "dropped"), newPoint(-10, 2));
+    putWithGroup(1, "points", Map.of("a", 1), newMultiPoint(newPoint(3, 4), newPoint(300, 4)), 0, 1, 2);
+    // lines are stored at a higher precision than the output tile
+    featureWriter.accept(features.newRenderedFeatureEncoder().apply(new RenderedFeature(
+      TileCoord.decode(1),
+      new VectorTile.Feature("lines", 1, VectorTile.encodeGeometry(newLineString(0, 0, 10, 10), 2),
+        Map.of("b", "other")),
+      0,
+      Optional.empty()
+    )));
+    sorter.sort();
+
+    var layerStats = new LayerAttrStats();
+    var tile = features.iterator().next();
+    Map<String, List<Feature>> result = new TreeMap<>();
+    for (var feature : VectorTile.decode(tile.getVectorTile(layerStats.handlerForThread()).encode())) {
+      result.computeIfAbsent(feature.layer(), l -> new ArrayList<>())
+        .add(new Feature(feature.tags(), decodeSilently(feature.geometry())));
+    }
+    assertEquals(Map.of(
+      "lines", List.of(
+        new Feature(Map.of("b", "other"), newLineString(0, 0, 10, 10))
+      ),
+      "points", List.of(
+        new Feature(Map.of("a", 1L, "b", "string", "c", 1.5d, "d", true), newPoint(1, 2)),
+        new Feature(Map.of("a", 1L), newPoint(3, 4))
+      )
+    ), result);
+    assertEquals(List.of(
+      new LayerAttrStats.VectorLayer("lines", Map.of(
+        "b", LayerAttrStats.FieldType.STRING
+      ), tile.tileCoord().z(), tile.tileCoord().z()),
+      new LayerAttrStats.VectorLayer("points", Map.of(
+        "a", LayerAttrStats.FieldType.NUMBER,
+        "b", LayerAttrStats.FieldType.STRING,
+        "c", LayerAttrStats.FieldType.NUMBER,
+        "d", LayerAttrStats.FieldType.BOOLEAN
+      ), tile.tileCoord().z(), tile.tileCoord().z())
+    ), layerStats.getTileStats());
+  }
+
+  @ParameterizedTest
+  @CsvSource({"false", "true"})
+  void testStoreCommonValuesAsIds(boolean postProcess) {
+    features = new FeatureGroup(sorter, TileOrder.TMS, new Profile.NullProfile() {
+      @Override
+      public boolean postProcessesLayer(String layer, int zoom) {
+        return postProcess;
+      }
+    }, config, Stats.inMemory());
+    featureWriter = features.writerForThread();
+    var encoder = features.newRenderedFeatureEncoder();
+    int count = FeatureGroup.VALUE_DICTIONARY_MIN_OCCURRENCES * 2;
+    int[] sizes = new int[count];
+    for (int i = 0; i < count; i++) {
+      var encoded = encoder.apply(new RenderedFeature(
+        TileCoord.decode(1),
+        new VectorTile.Feature("layer", i, VectorTile.encodeGeometry(newPoint(1, 2)),
+          Map.of("class", "residential", "name", "name" + i)),
+        i,
+        Optional.empty()
+      ));
+      sizes[i] = encoded.value().length;
+      featureWriter.accept(encoded);
+    }
+    sorter.sort();
+    assertTrue(sizes[count - 1] < sizes[0], "expected " + sizes[count - 1] + " < " + sizes[0]);
+
+    List<Feature> expected = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      expected.add(new Feature(Map.of("class", "residential", "name", "name" + i), newPoint(1, 2)));
+    }
+    assertEquals(Map.of(1, Map.of("layer", expected)), getFeatures());
+  }
+
+  @Test
+  void testRestoreValueIdsFromCheckpoint(@TempDir Path tmpDir) throws IOException {
+    features = FeatureGroup.newDiskBackedFeatureGroup(TileOrder.TMS, tmpDir, new Profile.NullProfile(), config,
+      Stats.inMemory());
+    featureWriter = features.writerForThread();
+    int count = FeatureGroup.VALUE_DICTIONARY_MIN_OCCURRENCES * 2;
+    for (int i = 0; i < count; i++) {
+      putWithSortKey(1, "layer", Map.of("class", "residential"), newPoint(1, 2), i);
+    }
+    featureWriter.close();
+    var checkpoint = features.checkpoint();
+    assertEquals(List.of("residential"), checkpoint.values());
+
+    features = FeatureGroup.restoreDiskBackedFeatureGroup(TileOrder.TMS, tmpDir, new Profile.NullProfile(), config,
+      Stats.inMemory(), checkpoint);
+    features.prepare();
+    assertEquals(
+      Collections.nCopies(count, new Feature(Map.of("class", "residential"), newPoint(1, 2))),
+      getFeatures().get(1).get("layer")
+    );
+  }
+
   @Test
   void testHilbertOrdering() {
     features = new FeatureGroup(sorter, TileOrder.HILBERT, new Profile.NullProfile() {}, config, Stats.inMemory());
@@ -337,6 +454,130 @@ class FeatureGroupTest {
     assertEquals(0, tile.y());
   }
 
+  @Test
+  void testTileRangeAndBoundaries() {
+    put(1, "layer", Map.of("a", 1), newPoint(1, 2));
+    put(2, "layer", Map.of("a", 2), newPoint(1, 2));
+    put(2, "layer", Map.of("a", 3), newPoint(1, 2));
+    put(3, "layer", Map.of("a", 4), newPoint(1, 2));
+    put(4, "layer", Map.of("a", 5), newPoint(1, 2));
+    put(5, "layer", Map.of("a", 6), newPoint(1, 2));
+    sorter.sort();
+    long[] boundaries = features.tileBoundaries(2);
+    assertEquals(3, boundaries.length);
+    assertEquals(0, boundaries[0]);
+    assertEquals(3, boundaries[1]);
+    assertEquals(Long.MAX_VALUE, boundaries[2]);
+
+    List<Long> tiles = new ArrayList<>();
+    for (var tile : features.tileRange(2, 4)) {
+      tiles.add(tile.tileCoord().encoded());
+    }
+    assertEquals(List.of(2L, 3L), tiles);
+    tiles.clear();
+    for (int i = 0; i < 2; i++) {
+      for (var tile : features.tileRange(boundaries[i], boundaries[i + 1])) {
+        tiles.add(tile.tileCoord().encoded());
+      }
+    }
+    assertEquals(List.of(1L, 2L, 3L, 4L, 5L), tiles);
+  }
+
+  @Test
+  void testWideKeysAboveZ15() {
+    features = new FeatureGroup(sorter, TileOrder.TMS, new Profile.NullProfile(), configWith("maxzoom", "18"),
+      Stats.inMemory());
+    featureWriter = features.writerForThread();
+    long tile = TileCoord.ofXYZ((1 << 18) - 1, 0, 18).encoded();
+    putWithGroup(tile, "layer", Map.of("id", 3), newPoint(5, 6), 2, 1, 2);
+    putWithGroup(tile, "layer", Map.of("id", 2), newPoint(3, 4), 1, 1, 2);
+    putWithSortKey(tile, "layer", Map.of("id", 4), newPoint(7, 8), 1);
+    putWithGroup(tile, "layer", Map.of("id", 1), newPoint(1, 2), 0, 1, 2);
+    putWithSortKey(tile - 1, "layer", Map.of("id", 0), newPoint(1, 2), 0);
+    sorter.sort();
+
+    var iter = features.iterator();
+    assertEquals(TileCoord.decode(tile - 1), iter.next().tileCoord());
+    var last = iter.next();
+    assertFalse(iter.hasNext());
+    assertEquals(TileCoord.ofXYZ((1 << 18) - 1, 0, 18), last.tileCoord());
+    // same order as narrow keys: sort key, then features without group first, id=3 dropped for being over the limit
+    assertEquals(List.of(1L, 4L, 2L), VectorTile.decode(last.getVectorTile().encode()).stream()
+      .map(feature -> feature.tags().get("id"))
+      .toList());
+  }
+
+  @Test
+  void testMoreThan256DeclaredLayersAboveZ15() {
+    List<String> layers = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      layers.add("layer" + i);
+    }
+    features = new FeatureGroup(sorter, TileOrder.TMS, new Profile.NullProfile() {
+      @Override
+      public List<String> declaredLayers() {
+        return layers;
+      }
+
+      @Override
+      public List<String> declaredAttributeKeys() {
+        return List.of("id");
+      }
+    }, configWith("maxzoom", "18"), Stats.inMemory());
+    featureWriter = features.writerForThread();
+    long tile = TileCoord.ofXYZ((1 << 18) - 1, 0, 18).encoded();
+    putWithGroup(tile, "layer299", Map.of("id", 3), newPoint(5, 6), 2, 1, 2);
+    putWithGroup(tile, "layer299", Map.of("id", 2), newPoint(3, 4), 1, 1, 2);
+    putWithSortKey(tile, "layer299", Map.of("id", 4), newPoint(7, 8), 1);
+    putWithGroup(tile, "layer299", Map.of("id", 1), newPoint(1, 2), 0, 1, 2);
+    putWithSortKey(tile, "layer0", Map.of("id", 0), newPoint(1, 2), 0);
+    putWithSortKey(tile, "undeclared", Map.of("id", 5, "other", "value"), newPoint(1, 2), 0);
+    sorter.sort();
+
+    var iter = features.iterator();
+    var tileFeatures = iter.next();
+    assertFalse(iter.hasNext());
+    assertEquals(Map.of(
+      "layer0", List.of(0L),
+      "layer299", List.of(1L, 4L, 2L),
+      "undeclared", List.of(5L)
+    ), VectorTile.decode(tileFeatures.getVectorTile().encode()).stream()
+      .collect(Collectors.groupingBy(VectorTile.Feature::layer,
+        Collectors.mapping(feature -> feature.tags().get("id"), Collectors.toList()))));
+  }
+
+  @ParameterizedTest
+  @CsvSource({"false", "true"})
+  void testRestoreFromCheckpoint(boolean sortBeforeCheckpoint, @TempDir Path tmpDir) throws IOException {
+    features = FeatureGroup.newDiskBackedFeatureGroup(TileOrder.TMS, tmpDir, new Profile.NullProfile(), config,
+      Stats.inMemory());
+    featureWriter = features.writerForThread();
+    put(3, "layer3", Map.of("a", 1.5d, "b", "string"), newPoint(5, 6));
+    put(2, "layer", Map.of("a", 1.5d, "b", "string"), newPoint(5, 6));
+    put(1, "layer2", Map.of("c", 3d, "d", true), newPoint(3, 4));
+    featureWriter.close();
+    if (sortBeforeCheckpoint) {
+      features.prepare();
+    }
+    var checkpoint = features.checkpoint();
+    assertEquals(sortBeforeCheckpoint, checkpoint.sorted());
+    assertTrue(checkpoint.chunksExistIn(tmpDir));
+    var expected = sortBeforeCheckpoint ? getFeatures() : null;
+
+    features = FeatureGroup.restoreDiskBackedFeatureGroup(TileOrder.TMS, tmpDir, new Profile.NullProfile(), config,
+      Stats.inMemory(), checkpoint);
+    assertEquals(3, features.numFeaturesWritten());
+    features.prepare();
+    assertEquals(new TreeMap<>(Map.of(
+      1, Map.of("layer2", List.of(new Feature(Map.of("c", 3d, "d", true), newPoint(3, 4)))),
+      2, Map.of("layer", List.of(new Feature(Map.of("a", 1.5d, "b", "string"), newPoint(5, 6)))),
+      3, Map.of("layer3", List.of(new Feature(Map.of("a", 1.5d, "b", "string"), newPoint(5, 6))))
+    )), getFeatures());
+    if (expected != null) {
+      assertEquals(expected, getFeatures());
+    }
+  }
+
   @Test
   void testTMSOrdering() {
     features = new FeatureGroup(sorter, TileOrder.TMS, new Profile.NullProfile() {}, config, Stats.inMemory());
@@ -376,58 +617,6 @@ class FeatureGroupTest {
     assertEquals(0, tile.y());
   }
 
-  @TestFactory
-  List<DynamicTest> testEncodeLongKey() {
-    List<TileCoord> tiles = List.of(
-      TileCoord.ofXYZ(0, 0, 14),
-      TileCoord.ofXYZ((1 << 14) - 1, (1 << 14) - 1, 14),
-      TileCoord.ofXYZ(0, 0, 0),
-      TileCoord.ofXYZ(0, 0, 7),
-      TileCoord.ofXYZ((1 << 7) - 1, (1 << 7) - 1, 7)
-    );
-    List<Byte> layers = List.of((byte) 0, (byte) 1, (byte) 255);
-    List<Integer> sortKeys = List.of(-(1 << 22), 0, (1 << 22) - 1);
-    List<Boolean> hasGroups = List.of(false, true);
-    List<DynamicTest> result = new ArrayList<>();
-    for (TileCoord tile : tiles) {
-      for (byte layer : layers) {
-        for (int sortKey : sortKeys) {
-          for (boolean hasGroup : hasGroups) {
-            long key = FeatureGroup.encodeKey(tile.encoded(), layer, sortKey, hasGroup);
-            result.add(dynamicTest(tile + " " + layer + " " + sortKey + " " + hasGroup, () -> {
-              assertEquals(tile.encoded(), FeatureGroup.extractTileFromKey(key), "tile");
-              assertEquals(layer, FeatureGroup.extractLayerIdFromKey(key), "layer");
-              assertEquals(sortKey, FeatureGroup.extractSortKeyFromKey(key), "sortKey");
-              assertEquals(hasGroup, FeatureGroup.extractHasGroupFromKey(key), "hasGroup");
-            }));
-          }
-        }
-      }
-    }
-    return result;
-  }
-
-  @ParameterizedTest
-  @CsvSource({
-    "0,0,-2,true,   0,0,-1,false",
-    "0,0,1,false,   0,0,2,false",
-    "0,0,-1,false,  0,0,1,false",
-    "-1,0,-2,false, -1,0,-1,false",
-    "-1,0,1,false,  -1,0,2,false",
-    "-1,0,-1,false, -1,0,1,false",
-    "-1,0,-1,false, -1,0,-1,true",
-    "1,0,1,false,   1,0,1,true"
-  })
-  void testEncodeLongKeyOrdering(
-    int tileA, byte layerA, int sortKeyA, boolean hasGroupA,
-    int tileB, byte layerB, int sortKeyB, boolean hasGroupB
-  ) {
-    assertTrue(
-      FeatureGroup.encodeKey(tileA, layerA, sortKeyA, hasGroupA) < FeatureGroup.encodeKey(tileB, layerB, sortKeyB,
-        hasGroupB)
-    );
-  }
-
   @ParameterizedTest(name = "{0}")
   @ArgumentsSource(SameFeatureGroupTestArgs.class)
   void testHasSameContents(String testName, boolean expectSame, PuTileArgs args0, PuTileArgs args1) {
@@ -0,0 +1,191 @@
+package com.onthegomap.planetiler.collection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+import com.onthegomap.planetiler.geo.TileCoord;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class FeatureKeyLayoutTest {
+
+  private static final FeatureKeyLayout Z15 = FeatureKeyLayout.forMaxzoom(15, 0);
+  private static final FeatureKeyLayout Z18 = FeatureKeyLayout.forMaxzoom(18, 0);
+
+  @ParameterizedTest
+  @CsvSource({
+    "0,  0,     65536, false",
+    "14, 0,     1024,  false",
+    "15, 0,     256,   false",
+    "15, 256,   256,   false",
+    "15, 257,   512,   true",
+    "15, 30000, 32768, true",
+    "18, 0,     256,   true",
+    "18, 300,   512,   true",
+  })
+  void testLayout(int maxzoom, int layers, int maxLayers, boolean hasPrefix) {
+    var layout = FeatureKeyLayout.forMaxzoom(maxzoom, layers);
+    assertEquals(maxLayers, layout.maxLayers());
+    assertEquals(hasPrefix, layout.hasPrefix());
+  }
+
+  @Test
+  void testTooManyLayers() {
+    assertThrows(IllegalArgumentException.class, () -> FeatureKeyLayout.forMaxzoom(18, 513));
+    assertThrows(IllegalArgumentException.class, () -> FeatureKeyLayout.forMaxzoom(10, 100_000));
+  }
+
+  @TestFactory
+  List<DynamicTest> testEncodeLongKey() {
+    List<TileCoord> tiles = List.of(
+      TileCoord.ofXYZ(0, 0, 14),
+      TileCoord.ofXYZ((1 << 14) - 1, (1 << 14) - 1, 14),
+      TileCoord.ofXYZ(0, 0, 0),
+      TileCoord.ofXYZ(0, 0, 7),
+      TileCoord.ofXYZ((1 << 7) - 1, (1 << 7) - 1, 7)
+    );
+    List<Integer> layers = List.of(0, 1, 255);
+    List<Integer> sortKeys = List.of(-(1 << 22), 0, (1 << 22) - 1);
+    List<Boolean> hasGroups = List.of(false, true);
+    List<DynamicTest> result = new ArrayList<>();
+    for (TileCoord tile : tiles) {
+      for (int layer : layers) {
+        for (int sortKey : sortKeys) {
+          for (boolean hasGroup : hasGroups) {
+            long key = Z15.encodeKey(tile.encoded(), layer, sortKey, hasGroup);
+            result.add(dynamicTest(tile + " " + layer + " " + sortKey + " " + hasGroup, () -> {
+              assertEquals(tile.encoded(), Z15.extractTile(key), "tile");
+              assertEquals(layer, Z15.extractLayer(key), "layer");
+              assertEquals(sortKey, Z15.extractSortKey(key, (byte) 0), "sortKey");
+              assertEquals(hasGroup, Z15.extractHasGroup(key, (byte) 0), "hasGroup");
+            }));
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "0,0,-2,true,   0,0,-1,false",
+    "0,0,1,false,   0,0,2,false",
+    "0,0,-1,false,  0,0,1,false",
+    "-1,0,-2,false, -1,0,-1,false",
+    "-1,0,1,false,  -1,0,2,false",
+    "-1,0,-1,false, -1,0,1,false",
+    "-1,0,-1,false, -1,0,-1,true",
+    "1,0,1,false,   1,0,1,true"
+  })
+  void testEncodeLongKeyOrdering(
+    int tileA, int layerA, int sortKeyA, boolean hasGroupA,
+    int tileB, int layerB, int sortKeyB, boolean hasGroupB
+  ) {
+    assertTrue(
+      Z15.encodeKey(tileA, layerA, sortKeyA, hasGroupA) < Z15.encodeKey(tileB, layerB, sortKeyB, hasGroupB)
+    );
+  }
+
+  @TestFactory
+  List<DynamicTest> testEncodeWideKey() {
+    List<TileCoord> tiles = List.of(
+      TileCoord.ofXYZ(0, 0, 16),
+      TileCoord.ofXYZ((1 << 17) - 1, 0, 17),
+      TileCoord.ofXYZ((1 << 18) - 1, (1 << 18) - 1, 18),
+      TileCoord.ofXYZ((1 << 18) - 1, 0, 18)
+    );
+    List<Integer> layers = List.of(0, 1, 255);
+    List<Integer> sortKeys = List.of(-(1 << 22), -1, 0, 31, 32, (1 << 22) - 1);
+    List<Boolean> hasGroups = List.of(false, true);
+    List<DynamicTest> result = new ArrayList<>();
+    for (TileCoord tile : tiles) {
+      for (int layer : layers) {
+        for (int sortKey : sortKeys) {
+          for (boolean hasGroup : hasGroups) {
+            long key = Z18.encodeKey(tile.encoded(), layer, sortKey, hasGroup);
+            byte prefix = Z18.encodePrefix(sortKey, hasGroup);
+            result.add(dynamicTest(tile + " " + layer + " " + sortKey + " " + hasGroup, () -> {
+              assertTrue(key >= 0, "key");
+              assertTrue(prefix >= 0 && prefix < 64, "prefix");
+              assertEquals(tile.encoded(), Z18.extractTile(key), "tile");
+              assertEquals(layer, Z18.extractLayer(key), "layer");
+              assertEquals(sortKey, Z18.extractSortKey(key, prefix), "sortKey");
+              assertEquals(hasGroup, Z18.extractHasGroup(key, prefix), "hasGroup");
+            }));
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "0,0,-2,true,   0,0,-1,false",
+    "0,0,1,false,   0,0,2,false",
+    "0,0,-1,false,  0,0,1,false",
+    "0,0,31,true,   0,0,32,false",
+    "0,0,1,false,   0,0,1,true",
+    "0,1,-5,false,  0,2,-6,false",
+    "1,0,100,false, 2,0,-100,false",
+    "-1,0,0,false, 1,0,0,false",
+  })
+  void testEncodeWideKeyOrdering(
+    int tileOffsetA, int layerA, int sortKeyA, boolean hasGroupA,
+    int tileOffsetB, int layerB, int sortKeyB, boolean hasGroupB
+  ) {
+    long z18 = TileCoord.ofXYZ(1 << 17, 1 << 17, 18).encoded();
+    long keyA = Z18.encodeKey(z18 + tileOffsetA, layerA, sortKeyA, hasGroupA);
+    long keyB = Z18.encodeKey(z18 + tileOffsetB, layerB, sortKeyB, hasGroupB);
+    byte prefixA = Z18.encodePrefix(sortKeyA, hasGroupA);
+    byte prefixB = Z18.encodePrefix(sortKeyB, hasGroupB);
+    assertTrue(keyA < keyB || (keyA == keyB && prefixA < prefixB));
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "15, 0",
+    "18, 0",
+    "18, 512",
+  })
+  void testFirstKey(int maxzoom, int layers) {
+    var layout = FeatureKeyLayout.forMaxzoom(maxzoom, layers);
+    long tile = TileCoord.ofXYZ(5, 7, maxzoom).encoded();
+    long firstKey = layout.firstKey(tile);
+    assertEquals(tile, layout.extractTile(firstKey));
+    assertEquals(firstKey, layout.encodeKey(tile, 0, FeatureGroup.SORT_KEY_MIN, false));
+    assertTrue(layout.encodeKey(tile - 1, layout.maxLayers() - 1, FeatureGroup.SORT_KEY_MAX, true) < firstKey);
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "15, 1000",
+    "18, 512",
+  })
+  void testRoundTripManyLayers(int maxzoom, int layers) {
+    var layout = FeatureKeyLayout.forMaxzoom(maxzoom, layers);
+    assertTrue(layout.maxLayers() >= layers);
+    long tile = TileCoord.ofXYZ((1 << maxzoom) - 1, (1 << maxzoom) - 1, maxzoom).encoded();
+    int lastLayer = layers - 1;
+    for (int sortKey : List.of(FeatureGroup.SORT_KEY_MIN, -1, 0, 1, FeatureGroup.SORT_KEY_MAX)) {
+      long key = layout.encodeKey(tile, lastLayer, sortKey, true);
+      byte prefix = layout.hasPrefix() ? layout.encodePrefix(sortKey, true) : 0;
+      assertTrue(key >= 0, "key");
+      assertTrue(prefix >= 0, "prefix");
+      assertEquals(tile, layout.extractTile(key));
+      assertEquals(lastLayer, layout.extractLayer(key));
+      assertEquals(sortKey, layout.extractSortKey(key, prefix));
+      assertTrue(layout.extractHasGroup(key, prefix));
+      assertFalse(layout.extractHasGroup(layout.encodeKey(tile, lastLayer, sortKey, false),
+        layout.hasPrefix() ? layout.encodePrefix(sortKey, false) : 0));
+    }
+  }
+}
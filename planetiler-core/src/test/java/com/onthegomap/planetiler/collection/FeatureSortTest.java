@@ -1,14 +1,21 @@
 package com.onthegomap.planetiler.collection;
 
+import static com.onthegomap.planetiler.collection.ExternalMergeSort.SAMPLE_INTERVAL;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.onthegomap.planetiler.config.Arguments;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.stats.Stats;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -32,6 +39,11 @@ class FeatureSortTest {
       Stats.inMemory());
   }
 
+  private ExternalMergeSort newSpillingSorter(int chunkSizeLimit, boolean gzip, boolean mmap) {
+    var spillConfig = PlanetilerConfig.from(Arguments.of("sort_on_spill", true, "write_threads", 1));
+    return new ExternalMergeSort(tmpDir, 2, chunkSizeLimit, gzip, mmap, true, true, spillConfig, Stats.inMemory());
+  }
+
   @Test
   void testEmpty() {
     var sorter = newSorter(1, 100, false, false);
@@ -110,6 +122,66 @@ class FeatureSortTest {
       sorter.toList());
   }
 
+  @ParameterizedTest
+  @CsvSource({
+    "false, false",
+    "false, true",
+    "true, false",
+    "true, true",
+  })
+  void testReadDeltaEncodedChunkPastFirstSample(boolean gzip, boolean mmap) throws IOException {
+    FeatureSort sorter = newSorter(1, 2_000_000, gzip, mmap);
+    List<SortableFeature> expected = new ArrayList<>();
+    for (int i = 0; i < SAMPLE_INTERVAL * 3 + 5; i++) {
+      expected.add(newEntry(i * 3));
+    }
+    List<SortableFeature> shuffled = new ArrayList<>(expected);
+    Collections.shuffle(shuffled, new Random(0));
+    try (var writer = sorter.writerForThread()) {
+      shuffled.forEach(writer);
+    }
+    sorter.sort();
+    assertEquals(expected, sorter.toList());
+  }
+
+  @Test
+  void testSortKeepsCheckpointedChunksUntilTheyAreReplaced() throws IOException {
+    var sorter = (ExternalMergeSort) newSorter(2, 2_000_000, false, false);
+    try (
+      var writer1 = sorter.writerForThread();
+      var writer2 = sorter.writerForThread();
+      var writer3 = sorter.writerForThread()
+    ) {
+      writer1.accept(newEntry(4));
+      writer1.accept(newEntry(3));
+      writer2.accept(newEntry(2));
+      writer2.accept(newEntry(1));
+      writer3.accept(newEntry(5));
+      writer3.accept(newEntry(6));
+    }
+    List<List<String>> checkpoints = new CopyOnWriteArrayList<>();
+    List<String> missing = new CopyOnWriteArrayList<>();
+    checkpoints.add(chunkNames(sorter));
+    sorter.sort(() -> {
+      // every chunk the previous checkpoint refers to must still exist when the next one gets taken
+      checkpoints.getLast().stream().filter(name -> !Files.exists(tmpDir.resolve(name))).forEach(missing::add);
+      checkpoints.add(chunkNames(sorter));
+    });
+    assertEquals(List.of(), missing);
+    assertEquals(2, checkpoints.size());
+    try (var files = Files.list(tmpDir)) {
+      // sampled keys get saved next to each sorted chunk
+      assertEquals(checkpoints.getLast(), files.map(file -> file.getFileName().toString())
+        .filter(name -> !name.endsWith(".samples"))
+        .toList());
+    }
+    assertEquals(Stream.of(1, 2, 3, 4, 5, 6).map(this::newEntry).toList(), sorter.toList());
+  }
+
+  private static List<String> chunkNames(ExternalMergeSort sorter) {
+    return sorter.checkpointChunks().stream().map(FeatureGroup.Checkpoint.Chunk::name).toList();
+  }
+
   @ParameterizedTest
   @CsvSource({
     "false,false",
@@ -131,4 +203,139 @@ class FeatureSortTest {
     sorter.sort();
     assertEquals(sorted, sorter.toList());
   }
+
+  @ParameterizedTest
+  @CsvSource({
+    "false,false",
+    "false,true",
+    "true,false",
+    "true,true",
+  })
+  void testSortOnSpill(boolean gzip, boolean mmap) throws IOException {
+    List<SortableFeature> sorted = new ArrayList<>();
+    List<SortableFeature> shuffled = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      shuffled.add(newEntry(i));
+      sorted.add(newEntry(i));
+    }
+    Collections.shuffle(shuffled, new Random(0));
+    var sorter = newSpillingSorter(20_000, gzip, mmap);
+    try (var writer = sorter.writerForThread()) {
+      shuffled.forEach(writer);
+    }
+    int chunks = sorter.chunks();
+    assertTrue(chunks > 1);
+    sorter.sort();
+    // chunks were sorted as they were written so none get combined
+    assertEquals(chunks, sorter.chunks());
+    assertEquals(sorted, sorter.toList());
+  }
+
+  @Test
+  void testSortOnSpillCombinesSmallChunks() throws IOException {
+    var sorter = newSpillingSorter(2_000_000, false, false);
+    try (
+      var writer1 = sorter.writerForThread();
+      var writer2 = sorter.writerForThread();
+      var writer3 = sorter.writerForThread()
+    ) {
+      writer1.accept(newEntry(4));
+      writer1.accept(newEntry(3));
+      writer2.accept(newEntry(2));
+      writer2.accept(newEntry(1));
+      writer3.accept(newEntry(5));
+      writer3.accept(newEntry(6));
+    }
+    assertEquals(3, sorter.chunks());
+    sorter.sort();
+    assertEquals(1, sorter.chunks());
+    assertEquals(Stream.of(1, 2, 3, 4, 5, 6).map(this::newEntry).toList(), sorter.toList());
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "false,false,false",
+    "false,true,false",
+    "true,false,false",
+    "true,true,false",
+    "false,false,true",
+    "true,true,true",
+  })
+  void testPartitionedIterator(boolean gzip, boolean mmap, boolean spill) throws IOException {
+    List<SortableFeature> shuffled = new ArrayList<>();
+    for (int i = 0; i < 200_000; i++) {
+      // several features per key so ranges have to keep them together
+      shuffled.add(new SortableFeature(i / 3 - 10_000L, new byte[]{(byte) (i % 3), (byte) i}));
+    }
+    Collections.shuffle(shuffled, new Random(0));
+    var sorter = spill ?
+      newSpillingSorter(400_000, gzip, mmap) :
+      (ExternalMergeSort) newSorter(2, 400_000, gzip, mmap);
+    try (var writer = sorter.writerForThread()) {
+      shuffled.forEach(writer);
+    }
+    sorter.sort();
+    assertTrue(sorter.chunks() > 1);
+
+    var result = sorter.partitionedIterator(Stats.inMemory(), 3);
+    List<SortableFeature> actual = new ArrayList<>();
+    result.iterator().forEachRemaining(actual::add);
+    result.reader().await();
+    assertEquals(shuffled.stream().sorted().toList(), actual);
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "false,false",
+    "true,true",
+  })
+  void testKeyRangeAndSplitKeysAfterRestoringFromCheckpoint(boolean gzip, boolean mmap) throws IOException {
+    List<SortableFeature> shuffled = new ArrayList<>();
+    for (int i = 0; i < 100_000; i++) {
+      shuffled.add(new SortableFeature(i / 2, new byte[]{(byte) (i % 2), (byte) i}));
+    }
+    Collections.shuffle(shuffled, new Random(0));
+    var sorter = (ExternalMergeSort) newSorter(2, 4_000_000, gzip, mmap);
+    try (
+      var writer1 = sorter.writerForThread();
+      var writer2 = sorter.writerForThread()
+    ) {
+      for (int i = 0; i < shuffled.size(); i++) {
+        (i % 2 == 0 ? writer1 : writer2).accept(shuffled.get(i));
+      }
+    }
+    sorter.sort();
+    assertEquals(2, sorter.chunks());
+    var checkpoint = new FeatureGroup.Checkpoint(List.of(), List.of(), List.of(), sorter.checkpointChunks(),
+      sorter.numFeaturesWritten(), true);
+    var restored = new ExternalMergeSort(tmpDir, 2, 4_000_000, gzip, mmap, true, true, config, Stats.inMemory(),
+      checkpoint);
+    var sorted = shuffled.stream().sorted().toList();
+
+    List<SortableFeature> actual = new ArrayList<>();
+    restored.keyRange(20_000, 30_000).forEachRemaining(actual::add);
+    assertEquals(sorted.stream().filter(f -> f.key() >= 20_000 && f.key() < 30_000).toList(), actual);
+    actual.clear();
+    restored.keyRange(45_000, Long.MAX_VALUE).forEachRemaining(actual::add);
+    assertEquals(sorted.stream().filter(f -> f.key() >= 45_000).toList(), actual);
+
+    long[] splitKeys = restored.splitKeys(4);
+    assertEquals(3, splitKeys.length);
+    for (int i = 0; i < splitKeys.length; i++) {
+      // each chunk gets sampled every SAMPLE_INTERVAL features so splits land close to even quarters
+      long splitKey = splitKeys[i];
+      long before = sorted.stream().filter(f -> f.key() < splitKey).count();
+      long expected = sorted.size() * (i + 1L) / 4;
+      assertTrue(Math.abs(before - expected) <= 2 * SAMPLE_INTERVAL, before + " vs " + expected);
+    }
+  }
+
+  @Test
+  void testPartitionedIteratorEmpty() {
+    var sorter = newSorter(1, 100, false, false);
+    sorter.sort();
+    var result = sorter.partitionedIterator(Stats.inMemory(), 2);
+    assertFalse(result.iterator().hasNext());
+    result.reader().await();
+  }
 }
@@ -2,6 +2,7 @@ package com.onthegomap.planetiler.collection;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.onthegomap.planetiler.reader.osm.OsmReader;
@@ -9,6 +10,9 @@ import com.onthegomap.planetiler.util.Format;
 import com.onthegomap.planetiler.util.ResourceUsage;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -83,6 +87,19 @@ public abstract class LongLongMapTest {
       sequential.multiGet(new long[]{1, 2, 1_000_000, 3}));
   }
 
+  @Test
+  public void prefetchThenLookup() {
+    for (int i = 0; i < 1000; i++) {
+      sequential.put(i * 3, i + 1);
+    }
+    sequential.prefetch(new long[]{0, 1, 3, 1_500, 2_997, 5_000});
+    assertEquals(1, sequential.get(0));
+    assertEquals(Long.MIN_VALUE, sequential.get(1));
+    assertEquals(501, sequential.get(1_500));
+    assertEquals(1000, sequential.get(2_997));
+    assertEquals(Long.MIN_VALUE, sequential.get(5_000));
+  }
+
   @Test
   public void bigMultiInsert() {
     long[] key = new long[50000];
@@ -119,6 +136,39 @@ public abstract class LongLongMapTest {
     }
   }
 
+  public static class CompactTest extends LongLongMapTest {
+
+    @Override
+    protected LongLongMap.SequentialWrites createSequentialWriter(Path path) {
+      return new CompactLongLongMap(new AppendStoreRam.Longs(false));
+    }
+
+    @Test
+    void testNodeLocations() throws IOException {
+      var random = new Random(0);
+      var map = new CompactLongLongMap(new AppendStoreRam.Longs(false));
+      Map<Long, Long> expected = new HashMap<>();
+      long key = 0;
+      long x = 1L << 30;
+      long y = 1L << 30;
+      for (int i = 0; i < 100_000; i++) {
+        key += random.nextInt(100) == 0 ? random.nextInt(5_000) + 1 : 1;
+        x += random.nextInt(2_000) - 1_000;
+        y += random.nextInt(2_000) - 1_000;
+        // mostly nearby locations with some values that don't fit the pattern
+        long value = i % 1_000 == 0 ? random.nextLong() : ((x << 32) | y);
+        map.put(key, value);
+        expected.put(key, value);
+      }
+      map.put(key + 1, Long.MAX_VALUE);
+      expected.put(key + 1, Long.MAX_VALUE);
+      for (long i = 0; i < key + 1_000; i++) {
+        assertEquals(expected.getOrDefault(i, LongLongMap.MISSING_VALUE), map.get(i), "key " + i);
+      }
+      map.close();
+    }
+  }
+
   public static class DirectTest extends LongLongMapTest {
 
     @Override
@@ -141,9 +191,10 @@ public abstract class LongLongMapTest {
               storage == Storage.DIRECT ? ResourceUsage.DIRECT_MEMORY : ResourceUsage.HEAP
             );
           var sizeDescription = variant + " " + Format.defaultInstance().storage(usage);
-          // sanity check to ensure that the estimate size is between 60 and 100GB for a 70GB input file
+          // sanity check to ensure that the estimate size is between 60 and 100GB for a 70GB input file, or 40GB for
+          // the compact map
           if (type != LongLongMap.Type.NOOP) {
-            assertTrue(usage > 60_000_000_000L, sizeDescription);
+            assertTrue(usage > (type == LongLongMap.Type.COMPACT ? 40_000_000_000L : 60_000_000_000L), sizeDescription);
             assertTrue(usage < 100_000_000_000L, sizeDescription);
           }
           try (LongLongMap map = LongLongMap.from(type, storage, params)) {
@@ -152,6 +203,7 @@ public abstract class LongLongMapTest {
               writer.put(4, 5);
             }
             if (type != LongLongMap.Type.NOOP) {
+              map.prefetch(new long[]{1, 2, 4, 1_000});
               assertEquals(3, map.get(2), variant);
               assertEquals(5, map.get(4), variant);
             }
@@ -161,5 +213,41 @@ public abstract class LongLongMapTest {
         }
       }
     }
+
+    @Test
+    void testSaveThenOpen(@TempDir Path path) throws IOException {
+      for (LongLongMap.Type type : LongLongMap.Type.values()) {
+        var params = new Storage.Params(path.resolve(type.id()), false);
+        try (LongLongMap map = LongLongMap.from(type, Storage.MMAP, params)) {
+          try (var writer = map.newWriter()) {
+            writer.put(2, 3);
+            writer.put(4, 5);
+            writer.put(1_000, 6);
+          }
+          map.save();
+        }
+        if (type != LongLongMap.Type.NOOP) {
+          try (LongLongMap map = LongLongMap.withoutWrites(LongLongMap.open(type, params))) {
+            try (var writer = map.newWriter()) {
+              writer.put(5, 7);
+            }
+            assertEquals(3, map.get(2), type.id());
+            assertEquals(5, map.get(4), type.id());
+            assertEquals(6, map.get(1_000), type.id());
+            assertEquals(LongLongMap.MISSING_VALUE, map.get(3), type.id());
+            assertEquals(LongLongMap.MISSING_VALUE, map.get(5), type.id());
+            assertEquals(LongLongMap.MISSING_VALUE, map.get(2_000), type.id());
+          }
+        }
+      }
+    }
+
+    @Test
+    void testOnlyMmapStorageCanBeSaved(@TempDir Path path) throws IOException {
+      try (LongLongMap map = LongLongMap.from(LongLongMap.Type.SPARSE_ARRAY, Storage.RAM, new Storage.Params(path, false))) {
+        map.newWriter().put(1, 2);
+        assertThrows(UnsupportedOperationException.class, map::save);
+      }
+    }
   }
 }
@@ -758,6 +758,65 @@ class MultiExpressionTest {
       index.getMatches(WithTags.from(Map.of("a", List.of("e", Map.of("b", List.of("c")))))));
   }
 
+  @Test
+  void testCompiledIndexMatchesInterpretedIndex() {
+    var multiExpression = MultiExpression.of(List.of(
+      entry("a", matchAny("key", "value")),
+      entry("b", matchAny("key", "value", "other%")),
+      entry("c", and(matchField("key2"), not(matchAny("key", "no")))),
+      entry("d", or(matchAny("key2", ""), matchAny("key3", "value3"))),
+      entry("e", matchAnyTyped("key3", WithTags::getBoolean, true)),
+      entry("f", and(matchGeometryType(GeometryType.POINT), matchField("key"))),
+      entry("g", and(matchSource("source2"), matchField("key4"))),
+      entry("h", or(matchSourceLayer("layer2"), matchAny("a.b", "c"))),
+      entry("i", (input, matchKeys) -> input.hasTag("key5"))
+    ));
+    var index = multiExpression.index();
+    var compiled = multiExpression.compiledIndex();
+    List<Map<String, Object>> tagSets = List.of(
+      Map.of(),
+      Map.of("key", "value"),
+      Map.of("key", "other-value", "key2", "x"),
+      Map.of("key", "no", "key2", "x", "key3", "yes"),
+      Map.of("key", List.of("no", "value"), "key3", "value3"),
+      Map.of("key2", "", "key4", "1", "key5", "1"),
+      Map.of("a", Map.of("b", "c"), "unrelated", "value")
+    );
+    for (var tags : tagSets) {
+      List<WithTags> inputs = List.of(
+        WithTags.from(tags),
+        point("source1", "layer1", tags),
+        point("source2", "layer2", tags),
+        SimpleFeature.create(rectangle(0, 1), tags, "source2", "layer1", 1)
+      );
+      for (var input : inputs) {
+        String message = input + " " + tags;
+        assertEquals(index.getMatchesWithTriggers(input), compiled.getMatchesWithTriggers(input), message);
+        assertEquals(index.getMatches(input), compiled.getMatches(input), message);
+        assertEquals(index.getOrElse(input, null), compiled.getOrElse(input, null), message);
+        assertEquals(index.matches(input), compiled.matches(input), message);
+      }
+    }
+  }
+
+  @Test
+  void testCompiledIndexOnlyEvaluatesRelevantExpressions() {
+    Expression dontEvaluate = (input, matchKeys) -> {
+      throw new AssertionError("should not evaluate");
+    };
+    var index = MultiExpression.of(List.of(
+      entry("a", matchAny("key", "value")),
+      entry("b", and(matchField("def"), dontEvaluate))
+    )).compiledIndex();
+
+    assertEquals("a", index.getOrElse(featureWithTags("key", "value"), null));
+    assertTrue(index.matches(featureWithTags("key", "value", "other", "value")));
+    assertFalse(index.matches(featureWithTags("key", "other")));
+    assertSameElements(List.of(), index.getMatches(featureWithTags("other", "value")));
+    var bad = featureWithTags("def", "123");
+    assertThrows(AssertionError.class, () -> index.getMatches(bad));
+  }
+
   private static <T> void assertSameElements(List<T> a, List<T> b) {
     assertEquals(
       a.stream().sorted(Comparator.comparing(Object::toString)).toList(),
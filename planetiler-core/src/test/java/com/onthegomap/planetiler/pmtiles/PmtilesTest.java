@@ -9,6 +9,7 @@ import com.onthegomap.planetiler.archive.Tile;
 import com.onthegomap.planetiler.archive.TileArchiveMetadata;
 import com.onthegomap.planetiler.archive.TileCompression;
 import com.onthegomap.planetiler.archive.TileEncodingResult;
+import com.onthegomap.planetiler.config.Arguments;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.geo.TileCoord;
 import com.onthegomap.planetiler.reader.FileFormatException;
@@ -17,7 +18,9 @@ import com.onthegomap.planetiler.util.SeekableInMemoryByteChannel;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,8 +29,10 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
 
@@ -233,7 +238,7 @@ class PmtilesTest {
   }
 
   @ParameterizedTest
-  @EnumSource(value = TileCompression.class, names = {"GZIP", "NONE"})
+  @EnumSource(value = TileCompression.class, names = {"GZIP", "NONE", "BROTLI", "ZSTD"})
   void testRoundtripMetadataMinimal(TileCompression tileCompression) throws IOException {
     roundTripMetadata(
       new TileArchiveMetadata(null, null, null, null, null, null, null, null, null, null, null, Map.of(),
@@ -242,7 +247,7 @@ class PmtilesTest {
         new Envelope(-180, 180, -85.0511287, 85.0511287),
         new Coordinate(0, 0, 0d),
         0,
-        15,
+        18,
         null,
         Map.of(),
         tileCompression
@@ -330,6 +335,29 @@ class PmtilesTest {
     }
   }
 
+  @Test
+  void testWritePmtilesAboveZ15() throws IOException {
+    var bytes = new SeekableInMemoryByteChannel(0);
+    var in = WriteablePmtiles.newWriteToMemory(bytes);
+
+    var config = PlanetilerConfig.from(Arguments.of("maxzoom", "18"));
+    var metadata = new TileArchiveMetadata(new Profile.NullProfile(), config);
+    in.initialize();
+    var writer = in.newTileWriter();
+    var z16 = TileCoord.ofXYZ((1 << 16) - 1, 0, 16);
+    var z18 = TileCoord.ofXYZ((1 << 18) - 1, 12_345, 18);
+    writer.write(new TileEncodingResult(z16, new byte[]{0x1}, OptionalLong.empty()));
+    writer.write(new TileEncodingResult(z18, new byte[]{0x2}, OptionalLong.empty()));
+
+    in.finish(metadata);
+    try (var reader = new ReadablePmtiles(bytes)) {
+      assertEquals(18, reader.getHeader().maxZoom());
+      assertArrayEquals(new byte[]{0x1}, reader.getTile(z16.x(), z16.y(), z16.z()));
+      assertArrayEquals(new byte[]{0x2}, reader.getTile(z18.x(), z18.y(), z18.z()));
+      assertEquals(Set.of(z16, z18), reader.getAllTileCoords().stream().collect(Collectors.toSet()));
+    }
+  }
+
   @Test
   void testWritePmtilesUnclustered() throws IOException {
     var bytes = new SeekableInMemoryByteChannel(0);
@@ -413,4 +441,76 @@ class PmtilesTest {
       }
     }
   }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void testReadLeafDirectoriesFromFile(boolean mmap, @TempDir Path tempDir) throws IOException {
+    var path = tempDir.resolve("output.pmtiles");
+    int entries = 20000;
+    try (var out = WriteablePmtiles.newWriteToFile(path)) {
+      out.initialize();
+      try (var writer = out.newTileWriter()) {
+        for (int i = 0; i < entries; i++) {
+          writer.write(new TileEncodingResult(TileCoord.hilbertDecode(i), ByteBuffer.allocate(4).putInt(i).array(),
+            OptionalLong.empty()));
+        }
+      }
+      out.finish(new TileArchiveMetadata(new Profile.NullProfile(), PlanetilerConfig.defaults()));
+    }
+
+    try (var reader = ReadablePmtiles.newReadFromFile(path, Arguments.of(Map.of("mmap", Boolean.toString(mmap))))) {
+      assertTrue(reader.getHeader().leafDirectoriesLength() > 0);
+      for (int pass = 0; pass < 2; pass++) {
+        for (int i = 0; i < entries; i++) {
+          var coord = TileCoord.hilbertDecode(i);
+          assertArrayEquals(ByteBuffer.allocate(4).putInt(i).array(), reader.getTile(coord.x(), coord.y(), coord.z()));
+        }
+      }
+      var stats = reader.leafCacheStats();
+      assertEquals(stats.directories(), stats.misses());
+      assertEquals(2L * entries - stats.misses(), stats.hits());
+      assertEquals(entries, stats.entries());
+    }
+  }
+
+  @Test
+  void testLeafCacheEvictsLeastRecentlyUsed() throws IOException {
+    var bytes = new SeekableInMemoryByteChannel(0);
+    var out = WriteablePmtiles.newWriteToMemory(bytes);
+    out.initialize();
+    int entries = 20000;
+    try (var writer = out.newTileWriter()) {
+      for (int i = 0; i < entries; i++) {
+        writer.write(new TileEncodingResult(TileCoord.hilbertDecode(i), ByteBuffer.allocate(4).putInt(i).array(),
+          OptionalLong.empty()));
+      }
+    }
+    out.finish(new TileArchiveMetadata(new Profile.NullProfile(), PlanetilerConfig.defaults()));
+    byte[] archive = Arrays.copyOf(bytes.array(), (int) bytes.size());
+
+    var first = TileCoord.hilbertDecode(0);
+    var last = TileCoord.hilbertDecode(entries - 1);
+    long firstLeafEntries, lastLeafEntries;
+    try (var reader = new ReadablePmtiles(new SeekableInMemoryByteChannel(archive))) {
+      reader.getTile(first.x(), first.y(), first.z());
+      firstLeafEntries = reader.leafCacheStats().entries();
+      reader.getTile(last.x(), last.y(), last.z());
+      lastLeafEntries = reader.leafCacheStats().entries() - firstLeafEntries;
+    }
+
+    // only room for one of the two leaf directories
+    try (var reader = new ReadablePmtiles(new SeekableInMemoryByteChannel(archive),
+      Math.max(firstLeafEntries, lastLeafEntries))) {
+      for (var coord : List.of(first, first, last, first)) {
+        assertNotNull(reader.getTile(coord.x(), coord.y(), coord.z()));
+      }
+      assertEquals(new ReadablePmtiles.LeafCacheStats(1, 3, 1, firstLeafEntries), reader.leafCacheStats());
+    }
+
+    try (var reader = new ReadablePmtiles(new SeekableInMemoryByteChannel(archive), 0)) {
+      assertNotNull(reader.getTile(first.x(), first.y(), first.z()));
+      assertNotNull(reader.getTile(first.x(), first.y(), first.z()));
+      assertEquals(new ReadablePmtiles.LeafCacheStats(0, 2, 0, 0), reader.leafCacheStats());
+    }
+  }
 }
@@ -0,0 +1,227 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.onthegomap.planetiler.collection.LongLongMap;
+import com.onthegomap.planetiler.geo.GeoUtils;
+import com.onthegomap.planetiler.geo.TileCoord;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+
+class OsmChangeTest {
+
+  private static OsmChange parse(String xml) throws IOException {
+    return OsmChange.read(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static long[] tiles(OsmChange.DirtyTiles dirtyTiles) {
+    List<TileCoord> result = new ArrayList<>();
+    dirtyTiles.forEachTile(result::add);
+    long[] encoded = result.stream().mapToLong(TileCoord::encoded).sorted().toArray();
+    assertEquals(encoded.length, LongStream.of(encoded).distinct().count(), "duplicate tiles in " + result);
+    return encoded;
+  }
+
+  private static long[] allTiles(int z) {
+    return IntStream.range(0, 1 << (2 * z))
+      .mapToLong(i -> TileCoord.ofXYZ(i % (1 << z), i >> z, z).encoded())
+      .sorted()
+      .toArray();
+  }
+
+  private static OsmChange.PreviousState previousState(OsmChange change, OsmElement... elements) {
+    OsmBlockSource source = next -> next.accept(OsmBlockSource.Block.of(List.of(elements)));
+    return OsmChange.PreviousState.read(source, LongLongMap.newInMemorySortedTable(), change);
+  }
+
+  @Test
+  void testParse() throws IOException {
+    var change = parse("""
+      <?xml version="1.0" encoding="UTF-8"?>
+      <osmChange version="0.6" generator="test">
+        <create>
+          <node id="1" version="1" timestamp="2020-09-22T20:40:07Z" uid="2" user="u" changeset="3" lat="1.5" lon="2.5">
+            <tag k="amenity" v="cafe"/>
+          </node>
+        </create>
+        <modify>
+          <way id="4" version="2">
+            <nd ref="1"/>
+            <nd ref="5"/>
+            <tag k="highway" v="path"/>
+          </way>
+        </modify>
+        <delete>
+          <relation id="6" version="3">
+            <member type="way" ref="4" role="outer"/>
+          </relation>
+        </delete>
+      </osmChange>
+      """);
+    assertEquals(List.of(
+      new OsmChange.Change(OsmChange.Action.CREATE,
+        new OsmElement.Node(1, Map.of("amenity", "cafe"), 1.5, 2.5, new OsmElement.Info(3, 1600807207, 2, 1, "u"))),
+      new OsmChange.Change(OsmChange.Action.MODIFY,
+        new OsmElement.Way(4, Map.of("highway", "path"), LongArrayList.from(1, 5), new OsmElement.Info(0, 0, 0, 2,
+          null))),
+      new OsmChange.Change(OsmChange.Action.DELETE,
+        new OsmElement.Relation(6, Map.of(), List.of(new OsmElement.Relation.Member(OsmElement.Type.WAY, 4, "outer")),
+          new OsmElement.Info(0, 0, 0, 3, null)))
+    ), change.changes());
+  }
+
+  @Test
+  void testInvalid() {
+    assertThrows(IOException.class, () -> parse("<osmChange><node id=\"1\"/></osmChange>"));
+    assertThrows(IOException.class, () -> parse("<osmChange><create>"));
+  }
+
+  @Test
+  void testDirtyTilesIncludeOldAndNewLocation() throws IOException {
+    var change = parse("""
+      <osmChange>
+        <modify><node id="1" lat="-10" lon="10"/></modify>
+      </osmChange>
+      """);
+    long oldLocation = GeoUtils.encodeFlatLocation(-10, 10);
+    OsmChange.PreviousState previous = new OsmChange.PreviousState() {
+      @Override
+      public long nodeLocation(long id) {
+        return id == 1 ? oldLocation : LongLongMap.MISSING_VALUE;
+      }
+
+      @Override
+      public LongArrayList wayNodes(long id) {
+        return null;
+      }
+    };
+    long[] expected = Stream.of(
+      TileCoord.ofXYZ(0, 0, 0),
+      TileCoord.ofXYZ(0, 0, 1),
+      TileCoord.ofXYZ(0, 1, 1),
+      TileCoord.ofXYZ(1, 0, 1),
+      TileCoord.ofXYZ(1, 1, 1)
+    ).mapToLong(TileCoord::encoded).sorted().toArray();
+    assertArrayEquals(expected, tiles(change.dirtyTiles(previous, 0, 1, 0)));
+  }
+
+  @Test
+  void testDirtyTilesForWayUseUnchangedNodeLocations() throws IOException {
+    var change = parse("""
+      <osmChange>
+        <modify><way id="2"><nd ref="1"/><nd ref="3"/></way></modify>
+      </osmChange>
+      """);
+    OsmChange.PreviousState previous = new OsmChange.PreviousState() {
+      @Override
+      public long nodeLocation(long id) {
+        return id == 1 ? GeoUtils.encodeFlatLocation(-170, 80) :
+          id == 3 ? GeoUtils.encodeFlatLocation(-80, 80) : LongLongMap.MISSING_VALUE;
+      }
+
+      @Override
+      public LongArrayList wayNodes(long id) {
+        return id == 2 ? LongArrayList.from(1, 4) : null;
+      }
+    };
+    long[] expected = Stream.of(
+      TileCoord.ofXYZ(0, 0, 2),
+      TileCoord.ofXYZ(1, 0, 2)
+    ).mapToLong(TileCoord::encoded).sorted().toArray();
+    assertArrayEquals(expected, tiles(change.dirtyTiles(previous, 2, 2, 0)));
+  }
+
+  @Test
+  void testMovedNodeDirtiesContainingWaysAndRelations() throws IOException {
+    var change = parse("""
+      <osmChange>
+        <modify><node id="1" lat="79" lon="-170"/></modify>
+      </osmChange>
+      """);
+    var previous = previousState(change,
+      new OsmElement.Node(1, 80, -170),
+      new OsmElement.Node(2, 80, -80),
+      new OsmElement.Node(3, -80, 170),
+      new OsmElement.Way(10, Map.of(), LongArrayList.from(1, 2)),
+      new OsmElement.Way(11, Map.of(), LongArrayList.from(3, 3)),
+      new OsmElement.Relation(20, Map.of("type", "multipolygon"), List.of(
+        new OsmElement.Relation.Member(OsmElement.Type.WAY, 10, "outer"),
+        new OsmElement.Relation.Member(OsmElement.Type.WAY, 11, "outer")
+      ))
+    );
+    // the way segment from node 1 to 2, and the whole relation that contains that way
+    assertArrayEquals(allTiles(2), tiles(change.dirtyTiles(previous, 2, 2, 0)));
+
+    var withoutRelation = previousState(change,
+      new OsmElement.Node(1, 80, -170),
+      new OsmElement.Node(2, 80, -80),
+      new OsmElement.Way(10, Map.of(), LongArrayList.from(1, 2))
+    );
+    long[] expected = Stream.of(
+      TileCoord.ofXYZ(0, 0, 2),
+      TileCoord.ofXYZ(1, 0, 2)
+    ).mapToLong(TileCoord::encoded).sorted().toArray();
+    assertArrayEquals(expected, tiles(change.dirtyTiles(withoutRelation, 2, 2, 0)));
+  }
+
+  @Test
+  void testDirtyTilesForRelationUseUnchangedMemberWays() throws IOException {
+    var change = parse("""
+      <osmChange>
+        <modify>
+          <relation id="20">
+            <member type="way" ref="11" role="outer"/>
+            <member type="relation" ref="21" role=""/>
+          </relation>
+        </modify>
+      </osmChange>
+      """);
+    var previous = previousState(change,
+      new OsmElement.Node(1, 80, -170),
+      new OsmElement.Node(2, -80, 170),
+      new OsmElement.Way(11, Map.of(), LongArrayList.from(1, 1)),
+      new OsmElement.Way(12, Map.of(), LongArrayList.from(2, 2)),
+      new OsmElement.Relation(20, Map.of(), List.of()),
+      new OsmElement.Relation(21, Map.of(), List.of(
+        new OsmElement.Relation.Member(OsmElement.Type.WAY, 12, ""),
+        new OsmElement.Relation.Member(OsmElement.Type.RELATION, 20, "")
+      ))
+    );
+    // the relation spans from the way member to the way in its nested relation member
+    assertArrayEquals(allTiles(1), tiles(change.dirtyTiles(previous, 1, 1, 0)));
+  }
+
+  @Test
+  void testDirtyTilesStayAsRanges() throws IOException {
+    var change = parse("""
+      <osmChange>
+        <delete><way id="2"/></delete>
+      </osmChange>
+      """);
+    var previous = previousState(change,
+      new OsmElement.Node(1, 60, -120),
+      new OsmElement.Node(3, -60, 120),
+      new OsmElement.Way(2, Map.of(), LongArrayList.from(1, 3))
+    );
+    var dirtyTiles = change.dirtyTiles(previous, 0, 18, 0);
+    assertEquals(19, dirtyTiles.ranges().size());
+    var last = dirtyTiles.ranges().getLast();
+    assertEquals(18, last.z());
+    assertTrue((long) (last.maxX() - last.minX()) * (last.maxY() - last.minY()) > 10_000_000_000L);
+    assertTrue(dirtyTiles.test(TileCoord.ofXYZ(1 << 17, 1 << 17, 18)));
+    assertFalse(dirtyTiles.test(TileCoord.ofXYZ(0, 0, 18)));
+  }
+}
@@ -229,6 +229,35 @@ class OsmReaderTest {
     assertEquals(0, feature.length());
   }
 
+  @Test
+  void testPrefetchWayNodes() throws GeometryException {
+    OsmReader reader = newOsmReader();
+    var nodeCache = reader.newNodeLocationProvider();
+    var node1 = node(1, 0.5, 0.5);
+    var node2 = node(2, 0.75, 0.75);
+    var node3 = node(3, 0.25, 0.25);
+    var way1 = new OsmElement.Way(4);
+    way1.nodes().add(2, 1);
+    way1.setTag("key", "value");
+    var way2 = new OsmElement.Way(5);
+    way2.nodes().add(1, 3);
+    way2.setTag("key", "value");
+
+    processPass1Block(reader, List.of(node1, node2, node3, way1, way2));
+    nodeCache.prefetchWays(List.of(way1));
+
+    assertSameNormalizedFeature(
+      newLineString(0.75, 0.75, 0.5, 0.5),
+      reader.processWayPass2(way1, nodeCache).worldGeometry()
+    );
+    // node 3 was not prefetched so falls back to looking it up
+    assertSameNormalizedFeature(
+      newLineString(0.5, 0.5, 0.25, 0.25),
+      reader.processWayPass2(way2, nodeCache).worldGeometry()
+    );
+    assertThrows(IllegalArgumentException.class, () -> nodeCache.getCoordinate(6));
+  }
+
   @Test
   void testPolygonWithTooFewPoints() throws GeometryException {
     OsmReader reader = newOsmReader();
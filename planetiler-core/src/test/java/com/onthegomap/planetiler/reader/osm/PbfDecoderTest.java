@@ -0,0 +1,143 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.github.luben.zstd.Zstd;
+import com.google.protobuf.ByteString;
+import com.onthegomap.planetiler.reader.FileFormatException;
+import crosby.binary.Fileformat;
+import crosby.binary.Osmformat;
+import io.airlift.compress.lz4.Lz4Compressor;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class PbfDecoderTest {
+
+  private static byte[] primitiveBlock() {
+    var strings = Osmformat.StringTable.newBuilder();
+    for (String s : List.of("", "highway", "primary", "name", "main st", "stop", "user")) {
+      strings.addS(ByteString.copyFromUtf8(s));
+    }
+    var info = Osmformat.Info.newBuilder().setVersion(2).setTimestamp(3).setChangeset(4).setUid(5).setUserSid(6);
+    var nodes = Osmformat.PrimitiveGroup.newBuilder().setDense(Osmformat.DenseNodes.newBuilder()
+      .addAllId(List.of(10L, 1L))
+      .addAllLat(List.of(100L, -1L))
+      .addAllLon(List.of(200L, 2L))
+      .addAllKeysVals(List.of(0, 1, 2, 0)));
+    var ways = Osmformat.PrimitiveGroup.newBuilder().addWays(Osmformat.Way.newBuilder()
+      .setId(20)
+      .addAllKeys(List.of(1, 3))
+      .addAllVals(List.of(2, 4))
+      .addAllRefs(List.of(10L, 1L))
+      .setInfo(info));
+    var relations = Osmformat.PrimitiveGroup.newBuilder().addRelations(Osmformat.Relation.newBuilder()
+      .setId(30)
+      .addAllMemids(List.of(20L, -9L))
+      .addAllRolesSid(List.of(0, 5))
+      .addAllTypes(List.of(Osmformat.Relation.MemberType.WAY, Osmformat.Relation.MemberType.NODE)));
+    return Osmformat.PrimitiveBlock.newBuilder()
+      .setStringtable(strings)
+      .addPrimitivegroup(nodes.build().toByteString())
+      .addPrimitivegroup(ways.build().toByteString())
+      .addPrimitivegroup(relations.build().toByteString())
+      .build()
+      .toByteArray();
+  }
+
+  private static byte[] blob(PbfCompression compression, byte[] data) {
+    var blob = Fileformat.Blob.newBuilder().setRawSize(data.length);
+    switch (compression) {
+      case RAW -> blob.setRaw(ByteString.copyFrom(data));
+      case ZLIB -> {
+        var deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[data.length * 2 + 100];
+        int length = deflater.deflate(out);
+        deflater.end();
+        blob.setZlibData(ByteString.copyFrom(out, 0, length));
+      }
+      case LZ4 -> {
+        var compressor = new Lz4Compressor();
+        byte[] out = new byte[compressor.maxCompressedLength(data.length)];
+        int length = compressor.compress(data, 0, data.length, out, 0, out.length);
+        blob.setLz4Data(ByteString.copyFrom(out, 0, length));
+      }
+      case ZSTD -> blob.setZstdData(ByteString.copyFrom(Zstd.compress(data)));
+    }
+    return blob.build().toByteArray();
+  }
+
+  private static List<OsmElement> decodeAll(Iterable<OsmElement> decoder) {
+    List<OsmElement> result = new ArrayList<>();
+    decoder.forEach(result::add);
+    return result;
+  }
+
+  @ParameterizedTest
+  @EnumSource(PbfCompression.class)
+  void testDecodeBlob(PbfCompression compression) {
+    var expectedInfo = new OsmElement.Info(0, 0, 0, 0, "");
+    List<OsmElement> expected = List.of(
+      new OsmElement.Node(10, Map.of(), 0.00001, 0.00002, expectedInfo),
+      new OsmElement.Node(11, Map.of("highway", "primary"), 0.0000099, 0.0000202, expectedInfo),
+      new OsmElement.Way(20, Map.of("highway", "primary", "name", "main st"), LongArrayList.from(10, 11),
+        new OsmElement.Info(4, 3, 5, 2, "user")),
+      new OsmElement.Relation(30, Map.of(), List.of(
+        new OsmElement.Relation.Member(OsmElement.Type.WAY, 20, ""),
+        new OsmElement.Relation.Member(OsmElement.Type.NODE, 11, "stop")
+      ), new OsmElement.Info(0, 0, 0, -1, ""))
+    );
+    byte[] blob = blob(compression, primitiveBlock());
+    assertEquals(expected, decodeAll(PbfDecoder.decode(blob)));
+
+    // memory-mapped blocks are read from a direct buffer
+    ByteBuffer direct = ByteBuffer.allocateDirect(blob.length).put(blob).flip();
+    assertEquals(expected, decodeAll(PbfDecoder.decode(direct)));
+  }
+
+  @ParameterizedTest
+  @EnumSource(PbfCompression.class)
+  void testReuseBuffersAcrossBlocks(PbfCompression compression) {
+    byte[] blob = blob(compression, primitiveBlock());
+    var first = PbfDecoder.decode(blob);
+    var second = PbfDecoder.decode(blob);
+    var firstElements = decodeAll(first);
+    // the second block was decompressed before the first one released its buffer, so it must have its own
+    assertEquals(firstElements, decodeAll(second));
+    assertEquals(firstElements, decodeAll(PbfDecoder.decode(blob)));
+    assertThrows(IllegalStateException.class, first::iterator);
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = PbfCompression.class, names = "RAW", mode = EnumSource.Mode.EXCLUDE)
+  void testRejectCorruptBlob(PbfCompression compression) {
+    byte[] data = primitiveBlock();
+    var blob = Fileformat.Blob.newBuilder().setRawSize(data.length);
+    byte[] garbage = Arrays.copyOf(data, 10);
+    switch (compression) {
+      case ZLIB -> blob.setZlibData(ByteString.copyFrom(garbage));
+      case LZ4 -> blob.setLz4Data(ByteString.copyFrom(garbage));
+      case ZSTD -> blob.setZstdData(ByteString.copyFrom(garbage));
+      default -> throw new IllegalArgumentException();
+    }
+    byte[] bytes = blob.build().toByteArray();
+    assertThrows(FileFormatException.class, () -> PbfDecoder.decode(bytes));
+  }
+
+  @Test
+  void testRejectUnsupportedCompression() {
+    byte[] bytes = Fileformat.Blob.newBuilder().setRawSize(1).setLzmaData(ByteString.copyFrom(new byte[]{1})).build()
+      .toByteArray();
+    assertThrows(FileFormatException.class, () -> PbfDecoder.decode(bytes));
+  }
+}
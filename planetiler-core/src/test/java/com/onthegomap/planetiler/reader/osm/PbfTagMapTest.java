@@ -0,0 +1,58 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class PbfTagMapTest {
+
+  private static final String[] STRINGS = {"", "highway", "primary", "name", "main st", "highway", "secondary"};
+
+  @Test
+  void testLookupWithoutMaterializing() {
+    var tags = new PbfTagMap(STRINGS, new int[]{0, 1, 2, 3, 4, 0}, 1, 5);
+    assertEquals(2, tags.size());
+    assertFalse(tags.isEmpty());
+    assertEquals("primary", tags.get("highway"));
+    assertEquals("main st", tags.get("name"));
+    assertNull(tags.get("other"));
+    assertTrue(tags.containsKey("name"));
+    assertFalse(tags.containsKey("other"));
+    assertEquals(Map.of("highway", "primary", "name", "main st"), tags);
+    assertEquals(tags, Map.of("highway", "primary", "name", "main st"));
+    assertEquals(Map.of("highway", "primary", "name", "main st").hashCode(), tags.hashCode());
+  }
+
+  @Test
+  void testEmpty() {
+    var tags = new PbfTagMap(STRINGS, new int[]{1, 2}, 2, 2);
+    assertTrue(tags.isEmpty());
+    assertEquals(0, tags.size());
+    assertEquals(Map.of(), tags);
+  }
+
+  @Test
+  void testDuplicateKeysKeepLastValue() {
+    var tags = new PbfTagMap(STRINGS, new int[]{1, 2, 3, 4, 5, 6}, 0, 6);
+    assertEquals(2, tags.size());
+    assertEquals("secondary", tags.get("highway"));
+    assertEquals(Map.of("highway", "secondary", "name", "main st"), tags);
+  }
+
+  @Test
+  void testModify() {
+    var tags = new PbfTagMap(STRINGS, new int[]{1, 2, 3, 4}, 0, 4);
+    assertEquals("primary", tags.put("highway", "residential"));
+    assertEquals("main st", tags.remove("name"));
+    tags.put("oneway", "yes");
+    assertEquals(Map.of("highway", "residential", "oneway", "yes"), tags);
+    assertEquals("residential", tags.get("highway"));
+    assertEquals(2, tags.size());
+    tags.clear();
+    assertTrue(tags.isEmpty());
+  }
+}
@@ -0,0 +1,58 @@
+package com.onthegomap.planetiler.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.onthegomap.planetiler.collection.FeatureGroup;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BuildCheckpointTest {
+
+  @TempDir
+  Path tmpDir;
+
+  private final FeatureGroup.Checkpoint features = new FeatureGroup.Checkpoint(
+    List.of("layer1", "layer2"),
+    List.of("key"),
+    List.of("value"),
+    List.of(new FeatureGroup.Checkpoint.Chunk("chunk1", 10, 1_000, false)),
+    10,
+    true
+  );
+
+  @Test
+  void testEmpty() {
+    assertNull(BuildCheckpoint.load(tmpDir, "a").features());
+  }
+
+  @Test
+  void testRoundTrip() {
+    BuildCheckpoint.load(tmpDir, "a").saveFeatures(features);
+    assertEquals(features, BuildCheckpoint.load(tmpDir, "a").features());
+  }
+
+  @Test
+  void testIgnoresDifferentFingerprint() {
+    BuildCheckpoint.load(tmpDir, "a").saveFeatures(features);
+    assertNull(BuildCheckpoint.load(tmpDir, "b").features());
+  }
+
+  @Test
+  void testClear() {
+    var checkpoint = BuildCheckpoint.load(tmpDir, "a");
+    checkpoint.saveFeatures(features);
+    checkpoint.clear();
+    assertNull(checkpoint.features());
+    assertNull(BuildCheckpoint.load(tmpDir, "a").features());
+  }
+
+  @Test
+  void testFingerprint() {
+    assertEquals(BuildCheckpoint.fingerprint("a", 1), BuildCheckpoint.fingerprint("a", 1));
+    assertNotEquals(BuildCheckpoint.fingerprint("a", 1), BuildCheckpoint.fingerprint("a", 2));
+  }
+}
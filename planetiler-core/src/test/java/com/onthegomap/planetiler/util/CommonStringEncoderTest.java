@@ -3,6 +3,7 @@ package com.onthegomap.planetiler.util;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.util.List;
 import org.junit.jupiter.api.Test;
 
 class CommonStringEncoderTest {
@@ -51,4 +52,92 @@ class CommonStringEncoderTest {
     }
     assertThrows(IllegalArgumentException.class, () -> commonStringEncoderInteger.encode("too many"));
   }
+
+  @Test
+  void testPreRegisteredStringsGetFirstIds() {
+    var encoder = new CommonStringEncoder(10, List.of("a", "b", "a", "c"));
+    assertEquals(List.of("a", "b", "c"), encoder.strings());
+    assertEquals(0, encoder.encode("a"));
+    assertEquals(2, encoder.encode("c"));
+    assertEquals(3, encoder.encode("d"));
+    assertEquals(1, encoder.encode("b"));
+    assertEquals("d", encoder.decode(3));
+    assertEquals(List.of("a", "b", "c", "d"), encoder.strings());
+    assertThrows(IllegalArgumentException.class, () -> encoder.decode(4));
+    assertThrows(IllegalArgumentException.class, () -> encoder.decode(10));
+    assertThrows(IllegalArgumentException.class, () -> encoder.decode(-1));
+  }
+
+  @Test
+  void testTooManyPreRegisteredStrings() {
+    assertThrows(IllegalArgumentException.class, () -> new CommonStringEncoder(2, List.of("a", "b", "c")));
+  }
+
+  @Test
+  void testLargeMaxAcrossPages() {
+    var encoder = new CommonStringEncoder(1 << 24, List.of("first"));
+    for (int i = 1; i <= 10_000; i++) {
+      assertEquals(i, encoder.encode(Integer.toString(i)));
+    }
+    assertEquals("first", encoder.decode(0));
+    assertEquals("10000", encoder.decode(10_000));
+    assertEquals(10_001, encoder.strings().size());
+    assertThrows(IllegalArgumentException.class, () -> encoder.decode(1 << 20));
+  }
+
+  @Test
+  void testAdaptiveOnlyEncodesCommonStrings() {
+    var encoder = new CommonStringEncoder.Adaptive(10, 3, 100);
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("a"));
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("b"));
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("a"));
+    int a = encoder.encodeIfCommon("a");
+    assertEquals(0, a);
+    assertEquals("a", encoder.decode(a));
+    assertEquals(a, encoder.encodeIfCommon("a"));
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("b"));
+    assertEquals(1, encoder.encodeIfCommon("b"));
+    assertEquals(List.of("a", "b"), encoder.strings());
+  }
+
+  @Test
+  void testAdaptiveLimits() {
+    var encoder = new CommonStringEncoder.Adaptive(2, 2, 3);
+    for (String string : List.of("a", "b", "c")) {
+      assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon(string));
+    }
+    // too many candidates, so the others get evicted to make room for a new one
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("d"));
+    assertEquals(0, encoder.encodeIfCommon("d"));
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("a"));
+    assertEquals(1, encoder.encodeIfCommon("a"));
+    // out of IDs
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("b"));
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("b"));
+    assertEquals(List.of("d", "a"), encoder.strings());
+    assertThrows(IllegalArgumentException.class, () -> encoder.encode("c"));
+  }
+
+  @Test
+  void testAdaptiveDecaysCandidates() {
+    var encoder = new CommonStringEncoder.Adaptive(10, 4, 2);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("a"));
+    }
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("b"));
+    // halves the count for "a" and evicts "b"
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("c"));
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("a"));
+    assertEquals(CommonStringEncoder.Adaptive.NONE, encoder.encodeIfCommon("a"));
+    assertEquals(0, encoder.encodeIfCommon("a"));
+    assertEquals(List.of("a"), encoder.strings());
+  }
+
+  @Test
+  void testAdaptiveRestoresIds() {
+    var encoder = new CommonStringEncoder.Adaptive(10, 100, 100);
+    assertEquals(0, encoder.encode("a"));
+    assertEquals(0, encoder.encodeIfCommon("a"));
+    assertEquals("a", encoder.decode(0));
+  }
 }
@@ -56,4 +56,39 @@ class HilbertTest {
     assertEquals(x, Hilbert.extractX(decoded));
     assertEquals(y, Hilbert.extractY(decoded));
   }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 1, 15, 16, 17, 18, 24})
+  void testLongRoundTrip(int level) {
+    long max = (1L << level) * (1L << level);
+    long step = Math.max(1, max / 100);
+    for (long i = 0; i < max; i += step) {
+      long decoded = Hilbert.hilbertLongPositionToXY(level, i);
+      int x = Hilbert.extractX(decoded);
+      int y = Hilbert.extractY(decoded);
+      long reEncoded = Hilbert.hilbertXYToLongIndex(level, x, y);
+      if (reEncoded != i) {
+        fail("x=" + x + ", y=" + y + " index=" + i + " re-encoded=" + reEncoded);
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "1,1,0,3",
+    "15,32767,32767,715827882",
+    "16,65535,0,4294967295",
+    "16,65535,65535,2863311530",
+    "17,0,1,1",
+    "17,1,1,2",
+    "17,131071,0,17179869183",
+    "18,1,0,1",
+    "18,262143,0,68719476735",
+  })
+  void testLongEncoding(int level, int x, int y, long encoded) {
+    assertEquals(encoded, Hilbert.hilbertXYToLongIndex(level, x, y));
+    long decoded = Hilbert.hilbertLongPositionToXY(level, encoded);
+    assertEquals(x, Hilbert.extractX(decoded));
+    assertEquals(y, Hilbert.extractY(decoded));
+  }
 }
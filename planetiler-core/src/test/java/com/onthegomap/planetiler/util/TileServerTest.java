@@ -0,0 +1,207 @@
+package com.onthegomap.planetiler.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.onthegomap.planetiler.Profile;
+import com.onthegomap.planetiler.archive.TileArchiveConfig;
+import com.onthegomap.planetiler.archive.TileArchiveMetadata;
+import com.onthegomap.planetiler.archive.TileEncodingResult;
+import com.onthegomap.planetiler.archive.ZstdDictionaries;
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.mbtiles.Mbtiles;
+import com.onthegomap.planetiler.pmtiles.ReadablePmtiles;
+import com.onthegomap.planetiler.pmtiles.WriteablePmtiles;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TileServerTest {
+
+  private static final byte[] TILE = "tile data".getBytes(StandardCharsets.UTF_8);
+  private final HttpClient client = HttpClient.newHttpClient();
+  private TileServer server;
+
+  @AfterEach
+  void close() {
+    if (server != null) {
+      server.close();
+    }
+    client.close();
+  }
+
+  private static TileArchiveMetadata metadata() {
+    return new TileArchiveMetadata(new Profile.NullProfile(), PlanetilerConfig.defaults());
+  }
+
+  private TileServer startPmtiles() throws IOException {
+    var bytes = new SeekableInMemoryByteChannel(0);
+    try (var out = WriteablePmtiles.newWriteToMemory(bytes)) {
+      out.initialize();
+      try (var writer = out.newTileWriter()) {
+        writer.write(new TileEncodingResult(TileCoord.ofXYZ(0, 0, 0), Gzip.gzip(TILE), OptionalLong.empty()));
+      }
+      out.finish(metadata());
+    }
+    var reader = new ReadablePmtiles(new SeekableInMemoryByteChannel(bytes.array()));
+    return server = new TileServer(List.of(reader), true, 1_000_000).start(new InetSocketAddress("127.0.0.1", 0));
+  }
+
+  private HttpResponse<byte[]> get(String path, String... headers) throws IOException, InterruptedException {
+    var builder = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.port() + path));
+    if (headers.length > 0) {
+      builder.headers(headers);
+    }
+    return client.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+  }
+
+  @Test
+  void testServesPrecompressedTile() throws Exception {
+    startPmtiles();
+    var response = get("/0/0/0.pbf", "Accept-Encoding", "gzip, br");
+    assertEquals(200, response.statusCode());
+    assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElseThrow());
+    assertEquals("application/vnd.mapbox-vector-tile", response.headers().firstValue("Content-Type").orElseThrow());
+    assertArrayEquals(TILE, Gzip.gunzip(response.body()));
+  }
+
+  @Test
+  void testDecompressesForClientsWithoutGzip() throws Exception {
+    startPmtiles();
+    var response = get("/0/0/0", "Accept-Encoding", "br, gzip;q=0");
+    assertEquals(200, response.statusCode());
+    assertFalse(response.headers().firstValue("Content-Encoding").isPresent());
+    assertArrayEquals(TILE, response.body());
+  }
+
+  @Test
+  void testDecompressesDictionaryCompressedTiles() throws Exception {
+    var sampler = ZstdDictionaries.sampler(0, 0, 1_000);
+    for (int i = 0; i < 1_000; i++) {
+      byte[] sample = ("layer=water class=ocean name=Sea %d ".formatted(i)).repeat(1 + i % 5).getBytes(StandardCharsets.UTF_8);
+      sampler.offer(0, () -> sample);
+    }
+    var dictionaries = sampler.train(4_096);
+    var bytes = new SeekableInMemoryByteChannel(0);
+    try (var out = WriteablePmtiles.newWriteToMemory(bytes)) {
+      out.initialize();
+      try (var writer = out.newTileWriter()) {
+        writer.write(new TileEncodingResult(TileCoord.ofXYZ(0, 0, 0), dictionaries.compress(0, TILE),
+          OptionalLong.empty()));
+      }
+      var config = PlanetilerConfig.from(Arguments.of("tile_compression", "zstd"));
+      out.finish(dictionaries.addToMetadata(new TileArchiveMetadata(new Profile.NullProfile(), config)));
+    }
+    var reader = new ReadablePmtiles(new SeekableInMemoryByteChannel(bytes.array()));
+    server = new TileServer(List.of(reader), true, 1_000_000).start(new InetSocketAddress("127.0.0.1", 0));
+
+    // clients can't decode tiles compressed against a custom dictionary, even if they accept zstd
+    var response = get("/0/0/0", "Accept-Encoding", "zstd, gzip");
+    assertEquals(200, response.statusCode());
+    assertFalse(response.headers().firstValue("Content-Encoding").isPresent());
+    assertArrayEquals(TILE, response.body());
+  }
+
+  @Test
+  void testConditionalRequest() throws Exception {
+    startPmtiles();
+    String etag = get("/0/0/0").headers().firstValue("ETag").orElseThrow();
+    var response = get("/0/0/0", "If-None-Match", etag);
+    assertEquals(304, response.statusCode());
+    assertEquals(0, response.body().length);
+    assertEquals(200, get("/0/0/0", "If-None-Match", "\"other\"").statusCode());
+    var stats = server.cacheStats();
+    assertEquals(1, stats.misses());
+    assertEquals(2, stats.hits());
+  }
+
+  @Test
+  void testETagDependsOnEncoding() throws Exception {
+    startPmtiles();
+    String gzipEtag = get("/0/0/0", "Accept-Encoding", "gzip").headers().firstValue("ETag").orElseThrow();
+    String identityEtag = get("/0/0/0").headers().firstValue("ETag").orElseThrow();
+    assertNotEquals(gzipEtag, identityEtag);
+    assertEquals(200, get("/0/0/0", "If-None-Match", gzipEtag).statusCode());
+    var response = get("/0/0/0", "If-None-Match", gzipEtag, "Accept-Encoding", "gzip");
+    assertEquals(304, response.statusCode());
+    assertEquals("Accept-Encoding", response.headers().firstValue("Vary").orElseThrow());
+  }
+
+  @Test
+  void testMissingTiles() throws Exception {
+    startPmtiles();
+    assertEquals(204, get("/1/0/0").statusCode());
+    assertEquals(404, get("/1/2/0").statusCode());
+    assertEquals(404, get("/19/0/0").statusCode());
+    assertEquals(404, get("/a/b/c").statusCode());
+  }
+
+  @Test
+  void testTileJson() throws Exception {
+    startPmtiles();
+    var response = get("/tiles.json");
+    assertEquals(200, response.statusCode());
+    var json = new ObjectMapper().readValue(response.body(), Map.class);
+    assertEquals("3.0.0", json.get("tilejson"));
+    assertEquals(List.of("http://127.0.0.1:" + server.port() + "/{z}/{x}/{y}.pbf"), json.get("tiles"));
+    assertEquals(0, json.get("minzoom"));
+    assertEquals(14, json.get("maxzoom"));
+    assertNotNull(json.get("bounds"));
+  }
+
+  @Test
+  void testPooledMbtilesReaders(@TempDir Path tempDir) throws Exception {
+    Path path = tempDir.resolve("output.mbtiles");
+    try (var out = Mbtiles.newWriteToFileDatabase(path, Arguments.of())) {
+      out.createTablesWithIndexes();
+      try (var writer = out.newTileWriter()) {
+        for (int x = 0; x < 4; x++) {
+          for (int y = 0; y < 4; y++) {
+            writer.write(new TileEncodingResult(TileCoord.ofXYZ(x, y, 2), Gzip.gzip(new byte[]{(byte) x, (byte) y}),
+              OptionalLong.empty()));
+          }
+        }
+      }
+      out.finish(metadata());
+    }
+    server = TileServer.open(TileArchiveConfig.from(path.toString()), PlanetilerConfig.defaults(), 4, 0)
+      .start(new InetSocketAddress("127.0.0.1", 0));
+    List<Callable<Boolean>> tasks = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      int x = i % 4;
+      int y = (i / 4) % 4;
+      tasks.add(() -> {
+        var response = get("/2/" + x + "/" + y);
+        return response.statusCode() == 200 && response.body()[0] == x && response.body()[1] == y;
+      });
+    }
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (var result : executor.invokeAll(tasks)) {
+        assertTrue(result.get());
+      }
+    }
+    // cache size 0 means every request reads from the archive
+    assertEquals(200, server.cacheStats().misses());
+  }
+}
@@ -48,6 +48,7 @@ public class ConfiguredMapMain {
     Contexts.Root rootContext = Contexts.buildRootContext(arguments, schema.args());
 
     var planetiler = Planetiler.create(rootContext.arguments());
+    rootContext.scriptStats().register(planetiler.stats());
     var profile = new ConfiguredProfile(schema, rootContext);
     planetiler.setProfile(profile);
 
@@ -9,6 +9,7 @@ import com.onthegomap.planetiler.Profile;
 import com.onthegomap.planetiler.VectorTile;
 import com.onthegomap.planetiler.custommap.configschema.FeatureLayer;
 import com.onthegomap.planetiler.custommap.configschema.SchemaConfig;
+import com.onthegomap.planetiler.custommap.expression.ScriptMemo;
 import com.onthegomap.planetiler.expression.MultiExpression;
 import com.onthegomap.planetiler.expression.MultiExpression.Index;
 import com.onthegomap.planetiler.geo.GeometryException;
@@ -17,8 +18,10 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -31,6 +34,7 @@ public class ConfiguredProfile implements Profile {
   private final Collection<FeatureLayer> layers;
   private final Map<String, FeatureLayer> layersById = new HashMap<>();
   private final Map<String, Index<ConfiguredFeature>> featureLayerMatcher;
+  private final List<String> attributeKeys;
   private final TagValueProducer tagValueProducer;
   private final Contexts.Root rootContext;
 
@@ -46,11 +50,17 @@ public class ConfiguredProfile implements Profile {
     tagValueProducer = new TagValueProducer(schema.inputMappings());
 
     Map<String, List<MultiExpression.Entry<ConfiguredFeature>>> configuredFeatureEntries = new HashMap<>();
+    Set<String> keys = new LinkedHashSet<>();
 
     for (var layer : layers) {
       String layerId = layer.id();
       layersById.put(layerId, layer);
       for (var feature : layer.features()) {
+        for (var attribute : feature.attributes()) {
+          if (attribute.key() != null) {
+            keys.add(attribute.key());
+          }
+        }
         var configuredFeature = new ConfiguredFeature(layerId, tagValueProducer, feature, rootContext);
         var entry = new Entry<>(configuredFeature, configuredFeature.matchExpression());
         for (var source : feature.source()) {
@@ -60,9 +70,14 @@ public class ConfiguredProfile implements Profile {
       }
     }
 
+    boolean compile = rootContext.config().compileExpressions();
     featureLayerMatcher = configuredFeatureEntries.entrySet().stream()
-      .map(entry -> entry(entry.getKey(), MultiExpression.of(entry.getValue()).index()))
+      .map(entry -> {
+        var expressions = MultiExpression.of(entry.getValue());
+        return entry(entry.getKey(), compile ? expressions.compiledIndex() : expressions.index());
+      })
       .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, Map.Entry::getValue));
+    attributeKeys = List.copyOf(keys);
   }
 
   @Override
@@ -80,12 +95,14 @@ public class ConfiguredProfile implements Profile {
     var context = rootContext.createProcessFeatureContext(sourceFeature, tagValueProducer);
     var index = featureLayerMatcher.get(sourceFeature.getSource());
     if (index != null) {
-      var matches = index.getMatchesWithTriggers(context);
-      for (var configuredFeature : matches) {
-        configuredFeature.match().processFeature(
-          context.createPostMatchContext(configuredFeature.keys()),
-          featureCollector
-        );
+      try (var memo = ScriptMemo.forFeature()) {
+        var matches = index.getMatchesWithTriggers(context);
+        for (var configuredFeature : matches) {
+          configuredFeature.match().processFeature(
+            context.createPostMatchContext(configuredFeature.keys()),
+            featureCollector
+          );
+        }
       }
     }
   }
@@ -120,6 +137,27 @@ public class ConfiguredProfile implements Profile {
     return items;
   }
 
+  @Override
+  public boolean postProcessesLayer(String layer, int zoom) {
+    FeatureLayer featureLayer = findFeatureLayer(layer);
+    return featureLayer == null || featureLayer.postProcess() != null;
+  }
+
+  @Override
+  public boolean postProcessesTiles() {
+    return false;
+  }
+
+  @Override
+  public List<String> declaredLayers() {
+    return layers.stream().map(FeatureLayer::id).distinct().toList();
+  }
+
+  @Override
+  public List<String> declaredAttributeKeys() {
+    return attributeKeys;
+  }
+
   @Override
   public String description() {
     return schema.schemaDescription();
@@ -9,6 +9,8 @@ import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.custommap.expression.ParseException;
 import com.onthegomap.planetiler.custommap.expression.ScriptContext;
 import com.onthegomap.planetiler.custommap.expression.ScriptEnvironment;
+import com.onthegomap.planetiler.custommap.expression.ScriptMemo;
+import com.onthegomap.planetiler.custommap.expression.ScriptStats;
 import com.onthegomap.planetiler.expression.DataType;
 import com.onthegomap.planetiler.reader.SourceFeature;
 import com.onthegomap.planetiler.reader.WithGeometryType;
@@ -22,6 +24,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.projectnessie.cel.checker.Decls;
@@ -153,12 +156,18 @@ public class Contexts {
     private final ScriptEnvironment<Root> description;
     private final Map<String, Val> bindings = new HashMap<>();
     private final Map<String, Object> argumentValues = new HashMap<>();
+    private final ScriptStats scriptStats = new ScriptStats();
     public final Set<String> builtInArgs;
 
     public Arguments arguments() {
       return arguments;
     }
 
+    /** Returns the timings of scripts evaluated in this context and its children. */
+    public ScriptStats scriptStats() {
+      return scriptStats;
+    }
+
     public PlanetilerConfig config() {
       return config;
     }
@@ -185,6 +194,7 @@ public class Contexts {
       argumentValues.put("write_threads", config.featureWriteThreads());
       argumentValues.put("process_threads", config.featureProcessThreads());
       argumentValues.put("feature_read_threads", config.featureReadThreads());
+      argumentValues.put("feature_merge_threads", config.featureMergeThreads());
       //      args.put("loginterval", config.logInterval());
       argumentValues.put("minzoom", config.minzoom());
       argumentValues.put("maxzoom", config.maxzoom());
@@ -370,7 +380,7 @@ public class Contexts {
     public Object apply(String key) {
       if (key != null) {
         return switch (key) {
-          case FEATURE_TAGS -> tagValueProducer.mapTags(feature);
+          case FEATURE_TAGS -> memoize(FEATURE_TAGS, () -> tagValueProducer.mapTags(feature));
           case FEATURE_ID -> feature.id();
           case FEATURE_SOURCE -> feature.getSource();
           case FEATURE_SOURCE_LAYER -> wrapNullable(feature.getSourceLayer());
@@ -395,6 +405,11 @@ public class Contexts {
       }
     }
 
+    @Override
+    public <T> T memoize(Object key, Supplier<T> evaluate) {
+      return ScriptMemo.memoize(this, key, evaluate);
+    }
+
     public FeaturePostMatch createPostMatchContext(List<String> matchKeys) {
       return new FeaturePostMatch(this, matchKeys);
     }
@@ -446,6 +461,11 @@ public class Contexts {
       return matchKey == null ? null : parent.tagValueProducer.valueForKey(parent().feature(), matchKey);
     }
 
+    @Override
+    public <T> T memoize(Object key, Supplier<T> evaluate) {
+      return ScriptMemo.memoize(this, key, evaluate);
+    }
+
     public FeatureAttribute createAttrZoomContext(Object value) {
       return new FeatureAttribute(this, value);
     }
@@ -91,7 +91,9 @@ public interface ConfigExpression<I extends ScriptContext, O>
       MultiExpression<ConfigExpression<I, O>> multiExpression,
       ConfigExpression<I, O> fallback
     ) {
-      this(signature, multiExpression, fallback, multiExpression.index());
+      this(signature, multiExpression, fallback,
+        signature.in().root().config().compileExpressions() ? multiExpression.compiledIndex() :
+          multiExpression.index());
     }
 
     @Override
@@ -14,6 +14,11 @@ import org.projectnessie.cel.tools.ScriptHost;
 
 /**
  * An expression that returns the result of evaluating a user-defined string script on the input environment context.
+ * <p>
+ * Simple scripts like tag lookups, {@code coalesce}, string comparisons and conditionals get lowered to native
+ * expressions when simplified, and the rest go through the CEL interpreter. Interpreted results are memoized in the
+ * {@link ScriptMemo} of the feature being processed so other attributes can reuse them, and timed in the
+ * {@link ScriptStats} of the root context.
  *
  * @param <I> Type of the context that the script is expecting
  * @param <O> Result type of the script
@@ -27,13 +32,21 @@ public class ConfigExpressionScript<I extends ScriptContext, O> implements Confi
   private final Class<O> returnType;
   private final String scriptText;
   private final ScriptEnvironment<I> descriptor;
+  private final ScriptStats.Timing timing;
+  // scripts are used as memoization keys for every feature, so avoid hashing the environment each time
+  private final int hashCode;
+  // native version of this script from simplifying it, or null if it has not been lowered
+  private final ScriptLowering.Node lowered;
 
   private ConfigExpressionScript(String scriptText, Script script, ScriptEnvironment<I> descriptor,
-    Class<O> returnType) {
+    Class<O> returnType, ScriptLowering.Node lowered) {
     this.scriptText = scriptText;
     this.script = script;
     this.returnType = returnType;
     this.descriptor = descriptor;
+    this.timing = descriptor.root().scriptStats().forScript(scriptText);
+    this.hashCode = Objects.hash(returnType, scriptText, descriptor);
+    this.lowered = lowered;
   }
 
   /** Returns true if this is a string expression like {@code "${ ... }"} */
@@ -109,7 +122,7 @@ public class ConfigExpressionScript<I extends ScriptContext, O> implements Confi
       }
       var script = scriptBuilder.build();
 
-      return new ConfigExpressionScript<>(string, script, description, expected);
+      return new ConfigExpressionScript<>(string, script, description, expected, null);
     } catch (ScriptCreateException e) {
       throw new ParseException(string, e);
     }
@@ -117,16 +130,39 @@ public class ConfigExpressionScript<I extends ScriptContext, O> implements Confi
 
   @Override
   public O apply(I input) {
+    if (lowered != null) {
+      Object result = lowered.evaluate(input);
+      if (result != ScriptLowering.FALLBACK) {
+        return convert(result);
+      }
+    }
+    return input.memoize(this, () -> evaluate(input));
+  }
+
+  /** Returns true if simplifying this script translated it to a native version. */
+  boolean isLowered() {
+    return lowered != null;
+  }
+
+  private O evaluate(I input) {
+    long start = System.nanoTime();
     try {
-      return TypeConversion.convert(script.execute(Object.class, input), returnType);
+      return convert(script.execute(Object.class, input));
     } catch (ScriptException e) {
       throw new EvaluationException("Error evaluating script '%s'".formatted(scriptText), e);
+    } finally {
+      timing.record(start);
     }
   }
 
+  /** Coerces a raw script result to the return type of this expression. */
+  O convert(Object result) {
+    return TypeConversion.convert(result, returnType);
+  }
+
   @Override
   public boolean equals(Object o) {
-    // ignore the parsed script object
+    // ignore the parsed script object and native version, which are derived from the script text
     return this == o || (o instanceof ConfigExpressionScript<?, ?> config &&
       returnType.equals(config.returnType) &&
       scriptText.equals(config.scriptText) &&
@@ -135,8 +171,8 @@ public class ConfigExpressionScript<I extends ScriptContext, O> implements Confi
 
   @Override
   public int hashCode() {
-    // ignore the parsed script object
-    return Objects.hash(returnType, scriptText, descriptor);
+    // ignore the parsed script object and native version
+    return hashCode;
   }
 
   /**
@@ -170,7 +206,10 @@ public class ConfigExpressionScript<I extends ScriptContext, O> implements Confi
       return ConfigExpression.constOf(result.get());
     } else if (descriptor.containsVariable(scriptText.strip())) {
       return ConfigExpression.variable(ConfigExpression.signature(descriptor, returnType), scriptText.strip());
+    } else if (lowered != null) {
+      return this;
     }
-    return this;
+    var node = ScriptLowering.lower(scriptText, descriptor);
+    return node == null ? this : new ConfigExpressionScript<>(scriptText, script, descriptor, returnType, node);
   }
 }
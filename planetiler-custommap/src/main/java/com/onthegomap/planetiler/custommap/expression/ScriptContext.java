@@ -4,6 +4,7 @@ import com.google.common.base.Function;
 import com.onthegomap.planetiler.custommap.TagValueProducer;
 import com.onthegomap.planetiler.reader.WithTags;
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * The runtime environment of an executing expression script that returns variables by their name.
@@ -26,4 +27,15 @@ public interface ScriptContext extends Function<String, Object>, WithTags {
   default Object argument(String key) {
     return null;
   }
+
+  /**
+   * Returns the result of {@code evaluate}, reusing the result from an earlier call with an equal {@code key} on this
+   * context if the context caches results.
+   * <p>
+   * Contexts that are shared by all the expressions evaluated for a single input feature override this to cache results
+   * in the open {@link ScriptMemo} so that attributes using the same script only evaluate it once per feature.
+   */
+  default <T> T memoize(Object key, Supplier<T> evaluate) {
+    return evaluate.get();
+  }
 }
@@ -0,0 +1,276 @@
+package com.onthegomap.planetiler.custommap.expression;
+
+import com.onthegomap.planetiler.expression.DataType;
+import java.util.ArrayList;
+import java.util.List;
+import org.projectnessie.cel.common.types.NullT;
+import org.projectnessie.cel.common.types.ref.Val;
+
+/**
+ * Translates the most common kinds of script into native {@link Node Nodes} that can be evaluated without going through
+ * the CEL interpreter.
+ * <p>
+ * This handles scripts built only from string, boolean and null literals, tag lookups ({@code feature.tags.key},
+ * {@code feature.tags["key"]} or {@code feature.tags.get("key")}), variables from the script environment,
+ * {@code coalesce(...)}, {@code ==}, {@code !=}, {@code cond ? a : b} and parentheses. Anything else is left to the
+ * interpreter.
+ * <p>
+ * Nodes only handle the inputs where their result is obviously the same as CEL, like comparing two strings. On
+ * anything else, like a missing key that CEL would treat as an error or a value type that CEL would convert, they
+ * return {@link #FALLBACK} and the caller evaluates the original script instead.
+ */
+final class ScriptLowering {
+
+  /** Returned by a node when the original script needs to be evaluated to get the right result. */
+  static final Object FALLBACK = new Object();
+
+  private final String text;
+  private final ScriptEnvironment<?> environment;
+  private int position = 0;
+
+  private ScriptLowering(String text, ScriptEnvironment<?> environment) {
+    this.text = text;
+    this.environment = environment;
+  }
+
+  /** A script expression compiled to native code. */
+  @FunctionalInterface
+  interface Node {
+
+    /** Returns the result of this expression on {@code context}, or {@link #FALLBACK}. */
+    Object evaluate(ScriptContext context);
+  }
+
+  /** Returns a native node equivalent to {@code script}, or null if it uses anything that is not supported. */
+  static Node lower(String script, ScriptEnvironment<?> environment) {
+    var parser = new ScriptLowering(script, environment);
+    Node result = parser.parseExpression();
+    parser.skipWhitespace();
+    return parser.position == script.length() ? result : null;
+  }
+
+  /** Converts a value to the type that CEL would return for it, or {@link #FALLBACK} if it's not a simple value. */
+  private static Object celValue(Object value) {
+    return switch (value) {
+      case String s -> s;
+      case Boolean b -> b;
+      case Long l -> l;
+      case Double d -> d;
+      case Integer i -> i.longValue();
+      case Short s -> s.longValue();
+      case Byte b -> b.longValue();
+      case Float f -> f.doubleValue();
+      case NullT ignored -> null;
+      case Val val -> celValue(val.value());
+      case null, default -> FALLBACK;
+    };
+  }
+
+  private static Node tag(String key, boolean nullIfMissing) {
+    return context -> {
+      var getter = context.tagValueProducer().valueGetterForKey(key);
+      // CEL looks up unmapped tags directly in the tag map, which does not handle nested keys like getTag does
+      Object value = getter == DataType.GET_TAG ? context.tags().get(key) : getter.apply(context, key);
+      if (value == null) {
+        // CEL treats a missing key as an error unless it was looked up with get()
+        return nullIfMissing ? null : FALLBACK;
+      }
+      return celValue(value);
+    };
+  }
+
+  private static Node variable(String name) {
+    return context -> {
+      Object value = context.apply(name);
+      // null means the variable was not bound, but NullT means the variable was bound to null
+      return value == null ? FALLBACK : celValue(value);
+    };
+  }
+
+  private static Node coalesce(List<Node> children) {
+    Node[] nodes = children.toArray(Node[]::new);
+    return context -> {
+      // CEL evaluates every argument, so an argument that CEL treats as an error makes the whole call fail
+      Object result = null;
+      for (Node node : nodes) {
+        Object value = node.evaluate(context);
+        if (value == FALLBACK) {
+          return FALLBACK;
+        } else if (result == null) {
+          result = value;
+        }
+      }
+      return result;
+    };
+  }
+
+  private static Node equal(Node left, Node right, boolean negate) {
+    return context -> {
+      Object a = left.evaluate(context);
+      Object b = right.evaluate(context);
+      // CEL equality between other types depends on the CEL version and type checker, so only handle strings
+      if (a instanceof String as && b instanceof String bs) {
+        return as.equals(bs) != negate;
+      }
+      return FALLBACK;
+    };
+  }
+
+  private static Node conditional(Node condition, Node ifTrue, Node ifFalse) {
+    return context -> {
+      Object value = condition.evaluate(context);
+      if (value instanceof Boolean b) {
+        return b ? ifTrue.evaluate(context) : ifFalse.evaluate(context);
+      }
+      return FALLBACK;
+    };
+  }
+
+  // each parse method returns null if the script uses anything that cannot be lowered
+
+  private Node parseExpression() {
+    Node condition = parseEquality();
+    if (condition == null || !consume("?")) {
+      return condition;
+    }
+    Node ifTrue = parseExpression();
+    if (ifTrue == null || !consume(":")) {
+      return null;
+    }
+    Node ifFalse = parseExpression();
+    return ifFalse == null ? null : conditional(condition, ifTrue, ifFalse);
+  }
+
+  private Node parseEquality() {
+    Node left = parsePrimary();
+    if (left == null) {
+      return null;
+    }
+    boolean negate;
+    if (consume("==")) {
+      negate = false;
+    } else if (consume("!=")) {
+      negate = true;
+    } else {
+      return left;
+    }
+    Node right = parsePrimary();
+    return right == null ? null : equal(left, right, negate);
+  }
+
+  private Node parsePrimary() {
+    skipWhitespace();
+    if (position >= text.length()) {
+      return null;
+    }
+    char c = text.charAt(position);
+    if (c == '"' || c == '\'') {
+      String value = parseString();
+      return value == null ? null : context -> value;
+    } else if (consume("(")) {
+      Node result = parseExpression();
+      return result != null && consume(")") ? result : null;
+    } else if (Character.isLetter(c) || c == '_') {
+      return parseIdentifiers();
+    }
+    return null;
+  }
+
+  private Node parseIdentifiers() {
+    List<String> parts = new ArrayList<>();
+    do {
+      String part = parseIdentifier();
+      if (part == null) {
+        return null;
+      }
+      parts.add(part);
+    } while (consume("."));
+    String name = String.join(".", parts);
+    boolean isTags = parts.size() >= 2 && parts.get(0).equals("feature") && parts.get(1).equals("tags");
+    if (isTags && parts.size() == 2 && consume("[")) {
+      String key = parseTagKey();
+      return key != null && consume("]") ? tag(key, false) : null;
+    } else if (isTags && parts.size() == 3 && parts.get(2).equals("get") && consume("(")) {
+      String key = parseTagKey();
+      return key != null && consume(")") ? tag(key, true) : null;
+    } else if (peek("(") || peek("[")) {
+      // other functions, methods and macros are not supported
+      return name.equals("coalesce") && consume("(") ? parseCoalesce() : null;
+    } else if (isTags && parts.size() == 3) {
+      return tag(parts.get(2), false);
+    }
+    return switch (name) {
+      case "null" -> context -> null;
+      case "true" -> context -> true;
+      case "false" -> context -> false;
+      // maps are only useful with operators that are not supported here
+      case "feature.tags", "args" -> null;
+      default -> environment.containsVariable(name) ? variable(name) : null;
+    };
+  }
+
+  private Node parseCoalesce() {
+    List<Node> args = new ArrayList<>();
+    do {
+      Node arg = parseExpression();
+      if (arg == null) {
+        return null;
+      }
+      args.add(arg);
+    } while (consume(","));
+    return consume(")") ? coalesce(args) : null;
+  }
+
+  private String parseTagKey() {
+    skipWhitespace();
+    String key = parseString();
+    return key == null || key.contains(".") || key.contains("[") ? null : key;
+  }
+
+  private String parseIdentifier() {
+    int start = position;
+    while (position < text.length() &&
+      (Character.isLetterOrDigit(text.charAt(position)) || text.charAt(position) == '_')) {
+      position++;
+    }
+    return start == position ? null : text.substring(start, position);
+  }
+
+  private String parseString() {
+    if (position >= text.length()) {
+      return null;
+    }
+    char quote = text.charAt(position);
+    if (quote != '"' && quote != '\'') {
+      return null;
+    }
+    int end = text.indexOf(quote, position + 1);
+    // leave escape sequences and triple-quoted strings to CEL
+    if (end < 0 || text.substring(position + 1, end).contains("\\") || text.startsWith("" + quote + quote + quote,
+      position)) {
+      return null;
+    }
+    String result = text.substring(position + 1, end);
+    position = end + 1;
+    return result;
+  }
+
+  private void skipWhitespace() {
+    while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+      position++;
+    }
+  }
+
+  private boolean peek(String token) {
+    skipWhitespace();
+    return text.startsWith(token, position);
+  }
+
+  private boolean consume(String token) {
+    if (peek(token)) {
+      position += token.length();
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,62 @@
+package com.onthegomap.planetiler.custommap.expression;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Results of expressions already evaluated on the contexts of the input feature that the current thread is processing,
+ * so attributes using the same script only evaluate it once per feature.
+ * <p>
+ * Contexts are records that compare by value, so results are cached next to them by context identity instead of inside
+ * them. Open a memo with {@link #forFeature()} before processing each feature and close it when done to drop the
+ * results. Outside of an open memo, {@link #memoize(ScriptContext, Object, Supplier)} evaluates every time.
+ */
+public final class ScriptMemo implements AutoCloseable {
+
+  private static final ThreadLocal<ScriptMemo> CURRENT = new ThreadLocal<>();
+  private static final Object NULL_RESULT = new Object();
+  private final ScriptMemo previous;
+  private final Map<ScriptContext, Map<Object, Object>> byContext = new IdentityHashMap<>();
+
+  private ScriptMemo(ScriptMemo previous) {
+    this.previous = previous;
+  }
+
+  /** Starts caching results on this thread until the returned memo is closed. */
+  public static ScriptMemo forFeature() {
+    var memo = new ScriptMemo(CURRENT.get());
+    CURRENT.set(memo);
+    return memo;
+  }
+
+  /**
+   * Returns the result of {@code evaluate}, reusing the result from an earlier call with an equal {@code key} on the
+   * same {@code context} object while a memo is open on this thread.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T memoize(ScriptContext context, Object key, Supplier<T> evaluate) {
+    ScriptMemo memo = CURRENT.get();
+    if (memo == null) {
+      return evaluate.get();
+    }
+    var cache = memo.byContext.computeIfAbsent(context, c -> new HashMap<>());
+    Object result = cache.get(key);
+    if (result == null) {
+      T computed = evaluate.get();
+      cache.put(key, computed == null ? NULL_RESULT : computed);
+      return computed;
+    }
+    return result == NULL_RESULT ? null : (T) result;
+  }
+
+  @Override
+  public void close() {
+    if (previous == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(previous);
+    }
+  }
+}
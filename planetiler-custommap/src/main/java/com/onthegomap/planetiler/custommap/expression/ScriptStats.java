@@ -0,0 +1,47 @@
+package com.onthegomap.planetiler.custommap.expression;
+
+import com.onthegomap.planetiler.stats.Counter;
+import com.onthegomap.planetiler.stats.Stats;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Number of times and total time spent evaluating each script through the CEL interpreter, grouped by script text.
+ * <p>
+ * Scripts that get lowered to native expressions or evaluated statically at parse time do not show up here, so this
+ * points out the scripts that are worth simplifying in a schema.
+ * <p>
+ * Each {@link com.onthegomap.planetiler.custommap.Contexts.Root} holds its own instance so that timings from one run
+ * don't leak into another one in the same JVM.
+ */
+public class ScriptStats {
+
+  private final Map<String, Timing> byScript = new ConcurrentHashMap<>();
+
+  record Timing(Counter.MultiThreadCounter evaluations, Counter.MultiThreadCounter nanos) {
+
+    void record(long startNanos) {
+      evaluations.inc();
+      nanos.incBy(System.nanoTime() - startNanos);
+    }
+  }
+
+  Timing forScript(String scriptText) {
+    return byScript.computeIfAbsent(scriptText.strip(),
+      text -> new Timing(Counter.newMultiThreadCounter(), Counter.newMultiThreadCounter()));
+  }
+
+  /** Starts reporting the number of evaluations and time spent in each script to {@code stats}. */
+  public void register(Stats stats) {
+    stats.counter("custommap_script_evaluations", "script", () -> snapshot(Timing::evaluations));
+    stats.counter("custommap_script_evaluation_nanos", "script", () -> snapshot(Timing::nanos));
+  }
+
+  private Map<String, LongSupplier> snapshot(Function<Timing, Counter.MultiThreadCounter> counter) {
+    return byScript.entrySet().stream()
+      .collect(Collectors.toMap(Map.Entry::getKey, entry -> counter.apply(entry.getValue())));
+  }
+}
@@ -8,8 +8,12 @@ import static com.onthegomap.planetiler.custommap.expression.ConfigExpression.*;
 import static com.onthegomap.planetiler.expression.Expression.matchAny;
 import static com.onthegomap.planetiler.expression.Expression.or;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 
 import com.onthegomap.planetiler.config.Arguments;
 import com.onthegomap.planetiler.custommap.Contexts;
@@ -133,6 +137,67 @@ class ConfigExpressionTest {
     );
   }
 
+  @Test
+  void testLoweredScriptsMatchInterpreter() {
+    var feature = SimpleFeature.create(newPoint(0, 0), Map.of("a", "b", "c", 1, "d", "e"), "source", null, 99);
+    var context = TestContexts.ROOT.createProcessFeatureContext(feature, new TagValueProducer(Map.of("d", "long")))
+      .createPostMatchContext(List.of("a"));
+    var signature = signature(FEATURE_POST_MATCH, Object.class);
+    for (String text : List.of(
+      "feature.tags.a",
+      "feature.tags['a']",
+      "feature.tags.get(\"missing\")",
+      "feature.tags.c",
+      "feature.tags.d",
+      "coalesce(feature.tags.get('missing'), feature.tags.a)",
+      "coalesce(feature.tags.get('missing'), null)",
+      "feature.tags.a == 'b' ? 'yes' : 'no'",
+      "(match_value != \"b\") ? feature.tags.a : match_key",
+      "coalesce(feature.source_layer, 'x')"
+    )) {
+      var interpreted = script(signature, text);
+      var lowered = interpreted.simplify();
+      assertTrue(lowered instanceof ConfigExpressionScript<?, ?> s && s.isLowered(), text);
+      assertEquals(interpreted.apply(context), lowered.apply(context), text);
+    }
+    var missing = script(signature, "feature.tags.missing").simplify();
+    assertTrue(missing instanceof ConfigExpressionScript<?, ?> s && s.isLowered());
+    assertThrows(EvaluationException.class, () -> missing.apply(context));
+
+    for (String text : List.of(
+      "feature.tags.a + 'b'",
+      "match_value.lowerAscii()",
+      "feature.tags.get('a.b')"
+    )) {
+      var simplified = script(signature, text).simplify();
+      assertInstanceOf(ConfigExpressionScript.class, simplified, text);
+      assertFalse(((ConfigExpressionScript<?, ?>) simplified).isLowered(), text);
+    }
+  }
+
+  @Test
+  void testMemoizeScriptResultsPerFeature() {
+    var feature = SimpleFeature.create(newPoint(0, 0), Map.of("a", "bc"), "source", "source_layer", 99);
+    var processFeature = TestContexts.ROOT.createProcessFeatureContext(feature, new TagValueProducer(Map.of()));
+    var context = processFeature.createPostMatchContext(List.of("a"));
+    var signature = signature(FEATURE_POST_MATCH, Integer.class);
+    var script = script(signature, "size(feature.tags.a)");
+
+    try (var memo = ScriptMemo.forFeature()) {
+      assertEquals(2, script.apply(context));
+      assertEquals(2, context.<Integer>memoize(script, () -> fail("expected cached result")));
+      // an equal script from another attribute reuses the result
+      var equalScript = script(signature, "size(feature.tags.a)");
+      assertEquals(2, context.<Integer>memoize(equalScript, () -> fail("expected cached result")));
+      // but a new match of the same feature does not, even though the contexts are equal
+      var otherMatch = processFeature.createPostMatchContext(List.of("a"));
+      assertEquals(context, otherMatch);
+      assertEquals(3, otherMatch.memoize(script, () -> 3));
+    }
+    // results are dropped once the feature is done
+    assertEquals(4, context.memoize(script, () -> 4));
+  }
+
   @Test
   void testSimplifyCoalesce() {
     assertEquals(
@@ -2,8 +2,8 @@ package com.onthegomap.planetiler;
 
 import static java.util.Map.entry;
 
-import com.onthegomap.planetiler.benchmarks.LongLongMapBench;
 import com.onthegomap.planetiler.benchmarks.OpenMapTilesMapping;
+import com.onthegomap.planetiler.benchmarks.jmh.JmhBenchmarks;
 import com.onthegomap.planetiler.custommap.ConfiguredMapMain;
 import com.onthegomap.planetiler.custommap.validator.SchemaValidator;
 import com.onthegomap.planetiler.examples.BikeRouteOverlay;
@@ -13,6 +13,8 @@ import com.onthegomap.planetiler.examples.ToiletsOverlayLowLevelApi;
 import com.onthegomap.planetiler.examples.overture.OvertureBasemap;
 import com.onthegomap.planetiler.mbtiles.Verify;
 import com.onthegomap.planetiler.util.CompareArchives;
+import com.onthegomap.planetiler.util.OsmChangeTiles;
+import com.onthegomap.planetiler.util.TileServer;
 import com.onthegomap.planetiler.util.TileSizeStats;
 import com.onthegomap.planetiler.util.TopOsmTiles;
 import java.util.Arrays;
@@ -62,15 +64,22 @@ public class Main {
     entry("osm-qa", OsmQaTiles::main),
 
     entry("benchmark-mapping", OpenMapTilesMapping::main),
-    entry("benchmark-longlongmap", LongLongMapBench::main),
+    entry("benchmark-longlongmap", args -> JmhBenchmarks.main(prepend("LongLongMapBenchmark", args))),
+    entry("benchmark-jmh", JmhBenchmarks::main),
 
     entry("verify-mbtiles", Verify::main),
     entry("verify-monaco", VerifyMonaco::main),
     entry("stats", TileSizeStats::main),
     entry("top-osm-tiles", TopOsmTiles::main),
-    entry("compare", CompareArchives::main)
+    entry("osm-change-tiles", OsmChangeTiles::main),
+    entry("compare", CompareArchives::main),
+    entry("serve", TileServer::main)
   );
 
+  private static String[] prepend(String arg, String[] args) {
+    return Stream.concat(Stream.of(arg), Stream.of(args)).toArray(String[]::new);
+  }
+
   private static EntryPoint bundledSchema(String path) {
     return args -> ConfiguredMapMain.main(Stream.concat(
       Stream.of("--schema=" + path),